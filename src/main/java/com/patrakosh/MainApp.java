@@ -1,11 +1,15 @@
 package com.patrakosh;
 
 import com.patrakosh.model.User;
+import com.patrakosh.security.PasswordHasher;
 import com.patrakosh.service.DesktopAuthService;
+import com.patrakosh.service.DesktopTransferManager;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
 import javafx.stage.Stage;
 
 import java.io.IOException;
@@ -15,11 +19,24 @@ public class MainApp extends Application {
 
     private static Stage primaryStage;
     private static User currentUser;
-    private static final DesktopAuthService desktopAuthService = new DesktopAuthService(resolveDataPath());
+    private static DesktopAuthService desktopAuthService;
     private static final Path desktopStorageBasePath = resolveDesktopStorageBasePath();
+    private static final DesktopTransferManager desktopTransferManager =
+            new DesktopTransferManager(resolveDesktopTransferParallelism());
 
     @Override
     public void start(Stage stage) {
+        // Opened here rather than in a static initializer, so that a data directory held by the API or another
+        // desktop window is reported instead of failing class initialization.
+        Path dataPath = resolveDataPath();
+        try {
+            desktopAuthService = new DesktopAuthService(dataPath, resolvePasswordHashIterations());
+        } catch (IllegalStateException exception) {
+            showStartupError(dataPath, exception);
+            Platform.exit();
+            return;
+        }
+
         primaryStage = stage;
         primaryStage.setTitle("PatraKosh - File Storage");
         primaryStage.setMinWidth(900);
@@ -62,6 +79,10 @@ public class MainApp extends Application {
         return desktopStorageBasePath;
     }
 
+    public static DesktopTransferManager getDesktopTransferManager() {
+        return desktopTransferManager;
+    }
+
     private static void showScene(String resourcePath, int width, int height, String title) {
         try {
             Parent root = FXMLLoader.load(MainApp.class.getResource(resourcePath));
@@ -72,6 +93,17 @@ public class MainApp extends Application {
         }
     }
 
+    private static void showStartupError(Path dataPath, IllegalStateException exception) {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle("PatraKosh");
+        alert.setHeaderText("Cannot open the data directory " + dataPath);
+        alert.setContentText(exception.getMessage()
+                + "\n\nOnly one PatraKosh instance, desktop app or API, can use a data directory at a time. Close the "
+                + "other one, or start this one with -Dpatrakosh.data.base-path=<directory> or "
+                + "PATRAKOSH_DATA_BASE_PATH set to a directory of its own.");
+        alert.showAndWait();
+    }
+
     private static Path resolveDataPath() {
         String configuredPath = firstNonBlank(
                 System.getProperty("patrakosh.data.base-path"),
@@ -95,6 +127,42 @@ public class MainApp extends Application {
                 .normalize();
     }
 
+    private static int resolveDesktopTransferParallelism() {
+        String configured = firstNonBlank(
+                System.getProperty("patrakosh.desktop.transfers.parallelism"),
+                System.getenv("PATRAKOSH_DESKTOP_TRANSFERS_PARALLELISM")
+        );
+
+        if (configured != null) {
+            try {
+                int parallelism = Integer.parseInt(configured);
+                if (parallelism > 0) {
+                    return parallelism;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return DesktopTransferManager.DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Reads the same iteration setting as the API, so both sides rehash passwords to the same target.
+     */
+    private static int resolvePasswordHashIterations() {
+        String configured = firstNonBlank(
+                System.getProperty("patrakosh.auth.hashing.iterations"),
+                System.getenv("PATRAKOSH_AUTH_HASHING_ITERATIONS")
+        );
+
+        if (configured != null) {
+            try {
+                return Math.max(Integer.parseInt(configured), PasswordHasher.MIN_ITERATIONS);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return PasswordHasher.DEFAULT_ITERATIONS;
+    }
+
     private static String firstNonBlank(String... values) {
         for (String value : values) {
             if (value != null && !value.isBlank()) {
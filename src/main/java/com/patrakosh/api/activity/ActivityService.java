@@ -1,40 +1,35 @@
 package com.patrakosh.api.activity;
 
 import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.StateRepository;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
-import java.util.Comparator;
 import java.util.List;
 
 @Service
 public class ActivityService {
 
-    private final AppStateStore stateStore;
+    private final StateRepository stateStore;
 
-    public ActivityService(AppStateStore stateStore) {
+    public ActivityService(StateRepository stateStore) {
         this.stateStore = stateStore;
     }
 
     public void record(long userId, String action, String filename) {
-        stateStore.write(state -> {
-            state.activities.add(new AppStateStore.ActivityRecord(
-                    state.nextActivityId++,
-                    userId,
-                    action,
-                    filename,
-                    Instant.now()
-            ));
-            return null;
-        });
+        stateStore.appendActivity(new AppStateStore.ActivityRecord(
+                stateStore.nextActivityId(),
+                userId,
+                action,
+                filename,
+                Instant.now()
+        ));
     }
 
     public List<ActivityEntry> listForUser(long userId) {
-        return stateStore.read(state -> state.activities.stream()
-                .filter(entry -> entry.userId == userId)
-                .sorted(Comparator.comparing((AppStateStore.ActivityRecord entry) -> entry.createdAt).reversed())
+        return stateStore.listActivities(userId).stream()
                 .map(entry -> new ActivityEntry(entry.id, entry.action, entry.filename, entry.createdAt))
-                .toList());
+                .toList();
     }
 
     public record ActivityEntry(long id, String action, String filename, Instant createdAt) {
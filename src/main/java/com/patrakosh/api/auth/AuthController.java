@@ -11,7 +11,6 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -87,21 +86,16 @@ public class AuthController {
     }
 
     @PostMapping("/logout")
-    public ResponseEntity<Void> logout(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
-            HttpServletRequest servletRequest
-    ) {
-        authService.logout(authorizationHeader);
+    public ResponseEntity<Void> logout(HttpServletRequest servletRequest) {
+        authService.logout(SessionTokenFilter.token(servletRequest));
         return ResponseEntity.noContent()
                 .header(HttpHeaders.SET_COOKIE, sessionCookieService.clearSessionCookie(servletRequest).toString())
                 .build();
     }
 
     @GetMapping("/me")
-    public AuthService.UserSummary me(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader
-    ) {
-        return authService.currentUser(authorizationHeader);
+    public AuthService.UserSummary me(AuthService.UserAccount user) {
+        return AuthService.UserSummary.from(user);
     }
 
     private ResponseEntity<AuthResponse> buildAuthenticatedResponse(AuthService.AuthSession session, HttpServletRequest request) {
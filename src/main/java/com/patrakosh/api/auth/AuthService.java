@@ -3,34 +3,46 @@ package com.patrakosh.api.auth;
 import com.patrakosh.api.ValidationException;
 import com.patrakosh.api.activity.ActivityService;
 import com.patrakosh.persistence.AppStateStore;
-import com.patrakosh.security.PasswordHasher;
+import com.patrakosh.persistence.StateRepository;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.HexFormat;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 
 @Service
 public class AuthService {
 
-    private final AppStateStore stateStore;
+    private final StateRepository stateStore;
     private final ActivityService activityService;
+    private final PasswordHashingExecutor passwordHashing;
+    private final SessionTokenCodec sessionTokens;
+    private final SessionRevocations revocations;
     private final SecureRandom secureRandom = new SecureRandom();
     private final long sessionTtlSeconds;
 
     public AuthService(
-            AppStateStore stateStore,
+            StateRepository stateStore,
             ActivityService activityService,
+            PasswordHashingExecutor passwordHashing,
+            SessionTokenCodec sessionTokens,
+            SessionRevocations revocations,
             @Value("${patrakosh.auth.session-ttl-seconds:43200}") long sessionTtlSeconds
     ) {
         this.stateStore = stateStore;
         this.activityService = activityService;
+        this.passwordHashing = passwordHashing;
+        this.sessionTokens = sessionTokens;
+        this.revocations = revocations;
         this.sessionTtlSeconds = sessionTtlSeconds;
     }
 
@@ -42,73 +54,57 @@ public class AuthService {
         if (!password.equals(confirmPassword)) {
             fieldErrors.put("confirmPassword", "Passwords do not match.");
         }
+        rejectTakenCredentials(fieldErrors, usernameTaken(normalizedUsername), emailTaken(normalizedEmail));
 
-        AuthSession session = stateStore.write(state -> {
-            if (state.users.stream().anyMatch(user -> normalize(user.username).equals(normalizedUsername))) {
-                fieldErrors.put("username", "This username is already taken.");
-            }
-            if (state.users.stream().anyMatch(user -> normalize(user.email).equals(normalizedEmail))) {
-                fieldErrors.put("email", "An account with this email already exists.");
-            }
-
-            if (!fieldErrors.isEmpty()) {
-                throw new ValidationException("Validation failed", fieldErrors);
-            }
-
-            long userId = state.nextUserId++;
-            AppStateStore.UserRecord userRecord = new AppStateStore.UserRecord(
-                    userId,
-                    username.trim(),
-                    email.trim(),
-                    PasswordHasher.hash(password),
-                    Instant.now()
-            );
-            state.users.add(userRecord);
-
-            AppStateStore.SessionRecord sessionRecord = newSessionRecord(userId);
-            state.sessions.add(sessionRecord);
-
-            return new AuthSession(sessionRecord.token, UserSummary.from(userRecord));
-        });
+        StateRepository.Registration registration = stateStore.registerUser(
+                username.trim(),
+                email.trim(),
+                passwordHashing.hash(password),
+                Instant.now()
+        );
+        rejectTakenCredentials(fieldErrors, registration.usernameTaken(), registration.emailTaken());
+        AuthSession session = openSession(registration.user());
 
         activityService.record(session.user().id(), "SIGNUP", null);
         return session;
     }
 
     public AuthSession login(String usernameOrEmail, String password) {
-        AuthSession session = stateStore.write(state -> {
-            Instant now = Instant.now();
-            state.sessions.removeIf(existing -> isExpiredOrRevoked(existing, now));
-
-            String normalizedIdentifier = normalize(usernameOrEmail);
-            AppStateStore.UserRecord userRecord = state.users.stream()
-                    .filter(user -> normalize(user.username).equals(normalizedIdentifier)
-                            || normalize(user.email).equals(normalizedIdentifier))
-                    .findFirst()
-                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid username/email or password"));
-
-            if (!PasswordHasher.matches(password, userRecord.passwordHash)) {
-                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid username/email or password");
-            }
+        AppStateStore.UserRecord userRecord = stateStore.findUserByUsernameOrEmail(usernameOrEmail)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid username/email or password"));
+        if (!passwordHashing.matches(password, userRecord.passwordHash)) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid username/email or password");
+        }
+        if (passwordHashing.needsRehash(userRecord.passwordHash)) {
+            rehashPassword(userRecord, password);
+        }
 
-            AppStateStore.SessionRecord sessionRecord = newSessionRecord(userRecord.id);
-            state.sessions.add(sessionRecord);
-            return new AuthSession(sessionRecord.token, UserSummary.from(userRecord));
-        });
+        AuthSession session = openSession(userRecord);
 
         activityService.record(session.user().id(), "LOGIN", null);
         return session;
     }
 
-    public void logout(String authorizationHeader) {
-        String token = extractBearerToken(authorizationHeader, false);
+    public void logout(String token) {
         if (token == null) {
             return;
         }
+        if (sessionTokens.isSigned(token)) {
+            liveSignedSession(token).ifPresent(session -> {
+                revocations.revoke(session.tokenId(), session.expiresAt());
+                activityService.record(session.userId(), "LOGOUT", null);
+            });
+            return;
+        }
 
-        UserAccount user = stateStore.write(state -> {
+        OptionalLong ownerId = stateStore.findSessionOwner(token);
+        if (ownerId.isEmpty()) {
+            return;
+        }
+
+        Long userId = stateStore.writeUser(ownerId.getAsLong(), partition -> {
             Instant now = Instant.now();
-            AppStateStore.SessionRecord sessionRecord = state.sessions.stream()
+            AppStateStore.SessionRecord sessionRecord = partition.sessions.stream()
                     .filter(session -> token.equals(session.token))
                     .findFirst()
                     .orElse(null);
@@ -118,47 +114,103 @@ public class AuthService {
             }
 
             sessionRecord.revokedAt = now;
-            AppStateStore.UserRecord userRecord = findUser(state, sessionRecord.userId);
-            return UserAccount.from(userRecord);
+            return sessionRecord.userId;
         });
 
-        if (user != null) {
-            activityService.record(user.id(), "LOGOUT", null);
+        if (userId != null) {
+            activityService.record(userId, "LOGOUT", null);
         }
     }
 
-    public UserSummary currentUser(String authorizationHeader) {
-        return UserSummary.from(requireUserRecord(authorizationHeader));
-    }
-
-    public UserAccount requireUser(String authorizationHeader) {
-        return UserAccount.from(requireUserRecord(authorizationHeader));
+    /**
+     * Resolves the user a session token belongs to, rejecting missing, expired and revoked tokens with 401.
+     */
+    public UserAccount requireUser(String token) {
+        if (token == null || token.isBlank()) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Authentication token is required");
+        }
+        return UserAccount.from(requireUserRecord(token));
     }
 
     public long getSessionTtlSeconds() {
         return sessionTtlSeconds;
     }
 
-    private AppStateStore.UserRecord requireUserRecord(String authorizationHeader) {
-        String token = extractBearerToken(authorizationHeader, true);
-
-        return stateStore.write(state -> {
+    /**
+     * Starts a session for a user whose credentials have been checked. Signed tokens need no state at all;
+     * opaque ones are stored with the user's sessions, after dropping the ones that have lapsed.
+     */
+    private AuthSession openSession(AppStateStore.UserRecord userRecord) {
+        if (sessionTokens.isEnabled()) {
+            String token = sessionTokens.issue(userRecord.id, Instant.now(), Duration.ofSeconds(sessionTtlSeconds));
+            return new AuthSession(token, UserSummary.from(userRecord));
+        }
+        return stateStore.writeUser(userRecord.id, partition -> {
             Instant now = Instant.now();
-            state.sessions.removeIf(session -> isExpiredOrRevoked(session, now));
+            partition.sessions.removeIf(existing -> isExpiredOrRevoked(existing, now));
 
-            AppStateStore.SessionRecord sessionRecord = state.sessions.stream()
-                    .filter(session -> token.equals(session.token))
-                    .findFirst()
-                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid or expired token"));
-
-            return findUser(state, sessionRecord.userId);
+            AppStateStore.SessionRecord sessionRecord = newSessionRecord(userRecord.id);
+            partition.sessions.add(sessionRecord);
+            return new AuthSession(sessionRecord.token, UserSummary.from(userRecord));
         });
     }
 
-    private static AppStateStore.UserRecord findUser(AppStateStore.StateSnapshot state, long userId) {
-        return state.users.stream()
-                .filter(user -> user.id == userId)
-                .findFirst()
+    private AppStateStore.UserRecord requireUserRecord(String token) {
+        if (sessionTokens.isSigned(token)) {
+            long userId = liveSignedSession(token)
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid or expired token"))
+                    .userId();
+            return findUser(userId);
+        }
+
+        Instant now = Instant.now();
+        long userId = stateStore.findSession(token)
+                .filter(session -> !isExpiredOrRevoked(session, now))
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid or expired token"))
+                .userId;
+        return findUser(userId);
+    }
+
+    private void rehashPassword(AppStateStore.UserRecord userRecord, String password) {
+        try {
+            stateStore.updatePasswordHash(userRecord.id, userRecord.passwordHash, passwordHashing.hash(password));
+        } catch (ResponseStatusException exception) {
+            // The hashing pool is saturated; the old hash still verifies, so try again on a later login.
+        }
+    }
+
+    private Optional<SessionTokenCodec.SignedSession> liveSignedSession(String token) {
+        return sessionTokens.verify(token)
+                .filter(session -> session.expiresAt().isAfter(Instant.now()))
+                .filter(session -> !revocations.isRevoked(session.tokenId()));
+    }
+
+    private boolean usernameTaken(String normalizedUsername) {
+        return stateStore.findUserByUsernameOrEmail(normalizedUsername)
+                .filter(user -> normalize(user.username).equals(normalizedUsername))
+                .isPresent();
+    }
+
+    private boolean emailTaken(String normalizedEmail) {
+        return stateStore.findUserByUsernameOrEmail(normalizedEmail)
+                .filter(user -> normalize(user.email).equals(normalizedEmail))
+                .isPresent();
+    }
+
+    private static void rejectTakenCredentials(Map<String, String> fieldErrors, boolean usernameTaken, boolean emailTaken) {
+        if (usernameTaken) {
+            fieldErrors.put("username", "This username is already taken.");
+        }
+        if (emailTaken) {
+            fieldErrors.put("email", "An account with this email already exists.");
+        }
+        if (!fieldErrors.isEmpty()) {
+            throw new ValidationException("Validation failed", fieldErrors);
+        }
+    }
+
+    private AppStateStore.UserRecord findUser(long userId) {
+        return stateStore.findUser(userId)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "User session is no longer valid"));
     }
 
@@ -185,24 +237,6 @@ public class AuthService {
                 || !sessionRecord.expiresAt.isAfter(now);
     }
 
-    private static String extractBearerToken(String authorizationHeader, boolean required) {
-        if (authorizationHeader == null || !authorizationHeader.startsWith("Bearer ")) {
-            if (required) {
-                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Authentication token is required");
-            }
-            return null;
-        }
-
-        String token = authorizationHeader.substring("Bearer ".length()).trim();
-        if (token.isBlank()) {
-            if (required) {
-                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Authentication token is required");
-            }
-            return null;
-        }
-        return token;
-    }
-
     private static String normalize(String value) {
         return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
     }
@@ -218,7 +252,7 @@ public class AuthService {
             return new UserSummary(userRecord.id, userRecord.username, userRecord.email, userRecord.createdAt);
         }
 
-        private static UserSummary from(UserAccount user) {
+        public static UserSummary from(UserAccount user) {
             return new UserSummary(user.id, user.username, user.email, user.createdAt);
         }
     }
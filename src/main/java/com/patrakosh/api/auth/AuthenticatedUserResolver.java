@@ -0,0 +1,46 @@
+package com.patrakosh.api.auth;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.core.MethodParameter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.support.WebDataBinderFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.ModelAndViewContainer;
+
+/**
+ * Supplies {@link AuthService.UserAccount} controller parameters with the caller's account. The session is
+ * resolved at most once per request and the result kept as a request attribute.
+ */
+@Component
+public class AuthenticatedUserResolver implements HandlerMethodArgumentResolver {
+
+    private static final String USER_ATTRIBUTE = AuthenticatedUserResolver.class.getName() + ".user";
+
+    private final AuthService authService;
+
+    public AuthenticatedUserResolver(AuthService authService) {
+        this.authService = authService;
+    }
+
+    @Override
+    public boolean supportsParameter(MethodParameter parameter) {
+        return parameter.getParameterType() == AuthService.UserAccount.class;
+    }
+
+    @Override
+    public AuthService.UserAccount resolveArgument(
+            MethodParameter parameter,
+            ModelAndViewContainer mavContainer,
+            NativeWebRequest webRequest,
+            WebDataBinderFactory binderFactory
+    ) {
+        HttpServletRequest request = webRequest.getNativeRequest(HttpServletRequest.class);
+        AuthService.UserAccount user = (AuthService.UserAccount) request.getAttribute(USER_ATTRIBUTE);
+        if (user == null) {
+            user = authService.requireUser(SessionTokenFilter.token(request));
+            request.setAttribute(USER_ATTRIBUTE, user);
+        }
+        return user;
+    }
+}
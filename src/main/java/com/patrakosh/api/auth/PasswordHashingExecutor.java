@@ -0,0 +1,115 @@
+package com.patrakosh.api.auth;
+
+import com.patrakosh.security.PasswordHasher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs password hashing and verification on a fixed pool of CPU threads so request threads never derive keys
+ * while holding state locks. Work beyond the pool and its bounded queue is refused with 429 instead of piling up.
+ *
+ * <p>New hashes use the configured iteration count, or one calibrated at startup to hit a target verification
+ * time when {@code patrakosh.auth.hashing.calibrate-target-ms} is set.
+ */
+@Component
+public class PasswordHashingExecutor implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PasswordHashingExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final int iterations;
+
+    public PasswordHashingExecutor(
+            @Value("${patrakosh.auth.hashing.threads:0}") int threads,
+            @Value("${patrakosh.auth.hashing.queue-depth:32}") int queueDepth,
+            @Value("${patrakosh.auth.hashing.iterations:" + PasswordHasher.DEFAULT_ITERATIONS + "}") int iterations,
+            @Value("${patrakosh.auth.hashing.calibrate-target-ms:0}") long calibrateTargetMillis
+    ) {
+        if (calibrateTargetMillis > 0) {
+            this.iterations = PasswordHasher.calibrate(Duration.ofMillis(calibrateTargetMillis));
+            log.info("Calibrated password hashing to {} iterations for a {} ms target", this.iterations, calibrateTargetMillis);
+        } else if (iterations < PasswordHasher.MIN_ITERATIONS) {
+            throw new IllegalArgumentException("iterations must be at least " + PasswordHasher.MIN_ITERATIONS);
+        } else {
+            this.iterations = iterations;
+        }
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("queueDepth must be greater than zero");
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "patrakosh-hashing-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    public String hash(String password) {
+        return call(() -> PasswordHasher.hash(password, iterations));
+    }
+
+    public boolean matches(String password, String storedHash) {
+        return call(() -> PasswordHasher.matches(password, storedHash));
+    }
+
+    /**
+     * Whether a stored hash was made with fewer iterations than new hashes get.
+     */
+    public boolean needsRehash(String storedHash) {
+        return PasswordHasher.needsRehash(storedHash, iterations);
+    }
+
+    int queuedTasks() {
+        return executor.getQueue().size();
+    }
+
+    <T> T call(Callable<T> task) {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException exception) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Server is busy. Please try again shortly.");
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException exception) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Request was interrupted");
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Password hashing failed", exception.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,113 @@
+package com.patrakosh.api.auth;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ids of signed session tokens that were logged out before they expired, checked in O(1) on every request.
+ *
+ * <p>Entries are appended to {@code session-revocations.log} under the data directory so a revocation outlives a
+ * restart, and are dropped once the token they name has expired. The log is rewritten with only the live entries
+ * whenever it has grown to twice their number.
+ */
+@Component
+public class SessionRevocations {
+
+    private static final int MIN_COMPACTION_LINES = 1024;
+
+    private final Path file;
+    private final Map<String, Long> revokedUntil = new ConcurrentHashMap<>();
+    private int loggedLines;
+
+    public SessionRevocations(@Value("${patrakosh.data.base-path:data}") String basePath) {
+        this.file = Path.of(basePath).toAbsolutePath().normalize().resolve("session-revocations.log");
+        long now = Instant.now().getEpochSecond();
+        try {
+            if (Files.exists(file)) {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+                for (String line : lines) {
+                    String[] parts = line.split(" ", 2);
+                    if (parts.length == 2 && Long.parseLong(parts[1]) > now) {
+                        revokedUntil.put(parts[0], Long.parseLong(parts[1]));
+                    }
+                }
+                loggedLines = lines.size();
+            }
+        } catch (IOException | NumberFormatException exception) {
+            throw new IllegalStateException("Failed to load session revocations", exception);
+        }
+    }
+
+    public boolean isRevoked(String tokenId) {
+        Long until = revokedUntil.get(tokenId);
+        return until != null && until > Instant.now().getEpochSecond();
+    }
+
+    public synchronized void revoke(String tokenId, Instant expiresAt) {
+        long now = Instant.now().getEpochSecond();
+        if (expiresAt.getEpochSecond() <= now || revokedUntil.putIfAbsent(tokenId, expiresAt.getEpochSecond()) != null) {
+            return;
+        }
+        try {
+            if (loggedLines >= Math.max(MIN_COMPACTION_LINES, revokedUntil.size() * 2)) {
+                revokedUntil.values().removeIf(until -> until <= now);
+                compact();
+            } else {
+                append(tokenId + " " + expiresAt.getEpochSecond() + "\n");
+            }
+        } catch (IOException exception) {
+            revokedUntil.remove(tokenId);
+            throw new IllegalStateException("Failed to save session revocation", exception);
+        }
+    }
+
+    private void append(String line) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND
+        )) {
+            channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)));
+            channel.force(false);
+        }
+        loggedLines++;
+    }
+
+    private void compact() throws IOException {
+        StringBuilder content = new StringBuilder();
+        revokedUntil.forEach((tokenId, until) -> content.append(tokenId).append(' ').append(until).append('\n'));
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(
+                temporary,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            channel.write(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ignored) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        loggedLines = revokedUntil.size();
+    }
+}
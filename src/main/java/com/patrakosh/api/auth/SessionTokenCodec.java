@@ -0,0 +1,152 @@
+package com.patrakosh.api.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Issues and checks self-contained session tokens of the form {@code s1.<key id>.<claims>.<signature>}, where the
+ * claims carry the user id, issue time, expiry and a random token id, signed with HMAC-SHA256.
+ *
+ * <p>Signing keys come from {@code patrakosh.auth.session-signing-keys} as comma-separated {@code id:base64}
+ * pairs. The first key signs new tokens and every listed key is accepted, so a key is rotated by adding a new
+ * one in front and dropping the old one once its tokens have expired. Without configured keys a random key is
+ * generated, and signed sessions end when the server restarts.
+ */
+@Component
+public class SessionTokenCodec {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionTokenCodec.class);
+    private static final String PREFIX = "s1.";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int CLAIMS_BYTES = 3 * Long.BYTES + 16;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final boolean enabled;
+    private final String signingKeyId;
+    private final Map<String, SecretKeySpec> keys = new LinkedHashMap<>();
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public SessionTokenCodec(
+            @Value("${patrakosh.auth.session-tokens:opaque}") String format,
+            @Value("${patrakosh.auth.session-signing-keys:}") String signingKeys
+    ) {
+        this.enabled = switch (format.trim().toLowerCase(Locale.ROOT)) {
+            case "opaque" -> false;
+            case "signed" -> true;
+            default -> throw new IllegalArgumentException("Unknown session token format: " + format);
+        };
+        for (String entry : signingKeys.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String[] parts = entry.trim().split(":", 2);
+            if (parts.length != 2 || parts[0].isBlank() || parts[0].contains(".")) {
+                throw new IllegalArgumentException("Session signing keys must be id:base64 pairs");
+            }
+            byte[] secret = Base64.getDecoder().decode(parts[1]);
+            if (secret.length < 32) {
+                throw new IllegalArgumentException("Session signing key " + parts[0] + " must be at least 32 bytes");
+            }
+            keys.put(parts[0], new SecretKeySpec(secret, ALGORITHM));
+        }
+        if (keys.isEmpty()) {
+            byte[] secret = new byte[32];
+            secureRandom.nextBytes(secret);
+            keys.put("local", new SecretKeySpec(secret, ALGORITHM));
+            if (enabled) {
+                log.warn("No session signing keys configured; signed sessions will not survive a restart");
+            }
+        }
+        this.signingKeyId = keys.keySet().iterator().next();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isSigned(String token) {
+        return enabled && token.startsWith(PREFIX);
+    }
+
+    public String issue(long userId, Instant issuedAt, Duration ttl) {
+        byte[] tokenId = new byte[16];
+        secureRandom.nextBytes(tokenId);
+        ByteBuffer claims = ByteBuffer.allocate(CLAIMS_BYTES)
+                .putLong(userId)
+                .putLong(issuedAt.getEpochSecond())
+                .putLong(issuedAt.plus(ttl).getEpochSecond())
+                .put(tokenId);
+        String signed = PREFIX + signingKeyId + "." + ENCODER.encodeToString(claims.array());
+        return signed + "." + ENCODER.encodeToString(sign(keys.get(signingKeyId), signed));
+    }
+
+    /**
+     * Returns the token's claims if it carries a valid signature from a known key. Expiry and revocation are
+     * left to the caller.
+     */
+    public Optional<SignedSession> verify(String token) {
+        if (!isSigned(token)) {
+            return Optional.empty();
+        }
+        int keyEnd = token.indexOf('.', PREFIX.length());
+        int claimsEnd = keyEnd < 0 ? -1 : token.indexOf('.', keyEnd + 1);
+        if (claimsEnd < 0) {
+            return Optional.empty();
+        }
+        SecretKeySpec key = keys.get(token.substring(PREFIX.length(), keyEnd));
+        if (key == null) {
+            return Optional.empty();
+        }
+        try {
+            byte[] signature = DECODER.decode(token.substring(claimsEnd + 1));
+            if (!MessageDigest.isEqual(signature, sign(key, token.substring(0, claimsEnd)))) {
+                return Optional.empty();
+            }
+            byte[] claimBytes = DECODER.decode(token.substring(keyEnd + 1, claimsEnd));
+            if (claimBytes.length != CLAIMS_BYTES) {
+                return Optional.empty();
+            }
+            ByteBuffer claims = ByteBuffer.wrap(claimBytes);
+            long userId = claims.getLong();
+            Instant issuedAt = Instant.ofEpochSecond(claims.getLong());
+            Instant expiresAt = Instant.ofEpochSecond(claims.getLong());
+            byte[] tokenId = new byte[16];
+            claims.get(tokenId);
+            return Optional.of(new SignedSession(userId, issuedAt, expiresAt, HexFormat.of().formatHex(tokenId)));
+        } catch (IllegalArgumentException exception) {
+            return Optional.empty();
+        }
+    }
+
+    private static byte[] sign(SecretKeySpec key, String value) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(value.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalStateException("Failed to sign session token", exception);
+        }
+    }
+
+    public record SignedSession(long userId, Instant issuedAt, Instant expiresAt, String tokenId) {
+    }
+}
@@ -0,0 +1,54 @@
+package com.patrakosh.api.auth;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Picks the session token out of the {@code Authorization} bearer header, or the session cookie when there is
+ * no such header, and leaves it on the request for {@link AuthenticatedUserResolver}.
+ */
+@Component
+public class SessionTokenFilter extends OncePerRequestFilter {
+
+    static final String TOKEN_ATTRIBUTE = SessionTokenFilter.class.getName() + ".token";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final SessionCookieService sessionCookieService;
+
+    public SessionTokenFilter(SessionCookieService sessionCookieService) {
+        this.sessionCookieService = sessionCookieService;
+    }
+
+    public static String token(HttpServletRequest request) {
+        return (String) request.getAttribute(TOKEN_ATTRIBUTE);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String authorizationHeader = request.getHeader(HttpHeaders.AUTHORIZATION);
+        String token = authorizationHeader != null
+                ? bearerToken(authorizationHeader)
+                : sessionCookieService.extractToken(request.getCookies());
+        if (token != null) {
+            request.setAttribute(TOKEN_ATTRIBUTE, token);
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    private static String bearerToken(String authorizationHeader) {
+        if (!authorizationHeader.startsWith(BEARER_PREFIX)) {
+            return null;
+        }
+        String token = authorizationHeader.substring(BEARER_PREFIX.length()).trim();
+        return token.isBlank() ? null : token;
+    }
+}
@@ -0,0 +1,44 @@
+package com.patrakosh.api.config;
+
+import com.patrakosh.persistence.JdbcStateRepository;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+/**
+ * Switches persistence to {@link JdbcStateRepository} when {@code patrakosh.data.backend=jdbc}. Without an
+ * explicit URL the database is an embedded H2 file under {@code patrakosh.data.base-path}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "patrakosh.data.backend", havingValue = "jdbc")
+public class JdbcPersistenceConfig {
+
+    @Bean(destroyMethod = "close")
+    public HikariDataSource patrakoshDataSource(
+            @Value("${patrakosh.data.base-path:data}") String basePath,
+            @Value("${patrakosh.data.jdbc.url:}") String url,
+            @Value("${patrakosh.data.jdbc.username:sa}") String username,
+            @Value("${patrakosh.data.jdbc.password:}") String password,
+            @Value("${patrakosh.data.jdbc.pool-size:16}") int poolSize
+    ) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("patrakosh");
+        config.setJdbcUrl(url.isBlank()
+                ? "jdbc:h2:file:" + Path.of(basePath).toAbsolutePath().normalize().resolve("patrakosh")
+                : url);
+        config.setUsername(username);
+        config.setPassword(password);
+        config.setMaximumPoolSize(poolSize);
+        return new HikariDataSource(config);
+    }
+
+    @Bean
+    public JdbcStateRepository stateRepository(HikariDataSource patrakoshDataSource) {
+        return new JdbcStateRepository(patrakoshDataSource);
+    }
+}
@@ -1,7 +1,9 @@
 package com.patrakosh.api.config;
 
+import com.patrakosh.api.auth.AuthenticatedUserResolver;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
 import org.springframework.web.servlet.config.annotation.CorsRegistration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -13,12 +15,22 @@ import java.util.List;
 public class WebConfig implements WebMvcConfigurer {
 
     private final List<String> allowedOrigins;
+    private final AuthenticatedUserResolver authenticatedUserResolver;
 
-    public WebConfig(@Value("${patrakosh.cors.allowed-origins:http://localhost:5173,http://127.0.0.1:5173}") String allowedOrigins) {
+    public WebConfig(
+            @Value("${patrakosh.cors.allowed-origins:http://localhost:5173,http://127.0.0.1:5173}") String allowedOrigins,
+            AuthenticatedUserResolver authenticatedUserResolver
+    ) {
         this.allowedOrigins = Arrays.stream(allowedOrigins.split(","))
                 .map(String::trim)
                 .filter(origin -> !origin.isBlank())
                 .toList();
+        this.authenticatedUserResolver = authenticatedUserResolver;
+    }
+
+    @Override
+    public void addArgumentResolvers(List<HandlerMethodArgumentResolver> resolvers) {
+        resolvers.add(authenticatedUserResolver);
     }
 
     @Override
@@ -0,0 +1,79 @@
+package com.patrakosh.api.diagnostics;
+
+import com.patrakosh.api.files.BlobCache;
+import com.patrakosh.api.files.BlobScrubber;
+import com.patrakosh.api.files.StorageReconciler;
+import com.patrakosh.api.files.TrashPurger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Operator view of the background storage jobs. Requests must carry {@code patrakosh.diagnostics.token} in the
+ * {@value #TOKEN_HEADER} header; without a configured token the endpoints do not exist.
+ */
+@RestController
+@RequestMapping("/api/diagnostics")
+public class DiagnosticsController {
+
+    static final String TOKEN_HEADER = "X-Diagnostics-Token";
+
+    private final byte[] token;
+    private final BlobScrubber blobScrubber;
+    private final StorageReconciler storageReconciler;
+    private final TrashPurger trashPurger;
+    private final BlobCache blobCache;
+
+    public DiagnosticsController(
+            @Value("${patrakosh.diagnostics.token:}") String token,
+            BlobScrubber blobScrubber,
+            StorageReconciler storageReconciler,
+            TrashPurger trashPurger,
+            BlobCache blobCache
+    ) {
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.blobScrubber = blobScrubber;
+        this.storageReconciler = storageReconciler;
+        this.trashPurger = trashPurger;
+        this.blobCache = blobCache;
+    }
+
+    @GetMapping("/storage")
+    public StorageDiagnostics storage(@RequestHeader(value = TOKEN_HEADER, required = false) String presentedToken) {
+        requireToken(presentedToken);
+        return new StorageDiagnostics(
+                blobScrubber.lastReport(),
+                blobScrubber.findings(),
+                storageReconciler.lastReport(),
+                trashPurger.lastReport(),
+                blobCache.stats()
+        );
+    }
+
+    private void requireToken(String presentedToken) {
+        if (token.length == 0) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Not found");
+        }
+        if (presentedToken == null
+                || !MessageDigest.isEqual(token, presentedToken.getBytes(StandardCharsets.UTF_8))) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Invalid diagnostics token");
+        }
+    }
+
+    public record StorageDiagnostics(
+            BlobScrubber.ScrubReport scrub,
+            List<BlobScrubber.Finding> damagedFiles,
+            StorageReconciler.ReconciliationReport reconciliation,
+            TrashPurger.PurgeReport trashPurge,
+            BlobCache.CacheStats cache
+    ) {
+    }
+}
@@ -0,0 +1,521 @@
+package com.patrakosh.api.files;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * rsync-style binary deltas: the contents of one blob described as block copies out of another, plus the bytes
+ * that could not be found there.
+ *
+ * <p>The base blob is summarised by a {@link Signature} of its whole blocks, each with a rolling weak hash and a
+ * truncated SHA-256. {@link #encode} slides a window over the target one byte at a time, so a block is found at
+ * any offset, and only pays for a strong hash when the weak one matches. A delta is a header followed by copy and
+ * literal operations; {@link #decode} streams the target back out of the base and checks it against the target's
+ * CRC32C.
+ *
+ * <p>The same format carries delta uploads, whose deltas are written by the client against the signature it
+ * fetched, so the decoder treats every inconsistency as a {@link MalformedDeltaException}. All numbers are
+ * big-endian:
+ * <pre>
+ * int  0x50444c54           magic
+ * long targetLength
+ * then any number of
+ *   byte 1, long offset, long length    copy bytes of the base
+ *   byte 2, int length, bytes           literal bytes
+ * byte 0                               end
+ * </pre>
+ */
+final class BinaryDelta {
+
+    static final int MIN_BLOCK_SIZE = 1024;
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    private static final int MAGIC = 0x50444c54;
+    private static final int MAX_LITERAL = 64 * 1024;
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_LITERAL = 2;
+
+    private BinaryDelta() {
+    }
+
+    /**
+     * A block size of about the square root of the base length, which balances the size of the signature against
+     * the bytes a single changed byte costs.
+     */
+    static int blockSizeFor(long length) {
+        long root = (long) Math.sqrt(Math.max(length, 0));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+    }
+
+    /**
+     * Wraps a stream so the signature of everything read through it is built on the way, for a base that is being
+     * written somewhere else at the same time. {@link SigningInputStream#signature()} is complete once the stream
+     * has been read to the end.
+     */
+    static SigningInputStream signing(InputStream base, int blockSize) {
+        return new SigningInputStream(base, blockSize);
+    }
+
+    static Signature sign(InputStream base, int blockSize) throws IOException {
+        SigningInputStream signing = signing(base, blockSize);
+        signing.transferTo(OutputStream.nullOutputStream());
+        return signing.signature();
+    }
+
+    /**
+     * Writes the delta that rebuilds {@code target} from the base {@code signature} was taken of.
+     */
+    static void encode(Signature signature, InputStream target, long targetLength, OutputStream out) throws IOException {
+        int blockSize = signature.blockSize;
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeLong(targetLength);
+        Emitter emitter = new Emitter(data);
+        MessageDigest digest = sha256();
+
+        byte[] buffer = new byte[2 * blockSize + MAX_LITERAL];
+        int literalStart = 0;
+        int position = 0;
+        int end = 0;
+        boolean eof = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+        while (true) {
+            if (end - position <= blockSize && !eof) {
+                // Everything before the pending literal has been written, so it can be dropped.
+                System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+                position -= literalStart;
+                end -= literalStart;
+                literalStart = 0;
+                int read;
+                while (end < buffer.length && (read = target.read(buffer, end, buffer.length - end)) >= 0) {
+                    end += read;
+                }
+                eof = end < buffer.length;
+                continue;
+            }
+            if (end - position < blockSize || signature.blockCount() == 0) {
+                break;
+            }
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int index = 0; index < blockSize; index++) {
+                    int value = buffer[position + index] & 0xff;
+                    a += value;
+                    b += (blockSize - index) * value;
+                }
+                a &= 0xffff;
+                b &= 0xffff;
+                rolling = true;
+            }
+            int block = signature.find((b << 16) | a, buffer, position, digest);
+            if (block >= 0) {
+                emitter.literal(buffer, literalStart, position - literalStart);
+                emitter.copy((long) block * blockSize, blockSize);
+                position += blockSize;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+            if (position - literalStart >= MAX_LITERAL) {
+                emitter.literal(buffer, literalStart, position - literalStart);
+                literalStart = position;
+            }
+            if (position + blockSize < end) {
+                int out0 = buffer[position] & 0xff;
+                int in = buffer[position + blockSize] & 0xff;
+                a = (a - out0 + in) & 0xffff;
+                b = (b - blockSize * out0 + a) & 0xffff;
+            } else {
+                rolling = false;
+            }
+            position++;
+        }
+        emitter.literal(buffer, literalStart, end - literalStart);
+        int read;
+        while ((read = target.read(buffer)) >= 0) {
+            emitter.literal(buffer, 0, read);
+        }
+        emitter.finish();
+        data.flush();
+    }
+
+    /**
+     * Streams the target back out of {@code delta} and its base. The stream fails at the end if the result does
+     * not have the recorded length or, unless {@code checksum} is negative, the given CRC32C.
+     */
+    static DecodingInputStream decode(InputStream delta, Base base, long checksum) throws IOException {
+        return new DecodingInputStream(delta, base, checksum);
+    }
+
+    /**
+     * Random access to the base a delta was taken against.
+     */
+    interface Base {
+        InputStream open(long offset, long length) throws IOException;
+    }
+
+    /**
+     * A delta that is truncated, refers past the end of its base, or does not rebuild the target it describes.
+     */
+    static final class MalformedDeltaException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        MalformedDeltaException(String message) {
+            super(message);
+        }
+    }
+
+    static final class Signature {
+
+        private final int blockSize;
+        private final Map<Integer, int[]> blocksByWeakHash = new HashMap<>();
+        private final List<long[]> strongHashes = new ArrayList<>();
+        private int[] weakHashes = new int[16];
+
+        private Signature(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        int blockSize() {
+            return blockSize;
+        }
+
+        int blockCount() {
+            return strongHashes.size();
+        }
+
+        int weakHashOf(int block) {
+            return weakHashes[block];
+        }
+
+        /**
+         * The first 128 bits of the block's SHA-256, most significant half first.
+         */
+        long[] strongHashOf(int block) {
+            return strongHashes.get(block).clone();
+        }
+
+        private void add(int weak, long[] strong) {
+            int block = strongHashes.size();
+            strongHashes.add(strong);
+            if (block == weakHashes.length) {
+                weakHashes = Arrays.copyOf(weakHashes, block * 2);
+            }
+            weakHashes[block] = weak;
+            int[] blocks = blocksByWeakHash.get(weak);
+            if (blocks == null) {
+                blocksByWeakHash.put(weak, new int[]{block});
+            } else {
+                int[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+                grown[blocks.length] = block;
+                blocksByWeakHash.put(weak, grown);
+            }
+        }
+
+        private int find(int weak, byte[] buffer, int offset, MessageDigest digest) {
+            int[] blocks = blocksByWeakHash.get(weak);
+            if (blocks == null) {
+                return -1;
+            }
+            long[] strong = strongHash(digest, buffer, offset, blockSize);
+            for (int block : blocks) {
+                if (Arrays.equals(strongHashes.get(block), strong)) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+    }
+
+    static final class SigningInputStream extends FilterInputStream {
+
+        private final Signature signature;
+        private final byte[] block;
+        private final MessageDigest digest = sha256();
+        private int filled;
+
+        private SigningInputStream(InputStream in, int blockSize) {
+            super(in);
+            this.signature = new Signature(blockSize);
+            this.block = new byte[blockSize];
+        }
+
+        Signature signature() {
+            return signature;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = in.read();
+            if (value >= 0) {
+                accept(new byte[]{(byte) value}, 0, 1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read > 0) {
+                accept(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes would leave holes in the signature.
+            byte[] discard = new byte[8192];
+            long skipped = 0;
+            while (skipped < count) {
+                int read = read(discard, 0, (int) Math.min(discard.length, count - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void accept(byte[] buffer, int offset, int length) {
+            while (length > 0) {
+                int count = Math.min(length, block.length - filled);
+                System.arraycopy(buffer, offset, block, filled, count);
+                filled += count;
+                offset += count;
+                length -= count;
+                if (filled == block.length) {
+                    // A trailing partial block is left out; its bytes are sent as a literal instead.
+                    signature.add(weakHash(block), strongHash(digest, block, 0, block.length));
+                    filled = 0;
+                }
+            }
+        }
+    }
+
+    private static final class Emitter {
+
+        private final DataOutputStream out;
+        private long copyOffset;
+        private long copyLength;
+
+        private Emitter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void copy(long offset, long length) throws IOException {
+            if (copyLength > 0 && copyOffset + copyLength == offset) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        private void literal(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            flushCopy();
+            while (length > 0) {
+                int count = Math.min(length, MAX_LITERAL);
+                out.writeByte(OP_LITERAL);
+                out.writeInt(count);
+                out.write(buffer, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        private void finish() throws IOException {
+            flushCopy();
+            out.writeByte(OP_END);
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyLength > 0) {
+                out.writeByte(OP_COPY);
+                out.writeLong(copyOffset);
+                out.writeLong(copyLength);
+                copyLength = 0;
+            }
+        }
+    }
+
+    static final class DecodingInputStream extends InputStream {
+
+        private final DataInputStream delta;
+        private final Base base;
+        private final long checksum;
+        private final long targetLength;
+        private final CRC32C crc = new CRC32C();
+        private InputStream current;
+        private long remaining;
+        private long produced;
+        private boolean finished;
+
+        private DecodingInputStream(InputStream delta, Base base, long checksum) throws IOException {
+            this.delta = new DataInputStream(delta);
+            this.base = base;
+            this.checksum = checksum;
+            try {
+                if (this.delta.readInt() != MAGIC) {
+                    throw new MalformedDeltaException("Not a binary delta");
+                }
+                this.targetLength = this.delta.readLong();
+            } catch (EOFException exception) {
+                throw new MalformedDeltaException("Delta is truncated");
+            }
+            if (targetLength < 0) {
+                throw new MalformedDeltaException("Delta has a negative length");
+            }
+        }
+
+        /**
+         * The length of the target, as recorded in the delta's header.
+         */
+        long targetLength() {
+            return targetLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (remaining == 0) {
+                if (!nextOperation()) {
+                    return -1;
+                }
+            }
+            int read = current.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read < 0) {
+                throw new MalformedDeltaException(current == delta ? "Delta is truncated" : "Delta copies past the end of its base");
+            }
+            remaining -= read;
+            produced += read;
+            crc.update(buffer, offset, read);
+            if (remaining == 0 && current != delta) {
+                current.close();
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (current != null && current != delta && remaining > 0) {
+                    current.close();
+                }
+            } finally {
+                delta.close();
+            }
+        }
+
+        private boolean nextOperation() throws IOException {
+            if (finished) {
+                return false;
+            }
+            try {
+                int operation = delta.readUnsignedByte();
+                switch (operation) {
+                    case OP_COPY -> {
+                        long offset = delta.readLong();
+                        long length = delta.readLong();
+                        if (offset < 0 || length < 0) {
+                            throw new MalformedDeltaException("Delta copies a negative range");
+                        }
+                        remaining = length;
+                        current = base.open(offset, length);
+                    }
+                    case OP_LITERAL -> {
+                        remaining = delta.readInt();
+                        if (remaining < 0) {
+                            throw new MalformedDeltaException("Delta has a negative literal");
+                        }
+                        current = delta;
+                    }
+                    case OP_END -> {
+                        finished = true;
+                        if (produced != targetLength) {
+                            throw new MalformedDeltaException("Delta produced " + produced + " bytes, expected " + targetLength);
+                        }
+                        if (checksum >= 0 && crc.getValue() != checksum) {
+                            throw new MalformedDeltaException("Delta output does not match its checksum");
+                        }
+                        return false;
+                    }
+                    default -> throw new MalformedDeltaException("Unknown delta operation " + operation);
+                }
+            } catch (EOFException exception) {
+                throw new MalformedDeltaException("Delta is truncated");
+            }
+            if (produced + remaining > targetLength) {
+                throw new MalformedDeltaException("Delta runs past its recorded length");
+            }
+            return true;
+        }
+    }
+
+    private static int weakHash(byte[] block) {
+        int a = 0;
+        int b = 0;
+        for (int index = 0; index < block.length; index++) {
+            int value = block[index] & 0xff;
+            a += value;
+            b += (block.length - index) * value;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static long[] strongHash(MessageDigest digest, byte[] buffer, int offset, int length) {
+        digest.update(buffer, offset, length);
+        byte[] hash = digest.digest();
+        long high = 0;
+        long low = 0;
+        for (int index = 0; index < 8; index++) {
+            high = (high << 8) | (hash[index] & 0xff);
+            low = (low << 8) | (hash[index + 8] & 0xff);
+        }
+        return new long[]{high, low};
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 is not available", exception);
+        }
+    }
+}
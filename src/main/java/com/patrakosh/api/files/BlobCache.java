@@ -0,0 +1,166 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.BlobStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the contents of small, frequently downloaded blobs in off-heap memory, so a popular share link or icon is
+ * served without touching the blob store.
+ *
+ * <p>The cache is a segmented LRU bounded by bytes rather than entries. A blob enters a probationary segment,
+ * holding a fifth of {@code patrakosh.storage.cache.capacity-bytes}, when it is first downloaded, and moves to the
+ * protected segment on its second hit; blobs pushed out of the protected segment get another turn in probation. A
+ * burst of one-off downloads therefore only churns the probationary segment. Blobs larger than
+ * {@code patrakosh.storage.cache.max-entry-bytes} are never cached, and a capacity of zero turns the cache off.
+ *
+ * <p>Storage keys are never reused for different contents, so entries only need to be dropped when their blob is
+ * deleted, through {@link #invalidate}.
+ */
+@Component
+public class BlobCache {
+
+    private final long probationCapacity;
+    private final long protectedCapacity;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ByteBuffer> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationWeight;
+    private long protectedWeight;
+    private long invalidations;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BlobCache(
+            @Value("${patrakosh.storage.cache.capacity-bytes:67108864}") long capacityBytes,
+            @Value("${patrakosh.storage.cache.max-entry-bytes:1048576}") long maxEntryBytes
+    ) {
+        if (capacityBytes < 0 || maxEntryBytes < 0) {
+            throw new IllegalArgumentException("Cache sizes must not be negative");
+        }
+        this.probationCapacity = capacityBytes / 5;
+        this.protectedCapacity = capacityBytes - probationCapacity;
+        this.maxEntryBytes = Math.min(Math.min(maxEntryBytes, probationCapacity), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Whether a blob of {@code size} bytes is small enough to be cached.
+     */
+    public boolean accepts(long size) {
+        return size > 0 && size <= maxEntryBytes;
+    }
+
+    public synchronized boolean contains(String key) {
+        return protectedEntries.containsKey(key) || probation.containsKey(key);
+    }
+
+    /**
+     * Returns a read-only view of the cached contents, positioned at the start, or null on a miss.
+     */
+    public synchronized ByteBuffer get(String key) {
+        ByteBuffer contents = protectedEntries.get(key);
+        if (contents == null) {
+            contents = probation.remove(key);
+            if (contents == null) {
+                misses++;
+                return null;
+            }
+            probationWeight -= contents.capacity();
+            protectedEntries.put(key, contents);
+            protectedWeight += contents.capacity();
+            while (protectedWeight > protectedCapacity) {
+                Map.Entry<String, ByteBuffer> eldest = removeEldest(protectedEntries);
+                protectedWeight -= eldest.getValue().capacity();
+                addToProbation(eldest.getKey(), eldest.getValue());
+            }
+        }
+        hits++;
+        return contents.duplicate();
+    }
+
+    /**
+     * Reads the whole blob into a direct buffer and caches it. Returns null, leaving the cache as it was, if the
+     * blob is too large to cache or is not {@code size} bytes long.
+     */
+    public ByteBuffer load(BlobStore blobStore, String key, long size) throws IOException {
+        if (!accepts(size)) {
+            return null;
+        }
+        long invalidationsBefore;
+        synchronized (this) {
+            invalidationsBefore = invalidations;
+        }
+        ByteBuffer contents = ByteBuffer.allocateDirect((int) size);
+        try (InputStream blob = blobStore.get(key); ReadableByteChannel channel = Channels.newChannel(blob)) {
+            while (contents.hasRemaining()) {
+                if (channel.read(contents) < 0) {
+                    return null;
+                }
+            }
+            if (blob.read() >= 0) {
+                return null;
+            }
+        }
+        contents.flip();
+        ByteBuffer readOnly = contents.asReadOnlyBuffer();
+        synchronized (this) {
+            // A blob deleted while it was being read must not come back.
+            if (invalidations == invalidationsBefore && !contains(key)) {
+                addToProbation(key, readOnly);
+            }
+        }
+        return readOnly.duplicate();
+    }
+
+    public synchronized void invalidate(String key) {
+        invalidations++;
+        ByteBuffer contents = protectedEntries.remove(key);
+        if (contents != null) {
+            protectedWeight -= contents.capacity();
+        }
+        contents = probation.remove(key);
+        if (contents != null) {
+            probationWeight -= contents.capacity();
+        }
+    }
+
+    public synchronized CacheStats stats() {
+        return new CacheStats(
+                hits,
+                misses,
+                evictions,
+                probation.size() + protectedEntries.size(),
+                probationWeight + protectedWeight,
+                probationCapacity + protectedCapacity
+        );
+    }
+
+    private void addToProbation(String key, ByteBuffer contents) {
+        probation.put(key, contents);
+        probationWeight += contents.capacity();
+        while (probationWeight > probationCapacity) {
+            probationWeight -= removeEldest(probation).getValue().capacity();
+            evictions++;
+        }
+    }
+
+    private static Map.Entry<String, ByteBuffer> removeEldest(LinkedHashMap<String, ByteBuffer> segment) {
+        Iterator<Map.Entry<String, ByteBuffer>> iterator = segment.entrySet().iterator();
+        Map.Entry<String, ByteBuffer> eldest = iterator.next();
+        iterator.remove();
+        return Map.entry(eldest.getKey(), eldest.getValue());
+    }
+
+    public record CacheStats(long hits, long misses, long evictions, int entries, long weightBytes, long capacityBytes) {
+    }
+}
@@ -0,0 +1,152 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.BlobStore;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A stored blob as a Spring {@link org.springframework.core.io.Resource}, so downloads stream from whichever
+ * {@link BlobStore} is configured.
+ *
+ * <p>The blob is opened on the first read, and a skip before that moves the start of the read instead of
+ * discarding bytes, so a range request only fetches the range it asked for. Blobs small enough for the
+ * {@link BlobCache} are read whole on a miss and served from memory after that.
+ */
+public class BlobResource extends AbstractResource {
+
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
+    private final String storageKey;
+    private final long size;
+
+    public BlobResource(BlobStore blobStore, BlobCache blobCache, String storageKey, long size) {
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
+        this.storageKey = storageKey;
+        this.size = size;
+    }
+
+    @Override
+    public boolean exists() {
+        if (blobCache.contains(storageKey)) {
+            return true;
+        }
+        try {
+            return blobStore.stat(storageKey).isPresent();
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Failed to look up blob " + storageKey, exception);
+        }
+    }
+
+    @Override
+    public long contentLength() {
+        return size;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new BlobInputStream();
+    }
+
+    @Override
+    public String getDescription() {
+        return "blob [" + storageKey + "]";
+    }
+
+    private final class BlobInputStream extends InputStream {
+
+        private long position;
+        private InputStream delegate;
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return open().read(buffer, offset, length);
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            if (delegate != null) {
+                return delegate.skip(count);
+            }
+            long skipped = Math.max(Math.min(count, size - position), 0);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (delegate == null) {
+                ByteBuffer cached = cachedContents();
+                if (cached != null) {
+                    cached.position((int) Math.min(position, cached.limit()));
+                    delegate = new BufferInputStream(cached);
+                } else {
+                    delegate = position == 0 ? blobStore.get(storageKey) : blobStore.get(storageKey, position, size - position);
+                }
+            }
+            return delegate;
+        }
+
+        private ByteBuffer cachedContents() throws IOException {
+            if (!blobCache.accepts(size)) {
+                return null;
+            }
+            ByteBuffer cached = blobCache.get(storageKey);
+            return cached != null ? cached : blobCache.load(blobStore, storageKey, size);
+        }
+    }
+
+    private static final class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(Math.min(count, buffer.remaining()), 0);
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
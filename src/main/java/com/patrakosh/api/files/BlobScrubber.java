@@ -0,0 +1,391 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.BlobStore;
+import com.patrakosh.persistence.StateRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads every blob back and checks it against the size and CRC32C recorded when it was uploaded, to catch bit
+ * rot and truncation before a user downloads a damaged file.
+ *
+ * <p>A pass visits users in id order and their files in id order, reading at most
+ * {@code patrakosh.storage.scrub.megabytes-per-second}. The position reached is saved to {@code scrub-state}
+ * under the data directory after each user, so a restart resumes where the last pass stopped and the file
+ * verified longest ago is always the next one checked. Files recorded before checksums were kept get the
+ * checksum of their current content on their first check. Problems are re-checked against a fresh read of the
+ * record before they are reported, kept in the same state file, and cleared once the file verifies or is gone.
+ */
+@Component
+public class BlobScrubber implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(BlobScrubber.class);
+    private static final String STATE_FILE = "scrub-state";
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final int MAX_FINDINGS = 1000;
+
+    private final StateRepository stateStore;
+    private final BlobStore blobStore;
+    private final Path stateFile;
+    private final long bytesPerSecond;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private final Map<Long, Finding> findings = new ConcurrentHashMap<>();
+    private long cursorUserId;
+    private long cursorFileId;
+    private long throttleStartNanos;
+    private long throttledBytes;
+    private volatile ScrubReport lastReport;
+
+    @Autowired
+    public BlobScrubber(
+            StateRepository stateStore,
+            BlobStore blobStore,
+            @Value("${patrakosh.data.base-path:data}") String dataPath,
+            @Value("${patrakosh.storage.scrub.interval-seconds:3600}") long intervalSeconds,
+            @Value("${patrakosh.storage.scrub.megabytes-per-second:20}") long megabytesPerSecond
+    ) {
+        this(
+                stateStore,
+                blobStore,
+                Path.of(dataPath).resolve(STATE_FILE),
+                Duration.ofSeconds(intervalSeconds),
+                megabytesPerSecond * 1024 * 1024,
+                Clock.systemUTC()
+        );
+    }
+
+    /**
+     * @param bytesPerSecond read budget; 0 or less reads as fast as the blob store allows
+     */
+    public BlobScrubber(
+            StateRepository stateStore,
+            BlobStore blobStore,
+            Path stateFile,
+            Duration interval,
+            long bytesPerSecond,
+            Clock clock
+    ) {
+        this.stateStore = stateStore;
+        this.blobStore = blobStore;
+        this.stateFile = stateFile.toAbsolutePath().normalize();
+        this.bytesPerSecond = bytesPerSecond;
+        this.clock = clock;
+        loadState();
+        this.scheduler = interval.isZero() || interval.isNegative() ? null : startScheduler(interval);
+    }
+
+    public ScrubReport lastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Problems found so far, oldest first.
+     */
+    public List<Finding> findings() {
+        return findings.values().stream().sorted(Comparator.comparing(Finding::detectedAt)).toList();
+    }
+
+    /**
+     * Continues the current pass on the calling thread until it has covered every file, and returns its report.
+     */
+    public synchronized ScrubReport scrub() {
+        Instant startedAt = clock.instant();
+        Totals totals = new Totals();
+        throttleStartNanos = System.nanoTime();
+        throttledBytes = 0;
+        boolean completed = true;
+
+        for (long userId : UserDirectories.userIds(blobStore)) {
+            if (userId < cursorUserId) {
+                continue;
+            }
+            if (userId > cursorUserId) {
+                cursorUserId = userId;
+                cursorFileId = 0;
+            }
+            try {
+                if (!scrubUser(userId, totals)) {
+                    completed = false;
+                    saveState();
+                    break;
+                }
+            } catch (RuntimeException exception) {
+                log.warn("Failed to scrub the files of user {}", userId, exception);
+            }
+            cursorFileId = Long.MAX_VALUE;
+            saveState();
+        }
+        if (completed) {
+            cursorUserId = 0;
+            cursorFileId = 0;
+            saveState();
+        }
+
+        ScrubReport report = new ScrubReport(
+                startedAt,
+                clock.instant(),
+                completed,
+                totals.files,
+                totals.bytes,
+                totals.checksumsRecorded,
+                totals.problems
+        );
+        lastReport = report;
+        if (report.problemsFound() > 0) {
+            log.warn("Blob scrub found {} damaged or missing blobs in {} files", report.problemsFound(), report.filesVerified());
+        } else {
+            log.info("Blob scrub verified {} files ({} bytes)", report.filesVerified(), report.bytesVerified());
+        }
+        return report;
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Verifies the user's files after the cursor. Returns false if the thread was interrupted.
+     */
+    private boolean scrubUser(long userId, Totals totals) {
+        long after = cursorFileId;
+        Set<Long> present = new HashSet<>();
+        List<AppStateStore.FileRecord> pending = stateStore.readUser(userId, partition -> {
+            List<AppStateStore.FileRecord> files = new ArrayList<>();
+            for (int index = 0; index < partition.files.size(); index++) {
+                long fileId = partition.files.id(index);
+                present.add(fileId);
+                if (fileId > after) {
+                    files.add(partition.files.get(index));
+                }
+            }
+            return files;
+        });
+        findings.values().removeIf(finding -> finding.userId() == userId && !present.contains(finding.fileId()));
+        pending.sort(Comparator.comparingLong(file -> file.id));
+
+        for (AppStateStore.FileRecord file : pending) {
+            try {
+                verify(file, totals);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            cursorFileId = file.id;
+        }
+        return true;
+    }
+
+    private void verify(AppStateStore.FileRecord file, Totals totals) throws InterruptedException {
+        CRC32C crc = new CRC32C();
+        long length = 0;
+        Problem problem = null;
+        try (InputStream blob = blobStore.get(file.storageKey)) {
+            int read;
+            while ((read = blob.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+                length += read;
+                throttle(read);
+            }
+        } catch (NoSuchFileException exception) {
+            problem = Problem.MISSING;
+        } catch (IOException | IllegalArgumentException exception) {
+            log.warn("Failed to read blob {} of file {}", file.storageKey, file.id, exception);
+            problem = Problem.UNREADABLE;
+        }
+        totals.files++;
+        totals.bytes += length;
+
+        if (problem == null && length != file.fileSize) {
+            problem = Problem.SIZE_MISMATCH;
+        } else if (problem == null && file.checksum == AppStateStore.FileRecord.NO_CHECKSUM) {
+            recordChecksum(file, crc.getValue());
+            totals.checksumsRecorded++;
+        } else if (problem == null && file.checksum != crc.getValue()) {
+            problem = Problem.CHECKSUM_MISMATCH;
+        }
+
+        if (problem == null) {
+            findings.remove(file.id);
+        } else if (stillRecorded(file) && (problem != Problem.MISSING || isMissing(file.storageKey))) {
+            totals.problems++;
+            if (findings.size() < MAX_FINDINGS || findings.containsKey(file.id)) {
+                findings.put(file.id, new Finding(file.userId, file.id, file.storageKey, problem, clock.instant()));
+            }
+        }
+    }
+
+    private void recordChecksum(AppStateStore.FileRecord file, long checksum) {
+        stateStore.writeUser(file.userId, partition -> {
+            int position = partition.files.positionOf(file.id);
+            if (position >= 0
+                    && partition.files.checksum(position) == AppStateStore.FileRecord.NO_CHECKSUM
+                    && partition.files.fileSize(position) == file.fileSize
+                    && Objects.equals(partition.files.get(position).storageKey, file.storageKey)) {
+                partition.files.setChecksum(position, checksum);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Whether the record still points at the same blob, so a file purged or replaced while it was being read is
+     * not reported.
+     */
+    private boolean stillRecorded(AppStateStore.FileRecord file) {
+        return stateStore.readUser(file.userId, partition -> {
+            int position = partition.files.positionOf(file.id);
+            return position >= 0 && Objects.equals(partition.files.get(position).storageKey, file.storageKey);
+        });
+    }
+
+    private boolean isMissing(String storageKey) {
+        try {
+            return blobStore.stat(storageKey).isEmpty();
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    private void throttle(int bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        throttledBytes += bytes;
+        long dueNanos = (long) (throttledBytes * 1e9 / bytesPerSecond);
+        long aheadNanos = dueNanos - (System.nanoTime() - throttleStartNanos);
+        if (aheadNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        }
+    }
+
+    private void loadState() {
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(stateFile, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ", 6);
+                if (parts[0].equals("cursor") && parts.length == 3) {
+                    cursorUserId = Long.parseLong(parts[1]);
+                    cursorFileId = Long.parseLong(parts[2]);
+                } else if (parts[0].equals("finding") && parts.length == 6) {
+                    long fileId = Long.parseLong(parts[2]);
+                    findings.put(fileId, new Finding(
+                            Long.parseLong(parts[1]),
+                            fileId,
+                            parts[5],
+                            Problem.valueOf(parts[3]),
+                            Instant.ofEpochMilli(Long.parseLong(parts[4]))
+                    ));
+                }
+            }
+        } catch (IOException | IllegalArgumentException exception) {
+            log.warn("Ignoring unreadable blob scrub state in {}", stateFile, exception);
+            cursorUserId = 0;
+            cursorFileId = 0;
+            findings.clear();
+        }
+    }
+
+    private void saveState() {
+        StringBuilder content = new StringBuilder();
+        content.append("cursor ").append(cursorUserId).append(' ').append(cursorFileId).append('\n');
+        for (Finding finding : findings()) {
+            content.append("finding ")
+                    .append(finding.userId()).append(' ')
+                    .append(finding.fileId()).append(' ')
+                    .append(finding.problem()).append(' ')
+                    .append(finding.detectedAt().toEpochMilli()).append(' ')
+                    .append(finding.storageKey()).append('\n');
+        }
+        Path temporary = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(stateFile.getParent());
+            Files.writeString(temporary, content, StandardCharsets.UTF_8);
+            try {
+                Files.move(temporary, stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ignored) {
+                Files.move(temporary, stateFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException exception) {
+            log.warn("Failed to save blob scrub state to {}", stateFile, exception);
+        }
+    }
+
+    private ScheduledExecutorService startScheduler(Duration interval) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patrakosh-blob-scrubber");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                scrub();
+            } catch (RuntimeException exception) {
+                log.warn("Blob scrub failed", exception);
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private static final class Totals {
+        private long files;
+        private long bytes;
+        private long checksumsRecorded;
+        private long problems;
+    }
+
+    public enum Problem {
+        MISSING,
+        UNREADABLE,
+        SIZE_MISMATCH,
+        CHECKSUM_MISMATCH
+    }
+
+    public record Finding(long userId, long fileId, String storageKey, Problem problem, Instant detectedAt) {
+    }
+
+    public record ScrubReport(
+            Instant startedAt,
+            Instant finishedAt,
+            boolean completed,
+            long filesVerified,
+            long bytesVerified,
+            long checksumsRecorded,
+            long problemsFound
+    ) {
+    }
+}
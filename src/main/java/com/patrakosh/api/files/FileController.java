@@ -3,10 +3,13 @@ package com.patrakosh.api.files;
 import com.patrakosh.api.auth.AuthService;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotBlank;
-import org.springframework.core.io.FileSystemResource;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
 import org.springframework.core.io.Resource;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
@@ -15,11 +18,12 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.nio.charset.StandardCharsets;
 import java.util.List;
@@ -28,68 +32,196 @@ import java.util.List;
 @RequestMapping("/api/files")
 public class FileController {
 
-    private final AuthService authService;
     private final FileStorageService fileStorageService;
+    private final FileVersionService fileVersionService;
+    private final StorageQuotaService storageQuotas;
+    private final TrashPurger trashPurger;
 
-    public FileController(AuthService authService, FileStorageService fileStorageService) {
-        this.authService = authService;
+    public FileController(
+            FileStorageService fileStorageService,
+            FileVersionService fileVersionService,
+            StorageQuotaService storageQuotas,
+            TrashPurger trashPurger
+    ) {
         this.fileStorageService = fileStorageService;
+        this.fileVersionService = fileVersionService;
+        this.storageQuotas = storageQuotas;
+        this.trashPurger = trashPurger;
     }
 
     @GetMapping
     public List<FileStorageService.FileView> listFiles(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
+            AuthService.UserAccount user,
             @RequestParam(value = "q", required = false) String query
     ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
         return fileStorageService.listFiles(user.id(), query);
     }
 
     @GetMapping("/stats")
-    public FileStorageService.StorageStats getStats(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader
-    ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
+    public FileStorageService.StorageStats getStats(AuthService.UserAccount user) {
         return fileStorageService.getStats(user.id());
     }
 
     @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public ResponseEntity<FileStorageService.FileView> upload(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
-            @RequestParam("file") MultipartFile file
+            AuthService.UserAccount user,
+            MultipartHttpServletRequest request
     ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
-        return ResponseEntity.status(201).body(fileStorageService.store(user, file));
+        // Multipart parsing is lazy, so the declared length is checked against the quota before the body is read.
+        try (StorageQuotaService.Reservation reservation = storageQuotas.reserveUpload(user.id(), request.getContentLengthLong())) {
+            MultipartFile file = request.getFile("file");
+            long folderId = folderIdOf(request.getParameter("folderId"));
+            return ResponseEntity.status(201).body(fileStorageService.store(user, file, folderId, reservation));
+        }
     }
 
     @PutMapping("/{fileId}")
     public FileStorageService.FileView renameFile(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
+            AuthService.UserAccount user,
             @PathVariable("fileId") long fileId,
             @Valid @RequestBody RenameFileRequest request
     ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
         return fileStorageService.renameFile(user.id(), fileId, request.filename());
     }
 
+    @PostMapping("/{fileId}/move")
+    public FileStorageService.FileView moveFile(
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId,
+            @Valid @RequestBody MoveFileRequest request
+    ) {
+        return fileStorageService.moveFile(user.id(), fileId, request.folderId());
+    }
+
+    @PostMapping("/{fileId}/copy")
+    public ResponseEntity<FileStorageService.FileView> copyFile(
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId,
+            @RequestBody(required = false) CopyFileRequest request
+    ) {
+        String filename = request == null ? null : request.filename();
+        return ResponseEntity.status(201).body(fileStorageService.copyFile(user.id(), fileId, filename));
+    }
+
     @DeleteMapping("/{fileId}")
     public ResponseEntity<Void> deleteFile(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
+            AuthService.UserAccount user,
             @PathVariable("fileId") long fileId
     ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
         fileStorageService.deleteFile(user.id(), fileId);
         return ResponseEntity.noContent().build();
     }
 
+    @PostMapping("/delete")
+    public ResponseEntity<Void> deleteFiles(
+            AuthService.UserAccount user,
+            @Valid @RequestBody DeleteFilesRequest request
+    ) {
+        fileStorageService.deleteFiles(user.id(), request.fileIds());
+        return ResponseEntity.noContent().build();
+    }
+
+    @GetMapping("/trash")
+    public List<FileStorageService.TrashedFileView> listTrash(AuthService.UserAccount user) {
+        return fileStorageService.listTrash(user.id());
+    }
+
+    @PostMapping("/{fileId}/restore")
+    public FileStorageService.FileView restoreFile(
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId
+    ) {
+        return fileStorageService.restoreFile(user.id(), fileId);
+    }
+
+    @DeleteMapping("/trash")
+    public ResponseEntity<Void> emptyTrash(AuthService.UserAccount user) {
+        trashPurger.emptyTrash(user.id());
+        return ResponseEntity.accepted().build();
+    }
+
     @GetMapping("/{fileId}/download")
     public ResponseEntity<Resource> downloadFile(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId
+    ) {
+        return download(fileStorageService.prepareDownload(user.id(), fileId));
+    }
+
+    @PostMapping(value = "/{fileId}/versions", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<FileStorageService.FileView> uploadVersion(
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId,
+            MultipartHttpServletRequest request
+    ) {
+        try (StorageQuotaService.Reservation reservation = storageQuotas.reserveUpload(user.id(), request.getContentLengthLong())) {
+            MultipartFile file = request.getFile("file");
+            return ResponseEntity.status(201).body(fileVersionService.uploadVersion(user, fileId, file, reservation));
+        }
+    }
+
+    @GetMapping("/{fileId}/signature")
+    public FileVersionService.SignatureView getSignature(
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId
+    ) {
+        return fileVersionService.signature(user.id(), fileId);
+    }
+
+    @PostMapping(value = "/{fileId}/delta", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<FileStorageService.FileView> uploadDelta(
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId,
+            @RequestParam("baseVersion") long baseVersion,
+            @RequestParam(value = "checksum", required = false) Long checksum,
+            MultipartHttpServletRequest request
+    ) {
+        // Only the delta's size is known up front; the reservation is resized once its header names the file size.
+        try (StorageQuotaService.Reservation reservation = storageQuotas.reserve(user.id(), -1)) {
+            MultipartFile delta = request.getFile("delta");
+            return ResponseEntity.status(201)
+                    .body(fileVersionService.uploadDelta(user, fileId, baseVersion, checksum, delta, reservation));
+        }
+    }
+
+    @GetMapping("/{fileId}/versions")
+    public List<FileVersionService.VersionView> listVersions(
+            AuthService.UserAccount user,
             @PathVariable("fileId") long fileId
     ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
-        FileStorageService.StoredFile storedFile = fileStorageService.prepareDownload(user.id(), fileId);
+        return fileVersionService.listVersions(user.id(), fileId);
+    }
+
+    @GetMapping("/{fileId}/versions/{version}/download")
+    public ResponseEntity<Resource> downloadVersion(
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId,
+            @PathVariable("version") long version
+    ) {
+        return download(fileVersionService.prepareVersionDownload(user.id(), fileId, version));
+    }
 
+    @PostMapping("/{fileId}/versions/{version}/restore")
+    public FileStorageService.FileView restoreVersion(
+            AuthService.UserAccount user,
+            @PathVariable("fileId") long fileId,
+            @PathVariable("version") long version
+    ) {
+        return fileVersionService.restoreVersion(user.id(), fileId, version);
+    }
+
+    private static long folderIdOf(String value) {
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException exception) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Folder id must be a number");
+        }
+    }
+
+    private static ResponseEntity<Resource> download(FileStorageService.StoredFile storedFile) {
         MediaType mediaType = MediaType.APPLICATION_OCTET_STREAM;
         try {
             mediaType = MediaType.parseMediaType(storedFile.mimeType());
@@ -103,9 +235,22 @@ public class FileController {
         return ResponseEntity.ok()
                 .contentType(mediaType)
                 .header(HttpHeaders.CONTENT_DISPOSITION, disposition.toString())
-                .body(new FileSystemResource(storedFile.storagePath()));
+                .body(storedFile.content());
     }
 
     public record RenameFileRequest(@NotBlank(message = "Filename is required") String filename) {
     }
+
+    public record CopyFileRequest(String filename) {
+    }
+
+    public record MoveFileRequest(@NotNull(message = "Choose a folder to move to") Long folderId) {
+    }
+
+    public record DeleteFilesRequest(
+            @NotEmpty(message = "Choose files to delete")
+            @Size(max = 10000, message = "At most 10000 files can be deleted at once")
+            List<Long> fileIds
+    ) {
+    }
 }
@@ -3,49 +3,77 @@ package com.patrakosh.api.files;
 import com.patrakosh.api.activity.ActivityService;
 import com.patrakosh.api.auth.AuthService;
 import com.patrakosh.persistence.AppStateStore;
-import org.springframework.beans.factory.annotation.Value;
+import com.patrakosh.persistence.BlobStore;
+import com.patrakosh.persistence.StateRepository;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.NoSuchFileException;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
 @Service
 public class FileStorageService {
 
-    private final AppStateStore stateStore;
+    private final StateRepository stateStore;
     private final ActivityService activityService;
-    private final Path storageRoot;
+    private final StorageQuotaService storageQuotas;
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
 
     public FileStorageService(
-            AppStateStore stateStore,
+            StateRepository stateStore,
             ActivityService activityService,
-            @Value("${patrakosh.storage.base-path:storage}") String basePath
+            StorageQuotaService storageQuotas,
+            BlobStore blobStore,
+            BlobCache blobCache
     ) {
         this.stateStore = stateStore;
         this.activityService = activityService;
-        this.storageRoot = Path.of(basePath).toAbsolutePath().normalize();
+        this.storageQuotas = storageQuotas;
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
+    }
 
-        try {
-            Files.createDirectories(storageRoot);
-        } catch (IOException exception) {
-            throw new IllegalStateException("Unable to initialize storage directory", exception);
-        }
+    /**
+     * Stores an upload against a quota reservation taken before the request body was read. The reservation is
+     * narrowed to the file's real size before it is written and committed once the file is recorded.
+     */
+    public FileView store(
+            AuthService.UserAccount user,
+            MultipartFile multipartFile,
+            StorageQuotaService.Reservation reservation
+    ) {
+        return store(user, multipartFile, AppStateStore.FolderRecord.ROOT, reservation);
     }
 
-    public FileView store(AuthService.UserAccount user, MultipartFile multipartFile) {
+    /**
+     * Like {@link #store(AuthService.UserAccount, MultipartFile, StorageQuotaService.Reservation)}, putting the file
+     * in {@code folderId}.
+     */
+    public FileView store(
+            AuthService.UserAccount user,
+            MultipartFile multipartFile,
+            long folderId,
+            StorageQuotaService.Reservation reservation
+    ) {
         if (multipartFile == null || multipartFile.isEmpty()) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Choose a file to upload");
         }
+        reservation.resize(multipartFile.getSize());
 
         String originalFilename = sanitizeFilename(multipartFile.getOriginalFilename());
         if (originalFilename.isBlank()) {
@@ -53,37 +81,43 @@ public class FileStorageService {
         }
         String storedFilename = originalFilename;
 
-        String storageKey = "user-" + user.id() + "/" + UUID.randomUUID() + extensionOf(storedFilename);
-        Path target = resolveStoragePath(storageKey);
+        String storageKey = UserDirectories.of(user.id()) + "/" + UUID.randomUUID() + extensionOf(storedFilename);
 
+        long checksum;
         try {
-            Files.createDirectories(target.getParent());
-            try (var inputStream = multipartFile.getInputStream()) {
-                Files.copy(inputStream, target, StandardCopyOption.REPLACE_EXISTING);
+            // The checksum is taken from the bytes as they stream to the blob store, so the blob is never read back.
+            try (CheckedInputStream inputStream = new CheckedInputStream(multipartFile.getInputStream(), new CRC32C())) {
+                blobStore.put(storageKey, inputStream, multipartFile.getSize());
+                checksum = inputStream.getChecksum().getValue();
             }
         } catch (IOException exception) {
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store the uploaded file");
         }
 
         try {
-            FileView fileView = stateStore.write(state -> {
+            FileView fileView = stateStore.writeUser(user.id(), partition -> {
+                requireFolder(partition, folderId);
                 AppStateStore.FileRecord fileRecord = new AppStateStore.FileRecord(
-                        state.nextFileId++,
+                        stateStore.nextFileId(),
                         user.id(),
                         storedFilename,
                         contentTypeOf(multipartFile),
                         multipartFile.getSize(),
-                        Instant.now(),
-                        storageKey
+                        Instant.now().truncatedTo(ChronoUnit.MILLIS),
+                        storageKey,
+                        null,
+                        checksum,
+                        folderId
                 );
-                state.files.add(fileRecord);
+                partition.files.add(fileRecord);
                 return toView(fileRecord);
             });
+            reservation.commit();
             activityService.record(user.id(), "UPLOAD", storedFilename);
             return fileView;
         } catch (RuntimeException exception) {
             try {
-                Files.deleteIfExists(target);
+                blobStore.delete(storageKey);
             } catch (IOException ignored) {
             }
             throw exception;
@@ -92,25 +126,36 @@ public class FileStorageService {
 
     public List<FileView> listFiles(long userId, String query) {
         String normalizedQuery = query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
-        return stateStore.read(state -> state.files.stream()
-                .filter(file -> file.userId == userId)
+        return stateStore.readUser(userId, partition -> partition.files.stream()
+                .filter(file -> file.deletedAt == null)
                 .filter(file -> normalizedQuery.isBlank() || file.filename.toLowerCase(Locale.ROOT).contains(normalizedQuery))
                 .sorted(Comparator.comparing((AppStateStore.FileRecord file) -> file.uploadTime).reversed())
-                .map(this::toView)
+                .map(FileStorageService::toView)
                 .toList());
     }
 
+    public List<TrashedFileView> listTrash(long userId) {
+        return stateStore.readUser(userId, partition -> partition.files.stream()
+                .filter(file -> file.deletedAt != null)
+                .sorted(Comparator.comparing((AppStateStore.FileRecord file) -> file.deletedAt).reversed())
+                .map(file -> new TrashedFileView(
+                        file.id,
+                        file.filename,
+                        file.fileSize,
+                        file.mimeType,
+                        file.uploadTime,
+                        file.deletedAt
+                ))
+                .toList());
+    }
+
+    /**
+     * The user's file count and the usage their quota is enforced on, which also counts older versions, so the
+     * space shown as free is the space an upload can take.
+     */
     public StorageStats getStats(long userId) {
-        return stateStore.read(state -> {
-            long fileCount = state.files.stream()
-                    .filter(file -> file.userId == userId)
-                    .count();
-            long storageUsed = state.files.stream()
-                    .filter(file -> file.userId == userId)
-                    .mapToLong(file -> file.fileSize)
-                    .sum();
-            return new StorageStats(fileCount, storageUsed);
-        });
+        int fileCount = stateStore.readUser(userId, partition -> partition.files.liveCount());
+        return new StorageStats(fileCount, storageQuotas.used(userId), storageQuotas.quotaBytes());
     }
 
     public FileView renameFile(long userId, long fileId, String filename) {
@@ -119,71 +164,181 @@ public class FileStorageService {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Filename cannot be empty");
         }
 
-        FileView fileView = stateStore.write(state -> {
-            AppStateStore.FileRecord fileRecord = findOwnedFile(state, userId, fileId);
-            fileRecord.filename = nextFilename;
-            return toView(fileRecord);
+        FileView fileView = stateStore.writeUser(userId, partition -> {
+            int position = ownedFilePosition(partition, fileId);
+            partition.files.rename(position, nextFilename);
+            return toView(partition.files.get(position));
         });
         activityService.record(userId, "RENAME", nextFilename);
         return fileView;
     }
 
-    public void deleteFile(long userId, long fileId) {
-        StoredFile storedFile = stateStore.write(state -> {
-            AppStateStore.FileRecord fileRecord = findOwnedFile(state, userId, fileId);
-            state.files.remove(fileRecord);
-            state.shares.removeIf(share -> share.fileId == fileId);
-            return toStoredFile(fileRecord);
+    /**
+     * Moves a file into another folder. Only the file's record changes.
+     */
+    public FileView moveFile(long userId, long fileId, long folderId) {
+        FileView fileView = stateStore.writeUser(userId, partition -> {
+            int position = ownedFilePosition(partition, fileId);
+            requireFolder(partition, folderId);
+            partition.files.setFolderId(position, folderId);
+            return toView(partition.files.get(position));
         });
+        activityService.record(userId, "MOVE", fileView.filename());
+        return fileView;
+    }
 
-        try {
-            Files.deleteIfExists(storedFile.storagePath());
-        } catch (IOException exception) {
-            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to delete the file");
+    /**
+     * Copies a file on the server. The blob store makes the copy without streaming it where it can, such as with a
+     * hard link, and the copy is recorded in a single write. It counts against the quota like an upload, lands in
+     * the original's folder and is named after the original unless {@code filename} is given. As with an upload,
+     * the blob is copied before its record is published, so a failed copy never leaves a row behind. The record
+     * takes its size and checksum from the original as it is when the copy is published; if the original was given
+     * a new version in the meantime the copy is discarded and 409 returned, since its bytes are no longer the
+     * original's.
+     */
+    public FileView copyFile(long userId, long fileId, String filename) {
+        AppStateStore.FileRecord source = stateStore.readUser(userId, partition -> partition.files.get(ownedFilePosition(partition, fileId)));
+        String copyFilename = filename == null ? copyNameOf(source.filename) : sanitizeFilename(filename);
+        if (copyFilename.isBlank()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Filename cannot be empty");
+        }
+        String storageKey = UserDirectories.of(userId) + "/" + UUID.randomUUID() + extensionOf(copyFilename);
+
+        try (StorageQuotaService.Reservation reservation = storageQuotas.reserve(userId, source.fileSize)) {
+            try {
+                blobStore.copy(source.storageKey, storageKey);
+            } catch (NoSuchFileException exception) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Stored file is missing");
+            } catch (IOException exception) {
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to copy the file");
+            }
+
+            try {
+                FileView fileView = stateStore.writeUser(userId, partition -> {
+                    AppStateStore.FileRecord original = partition.files.get(ownedFilePosition(partition, fileId));
+                    if (!original.storageKey.equals(source.storageKey)) {
+                        throw new ResponseStatusException(HttpStatus.CONFLICT, "File changed while it was being copied");
+                    }
+                    AppStateStore.FileRecord fileRecord = new AppStateStore.FileRecord(
+                            stateStore.nextFileId(),
+                            userId,
+                            copyFilename,
+                            original.mimeType,
+                            original.fileSize,
+                            Instant.now().truncatedTo(ChronoUnit.MILLIS),
+                            storageKey,
+                            null,
+                            original.checksum,
+                            original.folderId
+                    );
+                    partition.files.add(fileRecord);
+                    return toView(fileRecord);
+                });
+                reservation.commit();
+                activityService.record(userId, "COPY", copyFilename);
+                return fileView;
+            } catch (RuntimeException exception) {
+                try {
+                    blobStore.delete(storageKey);
+                } catch (IOException ignored) {
+                }
+                throw exception;
+            }
         }
+    }
 
-        activityService.record(userId, "DELETE", storedFile.filename());
+    /**
+     * Moves a file to the trash. Its blob and shares stay until {@link TrashPurger} removes them.
+     */
+    public void deleteFile(long userId, long fileId) {
+        deleteFiles(userId, List.of(fileId));
+    }
+
+    /**
+     * Moves files to the trash in one write and returns how many were moved. Fails with 404, moving nothing, if
+     * any of them is not one of the user's files.
+     */
+    public int deleteFiles(long userId, Collection<Long> fileIds) {
+        if (fileIds.isEmpty()) {
+            return 0;
+        }
+        Set<Long> pending = new HashSet<>(fileIds);
+        Instant deletedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        TrashedFiles trashed = stateStore.writeUser(userId, partition -> {
+            int count = 0;
+            long bytes = 0;
+            String filename = null;
+            for (int index = 0; index < partition.files.size() && !pending.isEmpty(); index++) {
+                if (!partition.files.isDeleted(index) && pending.remove(partition.files.id(index))) {
+                    partition.files.setDeletedAt(index, deletedAt);
+                    count++;
+                    bytes += partition.files.fileSize(index);
+                    filename = partition.files.filename(index);
+                }
+            }
+            if (!pending.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found");
+            }
+            return new TrashedFiles(count, bytes, filename);
+        });
+        storageQuotas.recordRemoved(userId, trashed.bytes());
+
+        activityService.record(userId, "DELETE", trashed.count() == 1 ? trashed.filename() : trashed.count() + " files");
+        return trashed.count();
+    }
+
+    /**
+     * Takes a file back out of the trash, failing with 413 if it no longer fits in the user's quota. A file whose
+     * folder has been deleted since goes back to the root.
+     */
+    public FileView restoreFile(long userId, long fileId) {
+        long fileSize = stateStore.findFile(userId, fileId)
+                .filter(file -> file.deletedAt != null)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found in the trash"))
+                .fileSize;
+        try (StorageQuotaService.Reservation reservation = storageQuotas.reserve(userId, fileSize)) {
+            FileView fileView = stateStore.writeUser(userId, partition -> {
+                int position = trashedFilePosition(partition, fileId);
+                partition.files.setDeletedAt(position, null);
+                if (!partition.folders.contains(partition.files.folderId(position))) {
+                    partition.files.setFolderId(position, AppStateStore.FolderRecord.ROOT);
+                }
+                return toView(partition.files.get(position));
+            });
+            reservation.commit();
+            activityService.record(userId, "RESTORE", fileView.filename());
+            return fileView;
+        }
     }
 
     public StoredFile prepareDownload(long userId, long fileId) {
-        StoredFile storedFile = stateStore.write(state -> toStoredFile(findOwnedFile(state, userId, fileId)));
-        if (!Files.exists(storedFile.storagePath())) {
+        StoredFile storedFile = getOwnedStoredFile(userId, fileId);
+        if (!storedFile.content().exists()) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Stored file is missing");
         }
+        recordAccess(storedFile);
         activityService.record(userId, "DOWNLOAD", storedFile.filename());
         return storedFile;
     }
 
-    public StoredFile getOwnedStoredFile(long userId, long fileId) {
-        return stateStore.read(state -> toStoredFile(findOwnedFile(state, userId, fileId)));
-    }
-
-    public StoredFile getStoredFile(long fileId) {
-        return stateStore.read(state -> state.files.stream()
-                .filter(file -> file.id == fileId)
-                .findFirst()
+    private StoredFile getOwnedStoredFile(long userId, long fileId) {
+        return stateStore.findFile(userId, fileId)
+                .filter(file -> file.deletedAt == null)
                 .map(this::toStoredFile)
-                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found")));
-    }
-
-    private AppStateStore.FileRecord findOwnedFile(AppStateStore.StateSnapshot state, long userId, long fileId) {
-        return state.files.stream()
-                .filter(file -> file.id == fileId && file.userId == userId)
-                .findFirst()
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
     }
 
-    private FileView toView(AppStateStore.FileRecord fileRecord) {
-        return new FileView(
-                fileRecord.id,
-                fileRecord.filename,
-                fileRecord.fileSize,
-                fileRecord.mimeType,
-                fileRecord.uploadTime
-        );
+    /**
+     * Notes that the file is being downloaded, so the blob store can keep it somewhere fast. Downloads served from
+     * the {@link BlobCache} leave the blob store alone.
+     */
+    public void recordAccess(StoredFile storedFile) {
+        if (!blobCache.contains(storedFile.storageKey())) {
+            blobStore.recordAccess(storedFile.storageKey());
+        }
     }
 
-    private StoredFile toStoredFile(AppStateStore.FileRecord fileRecord) {
+    public StoredFile toStoredFile(AppStateStore.FileRecord fileRecord) {
         return new StoredFile(
                 fileRecord.id,
                 fileRecord.userId,
@@ -191,16 +346,49 @@ public class FileStorageService {
                 fileRecord.mimeType,
                 fileRecord.fileSize,
                 fileRecord.uploadTime,
-                resolveStoragePath(fileRecord.storageKey)
+                fileRecord.storageKey,
+                new BlobResource(blobStore, blobCache, fileRecord.storageKey, fileRecord.fileSize)
         );
     }
 
-    private Path resolveStoragePath(String storageKey) {
-        Path resolved = storageRoot.resolve(storageKey).normalize();
-        if (!resolved.startsWith(storageRoot)) {
-            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Invalid storage path");
+    /**
+     * Returns where {@code fileId} sits in the partition's file table, or fails with 404 if the user has no such
+     * file outside the trash, so callers can check ownership inside the same transaction that acts on the file.
+     */
+    public static int ownedFilePosition(AppStateStore.UserPartition partition, long fileId) {
+        int position = partition.files.positionOf(fileId);
+        if (position < 0 || partition.files.isDeleted(position)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found");
         }
-        return resolved;
+        return position;
+    }
+
+    /**
+     * Fails with 404 unless {@code folderId} is the root or one of the user's folders.
+     */
+    public static void requireFolder(AppStateStore.UserPartition partition, long folderId) {
+        if (!partition.folders.contains(folderId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Folder not found");
+        }
+    }
+
+    private static int trashedFilePosition(AppStateStore.UserPartition partition, long fileId) {
+        int position = partition.files.positionOf(fileId);
+        if (position < 0 || !partition.files.isDeleted(position)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found in the trash");
+        }
+        return position;
+    }
+
+    public static FileView toView(AppStateStore.FileRecord fileRecord) {
+        return new FileView(
+                fileRecord.id,
+                fileRecord.filename,
+                fileRecord.fileSize,
+                fileRecord.mimeType,
+                fileRecord.uploadTime,
+                fileRecord.folderId
+        );
     }
 
     private static String sanitizeFilename(String value) {
@@ -214,21 +402,38 @@ public class FileStorageService {
         return filename.trim().replaceAll("[\\r\\n]+", "_");
     }
 
-    private static String contentTypeOf(MultipartFile multipartFile) {
+    static String contentTypeOf(MultipartFile multipartFile) {
         return multipartFile.getContentType() == null || multipartFile.getContentType().isBlank()
                 ? "application/octet-stream"
                 : multipartFile.getContentType();
     }
 
-    private static String extensionOf(String filename) {
+    private static String copyNameOf(String filename) {
+        int dotIndex = filename.lastIndexOf('.');
+        return dotIndex > 0
+                ? filename.substring(0, dotIndex) + " (copy)" + filename.substring(dotIndex)
+                : filename + " (copy)";
+    }
+
+    static String extensionOf(String filename) {
         int dotIndex = filename.lastIndexOf('.');
         return dotIndex >= 0 ? filename.substring(dotIndex) : "";
     }
 
-    public record FileView(long id, String filename, long fileSize, String mimeType, Instant uploadTime) {
+    public record FileView(long id, String filename, long fileSize, String mimeType, Instant uploadTime, long folderId) {
     }
 
-    public record StorageStats(long fileCount, long storageUsed) {
+    public record TrashedFileView(
+            long id,
+            String filename,
+            long fileSize,
+            String mimeType,
+            Instant uploadTime,
+            Instant deletedAt
+    ) {
+    }
+
+    public record StorageStats(long fileCount, long storageUsed, long storageQuota) {
     }
 
     public record StoredFile(
@@ -238,7 +443,11 @@ public class FileStorageService {
             String mimeType,
             long fileSize,
             Instant uploadTime,
-            Path storagePath
+            String storageKey,
+            Resource content
     ) {
     }
+
+    private record TrashedFiles(int count, long bytes, String filename) {
+    }
 }
@@ -0,0 +1,529 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.api.activity.ActivityService;
+import com.patrakosh.api.auth.AuthService;
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.BlobStore;
+import com.patrakosh.persistence.StateRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Replaces a file's contents while keeping what it held before as an older version.
+ *
+ * <p>History is a reverse delta chain: each older version is stored as a {@link BinaryDelta} against the version
+ * after it, and the newest of them against the current contents, so only the current contents are kept whole and
+ * an upload only has to encode the one version it displaces. A version is kept whole instead when its delta would
+ * save less than a tenth of its size, or when it would make a run of more than {@value #MAX_DELTA_CHAIN} deltas,
+ * which bounds the work of rebuilding the oldest versions.
+ *
+ * <p>Version numbers count up from 1 per file, and the current contents carry the number after the newest stored
+ * version. Older versions count against the storage quota along with the current contents, each at the size of its
+ * delta or whole copy, so uploading new versions over and over cannot take a user past their quota.
+ *
+ * <p>Clients that still hold an earlier copy of a file can upload just the difference: they fetch the
+ * {@link #signature} of the current contents, encode their copy against it in the {@link BinaryDelta} format and
+ * post the delta to {@link #uploadDelta}, which rebuilds the new contents from the stored blob.
+ */
+@Service
+public class FileVersionService {
+
+    static final int MAX_DELTA_CHAIN = 16;
+
+    private static final Logger log = LoggerFactory.getLogger(FileVersionService.class);
+    private static final double MAX_DELTA_RATIO = 0.9;
+
+    private final StateRepository stateStore;
+    private final ActivityService activityService;
+    private final StorageQuotaService storageQuotas;
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
+    private final FileStorageService fileStorageService;
+
+    public FileVersionService(
+            StateRepository stateStore,
+            ActivityService activityService,
+            StorageQuotaService storageQuotas,
+            BlobStore blobStore,
+            BlobCache blobCache,
+            FileStorageService fileStorageService
+    ) {
+        this.stateStore = stateStore;
+        this.activityService = activityService;
+        this.storageQuotas = storageQuotas;
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
+        this.fileStorageService = fileStorageService;
+    }
+
+    /**
+     * Makes an upload the new contents of an existing file, against a quota reservation taken before the request
+     * body was read.
+     */
+    public FileStorageService.FileView uploadVersion(
+            AuthService.UserAccount user,
+            long fileId,
+            MultipartFile multipartFile,
+            StorageQuotaService.Reservation reservation
+    ) {
+        if (multipartFile == null || multipartFile.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Choose a file to upload");
+        }
+        reservation.resize(multipartFile.getSize());
+        try (InputStream content = multipartFile.getInputStream()) {
+            return replaceContent(
+                    user.id(),
+                    fileId,
+                    content,
+                    multipartFile.getSize(),
+                    FileStorageService.contentTypeOf(multipartFile),
+                    null,
+                    reservation,
+                    "NEW_VERSION"
+            );
+        } catch (IOException exception) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store the uploaded file");
+        }
+    }
+
+    /**
+     * Returns the block signature of the file's current contents, for a client to encode a delta upload against.
+     */
+    public SignatureView signature(long userId, long fileId) {
+        VersionLookup lookup = lookUp(userId, fileId, -1);
+        AppStateStore.FileRecord file = lookup.file();
+        BinaryDelta.Signature signature;
+        try (InputStream content = blobStore.get(file.storageKey)) {
+            signature = BinaryDelta.sign(content, BinaryDelta.blockSizeFor(file.fileSize));
+        } catch (NoSuchFileException exception) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Stored file is missing");
+        } catch (IOException exception) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to read the stored file");
+        }
+        List<BlockView> blocks = new ArrayList<>(signature.blockCount());
+        for (int block = 0; block < signature.blockCount(); block++) {
+            long[] strong = signature.strongHashOf(block);
+            blocks.add(new BlockView(signature.weakHashOf(block), "%016x%016x".formatted(strong[0], strong[1])));
+        }
+        return new SignatureView(currentVersion(lookup.history()), file.fileSize, signature.blockSize(), blocks);
+    }
+
+    /**
+     * Makes the contents described by a delta against {@code baseVersion} the file's new contents. Fails with 409
+     * if the file has moved on from that version, and with 400 if the delta does not apply or, when
+     * {@code checksum} is given, does not rebuild contents with that CRC32C.
+     */
+    public FileStorageService.FileView uploadDelta(
+            AuthService.UserAccount user,
+            long fileId,
+            long baseVersion,
+            Long checksum,
+            MultipartFile delta,
+            StorageQuotaService.Reservation reservation
+    ) {
+        if (delta == null || delta.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Choose a delta to upload");
+        }
+        VersionLookup lookup = lookUp(user.id(), fileId, -1);
+        if (currentVersion(lookup.history()) != baseVersion) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "The file has changed since its signature was taken");
+        }
+        String baseKey = lookup.file().storageKey;
+        try (
+                BinaryDelta.DecodingInputStream content = BinaryDelta.decode(
+                        new BufferedInputStream(delta.getInputStream()),
+                        (offset, length) -> blobStore.get(baseKey, offset, length),
+                        checksum == null ? -1 : checksum
+                )
+        ) {
+            reservation.resize(content.targetLength());
+            return replaceContent(user.id(), fileId, content, content.targetLength(), null, baseKey, reservation, "NEW_VERSION");
+        } catch (IOException exception) {
+            for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+                if (cause instanceof BinaryDelta.MalformedDeltaException) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, cause.getMessage());
+                }
+            }
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store the uploaded file");
+        }
+    }
+
+    /**
+     * Lists the file's versions, newest first, starting with the current contents.
+     */
+    public List<VersionView> listVersions(long userId, long fileId) {
+        return stateStore.readUser(userId, partition -> {
+            AppStateStore.FileRecord file = partition.files.get(FileStorageService.ownedFilePosition(partition, fileId));
+            List<AppStateStore.FileVersionRecord> history = history(partition, fileId);
+            List<VersionView> views = new ArrayList<>(history.size() + 1);
+            views.add(new VersionView(currentVersion(history), file.fileSize, file.uploadTime, true));
+            for (AppStateStore.FileVersionRecord version : history) {
+                views.add(new VersionView(version.version, version.fileSize, version.uploadTime, false));
+            }
+            return views;
+        });
+    }
+
+    public FileStorageService.StoredFile prepareVersionDownload(long userId, long fileId, long version) {
+        VersionLookup lookup = lookUp(userId, fileId, version);
+        if (lookup.index() < 0) {
+            return fileStorageService.prepareDownload(userId, fileId);
+        }
+        AppStateStore.FileRecord file = lookup.file();
+        AppStateStore.FileVersionRecord target = lookup.history().get(lookup.index());
+        activityService.record(userId, "DOWNLOAD", file.filename);
+        return new FileStorageService.StoredFile(
+                file.id,
+                file.userId,
+                file.filename,
+                file.mimeType,
+                target.fileSize,
+                target.uploadTime,
+                target.storageKey,
+                new VersionResource(lookup, target.fileSize)
+        );
+    }
+
+    /**
+     * Makes an older version the current contents again. The contents it replaces become the newest version, so
+     * a restore can itself be undone.
+     */
+    public FileStorageService.FileView restoreVersion(long userId, long fileId, long version) {
+        VersionLookup lookup = lookUp(userId, fileId, version);
+        if (lookup.index() < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "That version is already the current one");
+        }
+        long fileSize = lookup.history().get(lookup.index()).fileSize;
+        try (
+                StorageQuotaService.Reservation reservation = storageQuotas.reserve(userId, fileSize);
+                InputStream content = open(lookup)
+        ) {
+            return replaceContent(
+                    userId, fileId, content, fileSize, null, lookup.file().storageKey, reservation, "RESTORE_VERSION"
+            );
+        } catch (IOException exception) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to restore the version");
+        }
+    }
+
+    private FileStorageService.FileView replaceContent(
+            long userId,
+            long fileId,
+            InputStream content,
+            long size,
+            String mimeType,
+            String expectedStorageKey,
+            StorageQuotaService.Reservation reservation,
+            String action
+    ) throws IOException {
+        VersionLookup previous = lookUp(userId, fileId, -1);
+        AppStateStore.FileRecord current = previous.file();
+        if (expectedStorageKey != null && !expectedStorageKey.equals(current.storageKey)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "The file was changed by another upload");
+        }
+        String directory = UserDirectories.of(userId);
+        String storageKey = directory + "/" + UUID.randomUUID() + FileStorageService.extensionOf(current.filename);
+        List<String> written = new ArrayList<>();
+        try {
+            long checksum;
+            BinaryDelta.Signature signature;
+            // The signature of the new contents is taken as they stream to the blob store, like the checksum.
+            try (
+                    CheckedInputStream checked = new CheckedInputStream(content, new CRC32C());
+                    BinaryDelta.SigningInputStream signing = BinaryDelta.signing(checked, BinaryDelta.blockSizeFor(size))
+            ) {
+                written.add(storageKey);
+                blobStore.put(storageKey, signing, size);
+                checksum = checked.getChecksum().getValue();
+                signature = signing.signature();
+            }
+
+            String versionKey = current.storageKey;
+            long storedSize = current.fileSize;
+            boolean delta = false;
+            if (current.fileSize > 0 && leadingDeltas(previous.history()) < MAX_DELTA_CHAIN) {
+                String deltaKey = directory + "/" + UUID.randomUUID() + ".delta";
+                long deltaSize = storeDelta(signature, current, deltaKey);
+                if (deltaSize >= 0) {
+                    written.add(deltaKey);
+                    versionKey = deltaKey;
+                    storedSize = deltaSize;
+                    delta = true;
+                }
+            }
+
+            Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+            AppStateStore.FileVersionRecord displaced = new AppStateStore.FileVersionRecord(
+                    fileId,
+                    currentVersion(previous.history()),
+                    current.fileSize,
+                    current.checksum,
+                    versionKey,
+                    delta,
+                    storedSize,
+                    current.uploadTime
+            );
+            FileStorageService.FileView fileView = stateStore.writeUser(userId, partition -> {
+                int position = FileStorageService.ownedFilePosition(partition, fileId);
+                AppStateStore.FileRecord latest = partition.files.get(position);
+                if (!latest.storageKey.equals(current.storageKey)) {
+                    throw new ResponseStatusException(HttpStatus.CONFLICT, "The file was changed by another upload");
+                }
+                latest.storageKey = storageKey;
+                latest.fileSize = size;
+                latest.checksum = checksum;
+                latest.uploadTime = now;
+                if (mimeType != null) {
+                    latest.mimeType = mimeType;
+                }
+                partition.files.set(position, latest);
+                partition.versions.add(displaced);
+                return FileStorageService.toView(latest);
+            });
+            written.clear();
+            // The reservation covers the new contents; the displaced ones stay charged at what their version takes.
+            reservation.commit();
+            storageQuotas.recordRemoved(userId, current.fileSize - storedSize);
+            if (delta) {
+                // The displaced contents now live on as the delta.
+                blobCache.invalidate(current.storageKey);
+                try {
+                    blobStore.delete(current.storageKey);
+                } catch (IOException exception) {
+                    log.warn("Failed to delete blob {} replaced by a delta", current.storageKey, exception);
+                }
+            }
+            activityService.record(userId, action, fileView.filename());
+            return fileView;
+        } finally {
+            for (String key : written) {
+                try {
+                    blobStore.delete(key);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes the current contents against {@code signature} and stores the delta under {@code deltaKey} if it is
+     * small enough to be worth keeping. Returns the size of the stored delta, or -1 if it was not kept.
+     */
+    private long storeDelta(BinaryDelta.Signature signature, AppStateStore.FileRecord current, String deltaKey)
+            throws IOException {
+        Path encoded = Files.createTempFile("patrakosh-delta-", ".bin");
+        try {
+            try (
+                    InputStream previous = new BufferedInputStream(blobStore.get(current.storageKey));
+                    OutputStream out = new BufferedOutputStream(Files.newOutputStream(encoded))
+            ) {
+                BinaryDelta.encode(signature, previous, current.fileSize, out);
+            }
+            long deltaSize = Files.size(encoded);
+            if (deltaSize >= current.fileSize * MAX_DELTA_RATIO) {
+                return -1;
+            }
+            try (InputStream in = Files.newInputStream(encoded)) {
+                blobStore.put(deltaKey, in, deltaSize);
+            }
+            return deltaSize;
+        } finally {
+            Files.deleteIfExists(encoded);
+        }
+    }
+
+    /**
+     * Rebuilds the version at {@code lookup.index()}. Deltas are applied from the nearest version kept whole,
+     * and every intermediate version is written to a temporary file so the next delta can copy from any offset.
+     */
+    private InputStream open(VersionLookup lookup) throws IOException {
+        List<AppStateStore.FileVersionRecord> history = lookup.history();
+        int target = lookup.index();
+        int whole = target;
+        while (whole >= 0 && history.get(whole).delta) {
+            whole--;
+        }
+        if (whole == target) {
+            return blobStore.get(history.get(target).storageKey);
+        }
+        String baseKey = whole < 0 ? lookup.file().storageKey : history.get(whole).storageKey;
+        BinaryDelta.Base base = (offset, length) -> blobStore.get(baseKey, offset, length);
+        Path intermediate = null;
+        try {
+            for (int index = whole + 1; index < target; index++) {
+                Path rebuilt = Files.createTempFile("patrakosh-version-", ".bin");
+                try (InputStream decoded = decode(history.get(index), base)) {
+                    Files.copy(decoded, rebuilt, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException | RuntimeException exception) {
+                    Files.deleteIfExists(rebuilt);
+                    throw exception;
+                }
+                if (intermediate != null) {
+                    Files.deleteIfExists(intermediate);
+                }
+                intermediate = rebuilt;
+                base = fileBase(rebuilt);
+            }
+            Path cleanup = intermediate;
+            return new FilterInputStream(decode(history.get(target), base)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (cleanup != null) {
+                            Files.deleteIfExists(cleanup);
+                        }
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException exception) {
+            if (intermediate != null) {
+                Files.deleteIfExists(intermediate);
+            }
+            throw exception;
+        }
+    }
+
+    private InputStream decode(AppStateStore.FileVersionRecord version, BinaryDelta.Base base) throws IOException {
+        InputStream delta = new BufferedInputStream(blobStore.get(version.storageKey));
+        try {
+            return BinaryDelta.decode(delta, base, version.checksum);
+        } catch (IOException exception) {
+            delta.close();
+            throw exception;
+        }
+    }
+
+    private static BinaryDelta.Base fileBase(Path file) {
+        // The decoder never reads past the length it asked for, so the stream needs no bound of its own.
+        return (offset, length) -> {
+            SeekableByteChannel channel = Files.newByteChannel(file);
+            channel.position(offset);
+            return new BufferedInputStream(Channels.newInputStream(channel));
+        };
+    }
+
+    /**
+     * Snapshots the file and its history, and finds {@code version} in it: index -1 stands for the current
+     * contents, and a {@code version} of -1 asks for them. Fails with 404 if there is no such file or version.
+     */
+    private VersionLookup lookUp(long userId, long fileId, long version) {
+        VersionLookup lookup = stateStore.readUser(userId, partition -> {
+            AppStateStore.FileRecord file = partition.files.get(FileStorageService.ownedFilePosition(partition, fileId));
+            return new VersionLookup(file, history(partition, fileId), -1);
+        });
+        if (version < 0 || version == currentVersion(lookup.history())) {
+            return lookup;
+        }
+        for (int index = 0; index < lookup.history().size(); index++) {
+            if (lookup.history().get(index).version == version) {
+                return new VersionLookup(lookup.file(), lookup.history(), index);
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Version not found");
+    }
+
+    private static List<AppStateStore.FileVersionRecord> history(AppStateStore.UserPartition partition, long fileId) {
+        return partition.versions.stream()
+                .filter(version -> version.fileId == fileId)
+                .sorted(Comparator.comparingLong((AppStateStore.FileVersionRecord version) -> version.version).reversed())
+                .toList();
+    }
+
+    private static long currentVersion(List<AppStateStore.FileVersionRecord> history) {
+        return history.isEmpty() ? 1 : history.get(0).version + 1;
+    }
+
+    private static int leadingDeltas(List<AppStateStore.FileVersionRecord> history) {
+        int count = 0;
+        while (count < history.size() && history.get(count).delta) {
+            count++;
+        }
+        return count;
+    }
+
+    private final class VersionResource extends AbstractResource {
+
+        private final VersionLookup lookup;
+        private final long size;
+
+        private VersionResource(VersionLookup lookup, long size) {
+            this.lookup = lookup;
+            this.size = size;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return size;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            try {
+                return open(lookup);
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Failed to rebuild version of file " + lookup.file().id, exception);
+            }
+        }
+
+        @Override
+        public String getDescription() {
+            return "version [" + lookup.history().get(lookup.index()).version + "] of file [" + lookup.file().id + "]";
+        }
+    }
+
+    private record VersionLookup(
+            AppStateStore.FileRecord file,
+            List<AppStateStore.FileVersionRecord> history,
+            int index
+    ) {
+    }
+
+    public record VersionView(long version, long fileSize, Instant uploadTime, boolean current) {
+    }
+
+    /**
+     * The signature of version {@code version}. Each block covers {@code blockSize} bytes from offset
+     * {@code index * blockSize}; a trailing partial block is left out. {@code weak} is the rsync rolling checksum
+     * (the low 16 bits of the byte sum, with the position-weighted sum in the high 16 bits) and {@code strong} the
+     * first 128 bits of the block's SHA-256 in hex.
+     */
+    public record SignatureView(long version, long fileSize, int blockSize, List<BlockView> blocks) {
+    }
+
+    public record BlockView(int weak, String strong) {
+    }
+}
@@ -0,0 +1,172 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.StateRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks how many bytes each user stores, plus bytes reserved by uploads still in flight, and refuses uploads
+ * that would take a user past {@code patrakosh.storage.quota-bytes}.
+ *
+ * <p>Usage covers files outside the trash and every older version kept of a file, at the size its blob takes,
+ * until the version is purged with its file. A user's usage is summed once, on first use, and kept up to date
+ * from then on, so every later check is O(1). Uploads reserve their declared size before any bytes are streamed and either
+ * commit the reservation once the file is recorded or release it when the upload fails; restoring a file from the
+ * trash reserves its size the same way. A usage is loaded before it is put in the map, never inside a map function,
+ * so reading one user's partition does not hold up lookups for others.
+ */
+@Service
+public class StorageQuotaService {
+
+    /**
+     * Room left for the boundaries and part headers of a multipart body when only its total length is known.
+     */
+    static final long MULTIPART_OVERHEAD_BYTES = 64 * 1024;
+
+    private final StateRepository stateStore;
+    private final long quotaBytes;
+    private final ConcurrentHashMap<Long, Usage> usageByUser = new ConcurrentHashMap<>();
+
+    public StorageQuotaService(
+            StateRepository stateStore,
+            @Value("${patrakosh.storage.quota-bytes:1073741824}") long quotaBytes
+    ) {
+        if (quotaBytes < 1) {
+            throw new IllegalArgumentException("quotaBytes must be greater than zero");
+        }
+        this.stateStore = stateStore;
+        this.quotaBytes = quotaBytes;
+    }
+
+    public long quotaBytes() {
+        return quotaBytes;
+    }
+
+    /**
+     * Bytes the user's quota is charged for, the same figure uploads are checked against, less what is only
+     * reserved by uploads still in flight.
+     */
+    public long used(long userId) {
+        Usage usage = usage(userId);
+        synchronized (usage) {
+            return usage.committed;
+        }
+    }
+
+    /**
+     * Reserves {@code bytes} of the user's quota, failing with 413 if that would exceed it. A negative size, as
+     * for a request without a Content-Length, reserves nothing until {@link Reservation#resize} names the size.
+     */
+    public Reservation reserve(long userId, long bytes) {
+        Reservation reservation = new Reservation(usage(userId));
+        reservation.resize(Math.max(bytes, 0));
+        return reservation;
+    }
+
+    /**
+     * Reserves quota for a multipart upload before its body is read. The Content-Length also covers boundaries and
+     * part headers, so only the part of it that must be file content is reserved: uploads far over the quota are
+     * turned away unread, while one that exactly fits passes once {@link Reservation#resize} names the file's real
+     * size. A request without a Content-Length (-1) reserves nothing until then.
+     */
+    public Reservation reserveUpload(long userId, long contentLength) {
+        return reserve(userId, contentLength < 0 ? -1 : contentLength - MULTIPART_OVERHEAD_BYTES);
+    }
+
+    public void recordRemoved(long userId, long bytes) {
+        Usage usage = usageByUser.get(userId);
+        if (usage != null) {
+            synchronized (usage) {
+                usage.committed = Math.max(usage.committed - bytes, 0);
+            }
+        }
+    }
+
+    /**
+     * Forgets every tracked usage. Meant for tests that reset the state store underneath.
+     */
+    public void reset() {
+        usageByUser.clear();
+    }
+
+    private Usage usage(long userId) {
+        Usage usage = usageByUser.get(userId);
+        if (usage != null) {
+            return usage;
+        }
+        Usage loaded = new Usage(stateStore.readUser(userId, partition -> {
+            long bytes = partition.files.liveSize();
+            for (AppStateStore.FileVersionRecord version : partition.versions) {
+                bytes += version.storedSize;
+            }
+            return bytes;
+        }));
+        Usage raced = usageByUser.putIfAbsent(userId, loaded);
+        return raced == null ? loaded : raced;
+    }
+
+    private static final class Usage {
+        private long committed;
+        private long reserved;
+
+        private Usage(long committed) {
+            this.committed = committed;
+        }
+    }
+
+    public final class Reservation implements AutoCloseable {
+
+        private final Usage usage;
+        private long bytes;
+        private boolean open = true;
+
+        private Reservation(Usage usage) {
+            this.usage = usage;
+        }
+
+        /**
+         * Changes the reservation to {@code newBytes}, such as once the real file size is known.
+         */
+        public void resize(long newBytes) {
+            synchronized (usage) {
+                if (!open) {
+                    throw new IllegalStateException("Reservation is already closed");
+                }
+                long growth = newBytes - bytes;
+                if (growth > 0 && usage.committed + usage.reserved + growth > quotaBytes) {
+                    throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Storage quota exceeded");
+                }
+                usage.reserved += growth;
+                bytes = newBytes;
+            }
+        }
+
+        /**
+         * Turns the reserved bytes into stored ones.
+         */
+        public void commit() {
+            synchronized (usage) {
+                if (open) {
+                    usage.reserved -= bytes;
+                    usage.committed += bytes;
+                    open = false;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (usage) {
+                if (open) {
+                    usage.reserved -= bytes;
+                    open = false;
+                }
+            }
+        }
+    }
+}
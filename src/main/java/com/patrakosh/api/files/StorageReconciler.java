@@ -0,0 +1,249 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.BlobStore;
+import com.patrakosh.persistence.StateRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cross-checks the blobs in the {@link BlobStore} against the file records that point at them.
+ *
+ * <p>A pass walks one {@code user-<id>} directory at a time, reading that user's partition once, and pauses
+ * between directories so it never holds a lock for long or competes with requests for the disk. Blobs no record
+ * names are moved to {@code .quarantine} once they are older than the grace period, which leaves uploads still
+ * being recorded alone, and only if a fresh read of the partition after the listing still does not name them, so
+ * a blob recorded while its directory was listed is kept too. Records whose blob is missing are reported. Passes run in the background every
+ * {@code patrakosh.storage.reconcile.interval-seconds}; 0 turns them off.
+ */
+@Component
+public class StorageReconciler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageReconciler.class);
+    private static final String QUARANTINE_DIRECTORY = ".quarantine";
+    private static final int MAX_REPORTED_FILE_IDS = 100;
+
+    private final StateRepository stateStore;
+    private final BlobStore blobStore;
+    private final Duration orphanGrace;
+    private final Duration pause;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private volatile ReconciliationReport lastReport;
+
+    @Autowired
+    public StorageReconciler(
+            StateRepository stateStore,
+            BlobStore blobStore,
+            @Value("${patrakosh.storage.reconcile.interval-seconds:3600}") long intervalSeconds,
+            @Value("${patrakosh.storage.reconcile.orphan-grace-seconds:3600}") long orphanGraceSeconds,
+            @Value("${patrakosh.storage.reconcile.pause-ms:20}") long pauseMillis
+    ) {
+        this(
+                stateStore,
+                blobStore,
+                Duration.ofSeconds(intervalSeconds),
+                Duration.ofSeconds(orphanGraceSeconds),
+                Duration.ofMillis(pauseMillis),
+                Clock.systemUTC()
+        );
+    }
+
+    public StorageReconciler(
+            StateRepository stateStore,
+            BlobStore blobStore,
+            Duration interval,
+            Duration orphanGrace,
+            Duration pause,
+            Clock clock
+    ) {
+        this.stateStore = stateStore;
+        this.blobStore = blobStore;
+        this.orphanGrace = orphanGrace;
+        this.pause = pause;
+        this.clock = clock;
+        this.scheduler = interval.isZero() || interval.isNegative() ? null : startScheduler(interval);
+    }
+
+    public ReconciliationReport lastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Runs one full pass on the calling thread and returns its report.
+     */
+    public synchronized ReconciliationReport reconcile() {
+        Instant startedAt = clock.instant();
+        Totals totals = new Totals();
+        for (long userId : UserDirectories.userIds(blobStore)) {
+            String directory = UserDirectories.of(userId);
+            try {
+                reconcileUser(userId, directory, startedAt, totals);
+            } catch (IOException | RuntimeException exception) {
+                log.warn("Failed to reconcile storage directory {}", directory, exception);
+            }
+            if (!pauseBetweenUsers()) {
+                break;
+            }
+        }
+
+        ReconciliationReport report = new ReconciliationReport(
+                startedAt,
+                clock.instant(),
+                totals.users,
+                totals.blobs,
+                totals.orphans,
+                totals.orphanBytes,
+                totals.missingBlobs,
+                List.copyOf(totals.missingFileIds)
+        );
+        lastReport = report;
+        if (report.orphansQuarantined() > 0 || report.missingBlobs() > 0) {
+            log.warn(
+                    "Storage reconciliation quarantined {} orphaned blobs ({} bytes) and found {} records with missing blobs",
+                    report.orphansQuarantined(),
+                    report.orphanBytes(),
+                    report.missingBlobs()
+            );
+        } else {
+            log.info("Storage reconciliation checked {} blobs for {} users", report.blobsScanned(), report.usersScanned());
+        }
+        return report;
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void reconcileUser(long userId, String directory, Instant startedAt, Totals totals) throws IOException {
+        Set<String> referencedKeys = referencedKeys(userId);
+        totals.users++;
+
+        Set<String> presentKeys = new HashSet<>();
+        List<BlobStore.BlobInfo> orphans = new ArrayList<>();
+        for (BlobStore.BlobInfo blob : blobStore.list(directory)) {
+            presentKeys.add(blob.key());
+            totals.blobs++;
+            if (!referencedKeys.contains(blob.key()) && !blob.lastModified().plus(orphanGrace).isAfter(startedAt)) {
+                orphans.add(blob);
+            }
+        }
+        if (!orphans.isEmpty()) {
+            Set<String> referencedNow = referencedKeys(userId);
+            for (BlobStore.BlobInfo blob : orphans) {
+                if (!referencedNow.contains(blob.key())) {
+                    blobStore.move(blob.key(), QUARANTINE_DIRECTORY + "/" + blob.key());
+                    totals.orphans++;
+                    totals.orphanBytes += blob.size();
+                }
+            }
+        }
+
+        referencedKeys.removeAll(presentKeys);
+        if (referencedKeys.isEmpty()) {
+            return;
+        }
+        // Recheck under a fresh read so that files deleted while the directory was being listed are not flagged.
+        stateStore.readUser(userId, partition -> {
+            for (AppStateStore.FileRecord file : partition.files) {
+                if (referencedKeys.contains(file.storageKey) && isMissing(file.storageKey)) {
+                    totals.missingBlobs++;
+                    if (totals.missingFileIds.size() < MAX_REPORTED_FILE_IDS) {
+                        totals.missingFileIds.add(file.id);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private Set<String> referencedKeys(long userId) {
+        return stateStore.readUser(userId, partition -> {
+            Set<String> keys = new HashSet<>();
+            for (AppStateStore.FileRecord file : partition.files) {
+                keys.add(file.storageKey);
+            }
+            for (AppStateStore.FileVersionRecord version : partition.versions) {
+                keys.add(version.storageKey);
+            }
+            return keys;
+        });
+    }
+
+    private boolean isMissing(String storageKey) {
+        try {
+            return blobStore.stat(storageKey).isEmpty();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private boolean pauseBetweenUsers() {
+        if (pause.isZero()) {
+            return true;
+        }
+        try {
+            Thread.sleep(pause.toMillis());
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private ScheduledExecutorService startScheduler(Duration interval) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patrakosh-storage-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (RuntimeException exception) {
+                log.warn("Storage reconciliation failed", exception);
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private static final class Totals {
+        private long users;
+        private long blobs;
+        private long orphans;
+        private long orphanBytes;
+        private long missingBlobs;
+        private final List<Long> missingFileIds = new ArrayList<>();
+    }
+
+    public record ReconciliationReport(
+            Instant startedAt,
+            Instant finishedAt,
+            long usersScanned,
+            long blobsScanned,
+            long orphansQuarantined,
+            long orphanBytes,
+            long missingBlobs,
+            List<Long> missingFileIds
+    ) {
+    }
+}
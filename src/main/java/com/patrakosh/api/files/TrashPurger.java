@@ -0,0 +1,269 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.BlobStore;
+import com.patrakosh.persistence.FileTable;
+import com.patrakosh.persistence.StateRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Permanently removes files that have been in the trash for longer than
+ * {@code patrakosh.storage.trash.retention-seconds}, together with their shares, versions and blobs.
+ *
+ * <p>Runs on its own thread every {@code patrakosh.storage.trash.purge-interval-seconds}, so deleting stays a
+ * single flag write on the request thread. Each write removes at most {@code purge-batch-size} records, their
+ * blobs are unlinked after the write commits, and the worker pauses for {@code pause-ms} after each batch to
+ * bound the I/O it competes with requests for. A blob that cannot be unlinked is left for
+ * {@link StorageReconciler} to quarantine. Trashed files no longer count against the storage quota, but their
+ * versions do until they are purged here.
+ */
+@Component
+public class TrashPurger implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TrashPurger.class);
+
+    private final StateRepository stateStore;
+    private final BlobStore blobStore;
+    private final BlobCache blobCache;
+    private final StorageQuotaService storageQuotas;
+    private final Duration retention;
+    private final int batchSize;
+    private final Duration pause;
+    private final Clock clock;
+    private final ScheduledExecutorService worker;
+    private volatile PurgeReport lastReport;
+
+    @Autowired
+    public TrashPurger(
+            StateRepository stateStore,
+            BlobStore blobStore,
+            BlobCache blobCache,
+            StorageQuotaService storageQuotas,
+            @Value("${patrakosh.storage.trash.retention-seconds:2592000}") long retentionSeconds,
+            @Value("${patrakosh.storage.trash.purge-interval-seconds:300}") long intervalSeconds,
+            @Value("${patrakosh.storage.trash.purge-batch-size:256}") int batchSize,
+            @Value("${patrakosh.storage.trash.pause-ms:20}") long pauseMillis
+    ) {
+        this(
+                stateStore,
+                blobStore,
+                blobCache,
+                storageQuotas,
+                Duration.ofSeconds(retentionSeconds),
+                Duration.ofSeconds(intervalSeconds),
+                batchSize,
+                Duration.ofMillis(pauseMillis),
+                Clock.systemUTC()
+        );
+    }
+
+    public TrashPurger(
+            StateRepository stateStore,
+            BlobStore blobStore,
+            BlobCache blobCache,
+            StorageQuotaService storageQuotas,
+            Duration retention,
+            Duration interval,
+            int batchSize,
+            Duration pause,
+            Clock clock
+    ) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be greater than zero");
+        }
+        this.stateStore = stateStore;
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
+        this.storageQuotas = storageQuotas;
+        this.retention = retention;
+        this.batchSize = batchSize;
+        this.pause = pause;
+        this.clock = clock;
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patrakosh-trash-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!interval.isZero() && !interval.isNegative()) {
+            worker.scheduleWithFixedDelay(() -> {
+                try {
+                    purgeExpired();
+                } catch (RuntimeException exception) {
+                    log.warn("Trash purge failed", exception);
+                }
+            }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public PurgeReport lastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Queues the removal of everything currently in the user's trash, whatever its age, and returns at once.
+     */
+    public void emptyTrash(long userId) {
+        Instant deletedBefore = clock.instant();
+        try {
+            worker.execute(() -> {
+                try {
+                    purgeUser(userId, deletedBefore, new Totals());
+                } catch (RuntimeException exception) {
+                    log.warn("Failed to empty the trash of user {}", userId, exception);
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            throw new IllegalStateException("Trash purger is shut down", exception);
+        }
+    }
+
+    /**
+     * Runs one pass over every user on the calling thread and returns its report.
+     */
+    public synchronized PurgeReport purgeExpired() {
+        Instant startedAt = clock.instant();
+        Instant deletedBefore = startedAt.minus(retention);
+        Totals totals = new Totals();
+        for (long userId : UserDirectories.userIds(blobStore)) {
+            try {
+                if (!purgeUser(userId, deletedBefore, totals)) {
+                    break;
+                }
+            } catch (RuntimeException exception) {
+                log.warn("Failed to purge the trash of user {}", userId, exception);
+            }
+        }
+
+        PurgeReport report = new PurgeReport(startedAt, clock.instant(), totals.files, totals.bytes, totals.unlinkFailures);
+        lastReport = report;
+        if (report.filesPurged() > 0) {
+            log.info("Purged {} files ({} bytes) from the trash", report.filesPurged(), report.bytesPurged());
+        }
+        return report;
+    }
+
+    @Override
+    public void close() {
+        worker.shutdownNow();
+    }
+
+    /**
+     * Purges the user's files trashed at or before {@code deletedBefore}, one batch per write, pausing after each
+     * batch that removed anything. Returns false if the thread was interrupted while pausing.
+     */
+    private boolean purgeUser(long userId, Instant deletedBefore, Totals totals) {
+        // Most users have nothing due, so look under the read lock before taking the write lock.
+        while (stateStore.readUser(userId, partition -> hasDue(partition.files, deletedBefore))) {
+            PurgedBatch purged = stateStore.writeUser(userId, partition -> {
+                List<AppStateStore.FileRecord> batch = new ArrayList<>();
+                List<AppStateStore.FileVersionRecord> versions = new ArrayList<>();
+                for (int index = 0; index < partition.files.size() && batch.size() < batchSize; index++) {
+                    if (isDue(partition.files, index, deletedBefore)) {
+                        batch.add(partition.files.get(index));
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    Set<Long> ids = new HashSet<>();
+                    batch.forEach(file -> ids.add(file.id));
+                    partition.files.removeIf(file -> ids.contains(file.id));
+                    partition.shares.removeIf(share -> ids.contains(share.fileId));
+                    partition.versions.removeIf(version -> ids.contains(version.fileId) && versions.add(version));
+                }
+                return new PurgedBatch(batch, versions);
+            });
+            for (AppStateStore.FileRecord file : purged.files()) {
+                totals.files++;
+                totals.bytes += file.fileSize;
+                unlink(file.storageKey, file.id, totals);
+            }
+            long versionBytes = 0;
+            for (AppStateStore.FileVersionRecord version : purged.versions()) {
+                versionBytes += version.storedSize;
+                unlink(version.storageKey, version.fileId, totals);
+            }
+            storageQuotas.recordRemoved(userId, versionBytes);
+            if (purged.files().isEmpty()) {
+                return true;
+            }
+            if (!pauseAfterBatch()) {
+                return false;
+            }
+            if (purged.files().size() < batchSize) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasDue(FileTable files, Instant deletedBefore) {
+        for (int index = 0; index < files.size(); index++) {
+            if (isDue(files, index, deletedBefore)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDue(FileTable files, int index, Instant deletedBefore) {
+        Instant deletedAt = files.deletedAt(index);
+        return deletedAt != null && !deletedAt.isAfter(deletedBefore);
+    }
+
+    private void unlink(String storageKey, long fileId, Totals totals) {
+        blobCache.invalidate(storageKey);
+        try {
+            blobStore.delete(storageKey);
+        } catch (IOException | IllegalArgumentException exception) {
+            totals.unlinkFailures++;
+            log.warn("Failed to delete blob {} of purged file {}", storageKey, fileId, exception);
+        }
+    }
+
+    private boolean pauseAfterBatch() {
+        if (pause.isZero()) {
+            return true;
+        }
+        try {
+            Thread.sleep(pause.toMillis());
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private record PurgedBatch(List<AppStateStore.FileRecord> files, List<AppStateStore.FileVersionRecord> versions) {
+    }
+
+    private static final class Totals {
+        private long files;
+        private long bytes;
+        private long unlinkFailures;
+    }
+
+    public record PurgeReport(
+            Instant startedAt,
+            Instant finishedAt,
+            long filesPurged,
+            long bytesPurged,
+            long unlinkFailures
+    ) {
+    }
+}
@@ -0,0 +1,40 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.BlobStore;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code user-<id>} directories of the blob store, which is how background jobs find the users that have
+ * stored anything; the state repository has no way to list users.
+ */
+final class UserDirectories {
+
+    private static final Pattern USER_DIRECTORY = Pattern.compile("user-(\\d+)");
+
+    private UserDirectories() {
+    }
+
+    /**
+     * Returns the ids of the users with a directory in {@code blobStore}, in ascending order.
+     */
+    static List<Long> userIds(BlobStore blobStore) {
+        try {
+            return blobStore.directories().stream()
+                    .map(USER_DIRECTORY::matcher)
+                    .filter(Matcher::matches)
+                    .map(matcher -> Long.parseLong(matcher.group(1)))
+                    .sorted()
+                    .toList();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to list blob store directories", exception);
+        }
+    }
+
+    static String of(long userId) {
+        return "user-" + userId;
+    }
+}
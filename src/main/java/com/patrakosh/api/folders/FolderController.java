@@ -0,0 +1,88 @@
+package com.patrakosh.api.folders;
+
+import com.patrakosh.api.auth.AuthService;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/api/folders")
+public class FolderController {
+
+    private final FolderService folderService;
+
+    public FolderController(FolderService folderService) {
+        this.folderService = folderService;
+    }
+
+    @PostMapping
+    public ResponseEntity<FolderService.FolderView> createFolder(
+            AuthService.UserAccount user,
+            @Valid @RequestBody CreateFolderRequest request
+    ) {
+        long parentId = request.parentId() == null ? 0 : request.parentId();
+        return ResponseEntity.status(201).body(folderService.createFolder(user.id(), parentId, request.name()));
+    }
+
+    @GetMapping("/{folderId}")
+    public FolderService.FolderListing listFolder(
+            AuthService.UserAccount user,
+            @PathVariable("folderId") long folderId
+    ) {
+        return folderService.listFolder(user.id(), folderId);
+    }
+
+    @GetMapping("/resolve")
+    public FolderService.FolderView resolve(
+            AuthService.UserAccount user,
+            @RequestParam("path") String path
+    ) {
+        return folderService.resolve(user.id(), path);
+    }
+
+    @PutMapping("/{folderId}")
+    public FolderService.FolderView renameFolder(
+            AuthService.UserAccount user,
+            @PathVariable("folderId") long folderId,
+            @Valid @RequestBody RenameFolderRequest request
+    ) {
+        return folderService.renameFolder(user.id(), folderId, request.name());
+    }
+
+    @PostMapping("/{folderId}/move")
+    public FolderService.FolderView moveFolder(
+            AuthService.UserAccount user,
+            @PathVariable("folderId") long folderId,
+            @Valid @RequestBody MoveRequest request
+    ) {
+        return folderService.moveFolder(user.id(), folderId, request.folderId());
+    }
+
+    @DeleteMapping("/{folderId}")
+    public ResponseEntity<Void> deleteFolder(
+            AuthService.UserAccount user,
+            @PathVariable("folderId") long folderId
+    ) {
+        folderService.deleteFolder(user.id(), folderId);
+        return ResponseEntity.noContent().build();
+    }
+
+    public record CreateFolderRequest(@NotBlank(message = "Folder name is required") String name, Long parentId) {
+    }
+
+    public record RenameFolderRequest(@NotBlank(message = "Folder name is required") String name) {
+    }
+
+    public record MoveRequest(@NotNull(message = "Choose a folder to move to") Long folderId) {
+    }
+}
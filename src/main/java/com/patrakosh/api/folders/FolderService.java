@@ -0,0 +1,204 @@
+package com.patrakosh.api.folders;
+
+import com.patrakosh.api.activity.ActivityService;
+import com.patrakosh.api.files.FileStorageService;
+import com.patrakosh.api.files.StorageQuotaService;
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.FolderTree;
+import com.patrakosh.persistence.StateRepository;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Folders in a user's file tree. Folder id {@link AppStateStore.FolderRecord#ROOT} stands for the root, which
+ * always exists and cannot be renamed, moved or deleted.
+ */
+@Service
+public class FolderService {
+
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final StateRepository stateStore;
+    private final ActivityService activityService;
+    private final StorageQuotaService storageQuotas;
+
+    public FolderService(StateRepository stateStore, ActivityService activityService, StorageQuotaService storageQuotas) {
+        this.stateStore = stateStore;
+        this.activityService = activityService;
+        this.storageQuotas = storageQuotas;
+    }
+
+    public FolderView createFolder(long userId, long parentId, String name) {
+        String folderName = validName(name);
+        FolderView folderView = stateStore.writeUser(userId, partition -> {
+            FileStorageService.requireFolder(partition, parentId);
+            requireFreeName(partition.folders, parentId, folderName);
+            AppStateStore.FolderRecord folder = new AppStateStore.FolderRecord(
+                    stateStore.nextFileId(),
+                    userId,
+                    parentId,
+                    folderName,
+                    Instant.now().truncatedTo(ChronoUnit.MILLIS)
+            );
+            partition.folders.add(folder);
+            return toView(partition.folders, folder);
+        });
+        activityService.record(userId, "CREATE_FOLDER", folderName);
+        return folderView;
+    }
+
+    /**
+     * Lists the folders and live files directly inside a folder, by name. Only the folder's own children are
+     * looked at, however large the rest of the tree is.
+     */
+    public FolderListing listFolder(long userId, long folderId) {
+        return stateStore.readUser(userId, partition -> {
+            FileStorageService.requireFolder(partition, folderId);
+            List<FolderView> folders = partition.folders.children(folderId).stream()
+                    .sorted(Comparator.comparing((AppStateStore.FolderRecord folder) -> folder.name.toLowerCase(Locale.ROOT)))
+                    .map(folder -> toView(partition.folders, folder))
+                    .toList();
+            List<FileStorageService.FileView> files = new ArrayList<>();
+            for (int position : partition.files.positionsIn(folderId)) {
+                if (!partition.files.isDeleted(position)) {
+                    files.add(FileStorageService.toView(partition.files.get(position)));
+                }
+            }
+            files.sort(Comparator.comparing((FileStorageService.FileView file) -> file.filename().toLowerCase(Locale.ROOT)));
+            return new FolderListing(folderView(partition.folders, folderId), folders, files);
+        });
+    }
+
+    /**
+     * Looks up a folder by its path from the root, such as {@code /photos/2024}, ignoring case.
+     */
+    public FolderView resolve(long userId, String path) {
+        return stateStore.readUser(userId, partition -> {
+            long folderId = partition.folders.resolve(path == null ? "" : path);
+            if (folderId < 0) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Folder not found");
+            }
+            return folderView(partition.folders, folderId);
+        });
+    }
+
+    public FolderView renameFolder(long userId, long folderId, String name) {
+        String folderName = validName(name);
+        FolderView folderView = stateStore.writeUser(userId, partition -> {
+            AppStateStore.FolderRecord folder = ownedFolder(partition.folders, folderId);
+            if (!folder.name.equalsIgnoreCase(folderName)) {
+                requireFreeName(partition.folders, folder.parentId, folderName);
+            }
+            partition.folders.rename(folderId, folderName);
+            return folderView(partition.folders, folderId);
+        });
+        activityService.record(userId, "RENAME_FOLDER", folderName);
+        return folderView;
+    }
+
+    /**
+     * Moves a folder, with everything in it, under another folder. Only the moved folder's record changes.
+     */
+    public FolderView moveFolder(long userId, long folderId, long parentId) {
+        FolderView folderView = stateStore.writeUser(userId, partition -> {
+            AppStateStore.FolderRecord folder = ownedFolder(partition.folders, folderId);
+            FileStorageService.requireFolder(partition, parentId);
+            if (partition.folders.isWithin(parentId, folderId)) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "A folder cannot be moved into itself");
+            }
+            if (folder.parentId != parentId) {
+                requireFreeName(partition.folders, parentId, folder.name);
+                partition.folders.move(folderId, parentId);
+            }
+            return folderView(partition.folders, folderId);
+        });
+        activityService.record(userId, "MOVE_FOLDER", folderView.name());
+        return folderView;
+    }
+
+    /**
+     * Deletes a folder and every folder below it in one write, moving the files they hold to the trash. Returns
+     * how many files were moved there.
+     */
+    public int deleteFolder(long userId, long folderId) {
+        Instant deletedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        DeletedFolder deleted = stateStore.writeUser(userId, partition -> {
+            AppStateStore.FolderRecord folder = ownedFolder(partition.folders, folderId);
+            Set<Long> subtree = new HashSet<>(partition.folders.subtree(folderId));
+            int count = 0;
+            long bytes = 0;
+            for (long id : subtree) {
+                for (int position : partition.files.positionsIn(id)) {
+                    if (!partition.files.isDeleted(position)) {
+                        partition.files.setDeletedAt(position, deletedAt);
+                        count++;
+                        bytes += partition.files.fileSize(position);
+                    }
+                }
+            }
+            partition.folders.removeIf(candidate -> subtree.contains(candidate.id));
+            return new DeletedFolder(folder.name, count, bytes);
+        });
+        storageQuotas.recordRemoved(userId, deleted.bytes());
+        activityService.record(userId, "DELETE_FOLDER", deleted.name());
+        return deleted.files();
+    }
+
+    private static AppStateStore.FolderRecord ownedFolder(FolderTree folders, long folderId) {
+        AppStateStore.FolderRecord folder = folders.find(folderId);
+        if (folder == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Folder not found");
+        }
+        return folder;
+    }
+
+    private static void requireFreeName(FolderTree folders, long parentId, String name) {
+        if (folders.child(parentId, name) != null) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "A folder named " + name + " already exists there");
+        }
+    }
+
+    private static String validName(String name) {
+        String folderName = name == null ? "" : name.trim();
+        if (folderName.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Folder name cannot be empty");
+        }
+        if (folderName.length() > MAX_NAME_LENGTH
+                || folderName.equals(".")
+                || folderName.equals("..")
+                || folderName.chars().anyMatch(character -> character == '/' || character == '\\' || Character.isISOControl(character))) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Folder name is not valid");
+        }
+        return folderName;
+    }
+
+    private static FolderView folderView(FolderTree folders, long folderId) {
+        if (folderId == AppStateStore.FolderRecord.ROOT) {
+            return new FolderView(AppStateStore.FolderRecord.ROOT, "", AppStateStore.FolderRecord.ROOT, "/", null);
+        }
+        return toView(folders, folders.find(folderId));
+    }
+
+    private static FolderView toView(FolderTree folders, AppStateStore.FolderRecord folder) {
+        return new FolderView(folder.id, folder.name, folder.parentId, folders.path(folder.id), folder.createdAt);
+    }
+
+    public record FolderView(long id, String name, long parentId, String path, Instant createdAt) {
+    }
+
+    public record FolderListing(FolderView folder, List<FolderView> folders, List<FileStorageService.FileView> files) {
+    }
+
+    private record DeletedFolder(String name, int files, long bytes) {
+    }
+}
@@ -6,7 +6,6 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
@@ -17,7 +16,6 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
@@ -29,20 +27,17 @@ import java.util.List;
 @RestController
 public class ShareController {
 
-    private final AuthService authService;
     private final ShareService shareService;
     private final RequestRateLimiter requestRateLimiter;
     private final int downloadMaxAttempts;
     private final long downloadWindowSeconds;
 
     public ShareController(
-            AuthService authService,
             ShareService shareService,
             RequestRateLimiter requestRateLimiter,
             @org.springframework.beans.factory.annotation.Value("${patrakosh.shares.rate-limit.download.max-attempts:30}") int downloadMaxAttempts,
             @org.springframework.beans.factory.annotation.Value("${patrakosh.shares.rate-limit.download.window-seconds:60}") long downloadWindowSeconds
     ) {
-        this.authService = authService;
         this.shareService = shareService;
         this.requestRateLimiter = requestRateLimiter;
         this.downloadMaxAttempts = downloadMaxAttempts;
@@ -51,23 +46,21 @@ public class ShareController {
 
     @PostMapping("/api/files/{fileId}/shares")
     public ResponseEntity<ShareResponse> createShare(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
+            AuthService.UserAccount user,
             @PathVariable("fileId") long fileId,
             @Valid @RequestBody(required = false) CreateShareRequest request,
             HttpServletRequest servletRequest
     ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
         ShareService.ShareView share = shareService.createShare(user, fileId, request == null ? null : request.expiresInHours());
         return ResponseEntity.status(201).body(toResponse(share, servletRequest));
     }
 
     @GetMapping("/api/files/{fileId}/shares")
     public List<ShareResponse> listShares(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
+            AuthService.UserAccount user,
             @PathVariable("fileId") long fileId,
             HttpServletRequest servletRequest
     ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
         return shareService.listShares(user, fileId).stream()
                 .map(share -> toResponse(share, servletRequest))
                 .toList();
@@ -75,11 +68,10 @@ public class ShareController {
 
     @DeleteMapping("/api/files/{fileId}/shares/{shareId}")
     public ResponseEntity<Void> revokeShare(
-            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorizationHeader,
+            AuthService.UserAccount user,
             @PathVariable("fileId") long fileId,
             @PathVariable("shareId") long shareId
     ) {
-        AuthService.UserAccount user = authService.requireUser(authorizationHeader);
         shareService.revokeShare(user, fileId, shareId);
         return ResponseEntity.noContent().build();
     }
@@ -108,7 +100,7 @@ public class ShareController {
         return ResponseEntity.ok()
                 .contentType(mediaType)
                 .header(HttpHeaders.CONTENT_DISPOSITION, disposition.toString())
-                .body(new FileSystemResource(sharedDownload.storagePath()));
+                .body(sharedDownload.content());
     }
 
     private static String clientIp(HttpServletRequest request) {
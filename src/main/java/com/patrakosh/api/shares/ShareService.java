@@ -4,6 +4,8 @@ import com.patrakosh.api.activity.ActivityService;
 import com.patrakosh.api.auth.AuthService;
 import com.patrakosh.api.files.FileStorageService;
 import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.StateRepository;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
@@ -20,13 +22,13 @@ public class ShareService {
     private static final int DEFAULT_EXPIRY_HOURS = 24;
     private static final int MAX_EXPIRY_HOURS = 24 * 30;
 
-    private final AppStateStore stateStore;
+    private final StateRepository stateStore;
     private final FileStorageService fileStorageService;
     private final ActivityService activityService;
     private final SecureRandom secureRandom = new SecureRandom();
 
     public ShareService(
-            AppStateStore stateStore,
+            StateRepository stateStore,
             FileStorageService fileStorageService,
             ActivityService activityService
     ) {
@@ -41,13 +43,13 @@ public class ShareService {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Share expiry must be between 1 and 720 hours");
         }
 
-        FileStorageService.StoredFile file = fileStorageService.getOwnedStoredFile(user.id(), fileId);
-        ShareView shareView = stateStore.write(state -> {
+        ShareView shareView = stateStore.writeUser(user.id(), partition -> {
+            String filename = partition.files.filename(FileStorageService.ownedFilePosition(partition, fileId));
             Instant now = Instant.now();
-            state.shares.removeIf(share -> isInactive(share, now));
+            partition.shares.removeIf(share -> isInactive(share, now));
 
             AppStateStore.ShareRecord shareRecord = new AppStateStore.ShareRecord(
-                    state.nextShareId++,
+                    stateStore.nextShareId(),
                     fileId,
                     user.id(),
                     randomToken(),
@@ -56,73 +58,73 @@ public class ShareService {
                     null,
                     0
             );
-            state.shares.add(shareRecord);
-            return toView(shareRecord, file.filename());
+            partition.shares.add(shareRecord);
+            return toView(shareRecord, filename);
         });
 
-        activityService.record(user.id(), "SHARE", file.filename());
+        activityService.record(user.id(), "SHARE", shareView.filename());
         return shareView;
     }
 
     public List<ShareView> listShares(AuthService.UserAccount user, long fileId) {
-        FileStorageService.StoredFile file = fileStorageService.getOwnedStoredFile(user.id(), fileId);
-        return stateStore.read(state -> {
+        return stateStore.readUser(user.id(), partition -> {
+            String filename = partition.files.filename(FileStorageService.ownedFilePosition(partition, fileId));
             Instant now = Instant.now();
-            return state.shares.stream()
-                    .filter(share -> share.fileId == fileId && share.ownerUserId == user.id())
+            return partition.shares.stream()
+                    .filter(share -> share.fileId == fileId)
                     .filter(share -> !isInactive(share, now))
                     .sorted(Comparator.comparing((AppStateStore.ShareRecord share) -> share.createdAt).reversed())
-                    .map(share -> toView(share, file.filename()))
+                    .map(share -> toView(share, filename))
                     .toList();
         });
     }
 
     public void revokeShare(AuthService.UserAccount user, long fileId, long shareId) {
-        String filename = fileStorageService.getOwnedStoredFile(user.id(), fileId).filename();
-        stateStore.write(state -> {
-            AppStateStore.ShareRecord shareRecord = state.shares.stream()
-                    .filter(share -> share.id == shareId && share.fileId == fileId && share.ownerUserId == user.id())
+        String filename = stateStore.writeUser(user.id(), partition -> {
+            int position = FileStorageService.ownedFilePosition(partition, fileId);
+            AppStateStore.ShareRecord shareRecord = partition.shares.stream()
+                    .filter(share -> share.id == shareId && share.fileId == fileId)
                     .findFirst()
                     .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Share not found"));
 
             if (!isInactive(shareRecord, Instant.now())) {
                 shareRecord.revokedAt = Instant.now();
             }
-            return null;
+            return partition.files.filename(position);
         });
         activityService.record(user.id(), "UNSHARE", filename);
     }
 
     public SharedDownload prepareSharedDownload(String token) {
-        SharedDownload sharedDownload = stateStore.write(state -> {
-            Instant now = Instant.now();
-            AppStateStore.ShareRecord shareRecord = state.shares.stream()
-                    .filter(share -> token.equals(share.token))
-                    .findFirst()
-                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Share link not found"));
-
-            if (isInactive(shareRecord, now)) {
-                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Share link is no longer active");
-            }
-
-            shareRecord.accessCount++;
-            FileStorageService.StoredFile storedFile = fileStorageService.getStoredFile(shareRecord.fileId);
-            if (!java.nio.file.Files.exists(storedFile.storagePath())) {
-                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Shared file is no longer available");
-            }
-            return new SharedDownload(
-                    shareRecord.id,
-                    shareRecord.ownerUserId,
-                    storedFile.filename(),
-                    storedFile.mimeType(),
-                    storedFile.storagePath(),
-                    shareRecord.expiresAt,
-                    shareRecord.accessCount
-            );
-        });
+        AppStateStore.ShareRecord shareRecord = stateStore.findShare(token)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Share link not found"));
+        if (isInactive(shareRecord, Instant.now())) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Share link is no longer active");
+        }
+        FileStorageService.StoredFile storedFile = stateStore.findFile(shareRecord.ownerUserId, shareRecord.fileId)
+                .filter(file -> file.deletedAt == null)
+                .map(fileStorageService::toStoredFile)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Shared file is no longer available"));
+
+        // The blob store is asked about the file without holding the owner's lock, and the access is only counted
+        // once the file is known to be there.
+        if (!storedFile.content().exists()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Shared file is no longer available");
+        }
+        fileStorageService.recordAccess(storedFile);
+        long accessCount = stateStore.countShareAccess(shareRecord.ownerUserId, shareRecord.id)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Share link not found"));
 
-        activityService.record(sharedDownload.ownerUserId(), "SHARED_DOWNLOAD", sharedDownload.filename());
-        return sharedDownload;
+        activityService.record(shareRecord.ownerUserId, "SHARED_DOWNLOAD", storedFile.filename());
+        return new SharedDownload(
+                shareRecord.id,
+                shareRecord.ownerUserId,
+                storedFile.filename(),
+                storedFile.mimeType(),
+                storedFile.content(),
+                shareRecord.expiresAt,
+                accessCount
+        );
     }
 
     private ShareView toView(AppStateStore.ShareRecord shareRecord, String filename) {
@@ -163,7 +165,7 @@ public class ShareService {
             long ownerUserId,
             String filename,
             String mimeType,
-            java.nio.file.Path storagePath,
+            Resource content,
             Instant expiresAt,
             long accessCount
     ) {
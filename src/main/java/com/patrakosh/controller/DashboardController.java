@@ -2,40 +2,85 @@ package com.patrakosh.controller;
 
 import com.patrakosh.MainApp;
 import com.patrakosh.model.User;
+import com.patrakosh.service.DesktopStorageWatcher;
+import com.patrakosh.service.DesktopTransferManager;
+import javafx.application.Platform;
+import javafx.beans.binding.Bindings;
 import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
+import javafx.geometry.Pos;
 import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TextInputDialog;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.FileTime;
-import java.time.Instant;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Stream;
-
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The desktop file list. Rows go from {@link #files} through a {@link SortedList} and then a {@link FilteredList}
+ * into the table, so a search only re-runs the filter and each added or removed row is placed by the sorted list
+ * without re-sorting the rest. The storage folder is scanned off the FX thread and rows are added in batches as
+ * they are read. After that a {@link DesktopStorageWatcher} keeps the rows in step with changes made outside the
+ * app. Uploads and downloads run on the shared {@link DesktopTransferManager}, each with its own progress bar and
+ * cancel button, so copying large files never holds up the window.
+ */
 public class DashboardController {
 
     private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm");
+    private static final Comparator<DesktopFileRow> NEWEST_FIRST = Comparator.comparing(DesktopFileRow::uploadedAt).reversed();
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final long LOAD_BATCH_NANOS = 50_000_000L;
 
     private final ObservableList<DesktopFileRow> files = FXCollections.observableArrayList();
+    /** The row for each stored file, touched only on the FX thread. */
+    private final Map<Path, DesktopFileRow> rowsByPath = new HashMap<>();
     private Path desktopStorageRoot;
+    private SortedList<DesktopFileRow> sortedFiles;
     private FilteredList<DesktopFileRow> filteredFiles;
+    private Task<Integer> loadTask;
+    private DesktopStorageWatcher watcher;
+    /** Files the watcher saw disappear while the first scan was running, which a later scan batch must not bring back. */
+    private final Set<Path> removedWhileLoading = new HashSet<>();
+    private final DesktopTransferManager transferManager = MainApp.getDesktopTransferManager();
+    /** Transfers started from this window that have not finished, touched only on the FX thread. */
+    private final List<TransferRow> transfers = new ArrayList<>();
 
     @FXML
     private Label welcomeLabel;
@@ -49,6 +94,9 @@ public class DashboardController {
     @FXML
     private TableView<DesktopFileRow> filesTable;
 
+    @FXML
+    private VBox transfersBox;
+
     @FXML
     private TableColumn<DesktopFileRow, String> iconColumn;
 
@@ -74,76 +122,89 @@ public class DashboardController {
 
         desktopStorageRoot = MainApp.getDesktopStorageBasePath().resolve("user-" + user.getId());
         configureTable();
-        filteredFiles = new FilteredList<>(files, ignored -> true);
+        filesTable.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        transfersBox.visibleProperty().bind(Bindings.isNotEmpty(transfersBox.getChildren()));
+        transfersBox.managedProperty().bind(transfersBox.visibleProperty());
+        sortedFiles = new SortedList<>(files, NEWEST_FIRST);
+        filteredFiles = new FilteredList<>(sortedFiles, ignored -> true);
         filesTable.setItems(filteredFiles);
-        loadExistingFiles();
+        // The table's items cannot be sorted in place, so column sorting swaps the sorted list's comparator.
+        filesTable.setSortPolicy(table -> {
+            Comparator<DesktopFileRow> comparator = table.getComparator();
+            sortedFiles.setComparator(comparator == null ? NEWEST_FIRST : comparator);
+            return true;
+        });
 
         welcomeLabel.setText("Welcome, " + user.getUsername());
-        updateStatus("Loaded " + filteredFiles.size() + " files.");
+        // The watcher starts first, so nothing that changes during the scan is missed.
+        startWatching();
+        loadExistingFiles();
     }
 
     @FXML
     private void handleUpload() {
         FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Select file to upload");
-        File selected = fileChooser.showOpenDialog(filesTable.getScene().getWindow());
+        fileChooser.setTitle("Select files to upload");
+        List<File> selected = fileChooser.showOpenMultipleDialog(filesTable.getScene().getWindow());
         if (selected == null) {
             return;
         }
 
-        try {
-            Files.createDirectories(desktopStorageRoot);
-            Path target = uniqueTargetPath(selected.getName());
-            Files.copy(selected.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
-            files.add(DesktopFileRow.fromPath(target));
-            sortFiles();
-            updateFilter();
-            updateStatus("Uploaded " + selected.getName() + ".");
-        } catch (IOException e) {
-            showError("Upload failed", "Could not import the selected file.");
+        for (File source : selected) {
+            startUpload(source);
         }
     }
 
     @FXML
     private void handleDownloadSelected() {
-        DesktopFileRow selected = selectedRow();
-        if (selected == null) {
+        List<DesktopFileRow> selected = List.copyOf(filesTable.getSelectionModel().getSelectedItems());
+        if (selected.isEmpty()) {
             showError("No file selected", "Choose a file before downloading.");
             return;
         }
 
-        FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Save file");
-        fileChooser.setInitialFileName(selected.filename());
-        File destination = fileChooser.showSaveDialog(filesTable.getScene().getWindow());
-        if (destination == null) {
+        if (selected.size() == 1) {
+            DesktopFileRow file = selected.get(0);
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Save file");
+            fileChooser.setInitialFileName(file.filename());
+            File destination = fileChooser.showSaveDialog(filesTable.getScene().getWindow());
+            if (destination != null) {
+                startDownload(file, listener -> transferManager.copy(file.storedPath(), destination.toPath(), listener));
+            }
             return;
         }
 
-        try {
-            Files.copy(selected.storedPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            updateStatus("Downloaded " + selected.filename() + ".");
-        } catch (IOException e) {
-            showError("Download failed", "Could not save the selected file.");
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Save " + selected.size() + " files to");
+        File directory = directoryChooser.showDialog(filesTable.getScene().getWindow());
+        if (directory == null) {
+            return;
+        }
+        for (DesktopFileRow file : selected) {
+            // Files already in the folder are kept, since there was no save dialog to confirm replacing them.
+            startDownload(file, listener -> transferManager.copyInto(file.storedPath(), directory.toPath(), file.filename(), listener));
         }
     }
 
     @FXML
     private void handleDeleteSelected() {
-        DesktopFileRow selected = selectedRow();
-        if (selected == null) {
+        List<DesktopFileRow> selected = List.copyOf(filesTable.getSelectionModel().getSelectedItems());
+        if (selected.isEmpty()) {
             showError("No file selected", "Choose a file before deleting.");
             return;
         }
 
-        try {
-            Files.deleteIfExists(selected.storedPath());
-            files.remove(selected);
-            updateFilter();
-            updateStatus("Deleted " + selected.filename() + ".");
-        } catch (IOException e) {
-            showError("Delete failed", "Could not remove the selected file.");
+        for (DesktopFileRow file : selected) {
+            try {
+                Files.deleteIfExists(file.storedPath());
+                removeRow(file.storedPath());
+            } catch (IOException e) {
+                showError("Delete failed", "Could not remove " + file.filename() + ".");
+                return;
+            }
         }
+        updateStatus(selected.size() == 1 ? "Deleted " + selected.get(0).filename() + "." : "Deleted " + selected.size() + " files.");
     }
 
     @FXML
@@ -177,11 +238,10 @@ public class DashboardController {
             Path target = uniqueTargetPath(nextFilename);
             Files.move(selected.storedPath(), target, StandardCopyOption.REPLACE_EXISTING);
 
-            int rowIndex = files.indexOf(selected);
+            removeRow(selected.storedPath());
             DesktopFileRow updated = DesktopFileRow.fromPath(target);
-            files.set(rowIndex, updated);
+            putRow(updated);
             filesTable.getSelectionModel().select(updated);
-            updateFilter();
             updateStatus("Renamed file to " + nextFilename + ".");
         } catch (IOException e) {
             showError("Rename failed", "Could not rename the selected file.");
@@ -195,6 +255,14 @@ public class DashboardController {
 
     @FXML
     private void handleLogout() {
+        if (loadTask != null) {
+            loadTask.cancel();
+        }
+        stopWatching();
+        for (TransferRow row : transfers) {
+            row.transfer.cancel();
+        }
+        transfers.clear();
         MainApp.setCurrentUser(null);
         MainApp.showLogin();
     }
@@ -207,17 +275,196 @@ public class DashboardController {
         actionsColumn.setCellValueFactory(cell -> new ReadOnlyStringWrapper("Use toolbar"));
     }
 
+    /**
+     * Scans the storage folder on a background thread, handing rows to the FX thread whenever
+     * {@value #LOAD_BATCH_SIZE} are ready or 50ms have passed, so the first rows show up at once.
+     */
     private void loadExistingFiles() {
+        Path root = desktopStorageRoot;
+        Task<Integer> task = new Task<>() {
+            @Override
+            protected Integer call() throws IOException {
+                Files.createDirectories(root);
+                int loaded = 0;
+                List<DesktopFileRow> batch = new ArrayList<>();
+                long batchStarted = System.nanoTime();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+                    for (Path path : entries) {
+                        if (isCancelled()) {
+                            return loaded;
+                        }
+                        DesktopFileRow row = DesktopTransferManager.isPartial(path) ? null : DesktopFileRow.fromRegularFile(path);
+                        if (row != null) {
+                            batch.add(row);
+                            loaded++;
+                        }
+                        if (batch.size() >= LOAD_BATCH_SIZE || System.nanoTime() - batchStarted >= LOAD_BATCH_NANOS) {
+                            publish(batch);
+                            batch = new ArrayList<>();
+                            batchStarted = System.nanoTime();
+                        }
+                    }
+                }
+                publish(batch);
+                return loaded;
+            }
+
+            private void publish(List<DesktopFileRow> batch) {
+                if (!batch.isEmpty()) {
+                    Platform.runLater(() -> {
+                        if (!isCancelled()) {
+                            addRows(batch);
+                            updateStatus("Loading files... " + files.size() + " so far.");
+                        }
+                    });
+                }
+            }
+        };
+        // Queued after the last batch, so every row is in by the time this runs.
+        task.setOnSucceeded(event -> {
+            removedWhileLoading.clear();
+            updateStatus("Loaded " + files.size() + " files.");
+        });
+        task.setOnFailed(event -> showError("Storage unavailable", "Could not access the local desktop storage directory."));
+        loadTask = task;
+        updateStatus("Loading files...");
+
+        Thread thread = new Thread(task, "patrakosh-desktop-scan");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void addRows(List<DesktopFileRow> rows) {
+        List<DesktopFileRow> added = new ArrayList<>(rows.size());
+        for (DesktopFileRow row : rows) {
+            // The user or the watcher may have changed the same file while the scan was running.
+            if (!removedWhileLoading.contains(row.storedPath()) && rowsByPath.putIfAbsent(row.storedPath(), row) == null) {
+                added.add(row);
+            }
+        }
+        files.addAll(added);
+    }
+
+    private void startWatching() {
         try {
             Files.createDirectories(desktopStorageRoot);
-            try (Stream<Path> stream = Files.list(desktopStorageRoot)) {
-                stream.filter(Files::isRegularFile)
-                        .map(DesktopFileRow::fromPathUnchecked)
-                        .sorted(Comparator.comparing(DesktopFileRow::uploadedAt).reversed())
-                        .forEach(files::add);
-            }
+            watcher = DesktopStorageWatcher.start(desktopStorageRoot, change -> Platform.runLater(() -> applyChange(change)));
         } catch (IOException e) {
-            showError("Storage unavailable", "Could not access the local desktop storage directory.");
+            // The list still works without live updates; it just only shows what this window changed.
+            watcher = null;
+        }
+    }
+
+    private void stopWatching() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+            watcher = null;
+        }
+    }
+
+    private void applyChange(DesktopStorageWatcher.Change change) {
+        if (watcher == null) {
+            return;
+        }
+        boolean loading = loadTask != null && loadTask.isRunning();
+        for (Path path : change.removed()) {
+            removeRow(path);
+            if (loading) {
+                removedWhileLoading.add(path);
+            }
+        }
+        if (change.complete()) {
+            files.removeIf(row -> {
+                boolean gone = !change.updated().containsKey(row.storedPath());
+                if (gone) {
+                    rowsByPath.remove(row.storedPath());
+                }
+                return gone;
+            });
+        }
+        change.updated().forEach((path, attributes) -> {
+            removedWhileLoading.remove(path);
+            DesktopFileRow row = DesktopFileRow.fromAttributes(path, attributes);
+            if (!row.equals(rowsByPath.get(path))) {
+                putRow(row);
+            }
+        });
+    }
+
+    private void startUpload(File source) {
+        String filename = safeFilename(source.getName());
+        TransferRow row = startTransfer(
+                "Uploading " + source.getName(),
+                listener -> transferManager.copyInto(source.toPath(), desktopStorageRoot, filename, listener)
+        );
+        row.transfer.result().whenComplete((target, error) -> {
+            // This runs on the transfer's thread unless the upload was cancelled, so the new file is read there.
+            DesktopFileRow stored = error == null ? DesktopFileRow.fromRegularFile(target) : null;
+            Platform.runLater(() -> {
+                if (finishTransfer(row, error, "Uploaded " + source.getName() + ".", "Upload failed", "Could not import " + source.getName() + ".")
+                        && stored != null) {
+                    putRow(stored);
+                }
+            });
+        });
+    }
+
+    private void startDownload(
+            DesktopFileRow file,
+            Function<DesktopTransferManager.ProgressListener, DesktopTransferManager.Transfer> start
+    ) {
+        TransferRow row = startTransfer("Downloading " + file.filename(), start);
+        row.transfer.result().whenComplete((target, error) -> Platform.runLater(() ->
+                finishTransfer(row, error, "Downloaded " + file.filename() + ".", "Download failed", "Could not save " + file.filename() + ".")
+        ));
+    }
+
+    private TransferRow startTransfer(
+            String description,
+            Function<DesktopTransferManager.ProgressListener, DesktopTransferManager.Transfer> start
+    ) {
+        TransferRow row = new TransferRow(description);
+        row.transfer = start.apply(row::progress);
+        transfers.add(row);
+        transfersBox.getChildren().add(row.view);
+        return row;
+    }
+
+    /**
+     * Takes a finished transfer off the list and reports how it went. Returns false if the window was closed in the
+     * meantime, in which case there is nothing left to update.
+     */
+    private boolean finishTransfer(TransferRow row, Throwable error, String doneMessage, String failedTitle, String failedMessage) {
+        if (!transfers.remove(row)) {
+            return false;
+        }
+        transfersBox.getChildren().remove(row.view);
+        if (error == null) {
+            updateStatus(doneMessage);
+        } else if (error instanceof CancellationException) {
+            updateStatus("Cancelled " + row.description.toLowerCase() + ".");
+        } else {
+            showError(failedTitle, failedMessage);
+        }
+        return true;
+    }
+
+    private void putRow(DesktopFileRow row) {
+        DesktopFileRow previous = rowsByPath.put(row.storedPath(), row);
+        if (previous == null) {
+            files.add(row);
+        } else {
+            files.set(files.indexOf(previous), row);
+        }
+    }
+
+    private void removeRow(Path storedPath) {
+        DesktopFileRow removed = rowsByPath.remove(storedPath);
+        if (removed != null) {
+            files.remove(removed);
         }
     }
 
@@ -225,42 +472,21 @@ public class DashboardController {
         String query = searchField == null || searchField.getText() == null
                 ? ""
                 : searchField.getText().trim().toLowerCase();
-        filteredFiles.setPredicate(row -> query.isBlank() || row.filename().toLowerCase().contains(query));
-        sortFiles();
+        filteredFiles.setPredicate(query.isBlank() ? ignored -> true : row -> row.filename().toLowerCase().contains(query));
         updateStatus("Showing " + filteredFiles.size() + " files.");
     }
 
-    private void sortFiles() {
-        FXCollections.sort(files, Comparator.comparing(DesktopFileRow::uploadedAt).reversed());
-    }
-
     private DesktopFileRow selectedRow() {
         return filesTable.getSelectionModel().getSelectedItem();
     }
 
     private Path uniqueTargetPath(String originalFilename) {
-        String safeFilename = sanitizeFilename(originalFilename);
-        if (safeFilename.isBlank()) {
-            safeFilename = "file";
-        }
-
-        Path candidate = desktopStorageRoot.resolve(safeFilename);
-        if (!Files.exists(candidate)) {
-            return candidate;
-        }
-
-        int dotIndex = safeFilename.lastIndexOf('.');
-        String basename = dotIndex > 0 ? safeFilename.substring(0, dotIndex) : safeFilename;
-        String extension = dotIndex > 0 ? safeFilename.substring(dotIndex) : "";
+        return transferManager.availablePath(desktopStorageRoot, safeFilename(originalFilename));
+    }
 
-        int counter = 1;
-        while (true) {
-            Path next = desktopStorageRoot.resolve(basename + " (" + counter + ")" + extension);
-            if (!Files.exists(next)) {
-                return next;
-            }
-            counter++;
-        }
+    private static String safeFilename(String originalFilename) {
+        String safeFilename = sanitizeFilename(originalFilename);
+        return safeFilename.isBlank() ? "file" : safeFilename;
     }
 
     private static String sanitizeFilename(String value) {
@@ -319,29 +545,80 @@ public class DashboardController {
         return "📦";
     }
 
+    /**
+     * The progress bar and cancel button of one transfer.
+     */
+    private static final class TransferRow {
+
+        private final String description;
+        private final HBox view;
+        private final ProgressBar progressBar = new ProgressBar(0);
+        private final Label progressLabel = new Label("Waiting...");
+        private final AtomicLong transferredBytes = new AtomicLong();
+        private final AtomicBoolean updateQueued = new AtomicBoolean();
+        private volatile long totalBytes;
+        private DesktopTransferManager.Transfer transfer;
+
+        private TransferRow(String description) {
+            this.description = description;
+            Label descriptionLabel = new Label(description);
+            descriptionLabel.setStyle("-fx-font-size: 13px; -fx-text-fill: #424242;");
+            progressLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: #8B7355;");
+            progressBar.setPrefWidth(240);
+            Button cancelButton = new Button("Cancel");
+            cancelButton.setOnAction(event -> transfer.cancel());
+            Region spacer = new Region();
+            HBox.setHgrow(spacer, Priority.ALWAYS);
+            view = new HBox(10, descriptionLabel, spacer, progressBar, progressLabel, cancelButton);
+            view.setAlignment(Pos.CENTER_LEFT);
+        }
+
+        /**
+         * Called on the transfer's thread after every chunk. Only the latest figures are kept, and at most one update
+         * waits on the FX thread at a time, however fast the chunks arrive.
+         */
+        private void progress(long transferred, long total) {
+            totalBytes = total;
+            transferredBytes.set(transferred);
+            if (updateQueued.compareAndSet(false, true)) {
+                Platform.runLater(this::showProgress);
+            }
+        }
+
+        private void showProgress() {
+            updateQueued.set(false);
+            long transferred = transferredBytes.get();
+            long total = totalBytes;
+            progressBar.setProgress(total == 0 ? 1 : (double) transferred / total);
+            progressLabel.setText(formatBytes(transferred) + " of " + formatBytes(total));
+        }
+    }
+
     private record DesktopFileRow(String filename, long fileSize, LocalDateTime uploadedAt, Path storedPath) {
 
         private static DesktopFileRow fromPath(Path path) throws IOException {
-            FileTime lastModified = Files.getLastModifiedTime(path);
-            return new DesktopFileRow(
-                    path.getFileName().toString(),
-                    Files.size(path),
-                    LocalDateTime.ofInstant(lastModified.toInstant(), ZoneId.systemDefault()),
-                    path
-            );
+            return fromAttributes(path, Files.readAttributes(path, BasicFileAttributes.class));
         }
 
-        private static DesktopFileRow fromPathUnchecked(Path path) {
+        /**
+         * Reads a row with a single attribute lookup, or returns null if {@code path} is not a readable regular file.
+         */
+        private static DesktopFileRow fromRegularFile(Path path) {
             try {
-                return fromPath(path);
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.isRegularFile() ? fromAttributes(path, attributes) : null;
             } catch (IOException e) {
-                return new DesktopFileRow(
-                        path.getFileName().toString(),
-                        0L,
-                        LocalDateTime.ofInstant(Instant.EPOCH, ZoneId.systemDefault()),
-                        path
-                );
+                return null;
             }
         }
+
+        private static DesktopFileRow fromAttributes(Path path, BasicFileAttributes attributes) {
+            return new DesktopFileRow(
+                    path.getFileName().toString(),
+                    attributes.size(),
+                    LocalDateTime.ofInstant(attributes.lastModifiedTime().toInstant(), ZoneId.systemDefault()),
+                    path
+            );
+        }
     }
 }
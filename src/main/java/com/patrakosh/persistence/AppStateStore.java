@@ -1,98 +1,1170 @@
 package com.patrakosh.persistence;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
+/**
+ * Keeps application state in memory, partitioned by user id.
+ *
+ * <p>Per-user data (sessions, folders, files, file versions, shares and activity) lives in {@link UserPartition}s that are striped
+ * over a fixed number of shards. Each shard has its own lock and its own snapshot file, so writes for users
+ * in different shards never wait on each other. Users, id allocation and the token lookup indexes live in a
+ * small global partition, whose writes append the users they added or changed to a journal of its own.
+ *
+ * <p>A shard commit appends the rows the write put or deleted ({@link PartitionChanges}) to the shard journal and
+ * is made durable according to the configured {@link DurabilityMode}. Journals are folded into the shard snapshot once they grow
+ * past {@link DurabilitySettings#checkpointJournalBytes()}. Snapshots and journal entries use the binary
+ * {@link CheckpointFormat}; JSON files written by earlier versions are still read and are rewritten on startup.
+ *
+ * <p>Because the state lives in memory, only one store may have a data directory open; a second one, in another
+ * process or in this one, fails to open rather than overwrite the first one's writes (see {@link DataDirectoryLock}).
+ */
 @Component
-public class AppStateStore {
+@ConditionalOnProperty(name = "patrakosh.data.backend", havingValue = "embedded", matchIfMissing = true)
+public class AppStateStore implements StateRepository {
+
+    private static final Logger log = LoggerFactory.getLogger(AppStateStore.class);
+
+    public static final int DEFAULT_SHARD_COUNT = 16;
+
+    private static final String GLOBAL_FILE = "global.ckpt";
+    private static final String GLOBAL_JOURNAL_FILE = "global.journal";
+    private static final String LEGACY_GLOBAL_FILE = "global.json";
+    private static final String LEGACY_STATE_FILE = "state.json";
+    private static final String SNAPSHOT_SUFFIX = ".ckpt";
+    private static final String LEGACY_SNAPSHOT_SUFFIX = ".json";
+    private static final String SHARDS_DIRECTORY = "shards";
+    private static final long NOTHING_WRITTEN = -1;
 
     private final ObjectMapper objectMapper;
+    private final DurabilitySettings durability;
+    private final JournalFile.Opener journalOpener;
+    private final ScheduledExecutorService asyncFlusher;
     private final Path dataRoot;
-    private final Path stateFile;
+    private final Path globalFile;
+    private final Path globalJournalFile;
+    private final Path legacyGlobalFile;
+    private final Path shardsRoot;
+    private final DataDirectoryLock directoryLock;
+    private final ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
+    private final Shard[] shards;
+    private final AtomicLong nextFileId = new AtomicLong(1);
+    private final AtomicLong nextShareId = new AtomicLong(1);
+    private final AtomicLong nextActivityId = new AtomicLong(1);
+    private final ConcurrentHashMap<String, Long> sessionOwners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> shareOwners = new ConcurrentHashMap<>();
+    private volatile GlobalState global = new GlobalState();
+    private ShardJournal globalJournal;
 
     @Autowired
-    public AppStateStore(@Value("${patrakosh.data.base-path:data}") String basePath) {
-        this(Path.of(basePath));
+    public AppStateStore(
+            @Value("${patrakosh.data.base-path:data}") String basePath,
+            @Value("${patrakosh.data.shards:" + DEFAULT_SHARD_COUNT + "}") int shardCount,
+            @Value("${patrakosh.data.durability.mode:group}") String durabilityMode,
+            @Value("${patrakosh.data.durability.group-commit-window-micros:1000}") long groupCommitWindowMicros,
+            @Value("${patrakosh.data.durability.async-flush-interval-ms:200}") long asyncFlushIntervalMillis,
+            @Value("${patrakosh.data.checkpoint.journal-bytes:" + DurabilitySettings.DEFAULT_CHECKPOINT_JOURNAL_BYTES + "}") long checkpointJournalBytes
+    ) {
+        this(
+                Path.of(basePath),
+                shardCount,
+                new DurabilitySettings(
+                        DurabilityMode.parse(durabilityMode),
+                        Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(groupCommitWindowMicros)),
+                        Duration.ofMillis(asyncFlushIntervalMillis),
+                        checkpointJournalBytes
+                )
+        );
     }
 
     public AppStateStore(Path basePath) {
-        this.objectMapper = new ObjectMapper()
-                .findAndRegisterModules()
-                .enable(SerializationFeature.INDENT_OUTPUT);
+        this(basePath, DEFAULT_SHARD_COUNT);
+    }
+
+    public AppStateStore(Path basePath, int shardCount) {
+        this(basePath, shardCount, DurabilitySettings.defaults());
+    }
+
+    public AppStateStore(Path basePath, int shardCount, DurabilitySettings durability) {
+        this(basePath, shardCount, durability, JournalFile::open);
+    }
+
+    AppStateStore(Path basePath, int shardCount, DurabilitySettings durability, JournalFile.Opener journalOpener) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be greater than zero");
+        }
+        this.objectMapper = new ObjectMapper().findAndRegisterModules();
+        this.durability = durability;
+        this.journalOpener = journalOpener;
         this.dataRoot = basePath.toAbsolutePath().normalize();
-        this.stateFile = dataRoot.resolve("state.json");
-        ensureInitialized();
+        this.globalFile = dataRoot.resolve(GLOBAL_FILE);
+        this.globalJournalFile = dataRoot.resolve(GLOBAL_JOURNAL_FILE);
+        this.legacyGlobalFile = dataRoot.resolve(LEGACY_GLOBAL_FILE);
+        this.shardsRoot = dataRoot.resolve(SHARDS_DIRECTORY);
+        this.shards = new Shard[shardCount];
+        for (int index = 0; index < shardCount; index++) {
+            shards[index] = new Shard(
+                    index,
+                    shardsRoot.resolve("shard-" + index + SNAPSHOT_SUFFIX),
+                    shardsRoot.resolve("shard-" + index + ".journal")
+            );
+        }
+        this.directoryLock = lockDataDirectory(dataRoot);
+        try {
+            ensureInitialized();
+        } catch (RuntimeException exception) {
+            releaseDataDirectory();
+            throw exception;
+        }
+        this.asyncFlusher = durability.mode() == DurabilityMode.ASYNC ? startAsyncFlusher() : null;
     }
 
-    public synchronized <T> T read(Function<StateSnapshot, T> reader) {
-        return reader.apply(loadState());
+    /**
+     * Runs {@code reader} against a consistent copy of the whole store. This locks every shard and is meant
+     * for diagnostics, exports and tests rather than request handling.
+     */
+    public <T> T read(Function<StateSnapshot, T> reader) {
+        List<Lock> locks = lockAll(false);
+        try {
+            return reader.apply(assembleSnapshot());
+        } finally {
+            unlockAll(locks);
+        }
     }
 
-    public synchronized <T> T write(Function<StateSnapshot, T> writer) {
-        StateSnapshot state = loadState();
-        T result = writer.apply(state);
-        saveState(state);
+    /**
+     * Runs {@code writer} against the global partition and journals the users it added or changed, so a signup or
+     * a rehash costs one small append however many users there are. If the writer fails, or the entry cannot be
+     * written, its changes are undone in memory.
+     */
+    public <T> T writeGlobal(Function<GlobalState, T> writer) {
+        T result;
+        ShardJournal journal;
+        long commitPosition;
+        globalLock.writeLock().lock();
+        try {
+            GlobalState state = global;
+            state.track();
+            try {
+                result = writer.apply(state);
+                commitPosition = commitGlobal(state.changedUsers());
+            } catch (RuntimeException exception) {
+                state.rollback();
+                throw exception;
+            } finally {
+                state.untrack();
+            }
+            journal = globalJournal;
+        } finally {
+            globalLock.writeLock().unlock();
+        }
+
+        awaitGroupCommit(journal, commitPosition);
         return result;
     }
 
-    public synchronized void reset() {
-        saveState(new StateSnapshot());
+    @Override
+    public Registration registerUser(String username, String email, String passwordHash, Instant createdAt) {
+        GlobalState current = global;
+        if (current.usernameTaken(username) || current.emailTaken(email)) {
+            return Registration.rejected(current.usernameTaken(username), current.emailTaken(email));
+        }
+
+        return writeGlobal(state -> {
+            boolean usernameTaken = state.usernameTaken(username);
+            boolean emailTaken = state.emailTaken(email);
+            if (usernameTaken || emailTaken) {
+                return Registration.rejected(usernameTaken, emailTaken);
+            }
+            UserRecord user = new UserRecord(state.allocateUserId(), username, email, passwordHash, createdAt);
+            state.addUser(user);
+            return Registration.created(user);
+        });
+    }
+
+    @Override
+    public boolean updatePasswordHash(long userId, String expectedHash, String newHash) {
+        return writeGlobal(state -> state.replacePasswordHash(userId, expectedHash, newHash));
+    }
+
+    @Override
+    public <T> T readUser(long userId, Function<UserPartition, T> reader) {
+        Shard shard = shardFor(userId);
+        shard.lock.readLock().lock();
+        try {
+            UserPartition partition = shard.partitions.get(userId);
+            return reader.apply(partition == null ? new UserPartition(userId) : partition);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <T> T writeUser(long userId, Function<UserPartition, T> writer) {
+        Shard shard = shardFor(userId);
+        T result;
+        ShardJournal journal;
+        long commitPosition;
+        shard.lock.writeLock().lock();
+        try {
+            UserPartition partition = shard.partitions.computeIfAbsent(userId, UserPartition::new);
+            partition.track();
+            try {
+                try {
+                    result = writer.apply(partition);
+                } catch (RuntimeException exception) {
+                    // Usually a rejected request: undo it in memory rather than rereading the shard from disk.
+                    partition.rollback();
+                    throw exception;
+                }
+                PartitionChanges changes = PartitionChanges.of(partition);
+                try {
+                    commitPosition = commit(shard, changes);
+                } catch (RuntimeException exception) {
+                    reloadShard(shard);
+                    throw exception;
+                }
+
+                changes.removedSessions().forEach(token -> sessionOwners.remove(token, userId));
+                changes.sessions().forEach(session -> sessionOwners.put(session.token, userId));
+                changes.removedShares().forEach(shareId -> shareOwners.remove(partition.shares.before(shareId).token, userId));
+                changes.shares().forEach(share -> shareOwners.put(share.token, userId));
+            } finally {
+                partition.untrack();
+            }
+            journal = shard.journal;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+
+        awaitGroupCommit(journal, commitPosition);
+        return result;
+    }
+
+    @Override
+    public Optional<UserRecord> findUser(long userId) {
+        return Optional.ofNullable(global.usersById.get(userId));
+    }
+
+    @Override
+    public Optional<UserRecord> findUserByUsernameOrEmail(String identifier) {
+        String normalized = GlobalState.normalize(identifier);
+        UserRecord user = global.usersByUsername.get(normalized);
+        return Optional.ofNullable(user != null ? user : global.usersByEmail.get(normalized));
+    }
+
+    @Override
+    public OptionalLong findSessionOwner(String token) {
+        Long userId = token == null ? null : sessionOwners.get(token);
+        return userId == null ? OptionalLong.empty() : OptionalLong.of(userId);
+    }
+
+    @Override
+    public OptionalLong findShareOwner(String token) {
+        Long userId = token == null ? null : shareOwners.get(token);
+        return userId == null ? OptionalLong.empty() : OptionalLong.of(userId);
+    }
+
+    /**
+     * Appends one activity without taking an image of the partition, since nothing else in it changes.
+     */
+    @Override
+    public void appendActivity(ActivityRecord activity) {
+        Shard shard = shardFor(activity.userId);
+        ShardJournal journal;
+        long commitPosition;
+        shard.lock.writeLock().lock();
+        try {
+            shard.partitions.computeIfAbsent(activity.userId, UserPartition::new).activities.add(activity);
+            PartitionChanges changes = PartitionChanges.empty(activity.userId);
+            changes.activities().add(activity);
+            try {
+                commitPosition = commit(shard, changes);
+            } catch (RuntimeException exception) {
+                reloadShard(shard);
+                throw exception;
+            }
+            journal = shard.journal;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+
+        awaitGroupCommit(journal, commitPosition);
+    }
+
+    @Override
+    public List<ActivityRecord> listActivities(long userId) {
+        return readUser(userId, partition -> partition.activities.stream()
+                .sorted(Comparator.comparing((ActivityRecord activity) -> activity.createdAt).reversed())
+                .toList());
+    }
+
+    @Override
+    public long nextFileId() {
+        return nextFileId.getAndIncrement();
+    }
+
+    @Override
+    public long nextShareId() {
+        return nextShareId.getAndIncrement();
+    }
+
+    @Override
+    public long nextActivityId() {
+        return nextActivityId.getAndIncrement();
+    }
+
+    @Override
+    public void reset() {
+        List<Lock> locks = lockAll(true);
+        try {
+            Files.createDirectories(shardsRoot);
+            for (Shard shard : shards) {
+                shard.partitions.clear();
+                shard.closeJournal();
+                Files.deleteIfExists(shard.file);
+                Files.deleteIfExists(shard.journalFile);
+                shard.journal = new ShardJournal(journalOpener.open(shard.journalFile));
+            }
+            sessionOwners.clear();
+            shareOwners.clear();
+            nextFileId.set(1);
+            nextShareId.set(1);
+            nextActivityId.set(1);
+            global = new GlobalState();
+            saveGlobal(global);
+            globalJournal.close();
+            Files.deleteIfExists(globalJournalFile);
+            globalJournal = new ShardJournal(journalOpener.open(globalJournalFile));
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to reset PatraKosh state", exception);
+        } finally {
+            unlockAll(locks);
+        }
     }
 
     public Path getDataRoot() {
         return dataRoot;
     }
 
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public DurabilitySettings getDurability() {
+        return durability;
+    }
+
+    /**
+     * Forces every journal so that all acknowledged commits are durable, whatever the durability mode.
+     */
+    public void flush() {
+        try {
+            globalJournal.sync();
+            for (Shard shard : shards) {
+                shard.journal.sync();
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to flush PatraKosh state", exception);
+        }
+    }
+
+    /**
+     * Folds every journal, the global one included, into its snapshot, so that the next startup has nothing to replay.
+     */
+    public void checkpoint() {
+        globalLock.writeLock().lock();
+        try {
+            checkpointGlobal();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to checkpoint PatraKosh state", exception);
+        } finally {
+            globalLock.writeLock().unlock();
+        }
+        for (Shard shard : shards) {
+            shard.lock.writeLock().lock();
+            try {
+                checkpoint(shard);
+            } catch (IOException exception) {
+                throw new IllegalStateException("Failed to checkpoint PatraKosh state", exception);
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (asyncFlusher != null) {
+            asyncFlusher.shutdownNow();
+        }
+        List<Lock> locks = lockAll(true);
+        try {
+            if (globalJournal != null) {
+                try {
+                    globalJournal.sync();
+                } catch (IOException exception) {
+                    log.warn("Failed to flush the global state journal", exception);
+                }
+                try {
+                    globalJournal.close();
+                } catch (IOException exception) {
+                    log.warn("Failed to close the global state journal", exception);
+                }
+                globalJournal = null;
+            }
+            for (Shard shard : shards) {
+                if (shard.journal != null) {
+                    try {
+                        shard.journal.sync();
+                    } catch (IOException exception) {
+                        log.warn("Failed to flush journal for state shard {}", shard.index, exception);
+                    }
+                    shard.closeJournal();
+                }
+            }
+        } finally {
+            unlockAll(locks);
+        }
+        releaseDataDirectory();
+    }
+
+    private static DataDirectoryLock lockDataDirectory(Path dataRoot) {
+        try {
+            return DataDirectoryLock.acquire(dataRoot);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to lock PatraKosh data directory " + dataRoot, exception);
+        }
+    }
+
+    private void releaseDataDirectory() {
+        try {
+            directoryLock.close();
+        } catch (IOException exception) {
+            log.warn("Failed to unlock PatraKosh data directory {}", dataRoot, exception);
+        }
+    }
+
     private void ensureInitialized() {
         try {
-            Files.createDirectories(dataRoot);
-            if (!Files.exists(stateFile)) {
-                saveState(new StateSnapshot());
+            Files.createDirectories(shardsRoot);
+            if (Files.exists(globalFile) || Files.exists(legacyGlobalFile)) {
+                global = loadGlobal();
+                replayGlobalJournal();
+                if (Files.exists(legacyGlobalFile)) {
+                    saveGlobal(global);
+                    Files.delete(legacyGlobalFile);
+                }
+                loadShards();
+            } else if (Files.exists(dataRoot.resolve(LEGACY_STATE_FILE))) {
+                Path legacyStateFile = dataRoot.resolve(LEGACY_STATE_FILE);
+                importLegacyState(legacyStateFile);
+                Files.move(
+                        legacyStateFile,
+                        dataRoot.resolve(LEGACY_STATE_FILE + ".migrated"),
+                        StandardCopyOption.REPLACE_EXISTING
+                );
+            } else {
+                saveGlobal(global);
+            }
+
+            globalJournal = new ShardJournal(journalOpener.open(globalJournalFile));
+            for (Shard shard : shards) {
+                if (shard.journal == null) {
+                    shard.journal = new ShardJournal(journalOpener.open(shard.journalFile));
+                }
             }
         } catch (IOException exception) {
             throw new IllegalStateException("Failed to initialize PatraKosh data store", exception);
         }
     }
 
-    private StateSnapshot loadState() {
+    private void loadShards() throws IOException {
+        List<Path> legacyShardFiles = listShardFiles("shard-\\d+\\.json");
+        List<Path> shardFiles = listShardFiles("shard-\\d+\\.ckpt");
+        List<Path> journalFiles = listShardFiles("shard-\\d+\\.journal");
+
+        // Legacy JSON snapshots go first: when both exist, the binary one was written later.
+        AtomicBoolean layoutChanged = new AtomicBoolean(!legacyShardFiles.isEmpty());
+        List<Path> snapshotFiles = new ArrayList<>(legacyShardFiles);
+        snapshotFiles.addAll(shardFiles);
+        for (Path shardFile : snapshotFiles) {
+            ShardFile contents = readShardFile(shardFile);
+            raiseCounters(contents.nextFileId, contents.nextShareId, contents.nextActivityId);
+            for (UserPartition partition : contents.partitions) {
+                Shard shard = shardFor(partition.userId);
+                shard.partitions.put(partition.userId, partition);
+                if (!shard.file.equals(shardFile)) {
+                    layoutChanged.set(true);
+                }
+            }
+        }
+        for (Path journalFile : journalFiles) {
+            discardTornTail(journalFile, replayJournal(journalFile, layoutChanged));
+        }
+        for (Shard shard : shards) {
+            shard.partitions.values().forEach(this::indexPartition);
+        }
+
+        if (layoutChanged.get()) {
+            for (Path shardFile : shardFiles) {
+                Files.deleteIfExists(shardFile);
+            }
+            for (Shard shard : shards) {
+                saveSnapshot(shard);
+            }
+            for (Path legacyShardFile : legacyShardFiles) {
+                Files.deleteIfExists(legacyShardFile);
+            }
+            for (Path journalFile : journalFiles) {
+                Files.deleteIfExists(journalFile);
+            }
+            syncDirectory(shardsRoot);
+        }
+    }
+
+    private void replayGlobalJournal() throws IOException {
+        GlobalState state = global;
+        long validLength;
+        try {
+            validLength = ShardJournal.replay(globalJournalFile, payload -> {
+                try {
+                    CheckpointFormat.decodeUsersEntry(payload).forEach(state::put);
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+        discardTornTail(globalJournalFile, validLength);
+    }
+
+    private static void discardTornTail(Path journalFile, long validLength) throws IOException {
+        if (Files.exists(journalFile) && validLength < Files.size(journalFile)) {
+            log.warn("Discarding torn tail of state journal {} after {} bytes", journalFile, validLength);
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+    }
+
+    private List<Path> listShardFiles(String pattern) throws IOException {
+        try (Stream<Path> stream = Files.list(shardsRoot)) {
+            return stream
+                    .filter(path -> path.getFileName().toString().matches(pattern))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private ShardFile readShardFile(Path shardFile) throws IOException {
+        if (shardFile.getFileName().toString().endsWith(LEGACY_SNAPSHOT_SUFFIX)) {
+            return objectMapper.readValue(shardFile.toFile(), ShardFile.class);
+        }
+        try (InputStream input = Files.newInputStream(shardFile)) {
+            return CheckpointFormat.readShard(input);
+        }
+    }
+
+    private long replayJournal(Path journalFile, AtomicBoolean misplaced) throws IOException {
+        try {
+            return ShardJournal.replay(journalFile, payload -> {
+                try {
+                    JournalEntry entry = CheckpointFormat.isBinary(payload)
+                            ? CheckpointFormat.decodeJournalEntry(payload)
+                            : objectMapper.readValue(payload, JournalEntry.class);
+                    raiseCounters(entry.nextFileId, entry.nextShareId, entry.nextActivityId);
+                    Shard shard;
+                    if (entry.changes != null) {
+                        long userId = entry.changes.userId();
+                        shard = shardFor(userId);
+                        entry.changes.applyTo(shard.partitions.computeIfAbsent(userId, UserPartition::new));
+                    } else {
+                        // Written by an earlier version: the whole partition as it was after the commit.
+                        shard = shardFor(entry.partition.userId);
+                        shard.partitions.put(entry.partition.userId, entry.partition);
+                    }
+                    if (!shard.journalFile.equals(journalFile)) {
+                        misplaced.set(true);
+                    }
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+    }
+
+    /**
+     * Loads a single-file {@code state.json} from before the store was sharded into this store, which must
+     * still be empty, and writes it out as checkpoints.
+     */
+    void importLegacyState(Path legacyStateFile) throws IOException {
+        if (!global.users.isEmpty() || Arrays.stream(shards).anyMatch(shard -> !shard.partitions.isEmpty())) {
+            throw new IllegalStateException("Legacy state can only be imported into an empty data directory");
+        }
+        StateSnapshot legacy = objectMapper.readValue(legacyStateFile.toFile(), StateSnapshot.class);
+
+        GlobalState migrated = new GlobalState();
+        migrated.nextUserId = legacy.nextUserId;
+        legacy.users.forEach(migrated::addUser);
+
+        raiseCounters(legacy.nextFileId, legacy.nextShareId, legacy.nextActivityId);
+        legacy.sessions.forEach(session -> partitionFor(session.userId).sessions.add(session));
+        legacy.files.forEach(file -> partitionFor(file.userId).files.add(file));
+        legacy.shares.forEach(share -> partitionFor(share.ownerUserId).shares.add(share));
+        legacy.activities.forEach(activity -> partitionFor(activity.userId).activities.add(activity));
+
+        for (Shard shard : shards) {
+            shard.partitions.values().forEach(this::indexPartition);
+            saveSnapshot(shard);
+        }
+        global = migrated;
+        saveGlobal(migrated);
+    }
+
+    private UserPartition partitionFor(long userId) {
+        return shardFor(userId).partitions.computeIfAbsent(userId, UserPartition::new);
+    }
+
+    private Shard shardFor(long userId) {
+        return shards[(int) Math.floorMod(userId, (long) shards.length)];
+    }
+
+    private void raiseCounters(long fileId, long shareId, long activityId) {
+        nextFileId.accumulateAndGet(fileId, Math::max);
+        nextShareId.accumulateAndGet(shareId, Math::max);
+        nextActivityId.accumulateAndGet(activityId, Math::max);
+    }
+
+    private void indexPartition(UserPartition partition) {
+        partition.sessions.forEach(session -> sessionOwners.put(session.token, partition.userId));
+        partition.shares.forEach(share -> shareOwners.put(share.token, partition.userId));
+        raiseCounters(
+                partition.files.stream().mapToLong(file -> file.id + 1).max().orElse(1),
+                partition.shares.stream().mapToLong(share -> share.id + 1).max().orElse(1),
+                partition.activities.stream().mapToLong(activity -> activity.id + 1).max().orElse(1)
+        );
+    }
+
+    private void reloadShard(Shard shard) {
+        shard.partitions.values().forEach(partition -> {
+            sessionTokens(partition).forEach(token -> sessionOwners.remove(token, partition.userId));
+            shareTokens(partition).forEach(token -> shareOwners.remove(token, partition.userId));
+        });
+        shard.partitions.clear();
+
+        try {
+            if (Files.exists(shard.file)) {
+                ShardFile contents = readShardFile(shard.file);
+                contents.partitions.forEach(partition -> shard.partitions.put(partition.userId, partition));
+            }
+            replayJournal(shard.journalFile, new AtomicBoolean());
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to reload PatraKosh state shard " + shard.index, exception);
+        }
+        shard.partitions.values().forEach(this::indexPartition);
+    }
+
+    private static Set<String> sessionTokens(UserPartition partition) {
+        Set<String> tokens = new HashSet<>();
+        partition.sessions.forEach(session -> tokens.add(session.token));
+        return tokens;
+    }
+
+    private static Set<String> shareTokens(UserPartition partition) {
+        Set<String> tokens = new HashSet<>();
+        partition.shares.forEach(share -> tokens.add(share.token));
+        return tokens;
+    }
+
+    private StateSnapshot assembleSnapshot() {
+        StateSnapshot snapshot = new StateSnapshot();
+        snapshot.nextUserId = global.nextUserId;
+        snapshot.nextFileId = nextFileId.get();
+        snapshot.nextShareId = nextShareId.get();
+        snapshot.nextActivityId = nextActivityId.get();
+        snapshot.users.addAll(global.users);
+        for (Shard shard : shards) {
+            for (UserPartition partition : shard.partitions.values()) {
+                snapshot.sessions.addAll(partition.sessions);
+                snapshot.files.addAll(partition.files);
+                snapshot.shares.addAll(partition.shares);
+                snapshot.activities.addAll(partition.activities);
+            }
+        }
+        return snapshot;
+    }
+
+    private List<Lock> lockAll(boolean exclusive) {
+        List<Lock> locks = new ArrayList<>(shards.length + 1);
+        locks.add(exclusive ? globalLock.writeLock() : globalLock.readLock());
+        for (Shard shard : shards) {
+            locks.add(exclusive ? shard.lock.writeLock() : shard.lock.readLock());
+        }
+        locks.forEach(Lock::lock);
+        return locks;
+    }
+
+    private static void unlockAll(List<Lock> locks) {
+        for (int index = locks.size() - 1; index >= 0; index--) {
+            locks.get(index).unlock();
+        }
+    }
+
+    private GlobalState loadGlobal() {
         try {
-            if (!Files.exists(stateFile)) {
-                return new StateSnapshot();
+            GlobalState loaded;
+            if (Files.exists(globalFile)) {
+                try (InputStream input = Files.newInputStream(globalFile)) {
+                    loaded = CheckpointFormat.readGlobal(input);
+                }
+            } else if (Files.exists(legacyGlobalFile)) {
+                loaded = objectMapper.readValue(legacyGlobalFile.toFile(), GlobalState.class);
+            } else {
+                return new GlobalState();
             }
-            return objectMapper.readValue(stateFile.toFile(), StateSnapshot.class);
+            loaded.reindex();
+            return loaded;
         } catch (IOException exception) {
             throw new IllegalStateException("Failed to load PatraKosh state", exception);
         }
     }
 
-    private void saveState(StateSnapshot state) {
+    private void saveGlobal(GlobalState state) {
+        writeAtomically(globalFile, output -> CheckpointFormat.writeGlobal(state, output));
+    }
+
+    /**
+     * Journals {@code changes} and returns the position that has to become durable, or {@link #NOTHING_WRITTEN}
+     * if the write changed nothing.
+     */
+    private long commit(Shard shard, PartitionChanges changes) {
+        if (changes.isEmpty()) {
+            return NOTHING_WRITTEN;
+        }
+        JournalEntry entry = new JournalEntry();
+        entry.nextFileId = nextFileId.get();
+        entry.nextShareId = nextShareId.get();
+        entry.nextActivityId = nextActivityId.get();
+        entry.changes = changes;
+
+        try {
+            long position = shard.journal.append(CheckpointFormat.encodeJournalEntry(entry));
+            if (durability.mode() == DurabilityMode.FSYNC) {
+                shard.journal.awaitDurable(position, 0);
+            }
+            if (shard.journal.size() >= durability.checkpointJournalBytes()) {
+                checkpoint(shard);
+            }
+            return position;
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to save PatraKosh state", exception);
+        }
+    }
+
+    /**
+     * Journals the users a global write added or changed, like {@link #commit} does for a shard.
+     */
+    private long commitGlobal(List<UserRecord> users) {
+        if (users.isEmpty()) {
+            return NOTHING_WRITTEN;
+        }
         try {
-            Files.createDirectories(dataRoot);
-            Path tempFile = dataRoot.resolve("state.json.tmp");
-            objectMapper.writeValue(tempFile.toFile(), state);
+            long position = globalJournal.append(CheckpointFormat.encodeUsersEntry(users));
+            if (durability.mode() == DurabilityMode.FSYNC) {
+                globalJournal.awaitDurable(position, 0);
+            }
+            if (globalJournal.size() >= durability.checkpointJournalBytes()) {
+                checkpointGlobal();
+            }
+            return position;
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to save PatraKosh state", exception);
+        }
+    }
+
+    private void checkpointGlobal() throws IOException {
+        saveGlobal(global);
+        globalJournal.reset();
+    }
+
+    private void checkpoint(Shard shard) throws IOException {
+        saveSnapshot(shard);
+        shard.journal.reset();
+    }
+
+    private void awaitGroupCommit(ShardJournal journal, long position) {
+        if (durability.mode() == DurabilityMode.GROUP && position != NOTHING_WRITTEN) {
+            awaitDurable(journal, position, durability.groupCommitWindow().toNanos());
+        }
+    }
+
+    private static void awaitDurable(ShardJournal journal, long position, long windowNanos) {
+        try {
+            journal.awaitDurable(position, windowNanos);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to flush PatraKosh state", exception);
+        }
+    }
+
+    private ScheduledExecutorService startAsyncFlusher() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patrakosh-state-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = durability.asyncFlushInterval().toMillis();
+        executor.scheduleWithFixedDelay(() -> {
             try {
-                Files.move(tempFile, stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (globalJournal.isDirty()) {
+                    globalJournal.sync();
+                }
+            } catch (IOException | RuntimeException exception) {
+                log.warn("Background flush of the global state journal failed", exception);
+            }
+            for (Shard shard : shards) {
+                try {
+                    if (shard.journal.isDirty()) {
+                        shard.journal.sync();
+                    }
+                } catch (IOException | RuntimeException exception) {
+                    log.warn("Background flush of state shard {} failed", shard.index, exception);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private void saveSnapshot(Shard shard) {
+        ShardFile contents = new ShardFile();
+        contents.nextFileId = nextFileId.get();
+        contents.nextShareId = nextShareId.get();
+        contents.nextActivityId = nextActivityId.get();
+        contents.partitions = shard.partitions.values().stream()
+                .sorted(Comparator.comparingLong(partition -> partition.userId))
+                .toList();
+        writeAtomically(shard.file, output -> CheckpointFormat.writeShard(contents, output));
+    }
+
+    private static void writeAtomically(Path target, SnapshotContent content) {
+        try {
+            Files.createDirectories(target.getParent());
+            Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileOutputStream output = new FileOutputStream(tempFile.toFile())) {
+                content.writeTo(output);
+                output.getFD().sync();
+            }
+            try {
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
             } catch (AtomicMoveNotSupportedException ignored) {
-                Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
             }
+            syncDirectory(target.getParent());
         } catch (IOException exception) {
             throw new IllegalStateException("Failed to save PatraKosh state", exception);
         }
     }
 
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // Not every platform can open a directory for syncing; the rename itself is still atomic there.
+        }
+    }
+
+    @FunctionalInterface
+    private interface SnapshotContent {
+        void writeTo(OutputStream output) throws IOException;
+    }
+
+    private static final class Shard {
+        private final int index;
+        private final Path file;
+        private final Path journalFile;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<Long, UserPartition> partitions = new HashMap<>();
+        private ShardJournal journal;
+
+        private Shard(int index, Path file, Path journalFile) {
+            this.index = index;
+            this.file = file;
+            this.journalFile = journalFile;
+        }
+
+        private void closeJournal() {
+            if (journal == null) {
+                return;
+            }
+            try {
+                journal.close();
+            } catch (IOException exception) {
+                log.warn("Failed to close journal for state shard {}", index, exception);
+            }
+            journal = null;
+        }
+    }
+
+    static final class JournalEntry {
+        public long nextFileId = 1;
+        public long nextShareId = 1;
+        public long nextActivityId = 1;
+        /** The whole partition after the commit, as written by earlier versions, JSON ones included. */
+        public UserPartition partition;
+        /** Not public, so that JSON entries, which only ever held after-images, never bind it. */
+        PartitionChanges changes;
+    }
+
+    static final class ShardFile {
+        public long nextFileId = 1;
+        public long nextShareId = 1;
+        public long nextActivityId = 1;
+        public List<UserPartition> partitions = new ArrayList<>();
+    }
+
+    public static final class GlobalState {
+        public long nextUserId = 1;
+        public List<UserRecord> users = new ArrayList<>();
+
+        private final Map<Long, UserRecord> usersById = new ConcurrentHashMap<>();
+        private final Map<String, UserRecord> usersByUsername = new ConcurrentHashMap<>();
+        private final Map<String, UserRecord> usersByEmail = new ConcurrentHashMap<>();
+        /** Where each user is in {@link #users}; only read and written under the global write lock. */
+        private final Map<Long, Integer> positions = new HashMap<>();
+        /** Positions changed since {@link #track}, each with the user it held before, or null if it was added. */
+        private List<UserChange> undo;
+        private long trackedNextUserId;
+
+        public long allocateUserId() {
+            return nextUserId++;
+        }
+
+        public boolean usernameTaken(String username) {
+            return usersByUsername.containsKey(normalize(username));
+        }
+
+        public boolean emailTaken(String email) {
+            return usersByEmail.containsKey(normalize(email));
+        }
+
+        public void addUser(UserRecord user) {
+            noteChange(users.size(), null);
+            users.add(user);
+            index(user, users.size() - 1);
+        }
+
+        public boolean replacePasswordHash(long userId, String expectedHash, String newHash) {
+            UserRecord current = usersById.get(userId);
+            if (current == null || !Objects.equals(current.passwordHash, expectedHash)) {
+                return false;
+            }
+            put(new UserRecord(current.id, current.username, current.email, newHash, current.createdAt));
+            return true;
+        }
+
+        /**
+         * Replaces the user with the same id, or adds {@code user} if there is none, as a journal entry is replayed.
+         */
+        void put(UserRecord user) {
+            Integer position = positions.get(user.id);
+            if (position == null) {
+                addUser(user);
+                return;
+            }
+            UserRecord previous = users.get(position);
+            noteChange(position, previous);
+            unindex(previous);
+            users.set(position, user);
+            index(user, position);
+        }
+
+        /**
+         * Starts noting which users a write adds or changes, so that it can be journaled with {@link #changedUsers}
+         * or undone with {@link #rollback}.
+         */
+        void track() {
+            undo = new ArrayList<>();
+            trackedNextUserId = nextUserId;
+        }
+
+        /**
+         * The users added or changed since {@link #track}, as they are now.
+         */
+        List<UserRecord> changedUsers() {
+            Set<Integer> changed = new LinkedHashSet<>();
+            undo.forEach(change -> changed.add(change.position()));
+            return changed.stream().map(users::get).toList();
+        }
+
+        /**
+         * Undoes every change since {@link #track} and stops tracking.
+         */
+        void rollback() {
+            List<UserChange> changes = undo;
+            undo = null;
+            for (int index = changes.size() - 1; index >= 0; index--) {
+                UserChange change = changes.get(index);
+                unindex(users.get(change.position()));
+                if (change.previous() == null) {
+                    users.remove(change.position());
+                } else {
+                    users.set(change.position(), change.previous());
+                    index(change.previous(), change.position());
+                }
+            }
+            nextUserId = trackedNextUserId;
+        }
+
+        void untrack() {
+            undo = null;
+        }
+
+        private void noteChange(int position, UserRecord previous) {
+            if (undo != null) {
+                undo.add(new UserChange(position, previous));
+            }
+        }
+
+        private void reindex() {
+            usersById.clear();
+            usersByUsername.clear();
+            usersByEmail.clear();
+            positions.clear();
+            for (int position = 0; position < users.size(); position++) {
+                index(users.get(position), position);
+            }
+        }
+
+        private void index(UserRecord user, int position) {
+            usersById.put(user.id, user);
+            usersByUsername.put(normalize(user.username), user);
+            usersByEmail.put(normalize(user.email), user);
+            positions.put(user.id, position);
+            nextUserId = Math.max(nextUserId, user.id + 1);
+        }
+
+        private void unindex(UserRecord user) {
+            usersById.remove(user.id, user);
+            usersByUsername.remove(normalize(user.username), user);
+            usersByEmail.remove(normalize(user.email), user);
+            positions.remove(user.id);
+        }
+
+        private static String normalize(String value) {
+            return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+        }
+
+        private record UserChange(int position, UserRecord previous) {
+        }
+    }
+
+    public static final class UserPartition {
+        public long userId;
+        public RecordList.Sessions sessions = new RecordList.Sessions();
+        public FolderTree folders = new FolderTree();
+        public FileTable files = new FileTable();
+        public RecordList.Versions versions = new RecordList.Versions();
+        public RecordList.Shares shares = new RecordList.Shares();
+        public List<ActivityRecord> activities = new ArrayList<>();
+
+        private int trackedActivities = -1;
+
+        public UserPartition() {
+        }
+
+        public UserPartition(long userId) {
+            this.userId = userId;
+        }
+
+        /**
+         * Starts noting what a write changes, row by row, so that it can be journaled with
+         * {@link PartitionChanges#of} or undone with {@link #rollback}.
+         */
+        void track() {
+            sessions.track();
+            folders.track();
+            files.track();
+            versions.track();
+            shares.track();
+            trackedActivities = activities.size();
+        }
+
+        /**
+         * Activities appended since {@link #track}; activities are never changed or removed by a write.
+         */
+        List<ActivityRecord> appendedActivities() {
+            return activities.subList(trackedActivities, activities.size());
+        }
+
+        /**
+         * Undoes every change since {@link #track} and stops tracking.
+         */
+        void rollback() {
+            sessions.rollback();
+            folders.rollback();
+            files.rollback();
+            versions.rollback();
+            shares.rollback();
+            appendedActivities().clear();
+            trackedActivities = -1;
+        }
+
+        void untrack() {
+            sessions.untrack();
+            folders.untrack();
+            files.untrack();
+            versions.untrack();
+            shares.untrack();
+            trackedActivities = -1;
+        }
+    }
+
     public static final class StateSnapshot {
         public long nextUserId = 1;
         public long nextFileId = 1;
@@ -144,6 +1216,9 @@ public class AppStateStore {
     }
 
     public static final class FileRecord {
+        /** {@link #checksum} of files recorded before checksums were kept. */
+        public static final long NO_CHECKSUM = -1;
+
         public long id;
         public long userId;
         public String filename;
@@ -151,11 +1226,58 @@ public class AppStateStore {
         public long fileSize;
         public Instant uploadTime;
         public String storageKey;
+        public Instant deletedAt;
+        /** CRC32C of the content, or {@link #NO_CHECKSUM}. */
+        public long checksum = NO_CHECKSUM;
+        /** Folder holding the file, or {@link FolderRecord#ROOT}. */
+        public long folderId = FolderRecord.ROOT;
 
         public FileRecord() {
         }
 
         public FileRecord(long id, long userId, String filename, String mimeType, long fileSize, Instant uploadTime, String storageKey) {
+            this(id, userId, filename, mimeType, fileSize, uploadTime, storageKey, null);
+        }
+
+        public FileRecord(
+                long id,
+                long userId,
+                String filename,
+                String mimeType,
+                long fileSize,
+                Instant uploadTime,
+                String storageKey,
+                Instant deletedAt
+        ) {
+            this(id, userId, filename, mimeType, fileSize, uploadTime, storageKey, deletedAt, NO_CHECKSUM);
+        }
+
+        public FileRecord(
+                long id,
+                long userId,
+                String filename,
+                String mimeType,
+                long fileSize,
+                Instant uploadTime,
+                String storageKey,
+                Instant deletedAt,
+                long checksum
+        ) {
+            this(id, userId, filename, mimeType, fileSize, uploadTime, storageKey, deletedAt, checksum, FolderRecord.ROOT);
+        }
+
+        public FileRecord(
+                long id,
+                long userId,
+                String filename,
+                String mimeType,
+                long fileSize,
+                Instant uploadTime,
+                String storageKey,
+                Instant deletedAt,
+                long checksum,
+                long folderId
+        ) {
             this.id = id;
             this.userId = userId;
             this.filename = filename;
@@ -163,6 +1285,91 @@ public class AppStateStore {
             this.fileSize = fileSize;
             this.uploadTime = uploadTime;
             this.storageKey = storageKey;
+            this.deletedAt = deletedAt;
+            this.checksum = checksum;
+            this.folderId = folderId;
+        }
+    }
+
+    /**
+     * A folder in a user's tree. Folders take their ids from the file id sequence, so a folder id never
+     * collides with a file id.
+     */
+    public static final class FolderRecord {
+        /** {@link #parentId} of top-level folders and {@link FileRecord#folderId} of files outside any folder. */
+        public static final long ROOT = 0;
+
+        public long id;
+        public long userId;
+        public long parentId = ROOT;
+        public String name;
+        public Instant createdAt;
+
+        public FolderRecord() {
+        }
+
+        public FolderRecord(long id, long userId, long parentId, String name, Instant createdAt) {
+            this.id = id;
+            this.userId = userId;
+            this.parentId = parentId;
+            this.name = name;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * An earlier version of a file, kept when a new one is uploaded. Records are never changed, only added and
+     * removed, and are identified by their file and version number.
+     */
+    public static final class FileVersionRecord {
+        public long fileId;
+        public long version;
+        public long fileSize;
+        public long checksum = FileRecord.NO_CHECKSUM;
+        /** Blob holding the version: its full contents, or a delta against the next newer version. */
+        public String storageKey;
+        public boolean delta;
+        /**
+         * Bytes the blob at {@link #storageKey} takes, which is what the version is charged against the storage
+         * quota: the size of the delta for a delta, otherwise {@link #fileSize}. Versions recorded before this
+         * was kept are charged their full size.
+         */
+        public long storedSize;
+        public Instant uploadTime;
+
+        public FileVersionRecord() {
+        }
+
+        public FileVersionRecord(
+                long fileId,
+                long version,
+                long fileSize,
+                long checksum,
+                String storageKey,
+                boolean delta,
+                Instant uploadTime
+        ) {
+            this(fileId, version, fileSize, checksum, storageKey, delta, fileSize, uploadTime);
+        }
+
+        public FileVersionRecord(
+                long fileId,
+                long version,
+                long fileSize,
+                long checksum,
+                String storageKey,
+                boolean delta,
+                long storedSize,
+                Instant uploadTime
+        ) {
+            this.fileId = fileId;
+            this.version = version;
+            this.fileSize = fileSize;
+            this.checksum = checksum;
+            this.storageKey = storageKey;
+            this.delta = delta;
+            this.storedSize = storedSize;
+            this.uploadTime = uploadTime;
         }
     }
 
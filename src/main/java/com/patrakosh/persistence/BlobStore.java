@@ -0,0 +1,83 @@
+package com.patrakosh.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Where file contents live, addressed by the storage key kept on each file record.
+ *
+ * <p>Keys have the form {@code <directory>/<name>}, where the directory groups a user's blobs. Contents are
+ * streamed in both directions, so no implementation needs to hold a whole blob in memory, and a blob becomes
+ * visible under its key only once {@link #put} has returned. The backend is chosen with
+ * {@code patrakosh.storage.backend}.
+ */
+public interface BlobStore extends AutoCloseable {
+
+    /**
+     * Writes {@code content} under {@code key}, replacing any blob already there, and returns the number of bytes
+     * written. {@code length} is the size of the content if the caller knows it, or -1.
+     */
+    long put(String key, InputStream content, long length) throws IOException;
+
+    /**
+     * Opens the blob for reading, failing with {@link java.nio.file.NoSuchFileException} if there is none.
+     */
+    InputStream get(String key) throws IOException;
+
+    /**
+     * Opens at most {@code length} bytes of the blob starting at {@code offset}. Reading past the end of the blob
+     * ends the stream early.
+     */
+    InputStream get(String key, long offset, long length) throws IOException;
+
+    Optional<BlobInfo> stat(String key) throws IOException;
+
+    /**
+     * Removes the blob if there is one.
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * Moves a blob to another key, replacing any blob already there.
+     */
+    void move(String sourceKey, String targetKey) throws IOException;
+
+    /**
+     * Copies a blob to another key, replacing any blob already there. The copy is independent of the original, so
+     * deleting or replacing either leaves the other intact. Backends that can copy without streaming the contents
+     * through the application override this.
+     */
+    default void copy(String sourceKey, String targetKey) throws IOException {
+        long size = stat(sourceKey).orElseThrow(() -> new NoSuchFileException(sourceKey)).size();
+        try (InputStream content = get(sourceKey)) {
+            put(targetKey, content, size);
+        }
+    }
+
+    /**
+     * Returns the blobs directly inside {@code directory}, in no particular order.
+     */
+    List<BlobInfo> list(String directory) throws IOException;
+
+    /**
+     * Returns the names of the top-level directories that hold blobs, in ascending order.
+     */
+    List<String> directories() throws IOException;
+
+    /**
+     * Notes that a user is about to download the blob, for backends that keep recently read blobs somewhere
+     * faster. Background reads such as scrubbing do not call this. Failures are logged, never thrown.
+     */
+    default void recordAccess(String key) {
+    }
+
+    @Override
+    void close();
+
+    record BlobInfo(String key, long size, Instant lastModified) {
+    }
+}
@@ -0,0 +1,100 @@
+package com.patrakosh.persistence;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * What a writer did to one of a partition's row containers while it was being tracked: the steps that undo it,
+ * in the order they were made, and the value each row it touched had before the write, keyed by the row's key.
+ *
+ * <p>Only the rows a write touches are ever recorded, so tracking costs as much as the write changes rather than
+ * as much as the container holds. A row that did not exist before the write is recorded with a null value.
+ */
+final class ChangeLog<K, R> {
+
+    private static final int SET = 0;
+    private static final int INSERT = 1;
+    private static final int REMOVE = 2;
+
+    private final Function<R, K> keyOf;
+    private final UnaryOperator<R> copyOf;
+    private final List<Step<R>> steps = new ArrayList<>();
+    private final Map<K, R> before = new LinkedHashMap<>();
+
+    /**
+     * @param copyOf detaches the rows the container hands out, so later changes to them do not reach the log
+     */
+    ChangeLog(Function<R, K> keyOf, UnaryOperator<R> copyOf) {
+        this.keyOf = keyOf;
+        this.copyOf = copyOf;
+    }
+
+    /**
+     * Notes a row the writer may change in place, keeping its value if this is the first time it was touched.
+     */
+    void touched(R row) {
+        K key = keyOf.apply(row);
+        if (!before.containsKey(key)) {
+            before.put(key, copyOf.apply(row));
+        }
+    }
+
+    /**
+     * Notes that the row at {@code index}, which was {@code previous}, is about to be changed or replaced.
+     */
+    void changed(int index, R previous) {
+        touched(previous);
+        steps.add(new Step<>(SET, index, previous));
+    }
+
+    void replaced(int index, R previous, R next) {
+        changed(index, previous);
+        added(next);
+    }
+
+    void inserted(int index, R row) {
+        added(row);
+        steps.add(new Step<>(INSERT, index, null));
+    }
+
+    void removed(int index, R row) {
+        touched(row);
+        steps.add(new Step<>(REMOVE, index, row));
+    }
+
+    /**
+     * Values of the touched rows before the write, null for rows the write added.
+     */
+    Map<K, R> before() {
+        return before;
+    }
+
+    /**
+     * Puts {@code rows} back in the order they were in before the write by undoing each step, latest first. The
+     * container must not be tracking while this runs. Rows changed in place are left to the caller.
+     */
+    void undo(List<R> rows) {
+        for (int index = steps.size() - 1; index >= 0; index--) {
+            Step<R> step = steps.get(index);
+            switch (step.kind()) {
+                case SET -> rows.set(step.index(), step.row());
+                case INSERT -> rows.remove(step.index());
+                default -> rows.add(step.index(), step.row());
+            }
+        }
+    }
+
+    private void added(R row) {
+        K key = keyOf.apply(row);
+        if (!before.containsKey(key)) {
+            before.put(key, null);
+        }
+    }
+
+    private record Step<R>(int kind, int index, R row) {
+    }
+}
@@ -0,0 +1,757 @@
+package com.patrakosh.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary encoding for state snapshots and journal entries.
+ *
+ * <p>A file starts with a magic number, a format version and a kind byte, followed by count-prefixed record
+ * lists, and ends with a CRC32 of everything before it. Integers are unsigned varints, instants are epoch
+ * millis, strings are length-prefixed UTF-8, and low-cardinality values such as mime types and activity actions
+ * go through a string table that is built up while the stream is written, so a reader never needs to seek.
+ * Record owner ids are implied by the enclosing partition and are not stored.
+ *
+ * <p>Journal entries written by this version hold the rows a commit put or deleted ({@link PartitionChanges});
+ * entries from earlier versions hold the whole partition after the commit and are still read. Entries of the
+ * global journal hold the users a commit added or changed.
+ */
+final class CheckpointFormat {
+
+    static final int MAGIC = 0x504B4350; // "PKCP"
+    static final int VERSION = 6;
+
+    /**
+     * Oldest version still read. Version 1 file records have no deletion time, versions before 3 have no
+     * checksum, versions before 4 have no file versions, versions before 5 have no folders and versions before 6
+     * do not record how many bytes a file version takes in the blob store.
+     */
+    private static final int FIRST_VERSION = 1;
+
+    private static final int KIND_GLOBAL = 1;
+    private static final int KIND_SHARD = 2;
+    /** Journal entry holding a partition's after-image, as written before entries held changes. */
+    private static final int KIND_JOURNAL = 3;
+    private static final int KIND_CHANGES = 4;
+    /** Global journal entry holding the users a commit added or changed. */
+    private static final int KIND_USERS = 5;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int JOURNAL_BUFFER_BYTES = 4 * 1024;
+
+    private CheckpointFormat() {
+    }
+
+    static void writeGlobal(AppStateStore.GlobalState state, OutputStream output) throws IOException {
+        Writer writer = new Writer(output, BUFFER_BYTES);
+        writer.header(KIND_GLOBAL);
+        writer.varLong(state.nextUserId);
+        writer.varInt(state.users.size());
+        for (AppStateStore.UserRecord user : state.users) {
+            writeUser(writer, user);
+        }
+        writer.finish();
+    }
+
+    static AppStateStore.GlobalState readGlobal(InputStream input) throws IOException {
+        Reader reader = new Reader(input, BUFFER_BYTES);
+        reader.header(KIND_GLOBAL);
+        AppStateStore.GlobalState state = new AppStateStore.GlobalState();
+        state.nextUserId = reader.varLong();
+        int users = reader.varInt();
+        state.users = new ArrayList<>(users);
+        for (int index = 0; index < users; index++) {
+            state.users.add(readUser(reader));
+        }
+        reader.finish();
+        return state;
+    }
+
+    static byte[] encodeUsersEntry(List<AppStateStore.UserRecord> users) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream(JOURNAL_BUFFER_BYTES);
+        Writer writer = new Writer(sink, JOURNAL_BUFFER_BYTES);
+        writer.header(KIND_USERS);
+        writer.varInt(users.size());
+        for (AppStateStore.UserRecord user : users) {
+            writeUser(writer, user);
+        }
+        writer.flush();
+        return sink.toByteArray();
+    }
+
+    static List<AppStateStore.UserRecord> decodeUsersEntry(byte[] payload) throws IOException {
+        Reader reader = new Reader(new ByteArrayInputStream(payload), JOURNAL_BUFFER_BYTES);
+        reader.header(KIND_USERS);
+        int count = reader.varInt();
+        List<AppStateStore.UserRecord> users = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            users.add(readUser(reader));
+        }
+        return users;
+    }
+
+    static void writeShard(AppStateStore.ShardFile shard, OutputStream output) throws IOException {
+        Writer writer = new Writer(output, BUFFER_BYTES);
+        writer.header(KIND_SHARD);
+        writer.varLong(shard.nextFileId);
+        writer.varLong(shard.nextShareId);
+        writer.varLong(shard.nextActivityId);
+        writer.varInt(shard.partitions.size());
+        for (AppStateStore.UserPartition partition : shard.partitions) {
+            writePartition(writer, partition);
+        }
+        writer.finish();
+    }
+
+    static AppStateStore.ShardFile readShard(InputStream input) throws IOException {
+        Reader reader = new Reader(input, BUFFER_BYTES);
+        reader.header(KIND_SHARD);
+        AppStateStore.ShardFile shard = new AppStateStore.ShardFile();
+        shard.nextFileId = reader.varLong();
+        shard.nextShareId = reader.varLong();
+        shard.nextActivityId = reader.varLong();
+        int partitions = reader.varInt();
+        shard.partitions = new ArrayList<>(partitions);
+        for (int index = 0; index < partitions; index++) {
+            shard.partitions.add(readPartition(reader));
+        }
+        reader.finish();
+        return shard;
+    }
+
+    static byte[] encodeJournalEntry(AppStateStore.JournalEntry entry) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream(JOURNAL_BUFFER_BYTES);
+        Writer writer = new Writer(sink, JOURNAL_BUFFER_BYTES);
+        writer.header(KIND_CHANGES);
+        writer.varLong(entry.nextFileId);
+        writer.varLong(entry.nextShareId);
+        writer.varLong(entry.nextActivityId);
+        writeChanges(writer, entry.changes);
+        writer.flush();
+        return sink.toByteArray();
+    }
+
+    /**
+     * Decodes a journal entry into either {@link AppStateStore.JournalEntry#changes} or, for entries written by
+     * earlier versions, {@link AppStateStore.JournalEntry#partition}.
+     */
+    static AppStateStore.JournalEntry decodeJournalEntry(byte[] payload) throws IOException {
+        Reader reader = new Reader(new ByteArrayInputStream(payload), JOURNAL_BUFFER_BYTES);
+        int kind = reader.header();
+        if (kind != KIND_JOURNAL && kind != KIND_CHANGES) {
+            throw new IOException("Unexpected checkpoint kind " + kind);
+        }
+        AppStateStore.JournalEntry entry = new AppStateStore.JournalEntry();
+        entry.nextFileId = reader.varLong();
+        entry.nextShareId = reader.varLong();
+        entry.nextActivityId = reader.varLong();
+        if (kind == KIND_CHANGES) {
+            entry.changes = readChanges(reader);
+        } else {
+            entry.partition = readPartition(reader);
+        }
+        return entry;
+    }
+
+    static boolean isBinary(byte[] payload) {
+        return payload.length >= Integer.BYTES
+                && ((payload[0] & 0xFF) << 24 | (payload[1] & 0xFF) << 16 | (payload[2] & 0xFF) << 8 | (payload[3] & 0xFF)) == MAGIC;
+    }
+
+    private static void writeUser(Writer writer, AppStateStore.UserRecord user) throws IOException {
+        writer.varLong(user.id);
+        writer.string(user.username);
+        writer.string(user.email);
+        writer.string(user.passwordHash);
+        writer.instant(user.createdAt);
+    }
+
+    private static AppStateStore.UserRecord readUser(Reader reader) throws IOException {
+        return new AppStateStore.UserRecord(
+                reader.varLong(),
+                reader.string(),
+                reader.string(),
+                reader.string(),
+                reader.instant()
+        );
+    }
+
+    private static void writePartition(Writer writer, AppStateStore.UserPartition partition) throws IOException {
+        writer.varLong(partition.userId);
+
+        writer.varInt(partition.sessions.size());
+        for (AppStateStore.SessionRecord session : partition.sessions) {
+            writeSession(writer, session);
+        }
+
+        writer.varInt(partition.files.size());
+        for (AppStateStore.FileRecord file : partition.files) {
+            writeFile(writer, file);
+        }
+
+        writer.varInt(partition.shares.size());
+        for (AppStateStore.ShareRecord share : partition.shares) {
+            writeShare(writer, share);
+        }
+
+        writer.varInt(partition.activities.size());
+        for (AppStateStore.ActivityRecord activity : partition.activities) {
+            writeActivity(writer, activity);
+        }
+
+        writer.varInt(partition.versions.size());
+        for (AppStateStore.FileVersionRecord version : partition.versions) {
+            writeVersion(writer, version);
+        }
+
+        writer.varInt(partition.folders.size());
+        for (AppStateStore.FolderRecord folder : partition.folders) {
+            writeFolder(writer, folder);
+        }
+    }
+
+    private static void writeChanges(Writer writer, PartitionChanges changes) throws IOException {
+        writer.varLong(changes.userId());
+
+        writer.varInt(changes.sessions().size());
+        for (AppStateStore.SessionRecord session : changes.sessions()) {
+            writeSession(writer, session);
+        }
+        writer.varInt(changes.removedSessions().size());
+        for (String token : changes.removedSessions()) {
+            writer.string(token);
+        }
+
+        writer.varInt(changes.files().size());
+        for (AppStateStore.FileRecord file : changes.files()) {
+            writeFile(writer, file);
+        }
+        writeIds(writer, changes.removedFiles());
+
+        writer.varInt(changes.shares().size());
+        for (AppStateStore.ShareRecord share : changes.shares()) {
+            writeShare(writer, share);
+        }
+        writeIds(writer, changes.removedShares());
+
+        writer.varInt(changes.activities().size());
+        for (AppStateStore.ActivityRecord activity : changes.activities()) {
+            writeActivity(writer, activity);
+        }
+
+        writer.varInt(changes.versions().size());
+        for (AppStateStore.FileVersionRecord version : changes.versions()) {
+            writeVersion(writer, version);
+        }
+        writer.varInt(changes.removedVersions().size());
+        for (PartitionImage.VersionKey key : changes.removedVersions()) {
+            writer.varLong(key.fileId());
+            writer.varLong(key.version());
+        }
+
+        writer.varInt(changes.folders().size());
+        for (AppStateStore.FolderRecord folder : changes.folders()) {
+            writeFolder(writer, folder);
+        }
+        writeIds(writer, changes.removedFolders());
+    }
+
+    private static void writeIds(Writer writer, List<Long> ids) throws IOException {
+        writer.varInt(ids.size());
+        for (long id : ids) {
+            writer.varLong(id);
+        }
+    }
+
+    private static void writeSession(Writer writer, AppStateStore.SessionRecord session) throws IOException {
+        writer.string(session.token);
+        writer.instant(session.createdAt);
+        writer.instant(session.expiresAt);
+        writer.instant(session.revokedAt);
+    }
+
+    private static void writeFile(Writer writer, AppStateStore.FileRecord file) throws IOException {
+        writer.varLong(file.id);
+        writer.string(file.filename);
+        writer.symbol(file.mimeType);
+        writer.varLong(file.fileSize);
+        writer.instant(file.uploadTime);
+        writer.string(file.storageKey);
+        writer.instant(file.deletedAt);
+        writer.varLong(file.checksum + 1);
+        writer.varLong(file.folderId);
+    }
+
+    private static void writeShare(Writer writer, AppStateStore.ShareRecord share) throws IOException {
+        writer.varLong(share.id);
+        writer.varLong(share.fileId);
+        writer.string(share.token);
+        writer.instant(share.createdAt);
+        writer.instant(share.expiresAt);
+        writer.instant(share.revokedAt);
+        writer.varLong(share.accessCount);
+    }
+
+    private static void writeActivity(Writer writer, AppStateStore.ActivityRecord activity) throws IOException {
+        writer.varLong(activity.id);
+        writer.symbol(activity.action);
+        writer.string(activity.filename);
+        writer.instant(activity.createdAt);
+    }
+
+    private static void writeVersion(Writer writer, AppStateStore.FileVersionRecord version) throws IOException {
+        writer.varLong(version.fileId);
+        writer.varLong(version.version);
+        writer.varLong(version.fileSize);
+        writer.varLong(version.checksum + 1);
+        writer.string(version.storageKey);
+        writer.varInt(version.delta ? 1 : 0);
+        writer.instant(version.uploadTime);
+        writer.varLong(version.storedSize);
+    }
+
+    private static void writeFolder(Writer writer, AppStateStore.FolderRecord folder) throws IOException {
+        writer.varLong(folder.id);
+        writer.varLong(folder.parentId);
+        writer.string(folder.name);
+        writer.instant(folder.createdAt);
+    }
+
+    private static AppStateStore.UserPartition readPartition(Reader reader) throws IOException {
+        long userId = reader.varLong();
+        AppStateStore.UserPartition partition = new AppStateStore.UserPartition(userId);
+
+        int sessions = reader.varInt();
+        partition.sessions = new RecordList.Sessions(sessions);
+        for (int index = 0; index < sessions; index++) {
+            partition.sessions.add(readSession(reader, userId));
+        }
+
+        int files = reader.varInt();
+        partition.files = new FileTable(files);
+        for (int index = 0; index < files; index++) {
+            partition.files.add(readFile(reader, userId));
+        }
+
+        int shares = reader.varInt();
+        partition.shares = new RecordList.Shares(shares);
+        for (int index = 0; index < shares; index++) {
+            partition.shares.add(readShare(reader, userId));
+        }
+
+        int activities = reader.varInt();
+        partition.activities = new ArrayList<>(activities);
+        for (int index = 0; index < activities; index++) {
+            partition.activities.add(readActivity(reader, userId));
+        }
+
+        int versions = reader.version >= 4 ? reader.varInt() : 0;
+        partition.versions = new RecordList.Versions(versions);
+        for (int index = 0; index < versions; index++) {
+            partition.versions.add(readVersion(reader));
+        }
+
+        int folders = reader.version >= 5 ? reader.varInt() : 0;
+        partition.folders = new FolderTree();
+        for (int index = 0; index < folders; index++) {
+            partition.folders.add(readFolder(reader, userId));
+        }
+        return partition;
+    }
+
+    private static PartitionChanges readChanges(Reader reader) throws IOException {
+        long userId = reader.varLong();
+        PartitionChanges changes = PartitionChanges.empty(userId);
+
+        int sessions = reader.varInt();
+        for (int index = 0; index < sessions; index++) {
+            changes.sessions().add(readSession(reader, userId));
+        }
+        int removedSessions = reader.varInt();
+        for (int index = 0; index < removedSessions; index++) {
+            changes.removedSessions().add(reader.string());
+        }
+
+        int files = reader.varInt();
+        for (int index = 0; index < files; index++) {
+            changes.files().add(readFile(reader, userId));
+        }
+        readIds(reader, changes.removedFiles());
+
+        int shares = reader.varInt();
+        for (int index = 0; index < shares; index++) {
+            changes.shares().add(readShare(reader, userId));
+        }
+        readIds(reader, changes.removedShares());
+
+        int activities = reader.varInt();
+        for (int index = 0; index < activities; index++) {
+            changes.activities().add(readActivity(reader, userId));
+        }
+
+        int versions = reader.varInt();
+        for (int index = 0; index < versions; index++) {
+            changes.versions().add(readVersion(reader));
+        }
+        int removedVersions = reader.varInt();
+        for (int index = 0; index < removedVersions; index++) {
+            changes.removedVersions().add(new PartitionImage.VersionKey(reader.varLong(), reader.varLong()));
+        }
+
+        int folders = reader.varInt();
+        for (int index = 0; index < folders; index++) {
+            changes.folders().add(readFolder(reader, userId));
+        }
+        readIds(reader, changes.removedFolders());
+        return changes;
+    }
+
+    private static void readIds(Reader reader, List<Long> ids) throws IOException {
+        int count = reader.varInt();
+        for (int index = 0; index < count; index++) {
+            ids.add(reader.varLong());
+        }
+    }
+
+    private static AppStateStore.SessionRecord readSession(Reader reader, long userId) throws IOException {
+        return new AppStateStore.SessionRecord(
+                reader.string(),
+                userId,
+                reader.instant(),
+                reader.instant(),
+                reader.instant()
+        );
+    }
+
+    private static AppStateStore.FileRecord readFile(Reader reader, long userId) throws IOException {
+        return new AppStateStore.FileRecord(
+                reader.varLong(),
+                userId,
+                reader.string(),
+                reader.symbol(),
+                reader.varLong(),
+                reader.instant(),
+                reader.string(),
+                reader.version >= 2 ? reader.instant() : null,
+                reader.version >= 3 ? reader.varLong() - 1 : AppStateStore.FileRecord.NO_CHECKSUM,
+                reader.version >= 5 ? reader.varLong() : AppStateStore.FolderRecord.ROOT
+        );
+    }
+
+    private static AppStateStore.ShareRecord readShare(Reader reader, long userId) throws IOException {
+        return new AppStateStore.ShareRecord(
+                reader.varLong(),
+                reader.varLong(),
+                userId,
+                reader.string(),
+                reader.instant(),
+                reader.instant(),
+                reader.instant(),
+                reader.varLong()
+        );
+    }
+
+    private static AppStateStore.ActivityRecord readActivity(Reader reader, long userId) throws IOException {
+        return new AppStateStore.ActivityRecord(
+                reader.varLong(),
+                userId,
+                reader.symbol(),
+                reader.string(),
+                reader.instant()
+        );
+    }
+
+    private static AppStateStore.FileVersionRecord readVersion(Reader reader) throws IOException {
+        AppStateStore.FileVersionRecord version = new AppStateStore.FileVersionRecord(
+                reader.varLong(),
+                reader.varLong(),
+                reader.varLong(),
+                reader.varLong() - 1,
+                reader.string(),
+                reader.varInt() != 0,
+                reader.instant()
+        );
+        if (reader.version >= 6) {
+            version.storedSize = reader.varLong();
+        }
+        return version;
+    }
+
+    private static AppStateStore.FolderRecord readFolder(Reader reader, long userId) throws IOException {
+        return new AppStateStore.FolderRecord(
+                reader.varLong(),
+                userId,
+                reader.varLong(),
+                reader.string(),
+                reader.instant()
+        );
+    }
+
+    private static final class Writer {
+        private final OutputStream output;
+        private final byte[] buffer;
+        private final CRC32 crc = new CRC32();
+        private final Map<String, Integer> symbols = new HashMap<>();
+        private int position;
+
+        private Writer(OutputStream output, int bufferBytes) {
+            this.output = output;
+            this.buffer = new byte[bufferBytes];
+        }
+
+        private void header(int kind) throws IOException {
+            ensure(Integer.BYTES);
+            buffer[position++] = (byte) (MAGIC >>> 24);
+            buffer[position++] = (byte) (MAGIC >>> 16);
+            buffer[position++] = (byte) (MAGIC >>> 8);
+            buffer[position++] = (byte) MAGIC;
+            varInt(VERSION);
+            varInt(kind);
+        }
+
+        private void varInt(int value) throws IOException {
+            varLong(value & 0xFFFFFFFFL);
+        }
+
+        private void varLong(long value) throws IOException {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void instant(Instant instant) throws IOException {
+            if (instant == null) {
+                varLong(0);
+                return;
+            }
+            long millis = instant.toEpochMilli();
+            varLong(((millis << 1) ^ (millis >> 63)) + 1);
+        }
+
+        private void string(String value) throws IOException {
+            if (value == null) {
+                varInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varInt(bytes.length + 1);
+            bytes(bytes);
+        }
+
+        private void symbol(String value) throws IOException {
+            if (value == null) {
+                varInt(0);
+                return;
+            }
+            Integer index = symbols.get(value);
+            if (index != null) {
+                varInt(index + 2);
+                return;
+            }
+            symbols.put(value, symbols.size());
+            varInt(1);
+            string(value);
+        }
+
+        private void bytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (position == buffer.length) {
+                    flushBuffer();
+                }
+                int chunk = Math.min(bytes.length - offset, buffer.length - position);
+                System.arraycopy(bytes, offset, buffer, position, chunk);
+                position += chunk;
+                offset += chunk;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.length - position < bytes) {
+                flushBuffer();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            crc.update(buffer, 0, position);
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+
+        private void flush() throws IOException {
+            flushBuffer();
+            output.flush();
+        }
+
+        private void finish() throws IOException {
+            flushBuffer();
+            int checksum = (int) crc.getValue();
+            output.write(new byte[]{
+                    (byte) (checksum >>> 24),
+                    (byte) (checksum >>> 16),
+                    (byte) (checksum >>> 8),
+                    (byte) checksum
+            });
+            output.flush();
+        }
+    }
+
+    private static final class Reader {
+        private final InputStream input;
+        private final byte[] buffer;
+        private final CRC32 crc = new CRC32();
+        private final List<String> symbols = new ArrayList<>();
+        private int position;
+        private int limit;
+        private int version;
+
+        private Reader(InputStream input, int bufferBytes) {
+            this.input = input;
+            this.buffer = new byte[bufferBytes];
+        }
+
+        private void header(int expectedKind) throws IOException {
+            int kind = header();
+            if (kind != expectedKind) {
+                throw new IOException("Unexpected checkpoint kind " + kind);
+            }
+        }
+
+        private int header() throws IOException {
+            int magic = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+            if (magic != MAGIC) {
+                throw new IOException("Not a PatraKosh checkpoint");
+            }
+            version = varInt();
+            if (version < FIRST_VERSION || version > VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            return varInt();
+        }
+
+        private int varInt() throws IOException {
+            long value = varLong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt checkpoint: value out of range");
+            }
+            return (int) value;
+        }
+
+        private long varLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int next = readByte();
+                value |= (long) (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt checkpoint: malformed varint");
+        }
+
+        private Instant instant() throws IOException {
+            long encoded = varLong();
+            if (encoded == 0) {
+                return null;
+            }
+            long zigzag = encoded - 1;
+            return Instant.ofEpochMilli((zigzag >>> 1) ^ -(zigzag & 1));
+        }
+
+        private String string() throws IOException {
+            int length = varInt();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (limit - position >= length) {
+                String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+                position += length;
+                return value;
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                if (position == limit) {
+                    fill();
+                }
+                int chunk = Math.min(length - offset, limit - position);
+                System.arraycopy(buffer, position, bytes, offset, chunk);
+                position += chunk;
+                offset += chunk;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private String symbol() throws IOException {
+            int code = varInt();
+            if (code == 0) {
+                return null;
+            }
+            if (code == 1) {
+                String value = string();
+                symbols.add(value);
+                return value;
+            }
+            if (code - 2 >= symbols.size()) {
+                throw new IOException("Corrupt checkpoint: unknown string table entry");
+            }
+            return symbols.get(code - 2);
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit) {
+                fill();
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        private void fill() throws IOException {
+            crc.update(buffer, 0, limit);
+            position = 0;
+            limit = 0;
+            int read = input.read(buffer);
+            if (read <= 0) {
+                throw new EOFException("Truncated checkpoint");
+            }
+            limit = read;
+        }
+
+        private void finish() throws IOException {
+            crc.update(buffer, 0, position);
+            int expected = (int) crc.getValue();
+            int actual = 0;
+            for (int index = 0; index < Integer.BYTES; index++) {
+                actual = (actual << 8) | rawByte();
+            }
+            if (actual != expected) {
+                throw new IOException("Corrupt checkpoint: checksum mismatch");
+            }
+        }
+
+        private int rawByte() throws IOException {
+            if (position == limit) {
+                position = 0;
+                limit = input.read(buffer);
+                if (limit <= 0) {
+                    limit = 0;
+                    throw new EOFException("Truncated checkpoint");
+                }
+            }
+            return buffer[position++] & 0xFF;
+        }
+    }
+}
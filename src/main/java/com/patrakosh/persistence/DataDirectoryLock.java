@@ -0,0 +1,63 @@
+package com.patrakosh.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Exclusive lock on a data directory, held through a {@code .lock} file for as long as a store has the directory
+ * open.
+ *
+ * <p>A store keeps its state in memory and only appends to disk, so two stores on one directory, such as the
+ * desktop app and the API, would silently overwrite each other's writes. The second one fails to open instead,
+ * whether it runs in another process or in the same one.
+ */
+final class DataDirectoryLock implements Closeable {
+
+    static final String FILE_NAME = ".lock";
+
+    private final FileChannel channel;
+
+    private DataDirectoryLock(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Locks {@code dataRoot}, or fails with {@link IllegalStateException} if another store has it.
+     */
+    static DataDirectoryLock acquire(Path dataRoot) throws IOException {
+        Path lockFile = dataRoot.toAbsolutePath().normalize().resolve(FILE_NAME);
+        Files.createDirectories(lockFile.getParent());
+        FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException exception) {
+            channel.close();
+            throw new IllegalStateException(
+                    "Data directory " + lockFile.getParent() + " is in use by another PatraKosh store in this process"
+            );
+        } catch (IOException | RuntimeException exception) {
+            channel.close();
+            throw exception;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IllegalStateException(
+                    "Data directory " + lockFile.getParent() + " is in use by another PatraKosh process"
+            );
+        }
+        return new DataDirectoryLock(channel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Closing the channel releases the lock.
+        channel.close();
+    }
+}
@@ -0,0 +1,34 @@
+package com.patrakosh.persistence;
+
+import java.util.Locale;
+
+public enum DurabilityMode {
+
+    /**
+     * Every commit forces its journal entry to disk before the shard lock is released.
+     */
+    FSYNC,
+
+    /**
+     * Commits append under the shard lock and then wait for a shared fsync. Writers that arrive within the
+     * group-commit window are made durable by a single force.
+     */
+    GROUP,
+
+    /**
+     * Commits return as soon as the entry is appended. A background flusher forces dirty journals
+     * periodically, so a crash can lose up to one flush interval of acknowledged writes.
+     */
+    ASYNC;
+
+    public static DurabilityMode parse(String value) {
+        if (value == null || value.isBlank()) {
+            return GROUP;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException("Unknown durability mode: " + value, exception);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.patrakosh.persistence;
+
+import java.time.Duration;
+
+public record DurabilitySettings(
+        DurabilityMode mode,
+        Duration groupCommitWindow,
+        Duration asyncFlushInterval,
+        long checkpointJournalBytes
+) {
+
+    public static final long DEFAULT_CHECKPOINT_JOURNAL_BYTES = 8L * 1024 * 1024;
+
+    public DurabilitySettings {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode is required");
+        }
+        if (groupCommitWindow == null || groupCommitWindow.isNegative()) {
+            throw new IllegalArgumentException("groupCommitWindow must not be negative");
+        }
+        if (asyncFlushInterval == null || asyncFlushInterval.isZero() || asyncFlushInterval.isNegative()) {
+            throw new IllegalArgumentException("asyncFlushInterval must be positive");
+        }
+        if (checkpointJournalBytes < 1) {
+            throw new IllegalArgumentException("checkpointJournalBytes must be greater than zero");
+        }
+    }
+
+    public static DurabilitySettings defaults() {
+        return of(DurabilityMode.GROUP);
+    }
+
+    public static DurabilitySettings of(DurabilityMode mode) {
+        return new DurabilitySettings(
+                mode,
+                Duration.ofMillis(1),
+                Duration.ofMillis(200),
+                DEFAULT_CHECKPOINT_JOURNAL_BYTES
+        );
+    }
+
+    public DurabilitySettings withCheckpointJournalBytes(long bytes) {
+        return new DurabilitySettings(mode, groupCommitWindow, asyncFlushInterval, bytes);
+    }
+}
@@ -0,0 +1,538 @@
+package com.patrakosh.persistence;
+
+import java.time.Instant;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * A user's file records stored column by column in primitive arrays.
+ *
+ * <p>Upload times are kept as epoch millis, mime types as codes into a shared dictionary, and storage keys
+ * of the usual {@code user-<id>/<uuid><extension>} shape as two longs plus a dictionary-coded extension.
+ * Anything that does not fit those encodings, such as keys written by older versions or more distinct mime
+ * types than the dictionary holds, is kept as a plain string in a side column that is only allocated when
+ * needed.
+ *
+ * <p>Files moved to the trash keep their row, with the time they were deleted in {@link #deletedAt}.
+ *
+ * <p>Lookups by id and by folder go through indexes that are built on first use and kept up to date from then
+ * on, so tables that are only loaded and saved never pay for them. The id index maps to row positions and is
+ * dropped whenever rows shift.
+ *
+ * <p>{@link #get} returns a fresh {@link AppStateStore.FileRecord} on every call, so changing one of its fields
+ * does not change the table; write it back with {@link #set} or use {@link #rename}.
+ *
+ * <p>While a write is tracked, every change is noted in a {@link ChangeLog} together with the row as it was, so
+ * the write can be undone and journaled without copying the rows it left alone.
+ */
+public final class FileTable extends AbstractList<AppStateStore.FileRecord> implements RandomAccess {
+
+    static final StringDictionary MIME_TYPES = new StringDictionary(4096, 128);
+    static final StringDictionary EXTENSIONS = new StringDictionary(4096, 16);
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final int RAW = -1;
+    private static final int UUID_LENGTH = 36;
+
+    private long userId;
+    private boolean owned;
+    private int size;
+    private long[] ids;
+    private long[] fileSizes;
+    private long[] uploadMillis;
+    private long[] deletedMillis;
+    private long[] checksums;
+    private long[] folderIds;
+    private long[] keyHigh;
+    private long[] keyLow;
+    private int[] mimeCodes;
+    private int[] extensionCodes;
+    private String[] filenames;
+    private String[] rawMimeTypes;
+    private String[] rawKeys;
+    private Map<Long, Integer> positions;
+    private Map<Long, LinkedHashSet<Long>> idsByFolder;
+    private ChangeLog<Long, AppStateStore.FileRecord> changeLog;
+
+    public FileTable() {
+        this(0);
+    }
+
+    public FileTable(int capacity) {
+        allocate(capacity);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public AppStateStore.FileRecord get(int index) {
+        Objects.checkIndex(index, size);
+        return new AppStateStore.FileRecord(
+                ids[index],
+                userId,
+                filenames[index],
+                mimeType(index),
+                fileSizes[index],
+                uploadMillis[index] == NO_TIME ? null : Instant.ofEpochMilli(uploadMillis[index]),
+                storageKey(index),
+                deletedAt(index),
+                checksums[index],
+                folderIds[index]
+        );
+    }
+
+    @Override
+    public AppStateStore.FileRecord set(int index, AppStateStore.FileRecord file) {
+        AppStateStore.FileRecord previous = get(index);
+        claimOwner(file);
+        unindex(index);
+        if (positions != null && previous.id != file.id) {
+            positions.remove(previous.id);
+        }
+        write(index, file);
+        index(index);
+        if (changeLog != null) {
+            changeLog.replaced(index, previous, file);
+        }
+        return previous;
+    }
+
+    @Override
+    public void add(int index, AppStateStore.FileRecord file) {
+        Objects.checkIndex(index, size + 1);
+        claimOwner(file);
+        if (size == ids.length) {
+            allocate(Math.max(8, size + (size >> 1)));
+        }
+        if (index < size) {
+            shift(index, index + 1, size - index);
+            positions = null;
+        }
+        size++;
+        modCount++;
+        write(index, file);
+        index(index);
+        if (changeLog != null) {
+            changeLog.inserted(index, file);
+        }
+    }
+
+    @Override
+    public AppStateStore.FileRecord remove(int index) {
+        AppStateStore.FileRecord removed = get(index);
+        unindex(index);
+        positions = null;
+        shift(index + 1, index, size - index - 1);
+        size--;
+        clearReferences(size, size + 1);
+        modCount++;
+        if (changeLog != null) {
+            changeLog.removed(index, removed);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super AppStateStore.FileRecord> filter) {
+        List<Integer> removedPositions = changeLog == null ? null : new ArrayList<>();
+        List<AppStateStore.FileRecord> removedFiles = changeLog == null ? null : new ArrayList<>();
+        int kept = 0;
+        for (int index = 0; index < size; index++) {
+            AppStateStore.FileRecord file = get(index);
+            if (!filter.test(file)) {
+                if (kept != index) {
+                    shift(index, kept, 1);
+                }
+                kept++;
+            } else {
+                unindex(index);
+                if (changeLog != null) {
+                    removedPositions.add(index);
+                    removedFiles.add(file);
+                }
+            }
+        }
+        if (kept == size) {
+            return false;
+        }
+        positions = null;
+        clearReferences(kept, size);
+        size = kept;
+        modCount++;
+        if (changeLog != null) {
+            // Logged last to first, so undoing puts each row back after the ones that were before it.
+            for (int removed = removedFiles.size() - 1; removed >= 0; removed--) {
+                changeLog.removed(removedPositions.get(removed), removedFiles.get(removed));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        if (changeLog != null) {
+            for (int index = size - 1; index >= 0; index--) {
+                changeLog.removed(index, get(index));
+            }
+        }
+        clearReferences(0, size);
+        size = 0;
+        positions = null;
+        idsByFolder = null;
+        modCount++;
+    }
+
+    /**
+     * Returns the position of the file with the given id, or -1.
+     */
+    public int positionOf(long fileId) {
+        if (positions == null) {
+            positions = new HashMap<>(Math.max(16, size * 2));
+            for (int index = 0; index < size; index++) {
+                positions.put(ids[index], index);
+            }
+        }
+        Integer position = positions.get(fileId);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * Positions of the files in a folder, trashed ones included, in the order they were added to it.
+     */
+    public int[] positionsIn(long folderId) {
+        if (idsByFolder == null) {
+            idsByFolder = new HashMap<>();
+            for (int index = 0; index < size; index++) {
+                index(index);
+            }
+        }
+        LinkedHashSet<Long> fileIds = idsByFolder.get(folderId);
+        if (fileIds == null) {
+            return new int[0];
+        }
+        int[] result = new int[fileIds.size()];
+        int count = 0;
+        for (long fileId : fileIds) {
+            result[count++] = positionOf(fileId);
+        }
+        return result;
+    }
+
+    public long id(int index) {
+        Objects.checkIndex(index, size);
+        return ids[index];
+    }
+
+    public long fileSize(int index) {
+        Objects.checkIndex(index, size);
+        return fileSizes[index];
+    }
+
+    public String filename(int index) {
+        Objects.checkIndex(index, size);
+        return filenames[index];
+    }
+
+    public void rename(int index, String filename) {
+        Objects.checkIndex(index, size);
+        beforeChange(index);
+        filenames[index] = filename;
+    }
+
+    /**
+     * When the file at {@code index} was moved to the trash, or null while it is live.
+     */
+    public Instant deletedAt(int index) {
+        Objects.checkIndex(index, size);
+        return deletedMillis[index] == NO_TIME ? null : Instant.ofEpochMilli(deletedMillis[index]);
+    }
+
+    public boolean isDeleted(int index) {
+        Objects.checkIndex(index, size);
+        return deletedMillis[index] != NO_TIME;
+    }
+
+    /**
+     * Moves the file at {@code index} to the trash, or restores it when {@code deletedAt} is null.
+     */
+    public void setDeletedAt(int index, Instant deletedAt) {
+        Objects.checkIndex(index, size);
+        beforeChange(index);
+        deletedMillis[index] = deletedAt == null ? NO_TIME : deletedAt.toEpochMilli();
+    }
+
+    public long checksum(int index) {
+        Objects.checkIndex(index, size);
+        return checksums[index];
+    }
+
+    public void setChecksum(int index, long checksum) {
+        Objects.checkIndex(index, size);
+        beforeChange(index);
+        checksums[index] = checksum;
+    }
+
+    public long folderId(int index) {
+        Objects.checkIndex(index, size);
+        return folderIds[index];
+    }
+
+    public void setFolderId(int index, long folderId) {
+        Objects.checkIndex(index, size);
+        beforeChange(index);
+        unindex(index);
+        folderIds[index] = folderId;
+        index(index);
+    }
+
+    public int liveCount() {
+        int live = 0;
+        for (int index = 0; index < size; index++) {
+            if (deletedMillis[index] == NO_TIME) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Total size of the files that are not in the trash.
+     */
+    public long liveSize() {
+        long total = 0;
+        for (int index = 0; index < size; index++) {
+            if (deletedMillis[index] == NO_TIME) {
+                total += fileSizes[index];
+            }
+        }
+        return total;
+    }
+
+    public long totalSize() {
+        long total = 0;
+        for (int index = 0; index < size; index++) {
+            total += fileSizes[index];
+        }
+        return total;
+    }
+
+    /**
+     * Starts noting changes, so that they can be listed with {@link #collectChanges} or undone with
+     * {@link #rollback}.
+     */
+    void track() {
+        changeLog = new ChangeLog<>(file -> file.id, file -> file);
+    }
+
+    void untrack() {
+        changeLog = null;
+    }
+
+    /**
+     * Adds the files the tracked write added or changed to {@code puts} and the ids of those it removed to
+     * {@code removals}.
+     */
+    void collectChanges(List<AppStateStore.FileRecord> puts, List<Long> removals) {
+        changeLog.before().forEach((fileId, previous) -> {
+            int position = positionOf(fileId);
+            if (position < 0) {
+                if (previous != null) {
+                    removals.add(fileId);
+                }
+                return;
+            }
+            AppStateStore.FileRecord current = get(position);
+            if (previous == null || !PartitionImage.sameFile(previous, current)) {
+                puts.add(current);
+            }
+        });
+    }
+
+    /**
+     * Undoes every change since {@link #track} and stops tracking.
+     */
+    void rollback() {
+        ChangeLog<Long, AppStateStore.FileRecord> undone = changeLog;
+        changeLog = null;
+        undone.undo(this);
+    }
+
+    private void beforeChange(int index) {
+        if (changeLog != null) {
+            changeLog.changed(index, get(index));
+        }
+    }
+
+    private void claimOwner(AppStateStore.FileRecord file) {
+        if (!owned) {
+            userId = file.userId;
+            owned = true;
+        } else if (file.userId != userId) {
+            throw new IllegalArgumentException("File " + file.id + " belongs to user " + file.userId + ", not " + userId);
+        }
+    }
+
+    private void write(int index, AppStateStore.FileRecord file) {
+        ids[index] = file.id;
+        fileSizes[index] = file.fileSize;
+        uploadMillis[index] = file.uploadTime == null ? NO_TIME : file.uploadTime.toEpochMilli();
+        deletedMillis[index] = file.deletedAt == null ? NO_TIME : file.deletedAt.toEpochMilli();
+        checksums[index] = file.checksum;
+        folderIds[index] = file.folderId;
+        filenames[index] = file.filename;
+        writeMimeType(index, file.mimeType);
+        writeStorageKey(index, file.storageKey);
+    }
+
+    private void index(int index) {
+        if (positions != null) {
+            positions.put(ids[index], index);
+        }
+        if (idsByFolder != null) {
+            idsByFolder.computeIfAbsent(folderIds[index], folder -> new LinkedHashSet<>()).add(ids[index]);
+        }
+    }
+
+    private void unindex(int index) {
+        if (idsByFolder != null) {
+            LinkedHashSet<Long> fileIds = idsByFolder.get(folderIds[index]);
+            if (fileIds != null && fileIds.remove(ids[index]) && fileIds.isEmpty()) {
+                idsByFolder.remove(folderIds[index]);
+            }
+        }
+    }
+
+    private void writeMimeType(int index, String mimeType) {
+        int code = mimeType == null ? 0 : MIME_TYPES.codeOf(mimeType);
+        if (mimeType != null && code == 0) {
+            rawMimeTypes = ensureColumn(rawMimeTypes);
+            rawMimeTypes[index] = mimeType;
+            code = RAW;
+        } else if (rawMimeTypes != null) {
+            rawMimeTypes[index] = null;
+        }
+        mimeCodes[index] = code;
+    }
+
+    private String mimeType(int index) {
+        int code = mimeCodes[index];
+        if (code == RAW) {
+            return rawMimeTypes[index];
+        }
+        return code == 0 ? null : MIME_TYPES.valueOf(code);
+    }
+
+    private void writeStorageKey(int index, String storageKey) {
+        String prefix = "user-" + userId + "/";
+        int extensionCode = 0;
+        UUID uuid = null;
+        if (storageKey != null
+                && storageKey.length() >= prefix.length() + UUID_LENGTH
+                && storageKey.startsWith(prefix)) {
+            String uuidText = storageKey.substring(prefix.length(), prefix.length() + UUID_LENGTH);
+            uuid = parseCanonicalUuid(uuidText);
+            if (uuid != null) {
+                extensionCode = EXTENSIONS.codeOf(storageKey.substring(prefix.length() + UUID_LENGTH));
+            }
+        }
+
+        if (extensionCode == 0) {
+            rawKeys = ensureColumn(rawKeys);
+            rawKeys[index] = storageKey;
+        } else {
+            keyHigh[index] = uuid.getMostSignificantBits();
+            keyLow[index] = uuid.getLeastSignificantBits();
+            if (rawKeys != null) {
+                rawKeys[index] = null;
+            }
+        }
+        extensionCodes[index] = extensionCode;
+    }
+
+    private String storageKey(int index) {
+        int extensionCode = extensionCodes[index];
+        if (extensionCode == 0) {
+            return rawKeys == null ? null : rawKeys[index];
+        }
+        return "user-" + userId + "/" + new UUID(keyHigh[index], keyLow[index]) + EXTENSIONS.valueOf(extensionCode);
+    }
+
+    private static UUID parseCanonicalUuid(String value) {
+        try {
+            UUID uuid = UUID.fromString(value);
+            // fromString accepts short and upper-case forms that would not print back the same way.
+            return uuid.toString().equals(value) ? uuid : null;
+        } catch (IllegalArgumentException exception) {
+            return null;
+        }
+    }
+
+    private String[] ensureColumn(String[] column) {
+        return column == null ? new String[ids.length] : column;
+    }
+
+    private void allocate(int capacity) {
+        ids = ids == null ? new long[capacity] : Arrays.copyOf(ids, capacity);
+        fileSizes = fileSizes == null ? new long[capacity] : Arrays.copyOf(fileSizes, capacity);
+        uploadMillis = uploadMillis == null ? new long[capacity] : Arrays.copyOf(uploadMillis, capacity);
+        deletedMillis = deletedMillis == null ? new long[capacity] : Arrays.copyOf(deletedMillis, capacity);
+        checksums = checksums == null ? new long[capacity] : Arrays.copyOf(checksums, capacity);
+        folderIds = folderIds == null ? new long[capacity] : Arrays.copyOf(folderIds, capacity);
+        keyHigh = keyHigh == null ? new long[capacity] : Arrays.copyOf(keyHigh, capacity);
+        keyLow = keyLow == null ? new long[capacity] : Arrays.copyOf(keyLow, capacity);
+        mimeCodes = mimeCodes == null ? new int[capacity] : Arrays.copyOf(mimeCodes, capacity);
+        extensionCodes = extensionCodes == null ? new int[capacity] : Arrays.copyOf(extensionCodes, capacity);
+        filenames = filenames == null ? new String[capacity] : Arrays.copyOf(filenames, capacity);
+        if (rawMimeTypes != null) {
+            rawMimeTypes = Arrays.copyOf(rawMimeTypes, capacity);
+        }
+        if (rawKeys != null) {
+            rawKeys = Arrays.copyOf(rawKeys, capacity);
+        }
+    }
+
+    private void shift(int from, int to, int length) {
+        if (length <= 0) {
+            return;
+        }
+        System.arraycopy(ids, from, ids, to, length);
+        System.arraycopy(fileSizes, from, fileSizes, to, length);
+        System.arraycopy(uploadMillis, from, uploadMillis, to, length);
+        System.arraycopy(deletedMillis, from, deletedMillis, to, length);
+        System.arraycopy(checksums, from, checksums, to, length);
+        System.arraycopy(folderIds, from, folderIds, to, length);
+        System.arraycopy(keyHigh, from, keyHigh, to, length);
+        System.arraycopy(keyLow, from, keyLow, to, length);
+        System.arraycopy(mimeCodes, from, mimeCodes, to, length);
+        System.arraycopy(extensionCodes, from, extensionCodes, to, length);
+        System.arraycopy(filenames, from, filenames, to, length);
+        if (rawMimeTypes != null) {
+            System.arraycopy(rawMimeTypes, from, rawMimeTypes, to, length);
+        }
+        if (rawKeys != null) {
+            System.arraycopy(rawKeys, from, rawKeys, to, length);
+        }
+    }
+
+    private void clearReferences(int from, int to) {
+        Arrays.fill(filenames, from, to, null);
+        if (rawMimeTypes != null) {
+            Arrays.fill(rawMimeTypes, from, to, null);
+        }
+        if (rawKeys != null) {
+            Arrays.fill(rawKeys, from, to, null);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.patrakosh.persistence;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+/**
+ * A user's folders, indexed by id and by parent, so listing a folder only touches its own children.
+ *
+ * <p>Each folder only knows its parent, which makes moving or renaming a folder a change to one record no
+ * matter how much lives below it. Paths are resolved one level at a time through the children index, and
+ * resolved paths are cached; the cache is dropped whenever a folder is renamed, moved or removed, since any
+ * of those can change what a cached path points to. Sibling names are unique, ignoring case.
+ *
+ * <p>Like {@link FileTable}, {@link #get} returns a copy; use {@link #rename} and {@link #move} to change a
+ * folder. Tracked writes are noted in a {@link ChangeLog} the same way too.
+ */
+public final class FolderTree extends AbstractList<AppStateStore.FolderRecord> implements RandomAccess {
+
+    private final List<AppStateStore.FolderRecord> rows = new ArrayList<>();
+    private final Map<Long, Integer> positions = new HashMap<>();
+    private final Map<Long, Map<String, Long>> children = new HashMap<>();
+    private final Map<String, Long> resolvedPaths = new HashMap<>();
+    private ChangeLog<Long, AppStateStore.FolderRecord> changeLog;
+
+    @Override
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    public AppStateStore.FolderRecord get(int index) {
+        return copy(rows.get(index));
+    }
+
+    @Override
+    public AppStateStore.FolderRecord set(int index, AppStateStore.FolderRecord folder) {
+        AppStateStore.FolderRecord previous = rows.get(index);
+        unindex(previous);
+        positions.remove(previous.id);
+        try {
+            index(folder, index);
+        } catch (IllegalArgumentException exception) {
+            index(previous, index);
+            throw exception;
+        }
+        rows.set(index, copy(folder));
+        resolvedPaths.clear();
+        if (changeLog != null) {
+            changeLog.replaced(index, previous, folder);
+        }
+        return copy(previous);
+    }
+
+    @Override
+    public void add(int index, AppStateStore.FolderRecord folder) {
+        Objects.checkIndex(index, rows.size() + 1);
+        index(folder, index);
+        rows.add(index, copy(folder));
+        if (index < rows.size() - 1) {
+            reindexPositions();
+        }
+        modCount++;
+        if (changeLog != null) {
+            changeLog.inserted(index, folder);
+        }
+    }
+
+    @Override
+    public AppStateStore.FolderRecord remove(int index) {
+        AppStateStore.FolderRecord removed = rows.remove(index);
+        unindex(removed);
+        positions.remove(removed.id);
+        reindexPositions();
+        resolvedPaths.clear();
+        modCount++;
+        if (changeLog != null) {
+            changeLog.removed(index, removed);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super AppStateStore.FolderRecord> filter) {
+        List<Integer> matches = new ArrayList<>();
+        for (int index = 0; index < rows.size(); index++) {
+            if (filter.test(copy(rows.get(index)))) {
+                matches.add(index);
+            }
+        }
+        if (matches.isEmpty()) {
+            return false;
+        }
+        // Last to first, so the positions still to remove do not shift and undoing puts each row back in order.
+        for (int match = matches.size() - 1; match >= 0; match--) {
+            int index = matches.get(match);
+            AppStateStore.FolderRecord folder = rows.remove(index);
+            unindex(folder);
+            positions.remove(folder.id);
+            if (changeLog != null) {
+                changeLog.removed(index, folder);
+            }
+        }
+        reindexPositions();
+        resolvedPaths.clear();
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        if (changeLog != null) {
+            for (int index = rows.size() - 1; index >= 0; index--) {
+                changeLog.removed(index, rows.get(index));
+            }
+        }
+        rows.clear();
+        positions.clear();
+        children.clear();
+        resolvedPaths.clear();
+        modCount++;
+    }
+
+    /**
+     * Whether {@code folderId} names a folder in this tree or the root.
+     */
+    public boolean contains(long folderId) {
+        return folderId == AppStateStore.FolderRecord.ROOT || positions.containsKey(folderId);
+    }
+
+    /**
+     * Returns the folder with the given id, or null.
+     */
+    public AppStateStore.FolderRecord find(long folderId) {
+        Integer position = positions.get(folderId);
+        return position == null ? null : copy(rows.get(position));
+    }
+
+    /**
+     * Folders directly inside {@code parentId}, in the order they were added.
+     */
+    public List<AppStateStore.FolderRecord> children(long parentId) {
+        Map<String, Long> byName = children.get(parentId);
+        if (byName == null) {
+            return List.of();
+        }
+        List<AppStateStore.FolderRecord> result = new ArrayList<>(byName.size());
+        for (long childId : byName.values()) {
+            result.add(copy(rows.get(positions.get(childId))));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the folder named {@code name} directly inside {@code parentId}, ignoring case, or null.
+     */
+    public AppStateStore.FolderRecord child(long parentId, String name) {
+        Map<String, Long> byName = children.get(parentId);
+        Long childId = byName == null ? null : byName.get(key(name));
+        return childId == null ? null : find(childId);
+    }
+
+    /**
+     * Resolves a slash-separated path from the root, ignoring case and empty segments, to a folder id:
+     * {@link AppStateStore.FolderRecord#ROOT} for the root itself and -1 when no such folder exists.
+     */
+    public long resolve(String path) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isBlank()) {
+                segments.add(key(segment));
+            }
+        }
+        String normalized = String.join("/", segments);
+        Long cached = resolvedPaths.get(normalized);
+        if (cached != null) {
+            return cached;
+        }
+        long folderId = AppStateStore.FolderRecord.ROOT;
+        for (String segment : segments) {
+            Map<String, Long> byName = children.get(folderId);
+            Long childId = byName == null ? null : byName.get(segment);
+            if (childId == null) {
+                return -1;
+            }
+            folderId = childId;
+        }
+        resolvedPaths.put(normalized, folderId);
+        return folderId;
+    }
+
+    /**
+     * The path of a folder from the root, such as {@code /photos/2024}, or {@code /} for the root.
+     */
+    public String path(long folderId) {
+        Deque<String> names = new ArrayDeque<>();
+        long current = folderId;
+        while (current != AppStateStore.FolderRecord.ROOT) {
+            AppStateStore.FolderRecord folder = rows.get(positions.get(current));
+            names.addFirst(folder.name);
+            current = folder.parentId;
+        }
+        return "/" + String.join("/", names);
+    }
+
+    /**
+     * Ids of a folder and every folder below it, parents before their children.
+     */
+    public List<Long> subtree(long folderId) {
+        List<Long> result = new ArrayList<>();
+        result.add(folderId);
+        for (int next = 0; next < result.size(); next++) {
+            result.addAll(children.getOrDefault(result.get(next), Collections.emptyMap()).values());
+        }
+        return result;
+    }
+
+    /**
+     * Whether {@code folderId} is {@code ancestorId} or somewhere below it.
+     */
+    public boolean isWithin(long folderId, long ancestorId) {
+        long current = folderId;
+        while (true) {
+            if (current == ancestorId) {
+                return true;
+            }
+            if (current == AppStateStore.FolderRecord.ROOT) {
+                return false;
+            }
+            current = rows.get(positions.get(current)).parentId;
+        }
+    }
+
+    public void rename(long folderId, String name) {
+        AppStateStore.FolderRecord folder = copy(rows.get(positions.get(folderId)));
+        folder.name = name;
+        set(positions.get(folderId), folder);
+    }
+
+    public void move(long folderId, long parentId) {
+        AppStateStore.FolderRecord folder = copy(rows.get(positions.get(folderId)));
+        folder.parentId = parentId;
+        set(positions.get(folderId), folder);
+    }
+
+    /**
+     * Starts noting changes, so that they can be listed with {@link #collectChanges} or undone with
+     * {@link #rollback}.
+     */
+    void track() {
+        changeLog = new ChangeLog<>(folder -> folder.id, folder -> folder);
+    }
+
+    void untrack() {
+        changeLog = null;
+    }
+
+    /**
+     * Adds the folders the tracked write added or changed to {@code puts} and the ids of those it removed to
+     * {@code removals}.
+     */
+    void collectChanges(List<AppStateStore.FolderRecord> puts, List<Long> removals) {
+        changeLog.before().forEach((folderId, previous) -> {
+            AppStateStore.FolderRecord current = find(folderId);
+            if (current == null) {
+                if (previous != null) {
+                    removals.add(folderId);
+                }
+            } else if (previous == null || !PartitionImage.sameFolder(previous, current)) {
+                puts.add(current);
+            }
+        });
+    }
+
+    /**
+     * Undoes every change since {@link #track} and stops tracking.
+     */
+    void rollback() {
+        ChangeLog<Long, AppStateStore.FolderRecord> undone = changeLog;
+        changeLog = null;
+        undone.undo(this);
+    }
+
+    private void index(AppStateStore.FolderRecord folder, int position) {
+        if (positions.containsKey(folder.id)) {
+            throw new IllegalArgumentException("Folder " + folder.id + " is already in the tree");
+        }
+        Map<String, Long> siblings = children.computeIfAbsent(folder.parentId, parent -> new LinkedHashMap<>());
+        if (siblings.putIfAbsent(key(folder.name), folder.id) != null) {
+            throw new IllegalArgumentException("Folder " + folder.parentId + " already has a child named " + folder.name);
+        }
+        positions.put(folder.id, position);
+    }
+
+    private void unindex(AppStateStore.FolderRecord folder) {
+        Map<String, Long> siblings = children.get(folder.parentId);
+        if (siblings != null && siblings.remove(key(folder.name), folder.id) && siblings.isEmpty()) {
+            children.remove(folder.parentId);
+        }
+    }
+
+    private void reindexPositions() {
+        positions.clear();
+        for (int index = 0; index < rows.size(); index++) {
+            positions.put(rows.get(index).id, index);
+        }
+    }
+
+    private static String key(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+
+    private static AppStateStore.FolderRecord copy(AppStateStore.FolderRecord folder) {
+        return new AppStateStore.FolderRecord(folder.id, folder.userId, folder.parentId, folder.name, folder.createdAt);
+    }
+}
@@ -0,0 +1,117 @@
+package com.patrakosh.persistence;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * {@link BlobStore} that keeps every blob on the heap and loses them on restart. Meant for tests and benchmarks
+ * that should not measure the disk.
+ */
+@Component
+@ConditionalOnProperty(name = "patrakosh.storage.backend", havingValue = "memory")
+public class InMemoryBlobStore implements BlobStore {
+
+    private final ConcurrentSkipListMap<String, Blob> blobs = new ConcurrentSkipListMap<>();
+    private final Clock clock;
+
+    @Autowired
+    public InMemoryBlobStore() {
+        this(Clock.systemUTC());
+    }
+
+    public InMemoryBlobStore(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public long put(String key, InputStream content, long length) throws IOException {
+        byte[] bytes = content.readAllBytes();
+        blobs.put(key, new Blob(bytes, clock.instant()));
+        return bytes.length;
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        return new ByteArrayInputStream(blob(key).content());
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        byte[] content = blob(key).content();
+        int start = (int) Math.min(offset, content.length);
+        return new ByteArrayInputStream(content, start, (int) Math.min(length, content.length - start));
+    }
+
+    @Override
+    public Optional<BlobInfo> stat(String key) {
+        Blob blob = blobs.get(key);
+        return blob == null ? Optional.empty() : Optional.of(new BlobInfo(key, blob.content().length, blob.modifiedAt()));
+    }
+
+    @Override
+    public void delete(String key) {
+        blobs.remove(key);
+    }
+
+    @Override
+    public void move(String sourceKey, String targetKey) throws IOException {
+        Blob blob = blobs.remove(sourceKey);
+        if (blob == null) {
+            throw new NoSuchFileException(sourceKey);
+        }
+        blobs.put(targetKey, blob);
+    }
+
+    /**
+     * Shares the original's contents, which are never modified once stored.
+     */
+    @Override
+    public void copy(String sourceKey, String targetKey) throws IOException {
+        blobs.put(targetKey, new Blob(blob(sourceKey).content(), clock.instant()));
+    }
+
+    @Override
+    public List<BlobInfo> list(String directory) {
+        String prefix = directory + "/";
+        return blobs.subMap(prefix, prefix + Character.MAX_VALUE).entrySet().stream()
+                .filter(entry -> entry.getKey().indexOf('/', prefix.length()) < 0)
+                .map(entry -> new BlobInfo(entry.getKey(), entry.getValue().content().length, entry.getValue().modifiedAt()))
+                .toList();
+    }
+
+    @Override
+    public List<String> directories() {
+        return blobs.keySet().stream()
+                .filter(key -> key.indexOf('/') > 0)
+                .map(key -> key.substring(0, key.indexOf('/')))
+                .distinct()
+                .sorted()
+                .toList();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Blob blob(String key) throws NoSuchFileException {
+        Blob blob = blobs.get(key);
+        if (blob == null) {
+            throw new NoSuchFileException(key);
+        }
+        return blob;
+    }
+
+    private record Blob(byte[] content, Instant modifiedAt) {
+    }
+}
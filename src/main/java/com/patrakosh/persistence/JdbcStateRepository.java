@@ -0,0 +1,475 @@
+package com.patrakosh.persistence;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Function;
+
+/**
+ * {@link StateRepository} backed by a relational database through a pooled {@link DataSource}, using the
+ * tables from {@code db/schema-h2.sql}.
+ *
+ * <p>A partition is loaded with one indexed query per table. {@link #writeUser} locks the user's row, hands the
+ * loaded partition to the writer and then writes back only the rows the writer added, changed or removed, as its
+ * change logs noted them, all in one transaction. Session checks, downloads and share links do not load a
+ * partition at all: each is a single query by primary key or unique token.
+ */
+public class JdbcStateRepository implements StateRepository {
+
+    private static final String SCHEMA = "db/schema-h2.sql";
+
+    private static final RowMapper<AppStateStore.UserRecord> USER_ROW = (row, index) -> new AppStateStore.UserRecord(
+            row.getLong("id"),
+            row.getString("username"),
+            row.getString("email"),
+            row.getString("password"),
+            instant(row, "created_at")
+    );
+
+    private static final String SESSION_COLUMNS = "session_id, user_id, created_at, expires_at, revoked_at";
+    private static final String FILE_COLUMNS =
+            "id, user_id, filename, mime_type, file_size, upload_time, filepath, deleted_at, content_crc32c, folder_id";
+    private static final String SHARE_COLUMNS =
+            "id, file_id, shared_by_user_id, share_token, created_at, expires_at, revoked_at, access_count";
+
+    private static final RowMapper<AppStateStore.SessionRecord> SESSION_ROW = (row, index) -> new AppStateStore.SessionRecord(
+            row.getString("session_id"),
+            row.getLong("user_id"),
+            instant(row, "created_at"),
+            instant(row, "expires_at"),
+            instant(row, "revoked_at")
+    );
+
+    private static final RowMapper<AppStateStore.FileRecord> FILE_ROW = (row, index) -> new AppStateStore.FileRecord(
+            row.getLong("id"),
+            row.getLong("user_id"),
+            row.getString("filename"),
+            row.getString("mime_type"),
+            row.getLong("file_size"),
+            instant(row, "upload_time"),
+            row.getString("filepath"),
+            instant(row, "deleted_at"),
+            checksum(row),
+            row.getLong("folder_id")
+    );
+
+    private static final RowMapper<AppStateStore.ShareRecord> SHARE_ROW = (row, index) -> new AppStateStore.ShareRecord(
+            row.getLong("id"),
+            row.getLong("file_id"),
+            row.getLong("shared_by_user_id"),
+            row.getString("share_token"),
+            instant(row, "created_at"),
+            instant(row, "expires_at"),
+            instant(row, "revoked_at"),
+            row.getLong("access_count")
+    );
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate transactions;
+    private final TransactionTemplate readTransactions;
+
+    public JdbcStateRepository(DataSource dataSource) {
+        this.jdbc = new JdbcTemplate(dataSource);
+        this.transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.readTransactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.readTransactions.setReadOnly(true);
+        DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(new ClassPathResource(SCHEMA)), dataSource);
+    }
+
+    @Override
+    public Optional<AppStateStore.UserRecord> findUser(long userId) {
+        return jdbc.query(
+                "SELECT id, username, email, password, created_at FROM users WHERE id = ?",
+                USER_ROW,
+                userId
+        ).stream().findFirst();
+    }
+
+    @Override
+    public Optional<AppStateStore.UserRecord> findUserByUsernameOrEmail(String identifier) {
+        String trimmed = identifier == null ? "" : identifier.trim();
+        return jdbc.query(
+                "SELECT id, username, email, password, created_at FROM users WHERE username = ? OR email = ? "
+                        + "ORDER BY CASE WHEN username = ? THEN 0 ELSE 1 END LIMIT 1",
+                USER_ROW,
+                trimmed,
+                trimmed,
+                trimmed
+        ).stream().findFirst();
+    }
+
+    @Override
+    public Registration registerUser(String username, String email, String passwordHash, Instant createdAt) {
+        try {
+            return transactions.execute(status -> {
+                boolean usernameTaken = exists("SELECT 1 FROM users WHERE username = ?", username);
+                boolean emailTaken = exists("SELECT 1 FROM users WHERE email = ?", email);
+                if (usernameTaken || emailTaken) {
+                    return Registration.rejected(usernameTaken, emailTaken);
+                }
+
+                AppStateStore.UserRecord user = new AppStateStore.UserRecord(
+                        nextValue("users_id_seq"),
+                        username,
+                        email,
+                        passwordHash,
+                        createdAt
+                );
+                jdbc.update(
+                        "INSERT INTO users (id, username, email, password, created_at) VALUES (?, ?, ?, ?, ?)",
+                        user.id,
+                        user.username,
+                        user.email,
+                        user.passwordHash,
+                        timestamp(user.createdAt)
+                );
+                return Registration.created(user);
+            });
+        } catch (DuplicateKeyException exception) {
+            return Registration.rejected(
+                    exists("SELECT 1 FROM users WHERE username = ?", username),
+                    exists("SELECT 1 FROM users WHERE email = ?", email)
+            );
+        }
+    }
+
+    @Override
+    public boolean updatePasswordHash(long userId, String expectedHash, String newHash) {
+        return jdbc.update("UPDATE users SET password = ? WHERE id = ? AND password = ?", newHash, userId, expectedHash) == 1;
+    }
+
+    @Override
+    public <T> T readUser(long userId, Function<AppStateStore.UserPartition, T> reader) {
+        return readTransactions.execute(status -> reader.apply(loadPartition(userId)));
+    }
+
+    @Override
+    public <T> T writeUser(long userId, Function<AppStateStore.UserPartition, T> writer) {
+        return transactions.execute(status -> {
+            jdbc.query("SELECT id FROM users WHERE id = ? FOR UPDATE", (row, index) -> row.getLong(1), userId);
+            AppStateStore.UserPartition partition = loadPartition(userId);
+            partition.track();
+            T result = writer.apply(partition);
+            persist(PartitionChanges.of(partition));
+            return result;
+        });
+    }
+
+    @Override
+    public OptionalLong findSessionOwner(String token) {
+        return ownerOf("SELECT user_id FROM user_sessions WHERE session_id = ?", token);
+    }
+
+    @Override
+    public OptionalLong findShareOwner(String token) {
+        return ownerOf("SELECT shared_by_user_id FROM file_shares WHERE share_token = ?", token);
+    }
+
+    @Override
+    public Optional<AppStateStore.SessionRecord> findSession(String token) {
+        if (token == null) {
+            return Optional.empty();
+        }
+        return jdbc.query("SELECT " + SESSION_COLUMNS + " FROM user_sessions WHERE session_id = ?", SESSION_ROW, token)
+                .stream()
+                .findFirst();
+    }
+
+    @Override
+    public Optional<AppStateStore.FileRecord> findFile(long userId, long fileId) {
+        return jdbc.query("SELECT " + FILE_COLUMNS + " FROM files WHERE id = ? AND user_id = ?", FILE_ROW, fileId, userId)
+                .stream()
+                .findFirst();
+    }
+
+    @Override
+    public Optional<AppStateStore.ShareRecord> findShare(String token) {
+        if (token == null) {
+            return Optional.empty();
+        }
+        return jdbc.query("SELECT " + SHARE_COLUMNS + " FROM file_shares WHERE share_token = ?", SHARE_ROW, token)
+                .stream()
+                .findFirst();
+    }
+
+    @Override
+    public OptionalLong countShareAccess(long ownerId, long shareId) {
+        return transactions.execute(status -> {
+            int updated = jdbc.update(
+                    "UPDATE file_shares SET access_count = access_count + 1 WHERE id = ? AND shared_by_user_id = ?",
+                    shareId,
+                    ownerId
+            );
+            if (updated == 0) {
+                return OptionalLong.empty();
+            }
+            Long accessCount = jdbc.queryForObject("SELECT access_count FROM file_shares WHERE id = ?", Long.class, shareId);
+            return OptionalLong.of(Objects.requireNonNull(accessCount));
+        });
+    }
+
+    @Override
+    public void appendActivity(AppStateStore.ActivityRecord activity) {
+        insertActivity(activity);
+    }
+
+    @Override
+    public List<AppStateStore.ActivityRecord> listActivities(long userId) {
+        return jdbc.query(
+                "SELECT id, action, details, created_at FROM activity_logs WHERE user_id = ? "
+                        + "ORDER BY created_at DESC, id DESC",
+                (row, index) -> new AppStateStore.ActivityRecord(
+                        row.getLong("id"),
+                        userId,
+                        row.getString("action"),
+                        row.getString("details"),
+                        instant(row, "created_at")
+                ),
+                userId
+        );
+    }
+
+    @Override
+    public long nextFileId() {
+        return nextValue("files_id_seq");
+    }
+
+    @Override
+    public long nextShareId() {
+        return nextValue("file_shares_id_seq");
+    }
+
+    @Override
+    public long nextActivityId() {
+        return nextValue("activity_logs_id_seq");
+    }
+
+    @Override
+    public void reset() {
+        transactions.executeWithoutResult(status -> {
+            for (String table : List.of("activity_logs", "file_shares", "file_versions", "user_sessions", "files", "folders", "users")) {
+                jdbc.update("DELETE FROM " + table);
+            }
+            for (String sequence : List.of("users_id_seq", "files_id_seq", "file_shares_id_seq", "activity_logs_id_seq")) {
+                jdbc.execute("ALTER SEQUENCE " + sequence + " RESTART WITH 1");
+            }
+        });
+    }
+
+    /**
+     * The data source belongs to whoever created it, so there is nothing to release here.
+     */
+    @Override
+    public void close() {
+    }
+
+    private AppStateStore.UserPartition loadPartition(long userId) {
+        AppStateStore.UserPartition partition = new AppStateStore.UserPartition(userId);
+        partition.sessions.addAll(jdbc.query(
+                "SELECT " + SESSION_COLUMNS + " FROM user_sessions WHERE user_id = ?",
+                SESSION_ROW,
+                userId
+        ));
+        partition.folders.addAll(jdbc.query(
+                "SELECT id, parent_folder_id, folder_name, created_at FROM folders WHERE user_id = ? ORDER BY id",
+                (row, index) -> new AppStateStore.FolderRecord(
+                        row.getLong("id"),
+                        userId,
+                        row.getLong("parent_folder_id"),
+                        row.getString("folder_name"),
+                        instant(row, "created_at")
+                ),
+                userId
+        ));
+        partition.files.addAll(jdbc.query(
+                "SELECT " + FILE_COLUMNS + " FROM files WHERE user_id = ? ORDER BY id",
+                FILE_ROW,
+                userId
+        ));
+        partition.versions.addAll(jdbc.query(
+                "SELECT file_id, version_number, file_size, content_crc32c, filepath, is_delta, stored_size, upload_time "
+                        + "FROM file_versions WHERE user_id = ? ORDER BY file_id, version_number",
+                (row, index) -> new AppStateStore.FileVersionRecord(
+                        row.getLong("file_id"),
+                        row.getLong("version_number"),
+                        row.getLong("file_size"),
+                        checksum(row),
+                        row.getString("filepath"),
+                        row.getBoolean("is_delta"),
+                        row.getObject("stored_size") == null ? row.getLong("file_size") : row.getLong("stored_size"),
+                        instant(row, "upload_time")
+                ),
+                userId
+        ));
+        partition.shares.addAll(jdbc.query(
+                "SELECT " + SHARE_COLUMNS + " FROM file_shares WHERE shared_by_user_id = ? ORDER BY id",
+                SHARE_ROW,
+                userId
+        ));
+        return partition;
+    }
+
+    /**
+     * Writes what a tracked writer changed. Changed rows are updated, falling back to an insert for rows that are
+     * new, so no row is compared or written that the writer did not touch.
+     */
+    private void persist(PartitionChanges changes) {
+        long userId = changes.userId();
+
+        // Children go before parents on delete and after them on insert, to satisfy the foreign keys.
+        for (long shareId : changes.removedShares()) {
+            jdbc.update("DELETE FROM file_shares WHERE id = ?", shareId);
+        }
+        for (PartitionImage.VersionKey key : changes.removedVersions()) {
+            jdbc.update("DELETE FROM file_versions WHERE file_id = ? AND version_number = ?", key.fileId(), key.version());
+        }
+        for (String token : changes.removedSessions()) {
+            jdbc.update("DELETE FROM user_sessions WHERE session_id = ?", token);
+        }
+        for (long fileId : changes.removedFiles()) {
+            jdbc.update("DELETE FROM files WHERE id = ?", fileId);
+        }
+        for (long folderId : changes.removedFolders()) {
+            jdbc.update("DELETE FROM folders WHERE id = ?", folderId);
+        }
+
+        for (AppStateStore.FolderRecord folder : changes.folders()) {
+            int updated = jdbc.update(
+                    "UPDATE folders SET parent_folder_id = ?, folder_name = ?, created_at = ? WHERE id = ?",
+                    folder.parentId, folder.name, timestamp(folder.createdAt), folder.id
+            );
+            if (updated == 0) {
+                jdbc.update(
+                        "INSERT INTO folders (id, user_id, parent_folder_id, folder_name, created_at) VALUES (?, ?, ?, ?, ?)",
+                        folder.id, userId, folder.parentId, folder.name, timestamp(folder.createdAt)
+                );
+            }
+        }
+
+        for (AppStateStore.FileRecord file : changes.files()) {
+            int updated = jdbc.update(
+                    "UPDATE files SET filename = ?, filepath = ?, file_size = ?, mime_type = ?, upload_time = ?, "
+                            + "deleted_at = ?, content_crc32c = ?, folder_id = ? WHERE id = ?",
+                    file.filename, file.storageKey, file.fileSize, file.mimeType, timestamp(file.uploadTime),
+                    timestamp(file.deletedAt), checksumValue(file.checksum), file.folderId, file.id
+            );
+            if (updated == 0) {
+                jdbc.update(
+                        "INSERT INTO files (id, user_id, filename, filepath, file_size, mime_type, upload_time, deleted_at, "
+                                + "content_crc32c, folder_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                        file.id, userId, file.filename, file.storageKey, file.fileSize, file.mimeType,
+                        timestamp(file.uploadTime), timestamp(file.deletedAt), checksumValue(file.checksum), file.folderId
+                );
+            }
+        }
+
+        for (AppStateStore.FileVersionRecord version : changes.versions()) {
+            jdbc.update(
+                    "INSERT INTO file_versions (file_id, version_number, user_id, filepath, file_size, content_crc32c, "
+                            + "is_delta, stored_size, upload_time) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                    version.fileId, version.version, userId, version.storageKey, version.fileSize,
+                    checksumValue(version.checksum), version.delta, version.storedSize, timestamp(version.uploadTime)
+            );
+        }
+
+        for (AppStateStore.SessionRecord session : changes.sessions()) {
+            int updated = jdbc.update(
+                    "UPDATE user_sessions SET created_at = ?, expires_at = ?, revoked_at = ?, is_active = ? "
+                            + "WHERE session_id = ?",
+                    timestamp(session.createdAt), timestamp(session.expiresAt), timestamp(session.revokedAt),
+                    session.revokedAt == null, session.token
+            );
+            if (updated == 0) {
+                jdbc.update(
+                        "INSERT INTO user_sessions (session_id, user_id, created_at, expires_at, revoked_at, is_active) "
+                                + "VALUES (?, ?, ?, ?, ?, ?)",
+                        session.token, userId, timestamp(session.createdAt), timestamp(session.expiresAt),
+                        timestamp(session.revokedAt), session.revokedAt == null
+                );
+            }
+        }
+
+        for (AppStateStore.ShareRecord share : changes.shares()) {
+            int updated = jdbc.update(
+                    "UPDATE file_shares SET file_id = ?, share_token = ?, created_at = ?, expires_at = ?, "
+                            + "revoked_at = ?, access_count = ? WHERE id = ?",
+                    share.fileId, share.token, timestamp(share.createdAt), timestamp(share.expiresAt),
+                    timestamp(share.revokedAt), share.accessCount, share.id
+            );
+            if (updated == 0) {
+                jdbc.update(
+                        "INSERT INTO file_shares (id, file_id, shared_by_user_id, share_token, created_at, expires_at, "
+                                + "revoked_at, access_count) VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+                        share.id, share.fileId, userId, share.token, timestamp(share.createdAt),
+                        timestamp(share.expiresAt), timestamp(share.revokedAt), share.accessCount
+                );
+            }
+        }
+
+        changes.activities().forEach(this::insertActivity);
+    }
+
+    private void insertActivity(AppStateStore.ActivityRecord activity) {
+        jdbc.update(
+                "INSERT INTO activity_logs (id, user_id, action, resource_type, details, created_at) "
+                        + "VALUES (?, ?, ?, ?, ?, ?)",
+                activity.id,
+                activity.userId,
+                activity.action,
+                activity.filename == null ? "USER" : "FILE",
+                activity.filename,
+                timestamp(activity.createdAt)
+        );
+    }
+
+    private OptionalLong ownerOf(String sql, String token) {
+        if (token == null) {
+            return OptionalLong.empty();
+        }
+        List<Long> owners = jdbc.query(sql, (row, index) -> row.getLong(1), token);
+        return owners.isEmpty() ? OptionalLong.empty() : OptionalLong.of(owners.get(0));
+    }
+
+    private boolean exists(String sql, String value) {
+        return !jdbc.query(sql, (row, index) -> Boolean.TRUE, value).isEmpty();
+    }
+
+    private long nextValue(String sequence) {
+        Long value = jdbc.queryForObject("SELECT NEXT VALUE FOR " + sequence, Long.class);
+        return Objects.requireNonNull(value);
+    }
+
+    private static Instant instant(ResultSet row, String column) throws SQLException {
+        OffsetDateTime value = row.getObject(column, OffsetDateTime.class);
+        return value == null ? null : value.toInstant();
+    }
+
+    private static OffsetDateTime timestamp(Instant instant) {
+        return instant == null ? null : OffsetDateTime.ofInstant(instant, ZoneOffset.UTC);
+    }
+
+    private static long checksum(ResultSet row) throws SQLException {
+        long value = row.getLong("content_crc32c");
+        return row.wasNull() ? AppStateStore.FileRecord.NO_CHECKSUM : value;
+    }
+
+    private static Long checksumValue(long checksum) {
+        return checksum == AppStateStore.FileRecord.NO_CHECKSUM ? null : checksum;
+    }
+}
@@ -0,0 +1,215 @@
+package com.patrakosh.persistence;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * {@link BlobStore} that keeps each blob as a file under {@code patrakosh.storage.base-path}, with the storage
+ * key as its relative path.
+ *
+ * <p>{@link #put} writes to a hidden staging file next to the blob, forces it to disk and renames it over the
+ * key, so a blob is never seen half written, whether by a download or by a scrubbing or reconciliation pass,
+ * and a failed upload leaves the previous blob as it was. Staging files are left out of {@link #list}.
+ */
+@Component
+@ConditionalOnProperty(name = "patrakosh.storage.backend", havingValue = "local", matchIfMissing = true)
+public class LocalBlobStore implements BlobStore {
+
+    private static final String STAGING_PREFIX = ".put-";
+
+    private final Path root;
+
+    @Autowired
+    public LocalBlobStore(@Value("${patrakosh.storage.base-path:storage}") String basePath) {
+        this(Path.of(basePath));
+    }
+
+    public LocalBlobStore(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        try {
+            Files.createDirectories(this.root);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Unable to initialize storage directory", exception);
+        }
+    }
+
+    @Override
+    public long put(String key, InputStream content, long length) throws IOException {
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        Path staged = Files.createTempFile(target.getParent(), STAGING_PREFIX, null);
+        try {
+            long written;
+            try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.WRITE);
+                 OutputStream output = Channels.newOutputStream(channel)) {
+                written = content.transferTo(output);
+                channel.force(true);
+            }
+            try {
+                Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ignored) {
+                Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return written;
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        return Files.newInputStream(resolve(key));
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(resolve(key), StandardOpenOption.READ);
+        channel.position(offset);
+        return new BoundedInputStream(Channels.newInputStream(channel), length);
+    }
+
+    @Override
+    public Optional<BlobInfo> stat(String key) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(resolve(key), BasicFileAttributes.class);
+            return attributes.isRegularFile()
+                    ? Optional.of(new BlobInfo(key, attributes.size(), attributes.lastModifiedTime().toInstant()))
+                    : Optional.empty();
+        } catch (NoSuchFileException exception) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(resolve(key));
+    }
+
+    @Override
+    public void move(String sourceKey, String targetKey) throws IOException {
+        Path target = resolve(targetKey);
+        Files.createDirectories(target.getParent());
+        Files.move(resolve(sourceKey), target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Hard-links the copy to the original, so it shares the original's data blocks and is made in constant time.
+     * That is safe because a blob file is never written in place: {@link #put} replaces it with a new file. Where
+     * links are not supported the kernel copies the file through {@link FileChannel#transferTo}. A hard link
+     * shares the original's modification time, so it is set to now: the copy is recorded only after it is made and
+     * must not look like an old orphan meanwhile. For the original, which the tiered store reads by the same time,
+     * that counts as an access.
+     */
+    @Override
+    public void copy(String sourceKey, String targetKey) throws IOException {
+        Path source = resolve(sourceKey);
+        Path target = resolve(targetKey);
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (NoSuchFileException exception) {
+            throw exception;
+        } catch (UnsupportedOperationException | FileSystemException exception) {
+            transfer(source, target);
+        }
+        Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+    }
+
+    @Override
+    public List<BlobInfo> list(String directory) throws IOException {
+        return listFiles(directory).stream().map(StoredBlob::info).toList();
+    }
+
+    /**
+     * Like {@link #list}, with the file key of each blob, which names hard-linked to the same file share. Callers
+     * that add up sizes count each file key once, so a copy does not count twice.
+     */
+    List<StoredBlob> listFiles(String directory) throws IOException {
+        Path path = resolve(directory);
+        if (!Files.isDirectory(path)) {
+            return List.of();
+        }
+        try (Stream<Path> children = Files.list(path)) {
+            List<Path> files = children
+                    .filter(file -> !file.getFileName().toString().startsWith(STAGING_PREFIX))
+                    .filter(Files::isRegularFile)
+                    .toList();
+            List<StoredBlob> blobs = new ArrayList<>(files.size());
+            for (Path file : files) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                blobs.add(new StoredBlob(
+                        new BlobInfo(directory + "/" + file.getFileName(), attributes.size(), attributes.lastModifiedTime().toInstant()),
+                        attributes.fileKey()
+                ));
+            }
+            return blobs;
+        }
+    }
+
+    @Override
+    public List<String> directories() throws IOException {
+        try (Stream<Path> children = Files.list(root)) {
+            return children.filter(Files::isDirectory)
+                    .map(directory -> directory.getFileName().toString())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static void transfer(Path source, Path target) throws IOException {
+        try (
+                FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+        ) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        } catch (IOException exception) {
+            Files.deleteIfExists(target);
+            throw exception;
+        }
+    }
+
+    /**
+     * A listed blob and its file key, or null where the file system does not provide one.
+     */
+    record StoredBlob(BlobInfo info, Object fileKey) {
+    }
+
+    Path resolve(String key) {
+        Path resolved = root.resolve(key).normalize();
+        if (!resolved.startsWith(root) || resolved.equals(root)) {
+            throw new IllegalArgumentException("Invalid storage key: " + key);
+        }
+        return resolved;
+    }
+}
@@ -0,0 +1,174 @@
+package com.patrakosh.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.LongPredicate;
+
+/**
+ * Open-addressing hash table from 64-bit key hashes to positive longs, kept in a memory-mapped file.
+ *
+ * <p>Only hashes are stored, so different keys can share one; lookups hand every candidate value to a predicate
+ * that checks the real key. The table doubles into a new file that replaces the old one atomically once live
+ * entries and tombstones fill more than 60% of it.
+ */
+final class MappedHashIndex implements Closeable {
+
+    private static final int MAGIC = 0x504B4849; // "PKHI"
+    private static final int VERSION = 1;
+    private static final int CAPACITY = 8;
+    private static final int LIVE = 16;
+    private static final int USED = 24;
+    private static final int ENTRIES_START = 32;
+    private static final int ENTRY_BYTES = 16;
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    private static final long INITIAL_CAPACITY = 1024;
+    private static final long EMPTY = 0;
+    private static final long DELETED = 1;
+
+    private final Path file;
+    private MappedRegion region;
+    private long capacity;
+
+    MappedHashIndex(Path file) throws IOException {
+        this.file = file;
+        this.region = open(file, INITIAL_CAPACITY);
+        this.capacity = region.getLong(CAPACITY);
+    }
+
+    /**
+     * Turns a key into the hash this index stores, keeping clear of the empty and deleted markers.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int index = 0; index < key.length(); index++) {
+            hash ^= key.charAt(index);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        return (hash & ~DELETED) == 0 ? hash + 2 : hash;
+    }
+
+    /**
+     * Returns the first value stored under {@code hash} that {@code matches} accepts, or 0.
+     */
+    synchronized long find(long hash, LongPredicate matches) {
+        for (long slot = slotOf(hash); ; slot = (slot + 1) & (capacity - 1)) {
+            long entryHash = region.getLong(entry(slot));
+            if (entryHash == EMPTY) {
+                return 0;
+            }
+            if (entryHash == hash) {
+                long value = region.getLong(entry(slot) + Long.BYTES);
+                if (matches.test(value)) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    synchronized void put(long hash, long value) throws IOException {
+        if ((region.getLong(USED) + 1) * 10 > capacity * 6) {
+            rebuild();
+        }
+        long slot = slotOf(hash);
+        while (isLive(region.getLong(entry(slot)))) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        boolean reusesTombstone = region.getLong(entry(slot)) == DELETED;
+        region.putLong(entry(slot) + Long.BYTES, value);
+        region.putLong(entry(slot), hash);
+        region.putLong(LIVE, region.getLong(LIVE) + 1);
+        if (!reusesTombstone) {
+            region.putLong(USED, region.getLong(USED) + 1);
+        }
+    }
+
+    synchronized boolean remove(long hash, long value) {
+        for (long slot = slotOf(hash); ; slot = (slot + 1) & (capacity - 1)) {
+            long entryHash = region.getLong(entry(slot));
+            if (entryHash == EMPTY) {
+                return false;
+            }
+            if (entryHash == hash && region.getLong(entry(slot) + Long.BYTES) == value) {
+                region.putLong(entry(slot), DELETED);
+                region.putLong(LIVE, region.getLong(LIVE) - 1);
+                return true;
+            }
+        }
+    }
+
+    synchronized void force() {
+        region.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        region.close();
+    }
+
+    private void rebuild() throws IOException {
+        long nextCapacity = capacity;
+        while ((region.getLong(LIVE) + 1) * 10 > nextCapacity * 3) {
+            nextCapacity *= 2;
+        }
+        Path rebuilt = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(rebuilt);
+        MappedRegion next = open(rebuilt, nextCapacity);
+        long live = 0;
+        for (long slot = 0; slot < capacity; slot++) {
+            long entryHash = region.getLong(entry(slot));
+            if (isLive(entryHash)) {
+                long target = entryHash & (nextCapacity - 1);
+                while (next.getLong(entry(target)) != EMPTY) {
+                    target = (target + 1) & (nextCapacity - 1);
+                }
+                next.putLong(entry(target) + Long.BYTES, region.getLong(entry(slot) + Long.BYTES));
+                next.putLong(entry(target), entryHash);
+                live++;
+            }
+        }
+        next.putLong(LIVE, live);
+        next.putLong(USED, live);
+        next.force();
+
+        region.close();
+        try {
+            Files.move(rebuilt, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ignored) {
+            Files.move(rebuilt, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        region = next;
+        capacity = nextCapacity;
+    }
+
+    private static MappedRegion open(Path file, long capacity) throws IOException {
+        MappedRegion region = new MappedRegion(file, CHUNK_BYTES);
+        if (region.getInt(0) == 0) {
+            region.ensureCapacity(ENTRIES_START + capacity * ENTRY_BYTES);
+            region.putInt(4, VERSION);
+            region.putLong(CAPACITY, capacity);
+            region.putLong(LIVE, 0);
+            region.putLong(USED, 0);
+            region.putInt(0, MAGIC);
+        } else if (region.getInt(0) != MAGIC || region.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a PatraKosh hash index");
+        }
+        return region;
+    }
+
+    private static boolean isLive(long entryHash) {
+        return entryHash != EMPTY && entryHash != DELETED;
+    }
+
+    private long slotOf(long hash) {
+        return hash & (capacity - 1);
+    }
+
+    private static long entry(long slot) {
+        return ENTRIES_START + slot * ENTRY_BYTES;
+    }
+}
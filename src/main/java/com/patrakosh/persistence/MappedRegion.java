@@ -0,0 +1,127 @@
+package com.patrakosh.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A file mapped into memory in fixed-size chunks, so it can grow past the 2 GB limit of a single
+ * {@link MappedByteBuffer} without remapping what is already mapped.
+ *
+ * <p>Longs and ints must not straddle a chunk boundary; callers keep them aligned to their own size and pick a
+ * chunk size that is a multiple of it. Byte ranges may cross chunks. Only absolute buffer accessors are used,
+ * so concurrent access to different positions needs no locking.
+ */
+final class MappedRegion implements Closeable {
+
+    private final FileChannel channel;
+    private final int chunkBytes;
+    private volatile MappedByteBuffer[] chunks;
+
+    MappedRegion(Path file, int chunkBytes) throws IOException {
+        this.channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        this.chunkBytes = chunkBytes;
+        int count = (int) Math.max(1, (channel.size() + chunkBytes - 1) / chunkBytes);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+        for (int index = 0; index < count; index++) {
+            mapped[index] = map(index);
+        }
+        this.chunks = mapped;
+    }
+
+    long capacity() {
+        return (long) chunks.length * chunkBytes;
+    }
+
+    /**
+     * Maps more chunks, growing the file, until at least {@code bytes} are addressable.
+     */
+    void ensureCapacity(long bytes) throws IOException {
+        if (bytes <= capacity()) {
+            return;
+        }
+        synchronized (this) {
+            MappedByteBuffer[] current = chunks;
+            int needed = (int) ((bytes + chunkBytes - 1) / chunkBytes);
+            if (needed <= current.length) {
+                return;
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(current, needed);
+            for (int index = current.length; index < needed; index++) {
+                grown[index] = map(index);
+            }
+            chunks = grown;
+        }
+    }
+
+    long getLong(long position) {
+        return chunk(position).getLong(offset(position));
+    }
+
+    void putLong(long position, long value) {
+        chunk(position).putLong(offset(position), value);
+    }
+
+    int getInt(long position) {
+        return chunk(position).getInt(offset(position));
+    }
+
+    void putInt(long position, int value) {
+        chunk(position).putInt(offset(position), value);
+    }
+
+    void read(long position, byte[] target, int offset, int length) {
+        while (length > 0) {
+            int chunkOffset = offset(position);
+            int count = Math.min(length, chunkBytes - chunkOffset);
+            chunk(position).get(chunkOffset, target, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    void write(long position, byte[] source, int offset, int length) {
+        while (length > 0) {
+            int chunkOffset = offset(position);
+            int count = Math.min(length, chunkBytes - chunkOffset);
+            chunk(position).put(chunkOffset, source, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Mappings stay valid until the buffers are collected; closing the channel only releases the descriptor.
+        channel.close();
+    }
+
+    private MappedByteBuffer map(int index) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long) index * chunkBytes, chunkBytes);
+    }
+
+    private MappedByteBuffer chunk(long position) {
+        return chunks[(int) (position / chunkBytes)];
+    }
+
+    private int offset(long position) {
+        return (int) (position % chunkBytes);
+    }
+}
@@ -0,0 +1,1157 @@
+package com.patrakosh.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * {@link StateRepository} that keeps every record in memory-mapped files under {@code <base-path>/mapped}, so
+ * the Java heap only ever holds the partition of the request at hand. Looking up a single session, file or share,
+ * or counting a share access, reads or writes just that record and builds no partition at all.
+ *
+ * <p>Each record type has a fixed-width {@link RecordSegment}. Users, folders, files, shares and activities sit in the
+ * slot matching their id; sessions and file versions take slots from a free list. Strings live in a shared {@link StringHeap}, with
+ * mime types and activity actions interned; a string a record stops pointing at is released, so that the heap
+ * reuses its space instead of growing with every login or rename. A user's records of each type form a linked list whose head is kept
+ * in the user record, and usernames, emails and tokens are looked up through {@link MappedHashIndex}es. Opening
+ * the store maps these files and reads nothing else.
+ *
+ * <p>A write links new records in only once they are complete and unlinks removed records before clearing them.
+ * There is no journal: in {@link DurabilityMode#FSYNC FSYNC} and {@link DurabilityMode#GROUP GROUP} mode a write
+ * returns after a force of the mapped files, shared by whoever is waiting at the time, and a crash during a write
+ * can leave part of that write applied.
+ */
+@Component
+@ConditionalOnProperty(name = "patrakosh.data.backend", havingValue = "mapped")
+public class MappedStateRepository implements StateRepository {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedStateRepository.class);
+
+    public static final String DIRECTORY = "mapped";
+
+    private static final int LOCK_STRIPES = 64;
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final int USER_WIDTH = 88;
+    private static final int USER_ID = 0;
+    private static final int USER_NAME = 8;
+    private static final int USER_EMAIL = 16;
+    private static final int USER_PASSWORD = 24;
+    private static final int USER_CREATED = 32;
+    private static final int USER_SESSIONS = 40;
+    private static final int USER_FILES = 48;
+    private static final int USER_SHARES = 56;
+    private static final int USER_ACTIVITIES = 64;
+    private static final int USER_VERSIONS = 72;
+    private static final int USER_FOLDERS = 80;
+
+    private static final int SESSION_WIDTH = 48;
+    private static final int SESSION_TOKEN = 0;
+    private static final int SESSION_NEXT = 8;
+    private static final int SESSION_USER = 16;
+    private static final int SESSION_CREATED = 24;
+    private static final int SESSION_EXPIRES = 32;
+    private static final int SESSION_REVOKED = 40;
+
+    private static final int FILE_WIDTH = 88;
+    private static final int FILE_ID = 0;
+    private static final int FILE_NEXT = 8;
+    private static final int FILE_USER = 16;
+    private static final int FILE_NAME = 24;
+    private static final int FILE_MIME = 32;
+    private static final int FILE_SIZE = 40;
+    private static final int FILE_UPLOADED = 48;
+    private static final int FILE_KEY = 56;
+    private static final int FILE_DELETED = 64;
+    private static final int FILE_CHECKSUM = 72;
+    private static final int FILE_FOLDER = 80;
+
+    private static final int FOLDER_WIDTH = 48;
+    private static final int FOLDER_ID = 0;
+    private static final int FOLDER_NEXT = 8;
+    private static final int FOLDER_USER = 16;
+    private static final int FOLDER_PARENT = 24;
+    private static final int FOLDER_NAME = 32;
+    private static final int FOLDER_CREATED = 40;
+
+    private static final int VERSION_WIDTH = 80;
+    private static final int VERSION_FILE = 0;
+    private static final int VERSION_NEXT = 8;
+    private static final int VERSION_USER = 16;
+    private static final int VERSION_NUMBER = 24;
+    private static final int VERSION_SIZE = 32;
+    private static final int VERSION_CHECKSUM = 40;
+    private static final int VERSION_KEY = 48;
+    private static final int VERSION_DELTA = 56;
+    private static final int VERSION_UPLOADED = 64;
+    private static final int VERSION_STORED = 72;
+    /** Stored size of versions written before it was recorded; they are charged their full size. */
+    private static final long UNKNOWN_SIZE = -1;
+
+    private static final int SHARE_WIDTH = 72;
+    private static final int SHARE_ID = 0;
+    private static final int SHARE_NEXT = 8;
+    private static final int SHARE_USER = 16;
+    private static final int SHARE_FILE = 24;
+    private static final int SHARE_TOKEN = 32;
+    private static final int SHARE_CREATED = 40;
+    private static final int SHARE_EXPIRES = 48;
+    private static final int SHARE_REVOKED = 56;
+    private static final int SHARE_ACCESS = 64;
+
+    private static final int ACTIVITY_WIDTH = 48;
+    private static final int ACTIVITY_ID = 0;
+    private static final int ACTIVITY_NEXT = 8;
+    private static final int ACTIVITY_USER = 16;
+    private static final int ACTIVITY_ACTION = 24;
+    private static final int ACTIVITY_FILENAME = 32;
+    private static final int ACTIVITY_CREATED = 40;
+
+    private final Path root;
+    private final DurabilitySettings durability;
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[LOCK_STRIPES];
+    private final Object registrationLock = new Object();
+    private final Object symbolLock = new Object();
+    private final Object flushLock = new Object();
+    private final AtomicLong writes = new AtomicLong();
+    private final ScheduledExecutorService asyncFlusher;
+    private long flushedWrites;
+    private volatile Storage storage;
+
+    @Autowired
+    public MappedStateRepository(
+            @Value("${patrakosh.data.base-path:data}") String basePath,
+            @Value("${patrakosh.data.durability.mode:group}") String durabilityMode,
+            @Value("${patrakosh.data.durability.async-flush-interval-ms:200}") long asyncFlushIntervalMillis
+    ) {
+        this(
+                Path.of(basePath),
+                new DurabilitySettings(
+                        DurabilityMode.parse(durabilityMode),
+                        Duration.ZERO,
+                        Duration.ofMillis(asyncFlushIntervalMillis),
+                        DurabilitySettings.DEFAULT_CHECKPOINT_JOURNAL_BYTES
+                )
+        );
+    }
+
+    public MappedStateRepository(Path basePath) {
+        this(basePath, DurabilitySettings.defaults());
+    }
+
+    public MappedStateRepository(Path basePath, DurabilitySettings durability) {
+        this.root = basePath.toAbsolutePath().normalize().resolve(DIRECTORY);
+        this.durability = durability;
+        for (int index = 0; index < stripes.length; index++) {
+            stripes[index] = new ReentrantReadWriteLock();
+        }
+        this.storage = openStorage();
+        this.asyncFlusher = durability.mode() == DurabilityMode.ASYNC ? startAsyncFlusher() : null;
+    }
+
+    @Override
+    public Optional<AppStateStore.UserRecord> findUser(long userId) {
+        Storage current = storage;
+        if (!userExists(current, userId)) {
+            return Optional.empty();
+        }
+        return Optional.of(new AppStateStore.UserRecord(
+                userId,
+                current.strings.get(current.users.get(userId, USER_NAME)),
+                current.strings.get(current.users.get(userId, USER_EMAIL)),
+                current.strings.get(current.users.get(userId, USER_PASSWORD)),
+                instant(current.users.get(userId, USER_CREATED))
+        ));
+    }
+
+    @Override
+    public Optional<AppStateStore.UserRecord> findUserByUsernameOrEmail(String identifier) {
+        Storage current = storage;
+        long userId = findByName(current, current.usernames, USER_NAME, identifier);
+        if (userId == 0) {
+            userId = findByName(current, current.emails, USER_EMAIL, identifier);
+        }
+        return userId == 0 ? Optional.empty() : findUser(userId);
+    }
+
+    @Override
+    public Registration registerUser(String username, String email, String passwordHash, Instant createdAt) {
+        Registration registration;
+        synchronized (registrationLock) {
+            Storage current = storage;
+            boolean usernameTaken = findByName(current, current.usernames, USER_NAME, username) != 0;
+            boolean emailTaken = findByName(current, current.emails, USER_EMAIL, email) != 0;
+            if (usernameTaken || emailTaken) {
+                return Registration.rejected(usernameTaken, emailTaken);
+            }
+
+            AppStateStore.UserRecord user = new AppStateStore.UserRecord(
+                    allocate(current.users),
+                    username,
+                    email,
+                    passwordHash,
+                    createdAt
+            );
+            try {
+                current.users.ensureSlot(user.id);
+                current.users.put(user.id, USER_NAME, current.strings.append(user.username));
+                current.users.put(user.id, USER_EMAIL, current.strings.append(user.email));
+                current.users.put(user.id, USER_PASSWORD, current.strings.append(user.passwordHash));
+                current.users.put(user.id, USER_CREATED, millis(user.createdAt));
+                current.users.put(user.id, USER_ID, user.id);
+                current.usernames.put(MappedHashIndex.hash(normalize(user.username)), user.id);
+                current.emails.put(MappedHashIndex.hash(normalize(user.email)), user.id);
+            } catch (IOException exception) {
+                throw new IllegalStateException("Failed to save PatraKosh state", exception);
+            }
+            registration = Registration.created(user);
+        }
+        awaitDurable();
+        return registration;
+    }
+
+    @Override
+    public boolean updatePasswordHash(long userId, String expectedHash, String newHash) {
+        Lock lock = stripe(userId).writeLock();
+        lock.lock();
+        try {
+            Storage current = storage;
+            if (!userExists(current, userId)
+                    || !Objects.equals(current.strings.get(current.users.get(userId, USER_PASSWORD)), expectedHash)) {
+                return false;
+            }
+            long previous = current.users.get(userId, USER_PASSWORD);
+            current.users.put(userId, USER_PASSWORD, current.strings.append(newHash));
+            current.strings.release(previous);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to save PatraKosh state", exception);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable();
+        return true;
+    }
+
+    @Override
+    public <T> T readUser(long userId, Function<AppStateStore.UserPartition, T> reader) {
+        Lock lock = stripe(userId).readLock();
+        lock.lock();
+        try {
+            return reader.apply(load(storage, userId).partition());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> T writeUser(long userId, Function<AppStateStore.UserPartition, T> writer) {
+        T result;
+        Lock lock = stripe(userId).writeLock();
+        lock.lock();
+        try {
+            Storage current = storage;
+            LoadedPartition loaded = load(current, userId);
+            AppStateStore.UserPartition partition = loaded.partition();
+            partition.track();
+            result = writer.apply(partition);
+            persistChanges(current, loaded, PartitionChanges.of(partition));
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to save PatraKosh state", exception);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable();
+        return result;
+    }
+
+    @Override
+    public OptionalLong findSessionOwner(String token) {
+        Storage current = storage;
+        long slot = sessionSlot(current, token);
+        return slot == 0 ? OptionalLong.empty() : OptionalLong.of(current.sessions.get(slot, SESSION_USER));
+    }
+
+    @Override
+    public OptionalLong findShareOwner(String token) {
+        Storage current = storage;
+        long shareId = shareId(current, token);
+        return shareId == 0 ? OptionalLong.empty() : OptionalLong.of(current.shares.get(shareId, SHARE_USER));
+    }
+
+    @Override
+    public Optional<AppStateStore.SessionRecord> findSession(String token) {
+        OptionalLong ownerId = findSessionOwner(token);
+        if (ownerId.isEmpty()) {
+            return Optional.empty();
+        }
+        long userId = ownerId.getAsLong();
+        Lock lock = stripe(userId).readLock();
+        lock.lock();
+        try {
+            // The session may have been removed, and its slot reused, since its owner was looked up.
+            Storage current = storage;
+            long slot = sessionSlot(current, token);
+            if (slot == 0 || current.sessions.get(slot, SESSION_USER) != userId) {
+                return Optional.empty();
+            }
+            return Optional.of(readSession(current, userId, slot));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<AppStateStore.FileRecord> findFile(long userId, long fileId) {
+        Lock lock = stripe(userId).readLock();
+        lock.lock();
+        try {
+            Storage current = storage;
+            if (!owns(current.files, FILE_ID, FILE_USER, fileId, userId)) {
+                return Optional.empty();
+            }
+            return Optional.of(readFile(current, userId, fileId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<AppStateStore.ShareRecord> findShare(String token) {
+        OptionalLong ownerId = findShareOwner(token);
+        if (ownerId.isEmpty()) {
+            return Optional.empty();
+        }
+        long userId = ownerId.getAsLong();
+        Lock lock = stripe(userId).readLock();
+        lock.lock();
+        try {
+            Storage current = storage;
+            long shareId = shareId(current, token);
+            if (shareId == 0 || !owns(current.shares, SHARE_ID, SHARE_USER, shareId, userId)) {
+                return Optional.empty();
+            }
+            return Optional.of(readShare(current, userId, shareId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public OptionalLong countShareAccess(long ownerId, long shareId) {
+        long accessCount;
+        Lock lock = stripe(ownerId).writeLock();
+        lock.lock();
+        try {
+            Storage current = storage;
+            if (!owns(current.shares, SHARE_ID, SHARE_USER, shareId, ownerId)) {
+                return OptionalLong.empty();
+            }
+            accessCount = current.shares.get(shareId, SHARE_ACCESS) + 1;
+            current.shares.put(shareId, SHARE_ACCESS, accessCount);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable();
+        return OptionalLong.of(accessCount);
+    }
+
+    @Override
+    public void appendActivity(AppStateStore.ActivityRecord activity) {
+        Lock lock = stripe(activity.userId).writeLock();
+        lock.lock();
+        try {
+            Storage current = storage;
+            requireUser(current, activity.userId);
+            checkUnused(current.activities, ACTIVITY_ID, activity.id, "Activity");
+            insertActivity(current, activity.userId, activity);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to save PatraKosh state", exception);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable();
+    }
+
+    @Override
+    public List<AppStateStore.ActivityRecord> listActivities(long userId) {
+        Lock lock = stripe(userId).readLock();
+        lock.lock();
+        try {
+            Storage current = storage;
+            if (!userExists(current, userId)) {
+                return List.of();
+            }
+            List<AppStateStore.ActivityRecord> activities = new ArrayList<>();
+            for (long slot : chain(current.activities, ACTIVITY_NEXT, current.users.get(userId, USER_ACTIVITIES))) {
+                activities.add(new AppStateStore.ActivityRecord(
+                        slot,
+                        userId,
+                        current.strings.get(current.activities.get(slot, ACTIVITY_ACTION)),
+                        current.strings.get(current.activities.get(slot, ACTIVITY_FILENAME)),
+                        instant(current.activities.get(slot, ACTIVITY_CREATED))
+                ));
+            }
+            activities.sort(Comparator.comparing((AppStateStore.ActivityRecord activity) -> activity.createdAt)
+                    .thenComparingLong(activity -> activity.id)
+                    .reversed());
+            return activities;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long nextFileId() {
+        return allocate(storage.files);
+    }
+
+    @Override
+    public long nextShareId() {
+        return allocate(storage.shares);
+    }
+
+    @Override
+    public long nextActivityId() {
+        return allocate(storage.activities);
+    }
+
+    @Override
+    public void reset() {
+        synchronized (registrationLock) {
+            List<Lock> locks = lockAll();
+            try {
+                storage.close();
+                try (Stream<Path> paths = Files.walk(root)) {
+                    for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.deleteIfExists(path);
+                    }
+                }
+                storage = openStorage();
+            } catch (IOException exception) {
+                throw new IllegalStateException("Failed to reset PatraKosh state", exception);
+            } finally {
+                locks.forEach(Lock::unlock);
+            }
+        }
+    }
+
+    /**
+     * Forces every mapped file to disk, whatever the durability mode.
+     */
+    public void flush() {
+        flushThrough(writes.get());
+    }
+
+    @Override
+    public void close() {
+        if (asyncFlusher != null) {
+            asyncFlusher.shutdownNow();
+        }
+        List<Lock> locks = lockAll();
+        try {
+            storage.force();
+            storage.close();
+        } catch (IOException exception) {
+            log.warn("Failed to close mapped state files", exception);
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+    }
+
+    private Storage openStorage() {
+        try {
+            Files.createDirectories(root);
+            return new Storage(root);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to initialize PatraKosh data store", exception);
+        }
+    }
+
+    private LoadedPartition load(Storage current, long userId) {
+        AppStateStore.UserPartition partition = new AppStateStore.UserPartition(userId);
+        if (!userExists(current, userId)) {
+            return new LoadedPartition(partition, false, List.of(), Map.of(), List.of(), List.of(), Map.of(), List.of(), List.of());
+        }
+
+        // Chains run newest first; partitions list records oldest first, as the other backends do.
+        List<Long> sessionChain = chain(current.sessions, SESSION_NEXT, current.users.get(userId, USER_SESSIONS));
+        Map<String, Long> sessionSlots = new HashMap<>();
+        for (int index = sessionChain.size() - 1; index >= 0; index--) {
+            long slot = sessionChain.get(index);
+            AppStateStore.SessionRecord session = readSession(current, userId, slot);
+            partition.sessions.add(session);
+            sessionSlots.put(session.token, slot);
+        }
+
+        List<Long> fileChain = chain(current.files, FILE_NEXT, current.users.get(userId, USER_FILES));
+        partition.files = new FileTable(fileChain.size());
+        for (int index = fileChain.size() - 1; index >= 0; index--) {
+            partition.files.add(readFile(current, userId, fileChain.get(index)));
+        }
+
+        List<Long> folderChain = chain(current.folders, FOLDER_NEXT, current.users.get(userId, USER_FOLDERS));
+        for (int index = folderChain.size() - 1; index >= 0; index--) {
+            long folderId = folderChain.get(index);
+            partition.folders.add(new AppStateStore.FolderRecord(
+                    folderId,
+                    userId,
+                    current.folders.get(folderId, FOLDER_PARENT),
+                    current.strings.get(current.folders.get(folderId, FOLDER_NAME)),
+                    instant(current.folders.get(folderId, FOLDER_CREATED))
+            ));
+        }
+
+        List<Long> versionChain = chain(current.versions, VERSION_NEXT, current.users.get(userId, USER_VERSIONS));
+        Map<PartitionImage.VersionKey, Long> versionSlots = new HashMap<>();
+        for (int index = versionChain.size() - 1; index >= 0; index--) {
+            long slot = versionChain.get(index);
+            long storedSize = current.versions.get(slot, VERSION_STORED);
+            AppStateStore.FileVersionRecord version = new AppStateStore.FileVersionRecord(
+                    current.versions.get(slot, VERSION_FILE),
+                    current.versions.get(slot, VERSION_NUMBER),
+                    current.versions.get(slot, VERSION_SIZE),
+                    checksum(current.versions.get(slot, VERSION_CHECKSUM)),
+                    current.strings.get(current.versions.get(slot, VERSION_KEY)),
+                    current.versions.get(slot, VERSION_DELTA) != 0,
+                    storedSize == UNKNOWN_SIZE ? current.versions.get(slot, VERSION_SIZE) : storedSize,
+                    instant(current.versions.get(slot, VERSION_UPLOADED))
+            );
+            partition.versions.add(version);
+            versionSlots.put(PartitionImage.VersionKey.of(version), slot);
+        }
+
+        List<Long> shareChain = chain(current.shares, SHARE_NEXT, current.users.get(userId, USER_SHARES));
+        for (int index = shareChain.size() - 1; index >= 0; index--) {
+            partition.shares.add(readShare(current, userId, shareChain.get(index)));
+        }
+        return new LoadedPartition(
+                partition, true, sessionChain, sessionSlots, fileChain, shareChain, versionSlots, versionChain, folderChain
+        );
+    }
+
+    private static AppStateStore.SessionRecord readSession(Storage current, long userId, long slot) {
+        return new AppStateStore.SessionRecord(
+                current.strings.get(current.sessions.get(slot, SESSION_TOKEN)),
+                userId,
+                instant(current.sessions.get(slot, SESSION_CREATED)),
+                instant(current.sessions.get(slot, SESSION_EXPIRES)),
+                instant(current.sessions.get(slot, SESSION_REVOKED))
+        );
+    }
+
+    private static AppStateStore.FileRecord readFile(Storage current, long userId, long fileId) {
+        return new AppStateStore.FileRecord(
+                fileId,
+                userId,
+                current.strings.get(current.files.get(fileId, FILE_NAME)),
+                current.strings.get(current.files.get(fileId, FILE_MIME)),
+                current.files.get(fileId, FILE_SIZE),
+                instant(current.files.get(fileId, FILE_UPLOADED)),
+                current.strings.get(current.files.get(fileId, FILE_KEY)),
+                instant(current.files.get(fileId, FILE_DELETED)),
+                checksum(current.files.get(fileId, FILE_CHECKSUM)),
+                current.files.get(fileId, FILE_FOLDER)
+        );
+    }
+
+    private static AppStateStore.ShareRecord readShare(Storage current, long userId, long shareId) {
+        return new AppStateStore.ShareRecord(
+                shareId,
+                current.shares.get(shareId, SHARE_FILE),
+                userId,
+                current.strings.get(current.shares.get(shareId, SHARE_TOKEN)),
+                instant(current.shares.get(shareId, SHARE_CREATED)),
+                instant(current.shares.get(shareId, SHARE_EXPIRES)),
+                instant(current.shares.get(shareId, SHARE_REVOKED)),
+                current.shares.get(shareId, SHARE_ACCESS)
+        );
+    }
+
+    private void persistChanges(Storage current, LoadedPartition loaded, PartitionChanges changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        long userId = changes.userId();
+
+        // Everything that can be rejected is checked up front, so a rejected write changes nothing.
+        if (!loaded.userExists()) {
+            throw new IllegalStateException("Unknown user " + userId);
+        }
+        Set<Long> newFiles = new HashSet<>();
+        for (AppStateStore.FileRecord file : changes.files()) {
+            if (!owns(current.files, FILE_ID, FILE_USER, file.id, userId)) {
+                checkUnused(current.files, FILE_ID, file.id, "File");
+                newFiles.add(file.id);
+            }
+        }
+        Set<Long> newFolders = new HashSet<>();
+        for (AppStateStore.FolderRecord folder : changes.folders()) {
+            if (!owns(current.folders, FOLDER_ID, FOLDER_USER, folder.id, userId)) {
+                checkUnused(current.files, current.folders, FOLDER_ID, folder.id, "Folder");
+                newFolders.add(folder.id);
+            }
+        }
+        Set<Long> newShares = new HashSet<>();
+        for (AppStateStore.ShareRecord share : changes.shares()) {
+            if (!owns(current.shares, SHARE_ID, SHARE_USER, share.id, userId)) {
+                checkUnused(current.shares, SHARE_ID, share.id, "Share");
+                newShares.add(share.id);
+            }
+        }
+        for (AppStateStore.ActivityRecord activity : changes.activities()) {
+            checkUnused(current.activities, ACTIVITY_ID, activity.id, "Activity");
+        }
+
+        Set<Long> removedShares = new HashSet<>(changes.removedShares());
+        unlink(current, current.shares, SHARE_NEXT, userId, USER_SHARES, loaded.shareChain(), removedShares);
+        for (Long shareId : removedShares) {
+            long token = current.shares.get(shareId, SHARE_TOKEN);
+            current.shareTokens.remove(MappedHashIndex.hash(current.strings.get(token)), shareId);
+            current.shares.put(shareId, SHARE_ID, 0);
+            current.strings.release(token);
+        }
+
+        Set<Long> removedVersions = new HashSet<>();
+        for (PartitionImage.VersionKey key : changes.removedVersions()) {
+            removedVersions.add(loaded.versionSlots().get(key));
+        }
+        unlink(current, current.versions, VERSION_NEXT, userId, USER_VERSIONS, loaded.versionChain(), removedVersions);
+        for (Long slot : removedVersions) {
+            long key = current.versions.get(slot, VERSION_KEY);
+            releaseSlot(current.versions, VERSION_FILE, VERSION_NEXT, slot);
+            current.strings.release(key);
+        }
+
+        Set<Long> removedSessions = new HashSet<>();
+        for (String token : changes.removedSessions()) {
+            removedSessions.add(loaded.sessionSlots().get(token));
+        }
+        unlink(current, current.sessions, SESSION_NEXT, userId, USER_SESSIONS, loaded.sessionChain(), removedSessions);
+        for (Long slot : removedSessions) {
+            long token = current.sessions.get(slot, SESSION_TOKEN);
+            current.sessionTokens.remove(MappedHashIndex.hash(current.strings.get(token)), slot);
+            releaseSlot(current.sessions, SESSION_TOKEN, SESSION_NEXT, slot);
+            current.strings.release(token);
+        }
+
+        Set<Long> removedFiles = new HashSet<>(changes.removedFiles());
+        unlink(current, current.files, FILE_NEXT, userId, USER_FILES, loaded.fileChain(), removedFiles);
+        for (Long fileId : removedFiles) {
+            current.files.put(fileId, FILE_ID, 0);
+            current.strings.release(current.files.get(fileId, FILE_NAME));
+            current.strings.release(current.files.get(fileId, FILE_KEY));
+        }
+
+        Set<Long> removedFolders = new HashSet<>(changes.removedFolders());
+        unlink(current, current.folders, FOLDER_NEXT, userId, USER_FOLDERS, loaded.folderChain(), removedFolders);
+        for (Long folderId : removedFolders) {
+            current.folders.put(folderId, FOLDER_ID, 0);
+            current.strings.release(current.folders.get(folderId, FOLDER_NAME));
+        }
+
+        for (AppStateStore.FolderRecord folder : changes.folders()) {
+            if (newFolders.contains(folder.id)) {
+                current.folders.put(folder.id, FOLDER_USER, userId);
+                current.folders.put(folder.id, FOLDER_NAME, current.strings.append(folder.name));
+                writeFolder(current, folder);
+                link(current, current.folders, FOLDER_ID, FOLDER_NEXT, userId, USER_FOLDERS, folder.id, folder.id);
+            } else {
+                replaceString(current, current.folders, folder.id, FOLDER_NAME, folder.name);
+                writeFolder(current, folder);
+            }
+        }
+
+        for (AppStateStore.FileRecord file : changes.files()) {
+            if (newFiles.contains(file.id)) {
+                current.files.put(file.id, FILE_NAME, current.strings.append(file.filename));
+                current.files.put(file.id, FILE_KEY, current.strings.append(file.storageKey));
+                writeFile(current, file);
+                current.files.put(file.id, FILE_USER, userId);
+                link(current, current.files, FILE_ID, FILE_NEXT, userId, USER_FILES, file.id, file.id);
+            } else {
+                replaceString(current, current.files, file.id, FILE_NAME, file.filename);
+                replaceString(current, current.files, file.id, FILE_KEY, file.storageKey);
+                writeFile(current, file);
+            }
+        }
+
+        for (AppStateStore.FileVersionRecord version : changes.versions()) {
+            Long slot = loaded.versionSlots().get(PartitionImage.VersionKey.of(version));
+            if (slot == null) {
+                long allocated = allocateSlot(current.versions, VERSION_NEXT);
+                current.versions.put(allocated, VERSION_USER, userId);
+                current.versions.put(allocated, VERSION_KEY, current.strings.append(version.storageKey));
+                writeVersion(current, allocated, version);
+                link(current, current.versions, VERSION_FILE, VERSION_NEXT, userId, USER_VERSIONS, allocated, version.fileId);
+            } else {
+                replaceString(current, current.versions, slot, VERSION_KEY, version.storageKey);
+                writeVersion(current, slot, version);
+            }
+        }
+
+        for (AppStateStore.SessionRecord session : changes.sessions()) {
+            Long slot = loaded.sessionSlots().get(session.token);
+            if (slot == null) {
+                long allocated = allocateSlot(current.sessions, SESSION_NEXT);
+                current.sessions.put(allocated, SESSION_USER, userId);
+                writeSession(current, allocated, session);
+                link(current, current.sessions, SESSION_TOKEN, SESSION_NEXT, userId, USER_SESSIONS, allocated,
+                        current.strings.append(session.token));
+                current.sessionTokens.put(MappedHashIndex.hash(session.token), allocated);
+            } else {
+                writeSession(current, slot, session);
+            }
+        }
+
+        for (AppStateStore.ShareRecord share : changes.shares()) {
+            if (newShares.contains(share.id)) {
+                current.shares.put(share.id, SHARE_USER, userId);
+                current.shares.put(share.id, SHARE_TOKEN, current.strings.append(share.token));
+                writeShare(current, share);
+                link(current, current.shares, SHARE_ID, SHARE_NEXT, userId, USER_SHARES, share.id, share.id);
+                current.shareTokens.put(MappedHashIndex.hash(share.token), share.id);
+            } else {
+                String previousToken = current.strings.get(current.shares.get(share.id, SHARE_TOKEN));
+                if (replaceString(current, current.shares, share.id, SHARE_TOKEN, share.token)) {
+                    current.shareTokens.remove(MappedHashIndex.hash(previousToken), share.id);
+                    current.shareTokens.put(MappedHashIndex.hash(share.token), share.id);
+                }
+                writeShare(current, share);
+            }
+        }
+
+        for (AppStateStore.ActivityRecord activity : changes.activities()) {
+            insertActivity(current, userId, activity);
+        }
+    }
+
+    /**
+     * Points a live record's string field at {@code value}, appending it only if it differs from the string there
+     * now, and releases the string it replaces. Returns whether the field changed.
+     */
+    private static boolean replaceString(Storage current, RecordSegment segment, long slot, int field, String value) throws IOException {
+        long previous = segment.get(slot, field);
+        if (Objects.equals(current.strings.get(previous), value)) {
+            return false;
+        }
+        segment.put(slot, field, current.strings.append(value));
+        current.strings.release(previous);
+        return true;
+    }
+
+    private void writeFile(Storage current, AppStateStore.FileRecord file) throws IOException {
+        current.files.put(file.id, FILE_MIME, symbol(current, file.mimeType));
+        current.files.put(file.id, FILE_SIZE, file.fileSize);
+        current.files.put(file.id, FILE_UPLOADED, millis(file.uploadTime));
+        current.files.put(file.id, FILE_DELETED, millis(file.deletedAt));
+        current.files.put(file.id, FILE_CHECKSUM, file.checksum);
+        current.files.put(file.id, FILE_FOLDER, file.folderId);
+    }
+
+    private static void writeFolder(Storage current, AppStateStore.FolderRecord folder) {
+        current.folders.put(folder.id, FOLDER_PARENT, folder.parentId);
+        current.folders.put(folder.id, FOLDER_CREATED, millis(folder.createdAt));
+    }
+
+    private static void writeVersion(Storage current, long slot, AppStateStore.FileVersionRecord version) {
+        current.versions.put(slot, VERSION_NUMBER, version.version);
+        current.versions.put(slot, VERSION_SIZE, version.fileSize);
+        current.versions.put(slot, VERSION_CHECKSUM, version.checksum);
+        current.versions.put(slot, VERSION_DELTA, version.delta ? 1 : 0);
+        current.versions.put(slot, VERSION_UPLOADED, millis(version.uploadTime));
+        current.versions.put(slot, VERSION_STORED, version.storedSize);
+    }
+
+    private static void writeSession(Storage current, long slot, AppStateStore.SessionRecord session) {
+        current.sessions.put(slot, SESSION_CREATED, millis(session.createdAt));
+        current.sessions.put(slot, SESSION_EXPIRES, millis(session.expiresAt));
+        current.sessions.put(slot, SESSION_REVOKED, millis(session.revokedAt));
+    }
+
+    private static void writeShare(Storage current, AppStateStore.ShareRecord share) {
+        current.shares.put(share.id, SHARE_FILE, share.fileId);
+        current.shares.put(share.id, SHARE_CREATED, millis(share.createdAt));
+        current.shares.put(share.id, SHARE_EXPIRES, millis(share.expiresAt));
+        current.shares.put(share.id, SHARE_REVOKED, millis(share.revokedAt));
+        current.shares.put(share.id, SHARE_ACCESS, share.accessCount);
+    }
+
+    private void insertActivity(Storage current, long userId, AppStateStore.ActivityRecord activity) throws IOException {
+        current.activities.put(activity.id, ACTIVITY_USER, userId);
+        current.activities.put(activity.id, ACTIVITY_ACTION, symbol(current, activity.action));
+        current.activities.put(activity.id, ACTIVITY_FILENAME, current.strings.append(activity.filename));
+        current.activities.put(activity.id, ACTIVITY_CREATED, millis(activity.createdAt));
+        link(current, current.activities, ACTIVITY_ID, ACTIVITY_NEXT, userId, USER_ACTIVITIES, activity.id, activity.id);
+    }
+
+    /**
+     * Makes a fully written record live: stores its marker field, then points the user's list at it.
+     */
+    private static void link(
+            Storage current,
+            RecordSegment segment,
+            int markerField,
+            int nextField,
+            long userId,
+            int headField,
+            long slot,
+            long marker
+    ) {
+        segment.put(slot, nextField, current.users.get(userId, headField));
+        segment.put(slot, markerField, marker);
+        current.users.put(userId, headField, slot);
+    }
+
+    private static void unlink(
+            Storage current,
+            RecordSegment segment,
+            int nextField,
+            long userId,
+            int headField,
+            List<Long> chain,
+            Set<Long> removed
+    ) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        long previous = 0;
+        boolean gap = false;
+        for (long slot : chain) {
+            if (removed.contains(slot)) {
+                gap = true;
+                continue;
+            }
+            if (gap) {
+                pointTo(current, segment, nextField, userId, headField, previous, slot);
+                gap = false;
+            }
+            previous = slot;
+        }
+        if (gap) {
+            pointTo(current, segment, nextField, userId, headField, previous, 0);
+        }
+    }
+
+    private static void pointTo(
+            Storage current,
+            RecordSegment segment,
+            int nextField,
+            long userId,
+            int headField,
+            long previous,
+            long target
+    ) {
+        if (previous == 0) {
+            current.users.put(userId, headField, target);
+        } else {
+            segment.put(previous, nextField, target);
+        }
+    }
+
+    private static List<Long> chain(RecordSegment segment, int nextField, long head) {
+        List<Long> slots = new ArrayList<>();
+        for (long slot = head; slot != 0; slot = segment.get(slot, nextField)) {
+            slots.add(slot);
+        }
+        return slots;
+    }
+
+    /**
+     * Whether the record in slot {@code id} is live and belongs to {@code userId}.
+     */
+    private static boolean owns(RecordSegment segment, int idField, int userField, long id, long userId) {
+        return segment.contains(id) && segment.get(id, idField) == id && segment.get(id, userField) == userId;
+    }
+
+    private static void checkUnused(RecordSegment segment, int idField, long id, String type) throws IOException {
+        checkUnused(segment, segment, idField, id, type);
+    }
+
+    /**
+     * Checks an id handed out by {@code sequence}'s counter, for records kept in another segment.
+     */
+    private static void checkUnused(RecordSegment sequence, RecordSegment segment, int idField, long id, String type) throws IOException {
+        if (id < 1 || id >= sequence.header(RecordSegment.COUNTER)) {
+            throw new IllegalStateException(type + " id " + id + " was not allocated by this store");
+        }
+        segment.ensureSlot(id);
+        if (segment.get(id, idField) != 0) {
+            throw new IllegalStateException(type + " id " + id + " is already in use");
+        }
+    }
+
+    private static long allocate(RecordSegment segment) {
+        synchronized (segment) {
+            long id = segment.header(RecordSegment.COUNTER);
+            segment.setHeader(RecordSegment.COUNTER, id + 1);
+            return id;
+        }
+    }
+
+    /**
+     * Takes a slot from the segment's free list, which is threaded through {@code nextField}, or a new one.
+     */
+    private static long allocateSlot(RecordSegment segment, int nextField) throws IOException {
+        long slot;
+        synchronized (segment) {
+            slot = segment.header(RecordSegment.FREE_LIST);
+            if (slot != 0) {
+                segment.setHeader(RecordSegment.FREE_LIST, segment.get(slot, nextField));
+            } else {
+                slot = segment.header(RecordSegment.COUNTER);
+                segment.setHeader(RecordSegment.COUNTER, slot + 1);
+            }
+        }
+        segment.ensureSlot(slot);
+        return slot;
+    }
+
+    private static void releaseSlot(RecordSegment segment, int markerField, int nextField, long slot) {
+        synchronized (segment) {
+            segment.put(slot, markerField, 0);
+            segment.put(slot, nextField, segment.header(RecordSegment.FREE_LIST));
+            segment.setHeader(RecordSegment.FREE_LIST, slot);
+        }
+    }
+
+    private long symbol(Storage current, String value) throws IOException {
+        if (value == null) {
+            return 0;
+        }
+        long hash = MappedHashIndex.hash(value);
+        long reference = current.symbols.find(hash, candidate -> value.equals(current.strings.get(candidate)));
+        if (reference != 0) {
+            return reference;
+        }
+        synchronized (symbolLock) {
+            reference = current.symbols.find(hash, candidate -> value.equals(current.strings.get(candidate)));
+            if (reference == 0) {
+                reference = current.strings.append(value);
+                current.symbols.put(hash, reference);
+            }
+            return reference;
+        }
+    }
+
+    private static long sessionSlot(Storage current, String token) {
+        if (token == null) {
+            return 0;
+        }
+        return current.sessionTokens.find(
+                MappedHashIndex.hash(token),
+                candidate -> token.equals(current.strings.get(current.sessions.get(candidate, SESSION_TOKEN)))
+        );
+    }
+
+    private static long shareId(Storage current, String token) {
+        if (token == null) {
+            return 0;
+        }
+        return current.shareTokens.find(
+                MappedHashIndex.hash(token),
+                candidate -> token.equals(current.strings.get(current.shares.get(candidate, SHARE_TOKEN)))
+        );
+    }
+
+    private static long findByName(Storage current, MappedHashIndex index, int field, String name) {
+        String normalized = normalize(name);
+        return index.find(
+                MappedHashIndex.hash(normalized),
+                userId -> normalized.equals(normalize(current.strings.get(current.users.get(userId, field))))
+        );
+    }
+
+    private static boolean userExists(Storage current, long userId) {
+        return current.users.contains(userId) && current.users.get(userId, USER_ID) == userId;
+    }
+
+    private static void requireUser(Storage current, long userId) {
+        if (!userExists(current, userId)) {
+            throw new IllegalStateException("Unknown user " + userId);
+        }
+    }
+
+    private void awaitDurable() {
+        long sequence = writes.incrementAndGet();
+        if (durability.mode() != DurabilityMode.ASYNC) {
+            flushThrough(sequence);
+        }
+    }
+
+    /**
+     * Forces the mapped files unless a force that started after write {@code sequence} has already finished;
+     * writers that queue up behind one force are all covered by the next.
+     */
+    private void flushThrough(long sequence) {
+        synchronized (flushLock) {
+            if (flushedWrites >= sequence) {
+                return;
+            }
+            long target = writes.get();
+            storage.force();
+            flushedWrites = target;
+        }
+    }
+
+    private ScheduledExecutorService startAsyncFlusher() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patrakosh-mapped-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = durability.asyncFlushInterval().toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                flushThrough(writes.get());
+            } catch (RuntimeException exception) {
+                log.warn("Background flush of mapped state failed", exception);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private ReentrantReadWriteLock stripe(long userId) {
+        return stripes[(int) Math.floorMod(userId, (long) stripes.length)];
+    }
+
+    private List<Lock> lockAll() {
+        List<Lock> locks = new ArrayList<>(stripes.length);
+        for (ReentrantReadWriteLock stripe : stripes) {
+            Lock lock = stripe.writeLock();
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static long millis(Instant instant) {
+        return instant == null ? NO_TIME : instant.toEpochMilli();
+    }
+
+    private static Instant instant(long millis) {
+        return millis == NO_TIME ? null : Instant.ofEpochMilli(millis);
+    }
+
+    private static long checksum(long value) {
+        // Widened segments fill the field with NO_TIME.
+        return value < 0 ? AppStateStore.FileRecord.NO_CHECKSUM : value;
+    }
+
+    /**
+     * A partition together with the order of each record list as it is stored, newest first.
+     */
+    private record LoadedPartition(
+            AppStateStore.UserPartition partition,
+            boolean userExists,
+            List<Long> sessionChain,
+            Map<String, Long> sessionSlots,
+            List<Long> fileChain,
+            List<Long> shareChain,
+            Map<PartitionImage.VersionKey, Long> versionSlots,
+            List<Long> versionChain,
+            List<Long> folderChain
+    ) {
+    }
+
+    private static final class Storage implements Closeable {
+        private final RecordSegment users;
+        private final RecordSegment sessions;
+        private final RecordSegment files;
+        private final RecordSegment folders;
+        private final RecordSegment versions;
+        private final RecordSegment shares;
+        private final RecordSegment activities;
+        private final StringHeap strings;
+        private final MappedHashIndex usernames;
+        private final MappedHashIndex emails;
+        private final MappedHashIndex sessionTokens;
+        private final MappedHashIndex shareTokens;
+        private final MappedHashIndex symbols;
+
+        private Storage(Path root) throws IOException {
+            // Segments written before users had folders lack the folder list head.
+            RecordSegment.widen(root.resolve("users.seg"), USER_WIDTH, 0);
+            users = new RecordSegment(root.resolve("users.seg"), USER_WIDTH);
+            sessions = new RecordSegment(root.resolve("sessions.seg"), SESSION_WIDTH);
+            // Segments written before files had a deletion time or checksum lack those trailing fields, and
+            // ones written before folders put every file in the root.
+            RecordSegment.widen(root.resolve("files.seg"), FILE_FOLDER, NO_TIME);
+            RecordSegment.widen(root.resolve("files.seg"), FILE_WIDTH, AppStateStore.FolderRecord.ROOT);
+            files = new RecordSegment(root.resolve("files.seg"), FILE_WIDTH);
+            folders = new RecordSegment(root.resolve("folders.seg"), FOLDER_WIDTH);
+            // Segments written before versions recorded their stored size lack that trailing field.
+            RecordSegment.widen(root.resolve("versions.seg"), VERSION_WIDTH, UNKNOWN_SIZE);
+            versions = new RecordSegment(root.resolve("versions.seg"), VERSION_WIDTH);
+            shares = new RecordSegment(root.resolve("shares.seg"), SHARE_WIDTH);
+            activities = new RecordSegment(root.resolve("activities.seg"), ACTIVITY_WIDTH);
+            strings = new StringHeap(root.resolve("strings.heap"));
+            usernames = new MappedHashIndex(root.resolve("usernames.idx"));
+            emails = new MappedHashIndex(root.resolve("emails.idx"));
+            sessionTokens = new MappedHashIndex(root.resolve("session-tokens.idx"));
+            shareTokens = new MappedHashIndex(root.resolve("share-tokens.idx"));
+            symbols = new MappedHashIndex(root.resolve("symbols.idx"));
+        }
+
+        private void force() {
+            // Strings dropped by the writes forced here can be reused only once those writes are on disk.
+            List<Long> released = strings.takeReleased();
+            users.force();
+            sessions.force();
+            files.force();
+            folders.force();
+            versions.force();
+            shares.force();
+            activities.force();
+            strings.force();
+            usernames.force();
+            emails.force();
+            sessionTokens.force();
+            shareTokens.force();
+            symbols.force();
+            strings.recycle(released);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Closeable closeable : List.<Closeable>of(
+                    users, sessions, files, folders, versions, shares, activities, strings, usernames, emails, sessionTokens,
+                    shareTokens, symbols
+            )) {
+                closeable.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.patrakosh.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link BlobStore} that spreads blobs over several local directories, normally one per disk, so that concurrent
+ * transfers are served by all of them at once.
+ *
+ * <p>Each blob has a home volume chosen by weighted rendezvous hashing of its storage key, with each volume
+ * weighted by the size of the file system it sits on. The storage key on the file record is therefore all a read
+ * needs to find the blob, and adding a volume only changes the home of the share of blobs the new volume takes
+ * over. Reads try the home volume first and then the others, so blobs written before a volume was added stay
+ * readable until they are moved. The volumes are listed in {@code patrakosh.storage.volumes}; the rebalancer
+ * runs once in the background on startup and moves every blob that is not on its home volume, pausing
+ * {@code patrakosh.storage.rebalance.pause-ms} after each one.
+ */
+@Component
+@ConditionalOnProperty(name = "patrakosh.storage.backend", havingValue = "volumes")
+public class MultiVolumeBlobStore implements BlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MultiVolumeBlobStore.class);
+    private static final String STAGING_DIRECTORY = ".rebalance";
+    private static final int LOCK_STRIPES = 64;
+
+    private final List<Volume> volumes;
+    private final Duration rebalancePause;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ExecutorService rebalancer;
+    private volatile RebalanceReport lastRebalance;
+
+    @Autowired
+    public MultiVolumeBlobStore(
+            @Value("${patrakosh.storage.volumes}") String volumes,
+            @Value("${patrakosh.storage.rebalance.pause-ms:20}") long pauseMillis
+    ) {
+        this(
+                Arrays.stream(volumes.split(",")).map(String::trim).filter(path -> !path.isEmpty()).map(Path::of).toList(),
+                Duration.ofMillis(pauseMillis),
+                true
+        );
+    }
+
+    public MultiVolumeBlobStore(List<Path> roots, Duration rebalancePause, boolean rebalanceOnStart) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("At least one storage volume is required");
+        }
+        List<Volume> opened = new ArrayList<>();
+        for (Path root : roots) {
+            LocalBlobStore store = new LocalBlobStore(root);
+            Path normalized = root.toAbsolutePath().normalize();
+            opened.add(new Volume(normalized.toString(), normalized, store, weightOf(normalized)));
+        }
+        this.volumes = List.copyOf(opened);
+        this.rebalancePause = rebalancePause;
+        for (int index = 0; index < locks.length; index++) {
+            locks[index] = new Object();
+        }
+        if (rebalanceOnStart) {
+            rebalancer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "patrakosh-volume-rebalancer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            rebalancer.execute(() -> {
+                try {
+                    rebalance();
+                } catch (RuntimeException exception) {
+                    log.warn("Volume rebalancing failed", exception);
+                }
+            });
+        } else {
+            rebalancer = null;
+        }
+    }
+
+    public RebalanceReport lastRebalance() {
+        return lastRebalance;
+    }
+
+    @Override
+    public long put(String key, InputStream content, long length) throws IOException {
+        return home(key).store().put(key, content, length);
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        for (Volume volume : probeOrder(key)) {
+            try {
+                return volume.store().get(key);
+            } catch (NoSuchFileException ignored) {
+            }
+        }
+        throw new NoSuchFileException(key);
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        for (Volume volume : probeOrder(key)) {
+            try {
+                return volume.store().get(key, offset, length);
+            } catch (NoSuchFileException ignored) {
+            }
+        }
+        throw new NoSuchFileException(key);
+    }
+
+    @Override
+    public Optional<BlobInfo> stat(String key) throws IOException {
+        for (Volume volume : probeOrder(key)) {
+            Optional<BlobInfo> info = volume.store().stat(key);
+            if (info.isPresent()) {
+                return info;
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        synchronized (lock(key)) {
+            for (Volume volume : volumes) {
+                volume.store().delete(key);
+            }
+        }
+    }
+
+    @Override
+    public void move(String sourceKey, String targetKey) throws IOException {
+        synchronized (lock(sourceKey)) {
+            for (Volume volume : probeOrder(sourceKey)) {
+                if (volume.store().stat(sourceKey).isPresent()) {
+                    // Stays on the same volume; the rebalancer takes it home later if needed.
+                    volume.store().move(sourceKey, targetKey);
+                    return;
+                }
+            }
+        }
+        throw new NoSuchFileException(sourceKey);
+    }
+
+    @Override
+    public void copy(String sourceKey, String targetKey) throws IOException {
+        synchronized (lock(sourceKey)) {
+            for (Volume volume : probeOrder(sourceKey)) {
+                if (volume.store().stat(sourceKey).isPresent()) {
+                    // Copies within the volume, so the copy can share the original's blocks.
+                    volume.store().copy(sourceKey, targetKey);
+                    return;
+                }
+            }
+        }
+        throw new NoSuchFileException(sourceKey);
+    }
+
+    @Override
+    public List<BlobInfo> list(String directory) throws IOException {
+        Map<String, BlobInfo> blobs = new LinkedHashMap<>();
+        for (Volume volume : volumes) {
+            for (BlobInfo blob : volume.store().list(directory)) {
+                blobs.putIfAbsent(blob.key(), blob);
+            }
+        }
+        return List.copyOf(blobs.values());
+    }
+
+    @Override
+    public List<String> directories() throws IOException {
+        TreeSet<String> directories = new TreeSet<>();
+        for (Volume volume : volumes) {
+            directories.addAll(volume.store().directories());
+        }
+        directories.remove(STAGING_DIRECTORY);
+        return List.copyOf(directories);
+    }
+
+    /**
+     * Moves every blob that is not on its home volume there, on the calling thread, and returns a report. A blob
+     * is copied into a staging directory on the home volume and renamed into place before the original is
+     * removed, so readers always find a complete copy. Keys hard-linked to one file that share a home volume stay
+     * linked there, so the file's bytes are written, and reported, once.
+     */
+    public synchronized RebalanceReport rebalance() {
+        Instant startedAt = Instant.now();
+        long moved = 0;
+        long bytes = 0;
+        long failures = 0;
+        Map<Object, MovedFile> movedFiles = new HashMap<>();
+        outer:
+        for (Volume volume : volumes) {
+            List<String> directories;
+            try {
+                directories = volume.store().directories();
+            } catch (IOException exception) {
+                log.warn("Failed to list storage volume {}", volume.root(), exception);
+                failures++;
+                continue;
+            }
+            for (String directory : directories) {
+                if (directory.equals(STAGING_DIRECTORY)) {
+                    continue;
+                }
+                List<LocalBlobStore.StoredBlob> blobs;
+                try {
+                    blobs = volume.store().listFiles(directory);
+                } catch (IOException exception) {
+                    log.warn("Failed to list {} on storage volume {}", directory, volume.root(), exception);
+                    failures++;
+                    continue;
+                }
+                for (LocalBlobStore.StoredBlob blob : blobs) {
+                    String key = blob.info().key();
+                    if (home(key) == volume) {
+                        continue;
+                    }
+                    try {
+                        long written = moveHome(key, volume, blob.fileKey(), movedFiles);
+                        if (written >= 0) {
+                            moved++;
+                            bytes += written;
+                        }
+                    } catch (IOException exception) {
+                        log.warn("Failed to move blob {} off storage volume {}", key, volume.root(), exception);
+                        failures++;
+                    }
+                    if (!pause()) {
+                        break outer;
+                    }
+                }
+            }
+        }
+        RebalanceReport report = new RebalanceReport(startedAt, Instant.now(), moved, bytes, failures);
+        lastRebalance = report;
+        if (moved > 0 || failures > 0) {
+            log.info("Rebalanced {} blobs ({} bytes) across {} volumes, {} failures", moved, bytes, volumes.size(), failures);
+        }
+        return report;
+    }
+
+    @Override
+    public void close() {
+        if (rebalancer != null) {
+            rebalancer.shutdownNow();
+        }
+    }
+
+    /**
+     * Moves one blob to its home volume and returns the number of bytes written there, 0 if it could be linked to
+     * a file this pass already moved, or -1 if the blob is gone.
+     */
+    private long moveHome(String key, Volume source, Object fileKey, Map<Object, MovedFile> movedFiles) throws IOException {
+        Volume target = home(key);
+        synchronized (lock(key)) {
+            Path sourcePath = source.store().resolve(key);
+            if (!Files.exists(sourcePath)) {
+                return -1;
+            }
+            Path targetPath = target.store().resolve(key);
+            Path staged = target.root().resolve(STAGING_DIRECTORY).resolve(UUID.randomUUID().toString());
+            Files.createDirectories(staged.getParent());
+            Files.createDirectories(targetPath.getParent());
+            long written;
+            try {
+                MovedFile sibling = fileKey == null ? null : movedFiles.get(fileKey);
+                if (sibling != null && sibling.volume() == target && linkTo(sibling, staged)) {
+                    written = 0;
+                } else {
+                    Files.copy(sourcePath, staged, StandardCopyOption.COPY_ATTRIBUTES);
+                    written = Files.size(staged);
+                    if (fileKey != null) {
+                        movedFiles.put(fileKey, new MovedFile(target, targetPath, Files.readAttributes(staged, BasicFileAttributes.class).fileKey()));
+                    }
+                }
+                try {
+                    Files.move(staged, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ignored) {
+                    Files.move(staged, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(staged);
+            }
+            Files.delete(sourcePath);
+            return written;
+        }
+    }
+
+    /**
+     * Hard-links {@code staged} to a file moved earlier in the pass, provided that file has not been replaced
+     * since, which is checked on the new link itself so a concurrent put cannot slip in between.
+     */
+    private static boolean linkTo(MovedFile sibling, Path staged) throws IOException {
+        try {
+            Files.createLink(staged, sibling.path());
+        } catch (UnsupportedOperationException | IOException exception) {
+            return false;
+        }
+        if (Objects.equals(Files.readAttributes(staged, BasicFileAttributes.class).fileKey(), sibling.fileKey())) {
+            return true;
+        }
+        Files.delete(staged);
+        return false;
+    }
+
+    /**
+     * The volume with the highest weighted rendezvous score for {@code key}.
+     */
+    private Volume home(String key) {
+        Volume best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (Volume volume : volumes) {
+            // Maps the hash to (0, 1] and scales it so a volume wins in proportion to its weight.
+            double unit = ((hash(volume.id(), key) >>> 11) + 1) * 0x1.0p-53;
+            double score = -volume.weight() / Math.log(unit);
+            if (best == null || score > bestScore) {
+                best = volume;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private List<Volume> probeOrder(String key) {
+        Volume home = home(key);
+        if (volumes.size() == 1) {
+            return volumes;
+        }
+        List<Volume> order = new ArrayList<>(volumes.size());
+        order.add(home);
+        for (Volume volume : volumes) {
+            if (volume != home) {
+                order.add(volume);
+            }
+        }
+        return order;
+    }
+
+    private Object lock(String key) {
+        return locks[Math.floorMod(key.hashCode(), LOCK_STRIPES)];
+    }
+
+    private boolean pause() {
+        if (rebalancePause.isZero()) {
+            return !Thread.currentThread().isInterrupted();
+        }
+        try {
+            Thread.sleep(rebalancePause.toMillis());
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static double weightOf(Path root) {
+        try {
+            return Math.max(Files.getFileStore(root).getTotalSpace(), 1);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Unable to read the size of storage volume " + root, exception);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the volume id and key, finished with the MurmurHash3 mixer.
+     */
+    private static long hash(String volumeId, String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : (volumeId + '\0' + key).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private record Volume(String id, Path root, LocalBlobStore store, double weight) {
+    }
+
+    private record MovedFile(Volume volume, Path path, Object fileKey) {
+    }
+
+    public record RebalanceReport(Instant startedAt, Instant finishedAt, long blobsMoved, long bytesMoved, long failures) {
+    }
+}
@@ -0,0 +1,137 @@
+package com.patrakosh.persistence;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The rows one write put into or deleted from a partition, which is what a shard journal entry records. They are
+ * read off the {@link ChangeLog}s the partition's rows keep while the write is tracked, never by comparing the
+ * partition with a copy of itself, so both building and writing an entry cost as much as the write changed rather
+ * than as much as the user stores.
+ *
+ * <p>Put rows replace the row with the same key or are added after the others. Activities are only ever appended
+ * and file versions never change in place, so both are recorded as additions and versions also as removals.
+ * Changes refer to the partition's own records and are meant to be encoded while the shard is still locked.
+ */
+record PartitionChanges(
+        long userId,
+        List<AppStateStore.SessionRecord> sessions,
+        List<String> removedSessions,
+        List<AppStateStore.FileRecord> files,
+        List<Long> removedFiles,
+        List<AppStateStore.FileVersionRecord> versions,
+        List<PartitionImage.VersionKey> removedVersions,
+        List<AppStateStore.ShareRecord> shares,
+        List<Long> removedShares,
+        List<AppStateStore.FolderRecord> folders,
+        List<Long> removedFolders,
+        List<AppStateStore.ActivityRecord> activities
+) {
+
+    static PartitionChanges empty(long userId) {
+        return new PartitionChanges(
+                userId,
+                new ArrayList<>(), new ArrayList<>(),
+                new ArrayList<>(), new ArrayList<>(),
+                new ArrayList<>(), new ArrayList<>(),
+                new ArrayList<>(), new ArrayList<>(),
+                new ArrayList<>(), new ArrayList<>(),
+                new ArrayList<>()
+        );
+    }
+
+    /**
+     * What the tracked write on {@code partition} changed, as noted by its rows while the writer ran.
+     */
+    static PartitionChanges of(AppStateStore.UserPartition partition) {
+        PartitionChanges changes = empty(partition.userId);
+        partition.sessions.collectChanges(changes.sessions, changes.removedSessions);
+        partition.files.collectChanges(changes.files, changes.removedFiles);
+        partition.versions.collectChanges(changes.versions, changes.removedVersions);
+        partition.shares.collectChanges(changes.shares, changes.removedShares);
+        partition.folders.collectChanges(changes.folders, changes.removedFolders);
+        changes.activities.addAll(partition.appendedActivities());
+        return changes;
+    }
+
+    boolean isEmpty() {
+        return sessions.isEmpty() && removedSessions.isEmpty()
+                && files.isEmpty() && removedFiles.isEmpty()
+                && versions.isEmpty() && removedVersions.isEmpty()
+                && shares.isEmpty() && removedShares.isEmpty()
+                && folders.isEmpty() && removedFolders.isEmpty()
+                && activities.isEmpty();
+    }
+
+    /**
+     * Replays these changes onto {@code partition}, as they were made to it when they were recorded.
+     */
+    void applyTo(AppStateStore.UserPartition partition) {
+        if (!removedSessions.isEmpty()) {
+            Set<String> removed = new HashSet<>(removedSessions);
+            partition.sessions.removeIf(session -> removed.contains(session.token));
+        }
+        for (AppStateStore.SessionRecord session : sessions) {
+            putSession(partition.sessions, session);
+        }
+
+        if (!removedFiles.isEmpty()) {
+            Set<Long> removed = new HashSet<>(removedFiles);
+            partition.files.removeIf(file -> removed.contains(file.id));
+        }
+        for (AppStateStore.FileRecord file : files) {
+            int position = partition.files.positionOf(file.id);
+            if (position < 0) {
+                partition.files.add(file);
+            } else {
+                partition.files.set(position, file);
+            }
+        }
+
+        if (!removedVersions.isEmpty()) {
+            Set<PartitionImage.VersionKey> removed = new HashSet<>(removedVersions);
+            partition.versions.removeIf(version -> removed.contains(PartitionImage.VersionKey.of(version)));
+        }
+        partition.versions.addAll(versions);
+
+        if (!removedShares.isEmpty()) {
+            Set<Long> removed = new HashSet<>(removedShares);
+            partition.shares.removeIf(share -> removed.contains(share.id));
+        }
+        for (AppStateStore.ShareRecord share : shares) {
+            putShare(partition.shares, share);
+        }
+
+        // Changed folders are taken out before any is put back, so two that swapped names never collide.
+        if (!removedFolders.isEmpty() || !folders.isEmpty()) {
+            Set<Long> removed = new HashSet<>(removedFolders);
+            folders.forEach(folder -> removed.add(folder.id));
+            partition.folders.removeIf(folder -> removed.contains(folder.id));
+            partition.folders.addAll(folders);
+        }
+
+        partition.activities.addAll(activities);
+    }
+
+    private static void putSession(List<AppStateStore.SessionRecord> sessions, AppStateStore.SessionRecord session) {
+        for (int index = 0; index < sessions.size(); index++) {
+            if (sessions.get(index).token.equals(session.token)) {
+                sessions.set(index, session);
+                return;
+            }
+        }
+        sessions.add(session);
+    }
+
+    private static void putShare(List<AppStateStore.ShareRecord> shares, AppStateStore.ShareRecord share) {
+        for (int index = 0; index < shares.size(); index++) {
+            if (shares.get(index).id == share.id) {
+                shares.set(index, share);
+                return;
+            }
+        }
+        shares.add(share);
+    }
+}
@@ -0,0 +1,95 @@
+package com.patrakosh.persistence;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Detached copies of a partition's rows, keyed by primary key, used by backends that write back only what a
+ * writer changed, and the comparisons that tell a changed row from an unchanged one.
+ */
+record PartitionImage(
+        Map<String, AppStateStore.SessionRecord> sessions,
+        Map<Long, AppStateStore.FileRecord> files,
+        Map<VersionKey, AppStateStore.FileVersionRecord> versions,
+        Map<Long, AppStateStore.ShareRecord> shares,
+        Map<Long, AppStateStore.FolderRecord> folders
+) {
+
+    static PartitionImage of(AppStateStore.UserPartition partition) {
+        Map<String, AppStateStore.SessionRecord> sessions = new LinkedHashMap<>();
+        for (AppStateStore.SessionRecord session : partition.sessions) {
+            sessions.put(session.token, new AppStateStore.SessionRecord(
+                    session.token, session.userId, session.createdAt, session.expiresAt, session.revokedAt
+            ));
+        }
+        Map<Long, AppStateStore.FileRecord> files = new LinkedHashMap<>();
+        for (AppStateStore.FileRecord file : partition.files) {
+            files.put(file.id, new AppStateStore.FileRecord(
+                    file.id, file.userId, file.filename, file.mimeType, file.fileSize, file.uploadTime, file.storageKey,
+                    file.deletedAt, file.checksum, file.folderId
+            ));
+        }
+        Map<VersionKey, AppStateStore.FileVersionRecord> versions = new LinkedHashMap<>();
+        for (AppStateStore.FileVersionRecord version : partition.versions) {
+            versions.put(VersionKey.of(version), new AppStateStore.FileVersionRecord(
+                    version.fileId, version.version, version.fileSize, version.checksum, version.storageKey,
+                    version.delta, version.storedSize, version.uploadTime
+            ));
+        }
+        Map<Long, AppStateStore.ShareRecord> shares = new LinkedHashMap<>();
+        for (AppStateStore.ShareRecord share : partition.shares) {
+            shares.put(share.id, new AppStateStore.ShareRecord(
+                    share.id, share.fileId, share.ownerUserId, share.token, share.createdAt, share.expiresAt,
+                    share.revokedAt, share.accessCount
+            ));
+        }
+        Map<Long, AppStateStore.FolderRecord> folders = new LinkedHashMap<>();
+        for (AppStateStore.FolderRecord folder : partition.folders) {
+            folders.put(folder.id, folder);
+        }
+        return new PartitionImage(sessions, files, versions, shares, folders);
+    }
+
+    static boolean sameFile(AppStateStore.FileRecord left, AppStateStore.FileRecord right) {
+        return Objects.equals(left.filename, right.filename)
+                && Objects.equals(left.mimeType, right.mimeType)
+                && left.fileSize == right.fileSize
+                && Objects.equals(left.uploadTime, right.uploadTime)
+                && Objects.equals(left.storageKey, right.storageKey)
+                && Objects.equals(left.deletedAt, right.deletedAt)
+                && left.checksum == right.checksum
+                && left.folderId == right.folderId;
+    }
+
+    static boolean sameSession(AppStateStore.SessionRecord left, AppStateStore.SessionRecord right) {
+        return Objects.equals(left.createdAt, right.createdAt)
+                && Objects.equals(left.expiresAt, right.expiresAt)
+                && Objects.equals(left.revokedAt, right.revokedAt);
+    }
+
+    static boolean sameShare(AppStateStore.ShareRecord left, AppStateStore.ShareRecord right) {
+        return left.fileId == right.fileId
+                && Objects.equals(left.token, right.token)
+                && Objects.equals(left.createdAt, right.createdAt)
+                && Objects.equals(left.expiresAt, right.expiresAt)
+                && Objects.equals(left.revokedAt, right.revokedAt)
+                && left.accessCount == right.accessCount;
+    }
+
+    static boolean sameFolder(AppStateStore.FolderRecord left, AppStateStore.FolderRecord right) {
+        return left.parentId == right.parentId
+                && Objects.equals(left.name, right.name)
+                && Objects.equals(left.createdAt, right.createdAt);
+    }
+
+    /**
+     * Version records are never changed in place, so they only need to be told apart, not compared.
+     */
+    record VersionKey(long fileId, long version) {
+
+        static VersionKey of(AppStateStore.FileVersionRecord version) {
+            return new VersionKey(version.fileId, version.version);
+        }
+    }
+}
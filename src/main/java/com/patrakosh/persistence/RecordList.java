@@ -0,0 +1,292 @@
+package com.patrakosh.persistence;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A list of a partition's records that callers change in place, such as a session's {@code revokedAt} or a
+ * share's {@code accessCount}.
+ *
+ * <p>While a write is tracked, the first time a record is handed out its current value is kept in a
+ * {@link ChangeLog}, so the write can be undone and the records it changed told apart from those it only read,
+ * without copying the ones it never looked at. Records of a kind that never changes in place are not copied at
+ * all; only adding and removing them is noted.
+ */
+public abstract class RecordList<K, R> extends AbstractList<R> implements RandomAccess {
+
+    private final List<R> rows;
+    private ChangeLog<K, R> changeLog;
+
+    RecordList(int capacity) {
+        this.rows = new ArrayList<>(capacity);
+    }
+
+    @Override
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    public R get(int index) {
+        R row = rows.get(index);
+        if (changeLog != null && changesInPlace()) {
+            changeLog.touched(row);
+        }
+        return row;
+    }
+
+    @Override
+    public R set(int index, R row) {
+        R previous = rows.set(index, row);
+        if (changeLog != null) {
+            changeLog.replaced(index, previous, row);
+        }
+        return previous;
+    }
+
+    @Override
+    public void add(int index, R row) {
+        rows.add(index, row);
+        modCount++;
+        if (changeLog != null) {
+            changeLog.inserted(index, row);
+        }
+    }
+
+    @Override
+    public R remove(int index) {
+        R removed = rows.remove(index);
+        modCount++;
+        if (changeLog != null) {
+            changeLog.removed(index, removed);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super R> filter) {
+        if (changeLog == null) {
+            boolean removed = rows.removeIf(filter);
+            if (removed) {
+                modCount++;
+            }
+            return removed;
+        }
+        boolean removed = false;
+        for (int index = rows.size() - 1; index >= 0; index--) {
+            if (filter.test(get(index))) {
+                remove(index);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        if (changeLog == null) {
+            rows.clear();
+            modCount++;
+            return;
+        }
+        for (int index = rows.size() - 1; index >= 0; index--) {
+            remove(index);
+        }
+    }
+
+    abstract K keyOf(R row);
+
+    abstract R copyOf(R row);
+
+    abstract void restore(R row, R saved);
+
+    abstract boolean same(R left, R right);
+
+    /**
+     * Whether callers change these records in place, so tracking has to keep a copy of each one it hands out.
+     */
+    boolean changesInPlace() {
+        return true;
+    }
+
+    /**
+     * Starts noting changes, so that they can be listed with {@link #collectChanges} or undone with
+     * {@link #rollback}.
+     */
+    void track() {
+        changeLog = new ChangeLog<>(this::keyOf, this::copyOf);
+    }
+
+    void untrack() {
+        changeLog = null;
+    }
+
+    /**
+     * Adds the records the tracked write added or changed to {@code puts} and the keys of those it removed to
+     * {@code removals}.
+     */
+    void collectChanges(List<R> puts, List<K> removals) {
+        Set<K> remaining = new HashSet<>();
+        for (R row : rows) {
+            K key = keyOf(row);
+            if (changeLog.before().containsKey(key)) {
+                remaining.add(key);
+                R previous = changeLog.before().get(key);
+                if (previous == null || !same(previous, row)) {
+                    puts.add(row);
+                }
+            }
+        }
+        changeLog.before().forEach((key, previous) -> {
+            if (previous != null && !remaining.contains(key)) {
+                removals.add(key);
+            }
+        });
+    }
+
+    /**
+     * The tracked record with {@code key} as it was before the write, or null if the write did not touch it or
+     * added it.
+     */
+    R before(K key) {
+        return changeLog.before().get(key);
+    }
+
+    /**
+     * Undoes every change since {@link #track}, in place changes included, and stops tracking.
+     */
+    void rollback() {
+        ChangeLog<K, R> undone = changeLog;
+        changeLog = null;
+        undone.undo(this);
+        for (R row : rows) {
+            R saved = undone.before().get(keyOf(row));
+            if (saved != null && saved != row) {
+                restore(row, saved);
+            }
+        }
+    }
+
+    /**
+     * A user's sessions, keyed by token.
+     */
+    public static final class Sessions extends RecordList<String, AppStateStore.SessionRecord> {
+
+        public Sessions() {
+            this(0);
+        }
+
+        public Sessions(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        String keyOf(AppStateStore.SessionRecord session) {
+            return session.token;
+        }
+
+        @Override
+        AppStateStore.SessionRecord copyOf(AppStateStore.SessionRecord session) {
+            return new AppStateStore.SessionRecord(
+                    session.token, session.userId, session.createdAt, session.expiresAt, session.revokedAt
+            );
+        }
+
+        @Override
+        void restore(AppStateStore.SessionRecord session, AppStateStore.SessionRecord saved) {
+            session.createdAt = saved.createdAt;
+            session.expiresAt = saved.expiresAt;
+            session.revokedAt = saved.revokedAt;
+        }
+
+        @Override
+        boolean same(AppStateStore.SessionRecord left, AppStateStore.SessionRecord right) {
+            return PartitionImage.sameSession(left, right);
+        }
+    }
+
+    /**
+     * A user's share links, keyed by id.
+     */
+    public static final class Shares extends RecordList<Long, AppStateStore.ShareRecord> {
+
+        public Shares() {
+            this(0);
+        }
+
+        public Shares(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        Long keyOf(AppStateStore.ShareRecord share) {
+            return share.id;
+        }
+
+        @Override
+        AppStateStore.ShareRecord copyOf(AppStateStore.ShareRecord share) {
+            return new AppStateStore.ShareRecord(
+                    share.id, share.fileId, share.ownerUserId, share.token, share.createdAt, share.expiresAt,
+                    share.revokedAt, share.accessCount
+            );
+        }
+
+        @Override
+        void restore(AppStateStore.ShareRecord share, AppStateStore.ShareRecord saved) {
+            share.fileId = saved.fileId;
+            share.token = saved.token;
+            share.createdAt = saved.createdAt;
+            share.expiresAt = saved.expiresAt;
+            share.revokedAt = saved.revokedAt;
+            share.accessCount = saved.accessCount;
+        }
+
+        @Override
+        boolean same(AppStateStore.ShareRecord left, AppStateStore.ShareRecord right) {
+            return PartitionImage.sameShare(left, right);
+        }
+    }
+
+    /**
+     * A user's file versions, keyed by file and version number. Versions never change in place.
+     */
+    public static final class Versions extends RecordList<PartitionImage.VersionKey, AppStateStore.FileVersionRecord> {
+
+        public Versions() {
+            this(0);
+        }
+
+        public Versions(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        PartitionImage.VersionKey keyOf(AppStateStore.FileVersionRecord version) {
+            return PartitionImage.VersionKey.of(version);
+        }
+
+        @Override
+        AppStateStore.FileVersionRecord copyOf(AppStateStore.FileVersionRecord version) {
+            return version;
+        }
+
+        @Override
+        void restore(AppStateStore.FileVersionRecord version, AppStateStore.FileVersionRecord saved) {
+        }
+
+        @Override
+        boolean same(AppStateStore.FileVersionRecord left, AppStateStore.FileVersionRecord right) {
+            return left == right;
+        }
+
+        @Override
+        boolean changesInPlace() {
+            return false;
+        }
+    }
+}
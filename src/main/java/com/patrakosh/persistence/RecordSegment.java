@@ -0,0 +1,124 @@
+package com.patrakosh.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed-width records in a {@link MappedRegion}, addressed by slot number. Slot 0 holds the header: magic,
+ * version, record width, and two counters that the owner is free to use for id allocation and a free list.
+ * Fields are longs at 8-byte aligned offsets within a record.
+ */
+final class RecordSegment implements Closeable {
+
+    static final int MAGIC = 0x504B5347; // "PKSG"
+    static final int VERSION = 1;
+    static final int COUNTER = 16;
+    static final int FREE_LIST = 24;
+
+    private static final int RECORDS_PER_CHUNK = 1 << 16;
+
+    private final MappedRegion region;
+    private final int width;
+
+    RecordSegment(Path file, int width) throws IOException {
+        if (width < 32 || width % Long.BYTES != 0) {
+            throw new IllegalArgumentException("Record width must be a multiple of 8 of at least 32 bytes");
+        }
+        this.region = new MappedRegion(file, width * RECORDS_PER_CHUNK);
+        this.width = width;
+        if (region.getInt(0) == 0) {
+            region.putInt(4, VERSION);
+            region.putLong(8, width);
+            region.putLong(COUNTER, 1);
+            region.putLong(FREE_LIST, 0);
+            region.putInt(0, MAGIC);
+        } else if (region.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a PatraKosh record segment");
+        } else if (region.getInt(4) != VERSION || region.getLong(8) != width) {
+            throw new IOException(file + " has an unsupported layout");
+        }
+    }
+
+    /**
+     * Rewrites a segment whose records are narrower than {@code width}, such as one written before a field was
+     * added, setting the new trailing fields of every record to {@code fill}. Does nothing if the file does not
+     * exist or already has that width.
+     */
+    static void widen(Path file, int width, long fill) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(16);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.read(header, 0);
+        }
+        int oldWidth = (int) header.getLong(8);
+        if (header.getInt(0) != MAGIC || oldWidth >= width) {
+            return;
+        }
+
+        Path widenedFile = file.resolveSibling(file.getFileName() + ".widen");
+        Files.deleteIfExists(widenedFile);
+        try (RecordSegment old = new RecordSegment(file, oldWidth);
+             RecordSegment widened = new RecordSegment(widenedFile, width)) {
+            long end = old.header(COUNTER);
+            widened.setHeader(COUNTER, end);
+            widened.setHeader(FREE_LIST, old.header(FREE_LIST));
+            for (long slot = 1; slot < end && old.contains(slot); slot++) {
+                widened.ensureSlot(slot);
+                for (int field = 0; field < width; field += Long.BYTES) {
+                    widened.put(slot, field, field < oldWidth ? old.get(slot, field) : fill);
+                }
+            }
+            widened.force();
+        }
+        try {
+            Files.move(widenedFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ignored) {
+            Files.move(widenedFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    long get(long slot, int field) {
+        return region.getLong(slot * width + field);
+    }
+
+    void put(long slot, int field, long value) {
+        region.putLong(slot * width + field, value);
+    }
+
+    long header(int field) {
+        return region.getLong(field);
+    }
+
+    void setHeader(int field, long value) {
+        region.putLong(field, value);
+    }
+
+    /**
+     * Whether {@code slot} lies inside the mapped part of the file. Reads past it would fail.
+     */
+    boolean contains(long slot) {
+        return slot > 0 && (slot + 1) * width <= region.capacity();
+    }
+
+    void ensureSlot(long slot) throws IOException {
+        region.ensureCapacity((slot + 1) * width);
+    }
+
+    void force() {
+        region.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        region.close();
+    }
+}
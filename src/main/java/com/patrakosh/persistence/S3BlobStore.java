@@ -0,0 +1,507 @@
+package com.patrakosh.persistence;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * {@link BlobStore} that keeps blobs as objects in a bucket of an S3-compatible object store, addressed
+ * path-style ({@code <endpoint>/<bucket>/<key>}) so it also works against MinIO and similar servers.
+ *
+ * <p>Requests are signed with AWS Signature Version 4 by hand rather than through an SDK. A blob that fits in one
+ * part of {@code patrakosh.storage.s3.part-size-bytes} is stored with a single PUT; anything larger becomes a
+ * multipart upload whose parts are sent while the next part is still being read, with at most
+ * {@code upload-concurrency} parts in flight, so an upload holds at most that many parts plus one in memory. A
+ * failed multipart upload is aborted so the store does not keep its parts. S3 itself requires parts of at least
+ * 5 MiB.
+ */
+@Component
+@ConditionalOnProperty(name = "patrakosh.storage.backend", havingValue = "s3")
+public class S3BlobStore implements BlobStore {
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final DateTimeFormatter AMZ_DATE =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private final HttpClient client;
+    private final String endpoint;
+    private final String host;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    private final int partSize;
+    private final int uploadConcurrency;
+    private final Clock clock;
+
+    @Autowired
+    public S3BlobStore(
+            @Value("${patrakosh.storage.s3.endpoint}") String endpoint,
+            @Value("${patrakosh.storage.s3.region:us-east-1}") String region,
+            @Value("${patrakosh.storage.s3.bucket}") String bucket,
+            @Value("${patrakosh.storage.s3.access-key}") String accessKey,
+            @Value("${patrakosh.storage.s3.secret-key}") String secretKey,
+            @Value("${patrakosh.storage.s3.part-size-bytes:8388608}") int partSize,
+            @Value("${patrakosh.storage.s3.upload-concurrency:4}") int uploadConcurrency
+    ) {
+        this(URI.create(endpoint), region, bucket, accessKey, secretKey, partSize, uploadConcurrency, Clock.systemUTC());
+    }
+
+    public S3BlobStore(
+            URI endpoint,
+            String region,
+            String bucket,
+            String accessKey,
+            String secretKey,
+            int partSize,
+            int uploadConcurrency,
+            Clock clock
+    ) {
+        if (partSize < 1 || uploadConcurrency < 1) {
+            throw new IllegalArgumentException("partSize and uploadConcurrency must be greater than zero");
+        }
+        if (bucket.isBlank() || accessKey.isBlank() || secretKey.isBlank()) {
+            throw new IllegalArgumentException("S3 bucket and credentials are required");
+        }
+        String base = endpoint.toString();
+        this.endpoint = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        this.host = hostOf(endpoint);
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.partSize = partSize;
+        this.uploadConcurrency = uploadConcurrency;
+        this.clock = clock;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    @Override
+    public long put(String key, InputStream content, long length) throws IOException {
+        byte[] firstPart = content.readNBytes(partSize);
+        if (firstPart.length < partSize) {
+            HttpResponse<byte[]> response = send(request("PUT", key, Map.of(), Map.of(), firstPart));
+            check(response, "PUT", key);
+            return firstPart.length;
+        }
+        return putMultipart(key, content, firstPart);
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        return open(key, Map.of());
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        if (length <= 0) {
+            return InputStream.nullInputStream();
+        }
+        return open(key, Map.of("range", "bytes=" + offset + "-" + (offset + length - 1)));
+    }
+
+    @Override
+    public Optional<BlobInfo> stat(String key) throws IOException {
+        HttpResponse<byte[]> response = send(request("HEAD", key, Map.of(), Map.of(), null));
+        if (response.statusCode() == 404) {
+            return Optional.empty();
+        }
+        check(response, "HEAD", key);
+        long size = response.headers().firstValueAsLong("content-length").orElse(0);
+        Instant lastModified = response.headers().firstValue("last-modified")
+                .map(S3BlobStore::parseHttpDate)
+                .orElse(Instant.EPOCH);
+        return Optional.of(new BlobInfo(key, size, lastModified));
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        HttpResponse<byte[]> response = send(request("DELETE", key, Map.of(), Map.of(), null));
+        if (response.statusCode() != 404) {
+            check(response, "DELETE", key);
+        }
+    }
+
+    @Override
+    public void move(String sourceKey, String targetKey) throws IOException {
+        copy(sourceKey, targetKey);
+        delete(sourceKey);
+    }
+
+    /**
+     * Copies within the bucket with a server-side CopyObject, so no content passes through the application.
+     */
+    @Override
+    public void copy(String sourceKey, String targetKey) throws IOException {
+        HttpResponse<byte[]> response = send(request(
+                "PUT",
+                targetKey,
+                Map.of(),
+                Map.of("x-amz-copy-source", "/" + encode(bucket, false) + "/" + encode(sourceKey, true)),
+                null
+        ));
+        if (response.statusCode() == 404) {
+            throw new NoSuchFileException(sourceKey);
+        }
+        check(response, "COPY", sourceKey);
+        // A copy can fail after the 200 status has been sent, in which case the error is in the body.
+        checkNoError(parse(response.body()), "COPY", sourceKey);
+    }
+
+    @Override
+    public List<BlobInfo> list(String directory) throws IOException {
+        List<BlobInfo> blobs = new ArrayList<>();
+        listObjects(directory + "/", document -> {
+            NodeList contents = document.getElementsByTagName("Contents");
+            for (int index = 0; index < contents.getLength(); index++) {
+                Element object = (Element) contents.item(index);
+                blobs.add(new BlobInfo(
+                        text(object, "Key"),
+                        Long.parseLong(text(object, "Size")),
+                        Instant.parse(text(object, "LastModified"))
+                ));
+            }
+        });
+        return blobs;
+    }
+
+    @Override
+    public List<String> directories() throws IOException {
+        TreeSet<String> directories = new TreeSet<>();
+        listObjects("", document -> {
+            NodeList prefixes = document.getElementsByTagName("CommonPrefixes");
+            for (int index = 0; index < prefixes.getLength(); index++) {
+                String prefix = text((Element) prefixes.item(index), "Prefix");
+                directories.add(prefix.substring(0, prefix.length() - 1));
+            }
+        });
+        return List.copyOf(directories);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private long putMultipart(String key, InputStream content, byte[] firstPart) throws IOException {
+        HttpResponse<byte[]> initiated = send(request("POST", key, Map.of("uploads", ""), Map.of(), null));
+        check(initiated, "CreateMultipartUpload", key);
+        String uploadId = text(parse(initiated.body()).getDocumentElement(), "UploadId");
+
+        Semaphore slots = new Semaphore(uploadConcurrency);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<CompletableFuture<String>> etags = new ArrayList<>();
+        long written = 0;
+        try {
+            byte[] part = firstPart;
+            while (part.length > 0 && !failed.get()) {
+                slots.acquire();
+                String partNumber = Integer.toString(etags.size() + 1);
+                HttpRequest partRequest = request("PUT", key, Map.of("partNumber", partNumber, "uploadId", uploadId), Map.of(), part);
+                etags.add(client.sendAsync(partRequest, HttpResponse.BodyHandlers.discarding())
+                        .thenApply(response -> {
+                            if (response.statusCode() / 100 != 2) {
+                                throw new CompletionException(new IOException(
+                                        "Upload of part " + partNumber + " of " + key + " failed with HTTP " + response.statusCode()
+                                ));
+                            }
+                            return response.headers().firstValue("etag").orElseThrow(() -> new CompletionException(
+                                    new IOException("Upload of part " + partNumber + " of " + key + " returned no ETag")
+                            ));
+                        })
+                        .whenComplete((etag, failure) -> {
+                            if (failure != null) {
+                                failed.set(true);
+                            }
+                            slots.release();
+                        }));
+                written += part.length;
+                part = content.readNBytes(partSize);
+            }
+
+            StringBuilder completion = new StringBuilder("<CompleteMultipartUpload>");
+            for (int index = 0; index < etags.size(); index++) {
+                completion.append("<Part><PartNumber>").append(index + 1).append("</PartNumber><ETag>")
+                        .append(escapeXml(join(etags.get(index)))).append("</ETag></Part>");
+            }
+            completion.append("</CompleteMultipartUpload>");
+            HttpResponse<byte[]> completed = send(request(
+                    "POST",
+                    key,
+                    Map.of("uploadId", uploadId),
+                    Map.of(),
+                    completion.toString().getBytes(StandardCharsets.UTF_8)
+            ));
+            check(completed, "CompleteMultipartUpload", key);
+            checkNoError(parse(completed.body()), "CompleteMultipartUpload", key);
+            return written;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            abort(key, uploadId, null);
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (IOException | RuntimeException exception) {
+            abort(key, uploadId, exception);
+            throw exception;
+        }
+    }
+
+    private void abort(String key, String uploadId, Exception cause) {
+        try {
+            send(request("DELETE", key, Map.of("uploadId", uploadId), Map.of(), null));
+        } catch (IOException abortFailure) {
+            if (cause != null) {
+                cause.addSuppressed(abortFailure);
+            }
+        }
+    }
+
+    private static String join(CompletableFuture<String> etag) throws IOException {
+        try {
+            return etag.join();
+        } catch (CompletionException exception) {
+            if (exception.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Part upload failed", exception.getCause());
+        }
+    }
+
+    private InputStream open(String key, Map<String, String> headers) throws IOException {
+        HttpRequest request = request("GET", key, Map.of(), headers, null);
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + key);
+        }
+        if (response.statusCode() / 100 == 2) {
+            return response.body();
+        }
+        response.body().close();
+        if (response.statusCode() == 404) {
+            throw new NoSuchFileException(key);
+        }
+        if (response.statusCode() == 416) {
+            return InputStream.nullInputStream();
+        }
+        throw new IOException("GET " + key + " failed with HTTP " + response.statusCode());
+    }
+
+    private void listObjects(String prefix, Consumer<Document> pageConsumer) throws IOException {
+        String continuationToken = null;
+        do {
+            Map<String, String> query = new TreeMap<>(Map.of("list-type", "2", "delimiter", "/"));
+            if (!prefix.isEmpty()) {
+                query.put("prefix", prefix);
+            }
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            HttpResponse<byte[]> response = send(request("GET", null, query, Map.of(), null));
+            check(response, "ListObjectsV2", prefix);
+            Document document = parse(response.body());
+            pageConsumer.accept(document);
+            boolean truncated = "true".equals(text(document.getDocumentElement(), "IsTruncated"));
+            continuationToken = truncated ? text(document.getDocumentElement(), "NextContinuationToken") : null;
+        } while (continuationToken != null);
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest request) throws IOException {
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during " + request.method() + " " + request.uri());
+        }
+    }
+
+    /**
+     * Builds a request for {@code key}, or for the bucket itself if {@code key} is null, signed with Signature
+     * Version 4 over the full payload.
+     */
+    private HttpRequest request(
+            String method,
+            String key,
+            Map<String, String> query,
+            Map<String, String> headers,
+            byte[] body
+    ) {
+        String path = "/" + encode(bucket, false) + (key == null ? "" : "/" + encode(key, true));
+        StringBuilder canonicalQuery = new StringBuilder();
+        new TreeMap<>(query).forEach((name, value) -> {
+            if (!canonicalQuery.isEmpty()) {
+                canonicalQuery.append('&');
+            }
+            canonicalQuery.append(encode(name, false)).append('=').append(encode(value, false));
+        });
+
+        String amzDate = AMZ_DATE.format(clock.instant());
+        String payloadHash = body == null ? EMPTY_SHA256 : HexFormat.of().formatHex(sha256(body));
+        TreeMap<String, String> signedHeaders = new TreeMap<>();
+        headers.forEach((name, value) -> signedHeaders.put(name.toLowerCase(Locale.ROOT), value.trim()));
+        signedHeaders.put("host", host);
+        signedHeaders.put("x-amz-content-sha256", payloadHash);
+        signedHeaders.put("x-amz-date", amzDate);
+
+        StringBuilder canonicalHeaders = new StringBuilder();
+        signedHeaders.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value).append('\n'));
+        String signedHeaderNames = String.join(";", signedHeaders.keySet());
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n" + canonicalHeaders + "\n"
+                + signedHeaderNames + "\n" + payloadHash;
+
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + HexFormat.of().formatHex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(
+                        endpoint + path + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery)
+                ))
+                .method(method, body == null
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofByteArray(body))
+                .header("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+                        + ", SignedHeaders=" + signedHeaderNames + ", Signature=" + signature);
+        // The client sets Host itself, from the same endpoint the signature covers.
+        signedHeaders.forEach((name, value) -> {
+            if (!name.equals("host")) {
+                builder.header(name, value);
+            }
+        });
+        return builder.build();
+    }
+
+    private static void check(HttpResponse<?> response, String operation, String key) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(operation + " " + key + " failed with HTTP " + response.statusCode());
+        }
+    }
+
+    private static void checkNoError(Document document, String operation, String key) throws IOException {
+        if (document != null && document.getDocumentElement().getTagName().equals("Error")) {
+            throw new IOException(operation + " " + key + " failed: " + text(document.getDocumentElement(), "Code"));
+        }
+    }
+
+    private static Document parse(byte[] xml) throws IOException {
+        if (xml.length == 0) {
+            return null;
+        }
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch (ParserConfigurationException | SAXException exception) {
+            throw new IOException("Unreadable response from the object store", exception);
+        }
+    }
+
+    private static String text(Element parent, String name) {
+        NodeList nodes = parent.getElementsByTagName(name);
+        return nodes.getLength() == 0 ? "" : nodes.item(0).getTextContent();
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static Instant parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException exception) {
+            return Instant.EPOCH;
+        }
+    }
+
+    /**
+     * Percent-encodes everything but the RFC 3986 unreserved characters, and {@code /} when encoding a key.
+     */
+    private static String encode(String value, boolean keepSlashes) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (keepSlashes && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HexFormat.of().withUpperCase().toHexDigits(b));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String hostOf(URI endpoint) {
+        int port = endpoint.getPort();
+        boolean defaultPort = port == -1 || port == ("https".equalsIgnoreCase(endpoint.getScheme()) ? 443 : 80);
+        return defaultPort ? endpoint.getHost() : endpoint.getHost() + ":" + port;
+    }
+
+    private static byte[] sha256(byte[] value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value);
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalStateException("SHA-256 is not available", exception);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalStateException("Failed to sign object store request", exception);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.patrakosh.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only redo log for one state shard.
+ *
+ * <p>Entries are framed as {@code [length][crc32][payload]}. Appends happen under the owning shard's write
+ * lock; forcing does not, so that {@link #awaitDurable} can coalesce concurrent committers into one fsync.
+ * Positions are logical and keep increasing across {@link #reset()} so that waiters from before a checkpoint
+ * are released correctly.
+ *
+ * <p>Replay takes an entry longer than {@link #MAX_ENTRY_BYTES} for a torn tail, so such an entry is refused when
+ * it is appended rather than silently dropped on the next start.
+ */
+final class ShardJournal implements Closeable {
+
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+    static final int MAX_ENTRY_BYTES = 256 * 1024 * 1024;
+
+    private final JournalFile file;
+    private final int maxEntryBytes;
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private volatile long appendedPosition;
+    private long basePosition;
+    private long durablePosition;
+    private boolean syncing;
+    private int waiters;
+
+    ShardJournal(JournalFile file) throws IOException {
+        this(file, MAX_ENTRY_BYTES);
+    }
+
+    ShardJournal(JournalFile file, int maxEntryBytes) throws IOException {
+        this.file = file;
+        this.maxEntryBytes = maxEntryBytes;
+        this.appendedPosition = file.size();
+        this.durablePosition = appendedPosition;
+    }
+
+    /**
+     * Reads every intact entry of {@code path} in order and returns the length of the valid prefix. Anything
+     * past that point is a torn or corrupt tail from an interrupted append.
+     */
+    static long replay(Path path, Consumer<byte[]> consumer) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        long validLength = 0;
+        try (InputStream input = Files.newInputStream(path);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(input, 64 * 1024))) {
+            while (true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = data.readInt();
+                    checksum = data.readInt();
+                    if (length < 0 || length > MAX_ENTRY_BYTES) {
+                        break;
+                    }
+                    payload = data.readNBytes(length);
+                } catch (EOFException exception) {
+                    break;
+                }
+                if (payload.length != length || checksum(payload) != checksum) {
+                    break;
+                }
+                consumer.accept(payload);
+                validLength += HEADER_BYTES + length;
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * Appends one entry and returns the position that must become durable for it to survive a crash, or fails
+     * without writing anything if the entry is too large to be replayed. Callers hold the shard write lock.
+     */
+    long append(byte[] payload) throws IOException {
+        if (payload.length > maxEntryBytes) {
+            throw new IOException(
+                    "State journal entry of " + payload.length + " bytes exceeds the limit of " + maxEntryBytes
+            );
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buffer.putInt(payload.length).putInt(checksum(payload)).put(payload).flip();
+
+        long physicalPosition = appendedPosition - basePosition;
+        try {
+            file.write(buffer);
+        } catch (IOException exception) {
+            file.truncate(physicalPosition);
+            throw exception;
+        }
+        appendedPosition += HEADER_BYTES + payload.length;
+        return appendedPosition;
+    }
+
+    long size() {
+        return appendedPosition - basePosition;
+    }
+
+    boolean isDirty() {
+        syncLock.lock();
+        try {
+            return durablePosition < appendedPosition;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until {@code position} is durable. The first waiter becomes the leader: when other committers are
+     * in flight it lingers for {@code windowNanos} so that they can join, then forces once and wakes everyone
+     * whose entries the force covered. A lone committer forces straight away.
+     */
+    void awaitDurable(long position, long windowNanos) throws IOException {
+        syncLock.lock();
+        waiters++;
+        try {
+            while (durablePosition < position) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+
+                syncing = true;
+                boolean linger = windowNanos > 0 && (waiters > 1 || appendedPosition > position);
+                syncLock.unlock();
+                long target = 0;
+                IOException failure = null;
+                try {
+                    if (linger) {
+                        LockSupport.parkNanos(windowNanos);
+                    }
+                    target = appendedPosition;
+                    file.force();
+                } catch (IOException exception) {
+                    failure = exception;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (failure == null) {
+                        durablePosition = Math.max(durablePosition, target);
+                    }
+                    synced.signalAll();
+                }
+
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } finally {
+            waiters--;
+            syncLock.unlock();
+        }
+    }
+
+    void sync() throws IOException {
+        awaitDurable(appendedPosition, 0);
+    }
+
+    /**
+     * Drops every entry once a checkpoint covering them is durable. Callers hold the shard write lock.
+     */
+    void reset() throws IOException {
+        syncLock.lock();
+        try {
+            durablePosition = Math.max(durablePosition, appendedPosition);
+            synced.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+        file.truncate(0);
+        basePosition = appendedPosition;
+    }
+
+    /**
+     * Closes the file and releases anyone still waiting on it. Callers that need the tail to be durable
+     * {@link #sync()} first.
+     */
+    @Override
+    public void close() throws IOException {
+        syncLock.lock();
+        try {
+            durablePosition = Math.max(durablePosition, appendedPosition);
+            synced.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+        file.close();
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,65 @@
+package com.patrakosh.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Converts a single-file {@code state.json} into a sharded data directory of binary checkpoints, so that large
+ * installations can migrate offline instead of during application startup.
+ *
+ * <p>Usage: {@code StateCheckpointConverter <state.json> <data-dir> [shards]}
+ */
+public final class StateCheckpointConverter {
+
+    private StateCheckpointConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: StateCheckpointConverter <state.json> <data-dir> [shards]");
+            System.exit(2);
+        }
+        int shardCount = args.length == 3 ? Integer.parseInt(args[2]) : AppStateStore.DEFAULT_SHARD_COUNT;
+
+        long startedAt = System.nanoTime();
+        Result result = convert(Path.of(args[0]), Path.of(args[1]), shardCount);
+        long elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        System.out.printf(
+                "Converted %d users, %d files, %d shares and %d activity entries into %d shards in %d ms%n",
+                result.users(),
+                result.files(),
+                result.shares(),
+                result.activities(),
+                shardCount,
+                elapsedMillis
+        );
+    }
+
+    public static Result convert(Path legacyStateFile, Path dataRoot, int shardCount) throws IOException {
+        if (!Files.isRegularFile(legacyStateFile)) {
+            throw new IllegalArgumentException("State file not found: " + legacyStateFile);
+        }
+        if (Files.isDirectory(dataRoot)) {
+            try (Stream<Path> entries = Files.list(dataRoot)) {
+                if (entries.findAny().isPresent()) {
+                    throw new IllegalArgumentException("Data directory must be empty: " + dataRoot);
+                }
+            }
+        }
+
+        try (AppStateStore store = new AppStateStore(dataRoot, shardCount, DurabilitySettings.of(DurabilityMode.FSYNC))) {
+            store.importLegacyState(legacyStateFile);
+            return store.read(state -> new Result(
+                    state.users.size(),
+                    state.files.size(),
+                    state.shares.size(),
+                    state.activities.size()
+            ));
+        }
+    }
+
+    public record Result(int users, int files, int shares, int activities) {
+    }
+}
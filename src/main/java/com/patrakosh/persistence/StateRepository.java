@@ -0,0 +1,144 @@
+package com.patrakosh.persistence;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Function;
+
+/**
+ * Persistence boundary the services depend on.
+ *
+ * <p>Per-user data is read and written as a {@link AppStateStore.UserPartition}: {@link #writeUser} runs its
+ * writer as one transaction against the user's sessions, files, file versions and shares and either persists
+ * every change or none. Implementations only ever load the partition of the user being touched, so request cost
+ * does not grow with the number of users. The activity log is append-only and can grow without bound, so it is
+ * written and read through {@link #appendActivity} and {@link #listActivities}; partitions handed to readers and
+ * writers are not guaranteed to contain it.
+ *
+ * <p>Requests that only need one row, such as checking a session token or serving a download, go through the
+ * narrow lookups ({@link #findSession}, {@link #findFile}, {@link #findShare} and {@link #countShareAccess}) rather
+ * than a partition. Their defaults go through {@link #readUser} and {@link #writeUser}; backends that load a
+ * partition from storage on every call override them with a single keyed lookup, so that per-request cost does not
+ * grow with how much the user stores either.
+ */
+public interface StateRepository extends AutoCloseable {
+
+    Optional<AppStateStore.UserRecord> findUser(long userId);
+
+    Optional<AppStateStore.UserRecord> findUserByUsernameOrEmail(String identifier);
+
+    /**
+     * Creates a user unless the username or email is already taken, ignoring case. The password is hashed by
+     * the caller beforehand so that no key derivation runs while the store is locked.
+     */
+    Registration registerUser(String username, String email, String passwordHash, Instant createdAt);
+
+    /**
+     * Replaces the user's password hash if it still equals {@code expectedHash}, so a rehash racing a password
+     * change cannot overwrite it. Returns whether the hash was replaced.
+     */
+    boolean updatePasswordHash(long userId, String expectedHash, String newHash);
+
+    <T> T readUser(long userId, Function<AppStateStore.UserPartition, T> reader);
+
+    <T> T writeUser(long userId, Function<AppStateStore.UserPartition, T> writer);
+
+    OptionalLong findSessionOwner(String token);
+
+    OptionalLong findShareOwner(String token);
+
+    /**
+     * Returns a copy of the session with this opaque token, whether or not it is still live.
+     */
+    default Optional<AppStateStore.SessionRecord> findSession(String token) {
+        OptionalLong ownerId = findSessionOwner(token);
+        if (ownerId.isEmpty()) {
+            return Optional.empty();
+        }
+        return readUser(ownerId.getAsLong(), partition -> partition.sessions.stream()
+                .filter(session -> token.equals(session.token))
+                .findFirst()
+                .map(session -> new AppStateStore.SessionRecord(
+                        session.token, session.userId, session.createdAt, session.expiresAt, session.revokedAt
+                )));
+    }
+
+    /**
+     * Returns a copy of one of the user's files, trashed ones included.
+     */
+    default Optional<AppStateStore.FileRecord> findFile(long userId, long fileId) {
+        return readUser(userId, partition -> {
+            int position = partition.files.positionOf(fileId);
+            return position < 0 ? Optional.empty() : Optional.of(partition.files.get(position));
+        });
+    }
+
+    /**
+     * Returns a copy of the share with this token, whether or not it is still active.
+     */
+    default Optional<AppStateStore.ShareRecord> findShare(String token) {
+        OptionalLong ownerId = findShareOwner(token);
+        if (ownerId.isEmpty()) {
+            return Optional.empty();
+        }
+        return readUser(ownerId.getAsLong(), partition -> partition.shares.stream()
+                .filter(share -> token.equals(share.token))
+                .findFirst()
+                .map(share -> new AppStateStore.ShareRecord(
+                        share.id, share.fileId, share.ownerUserId, share.token, share.createdAt, share.expiresAt,
+                        share.revokedAt, share.accessCount
+                )));
+    }
+
+    /**
+     * Counts one more access to a share and returns its new access count, or nothing if the owner has no such
+     * share.
+     */
+    default OptionalLong countShareAccess(long ownerId, long shareId) {
+        return writeUser(ownerId, partition -> {
+            for (AppStateStore.ShareRecord share : partition.shares) {
+                if (share.id == shareId) {
+                    return OptionalLong.of(++share.accessCount);
+                }
+            }
+            return OptionalLong.empty();
+        });
+    }
+
+    void appendActivity(AppStateStore.ActivityRecord activity);
+
+    /**
+     * Returns the user's activity, newest first.
+     */
+    List<AppStateStore.ActivityRecord> listActivities(long userId);
+
+    long nextFileId();
+
+    long nextShareId();
+
+    long nextActivityId();
+
+    /**
+     * Drops all state. Meant for tests.
+     */
+    void reset();
+
+    @Override
+    void close();
+
+    record Registration(AppStateStore.UserRecord user, boolean usernameTaken, boolean emailTaken) {
+
+        public static Registration created(AppStateStore.UserRecord user) {
+            return new Registration(user, false, false);
+        }
+
+        public static Registration rejected(boolean usernameTaken, boolean emailTaken) {
+            return new Registration(null, usernameTaken, emailTaken);
+        }
+
+        public boolean isCreated() {
+            return user != null;
+        }
+    }
+}
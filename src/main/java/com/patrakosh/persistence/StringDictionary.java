@@ -0,0 +1,56 @@
+package com.patrakosh.persistence;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only mapping between low-cardinality strings and small integer codes, shared by every
+ * {@link FileTable}. Codes start at 1; {@link #codeOf} returns 0 for values longer than the length limit and
+ * once the dictionary is full, so values that come from clients cannot grow it without bound.
+ */
+final class StringDictionary {
+
+    private final int capacity;
+    private final int maxLength;
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    private int size;
+
+    StringDictionary(int capacity, int maxLength) {
+        this.capacity = capacity;
+        this.maxLength = maxLength;
+    }
+
+    int codeOf(String value) {
+        if (value.length() > maxLength) {
+            return 0;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            if (size == capacity) {
+                return 0;
+            }
+            String[] current = values;
+            if (size + 1 == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            size++;
+            current[size] = value;
+            values = current;
+            codes.put(value, size);
+            return size;
+        }
+    }
+
+    String valueOf(int code) {
+        return values[code];
+    }
+}
@@ -0,0 +1,183 @@
+package com.patrakosh.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Store for the variable-length strings that fixed-width records point to. A reference is the offset of an
+ * entry, an int byte length followed by UTF-8 bytes and padded to 8 bytes; 0 stands for {@code null}.
+ *
+ * <p>Entries that are no longer referenced, such as the token of a removed session or the old name of a renamed
+ * file, are {@link #release released} by the caller. Once the records that stopped pointing at them are on disk
+ * they are {@link #recycle recycled}: threaded onto a free list for their size, kept in a small {@code .free} file
+ * next to the heap, and handed out again by {@link #append} before the heap grows. A recycled entry reads as
+ * {@code null}. Entries too small to hold a free list link, or larger than {@value #MAX_RECYCLED_BYTES} bytes, are
+ * left where they are.
+ *
+ * <p>A crash can leave a free list whose head did not reach disk together with its entries; such a list is
+ * noticed when its head is not marked free, and dropped, leaking its entries rather than handing out a live one.
+ */
+final class StringHeap implements Closeable {
+
+    private static final int MAGIC = 0x504B5348; // "PKSH"
+    private static final int VERSION = 1;
+    private static final int END = 8;
+    private static final int DATA_START = 16;
+    private static final int CHUNK_BYTES = 16 * 1024 * 1024;
+
+    private static final int FREE_MAGIC = 0x504B5346; // "PKSF"
+    private static final int FREE_HEADS = 8;
+    private static final int FREE_CHUNK_BYTES = 4096;
+    /** Length stored in a recycled entry, whose offset of the next free entry of the same size is at FREE_LINK. */
+    private static final int FREE = -1;
+    private static final int FREE_LINK = 8;
+    private static final int MIN_RECYCLED_BYTES = FREE_LINK + Long.BYTES;
+    private static final int MAX_RECYCLED_BYTES = 1024;
+
+    private final MappedRegion region;
+    private final MappedRegion free;
+    private final List<Long> released = new ArrayList<>();
+
+    StringHeap(Path file) throws IOException {
+        this.region = new MappedRegion(file, CHUNK_BYTES);
+        if (region.getInt(0) == 0) {
+            region.putInt(4, VERSION);
+            region.putLong(END, DATA_START);
+            region.putInt(0, MAGIC);
+        } else if (region.getInt(0) != MAGIC || region.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a PatraKosh string heap");
+        }
+        Path freeFile = file.resolveSibling(file.getFileName() + ".free");
+        this.free = new MappedRegion(freeFile, FREE_CHUNK_BYTES);
+        if (free.getInt(0) == 0) {
+            free.putInt(0, FREE_MAGIC);
+        } else if (free.getInt(0) != FREE_MAGIC) {
+            throw new IOException(freeFile + " is not a PatraKosh string free list");
+        }
+    }
+
+    synchronized long append(String value) throws IOException {
+        if (value == null) {
+            return 0;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long entryBytes = entryBytes(bytes.length);
+        long position = takeFree(entryBytes);
+        boolean grows = position == 0;
+        if (grows) {
+            position = region.getLong(END);
+            region.ensureCapacity(position + entryBytes);
+        }
+        region.write(position + Integer.BYTES, bytes, 0, bytes.length);
+        region.putInt(position, bytes.length);
+        if (grows) {
+            region.putLong(END, position + entryBytes);
+        }
+        return position;
+    }
+
+    String get(long reference) {
+        if (reference == 0) {
+            return null;
+        }
+        int length = region.getInt(reference);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        region.read(reference + Integer.BYTES, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Notes that nothing points at {@code reference} any more. The entry stays readable until it is recycled.
+     */
+    synchronized void release(long reference) {
+        if (reference != 0) {
+            released.add(reference);
+        }
+    }
+
+    /**
+     * Hands over the entries released so far, to be {@link #recycle recycled} once every file that referred to
+     * them has been forced.
+     */
+    synchronized List<Long> takeReleased() {
+        List<Long> taken = new ArrayList<>(released);
+        released.clear();
+        return taken;
+    }
+
+    /**
+     * Puts entries handed out by {@link #takeReleased} on their free lists. The links reach disk with the next
+     * {@link #force}.
+     */
+    synchronized void recycle(List<Long> references) {
+        for (long reference : references) {
+            int length = region.getInt(reference);
+            if (length < 0) {
+                continue;
+            }
+            long entryBytes = entryBytes(length);
+            if (!recycles(entryBytes)) {
+                continue;
+            }
+            long head = headOf(entryBytes);
+            region.putLong(reference + FREE_LINK, free.getLong(head));
+            region.putInt(reference, FREE);
+            free.putLong(head, reference);
+        }
+    }
+
+    /**
+     * Bytes taken by every entry ever appended, recycled ones included.
+     */
+    long size() {
+        return region.getLong(END) - DATA_START;
+    }
+
+    void force() {
+        region.force();
+        free.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        region.close();
+        free.close();
+    }
+
+    private long takeFree(long entryBytes) {
+        if (!recycles(entryBytes)) {
+            return 0;
+        }
+        long head = headOf(entryBytes);
+        long position = free.getLong(head);
+        if (position == 0) {
+            return 0;
+        }
+        if (position < DATA_START || position >= region.getLong(END) || position % Long.BYTES != 0
+                || region.getInt(position) != FREE) {
+            free.putLong(head, 0);
+            return 0;
+        }
+        free.putLong(head, region.getLong(position + FREE_LINK));
+        return position;
+    }
+
+    private static long entryBytes(int length) {
+        return (Integer.BYTES + length + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static boolean recycles(long entryBytes) {
+        return entryBytes >= MIN_RECYCLED_BYTES && entryBytes <= MAX_RECYCLED_BYTES;
+    }
+
+    private static long headOf(long entryBytes) {
+        return FREE_HEADS + entryBytes;
+    }
+}
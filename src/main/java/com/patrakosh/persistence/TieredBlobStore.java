@@ -0,0 +1,438 @@
+package com.patrakosh.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link BlobStore} with a hot tier under {@code patrakosh.storage.base-path} and a gzip-compressed cold tier
+ * under {@code patrakosh.storage.tiering.archive-path}, meant for a fast disk backed by a larger, slower one.
+ *
+ * <p>New blobs go to the hot tier. The modification time of a hot blob doubles as its last access time: it is
+ * moved forward when a download {@link #recordAccess records an access}, at most once per
+ * {@link #TOUCH_GRANULARITY}, so tracking costs a stat and the occasional metadata write. A background pass every
+ * {@code interval-seconds} demotes hot blobs that have not been read for {@code cold-after-seconds}, and then
+ * the least recently read ones until the hot tier fits in {@code hot-capacity-bytes} (0 for no limit). Reading
+ * a cold blob decompresses it on the fly; a download also queues its promotion back to the hot tier. Either way
+ * a blob is written to a staging directory and renamed into place before the other copy is removed, so readers
+ * always find a complete copy.
+ *
+ * <p>A cold blob is stored as its uncompressed length, as 8 bytes, followed by the gzip stream.
+ */
+@Component
+@ConditionalOnProperty(name = "patrakosh.storage.backend", havingValue = "tiered")
+public class TieredBlobStore implements BlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(TieredBlobStore.class);
+    static final Duration TOUCH_GRANULARITY = Duration.ofMinutes(10);
+    private static final String COLD_SUFFIX = ".cold";
+    private static final String STAGING_DIRECTORY = ".tiering";
+    private static final int LOCK_STRIPES = 64;
+
+    private final LocalBlobStore hot;
+    private final Path hotRoot;
+    private final LocalBlobStore cold;
+    private final Path coldRoot;
+    private final Duration coldAfter;
+    private final long hotCapacityBytes;
+    private final Duration pause;
+    private final Clock clock;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ScheduledExecutorService worker;
+    private volatile TieringReport lastReport;
+
+    @Autowired
+    public TieredBlobStore(
+            @Value("${patrakosh.storage.base-path:storage}") String hotPath,
+            @Value("${patrakosh.storage.tiering.archive-path:storage-archive}") String archivePath,
+            @Value("${patrakosh.storage.tiering.cold-after-seconds:604800}") long coldAfterSeconds,
+            @Value("${patrakosh.storage.tiering.hot-capacity-bytes:0}") long hotCapacityBytes,
+            @Value("${patrakosh.storage.tiering.interval-seconds:3600}") long intervalSeconds,
+            @Value("${patrakosh.storage.tiering.pause-ms:20}") long pauseMillis
+    ) {
+        this(
+                Path.of(hotPath),
+                Path.of(archivePath),
+                Duration.ofSeconds(coldAfterSeconds),
+                hotCapacityBytes,
+                Duration.ofSeconds(intervalSeconds),
+                Duration.ofMillis(pauseMillis),
+                Clock.systemUTC()
+        );
+    }
+
+    public TieredBlobStore(
+            Path hotRoot,
+            Path coldRoot,
+            Duration coldAfter,
+            long hotCapacityBytes,
+            Duration interval,
+            Duration pause,
+            Clock clock
+    ) {
+        this.hot = new LocalBlobStore(hotRoot);
+        this.hotRoot = hotRoot.toAbsolutePath().normalize();
+        this.cold = new LocalBlobStore(coldRoot);
+        this.coldRoot = coldRoot.toAbsolutePath().normalize();
+        this.coldAfter = coldAfter;
+        this.hotCapacityBytes = hotCapacityBytes;
+        this.pause = pause;
+        this.clock = clock;
+        for (int index = 0; index < locks.length; index++) {
+            locks[index] = new Object();
+        }
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patrakosh-blob-tiering");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!interval.isZero() && !interval.isNegative()) {
+            worker.scheduleWithFixedDelay(() -> {
+                try {
+                    demoteColdBlobs();
+                } catch (RuntimeException exception) {
+                    log.warn("Blob tiering failed", exception);
+                }
+            }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public TieringReport lastReport() {
+        return lastReport;
+    }
+
+    @Override
+    public long put(String key, InputStream content, long length) throws IOException {
+        long written = hot.put(key, content, length);
+        cold.delete(key + COLD_SUFFIX);
+        return written;
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        try {
+            return hot.get(key);
+        } catch (NoSuchFileException exception) {
+            return openCold(key);
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        try {
+            return hot.get(key, offset, length);
+        } catch (NoSuchFileException exception) {
+            InputStream content = openCold(key);
+            try {
+                content.skipNBytes(offset);
+            } catch (EOFException ignored) {
+                content.close();
+                return InputStream.nullInputStream();
+            }
+            return new BoundedInputStream(content, length);
+        }
+    }
+
+    @Override
+    public Optional<BlobInfo> stat(String key) throws IOException {
+        Optional<BlobInfo> info = hot.stat(key);
+        return info.isPresent() ? info : coldInfo(key);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        synchronized (lock(key)) {
+            hot.delete(key);
+            cold.delete(key + COLD_SUFFIX);
+        }
+    }
+
+    @Override
+    public void move(String sourceKey, String targetKey) throws IOException {
+        synchronized (lock(sourceKey)) {
+            if (hot.stat(sourceKey).isPresent()) {
+                hot.move(sourceKey, targetKey);
+            } else {
+                cold.move(sourceKey + COLD_SUFFIX, targetKey + COLD_SUFFIX);
+            }
+        }
+    }
+
+    @Override
+    public void copy(String sourceKey, String targetKey) throws IOException {
+        synchronized (lock(sourceKey)) {
+            if (hot.stat(sourceKey).isPresent()) {
+                hot.copy(sourceKey, targetKey);
+                cold.delete(targetKey + COLD_SUFFIX);
+            } else {
+                cold.copy(sourceKey + COLD_SUFFIX, targetKey + COLD_SUFFIX);
+                hot.delete(targetKey);
+            }
+        }
+    }
+
+    @Override
+    public List<BlobInfo> list(String directory) throws IOException {
+        Map<String, BlobInfo> blobs = new LinkedHashMap<>();
+        for (BlobInfo blob : hot.list(directory)) {
+            blobs.put(blob.key(), blob);
+        }
+        for (BlobInfo archived : cold.list(directory)) {
+            if (archived.key().endsWith(COLD_SUFFIX)) {
+                String key = archived.key().substring(0, archived.key().length() - COLD_SUFFIX.length());
+                if (!blobs.containsKey(key)) {
+                    coldInfo(key).ifPresent(blob -> blobs.put(key, blob));
+                }
+            }
+        }
+        return List.copyOf(blobs.values());
+    }
+
+    @Override
+    public List<String> directories() throws IOException {
+        TreeSet<String> directories = new TreeSet<>(hot.directories());
+        directories.addAll(cold.directories());
+        directories.remove(STAGING_DIRECTORY);
+        return List.copyOf(directories);
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        try {
+            Path hotPath = hot.resolve(key);
+            BasicFileAttributes attributes = Files.readAttributes(hotPath, BasicFileAttributes.class);
+            Instant now = clock.instant();
+            if (attributes.lastModifiedTime().toInstant().plus(TOUCH_GRANULARITY).isBefore(now)) {
+                Files.setLastModifiedTime(hotPath, FileTime.from(now));
+            }
+        } catch (NoSuchFileException exception) {
+            try {
+                worker.execute(() -> promote(key));
+            } catch (RejectedExecutionException ignored) {
+            }
+        } catch (IOException | RuntimeException exception) {
+            log.warn("Failed to record an access to blob {}", key, exception);
+        }
+    }
+
+    /**
+     * Runs one demotion pass on the calling thread and returns its report.
+     */
+    public synchronized TieringReport demoteColdBlobs() {
+        Instant startedAt = clock.instant();
+        Instant coldBefore = startedAt.minus(coldAfter);
+        List<LocalBlobStore.StoredBlob> hotBlobs = new ArrayList<>();
+        try {
+            for (String directory : hot.directories()) {
+                if (!directory.equals(STAGING_DIRECTORY)) {
+                    hotBlobs.addAll(hot.listFiles(directory));
+                }
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to list the hot tier", exception);
+        }
+        // Copies are hard links, so the bytes of a file are counted once however many keys name it, and are only
+        // freed once the last of those keys has been demoted.
+        Map<Object, Integer> namesByFile = new HashMap<>();
+        long hotBytes = 0;
+        for (LocalBlobStore.StoredBlob blob : hotBlobs) {
+            if (blob.fileKey() == null || namesByFile.merge(blob.fileKey(), 1, Integer::sum) == 1) {
+                hotBytes += blob.info().size();
+            }
+        }
+        hotBlobs.sort(Comparator.comparing(blob -> blob.info().lastModified()));
+
+        long demoted = 0;
+        long demotedBytes = 0;
+        long archivedBytes = 0;
+        long failures = 0;
+        for (LocalBlobStore.StoredBlob stored : hotBlobs) {
+            BlobInfo blob = stored.info();
+            boolean overCapacity = hotCapacityBytes > 0 && hotBytes > hotCapacityBytes;
+            if (!overCapacity && !blob.lastModified().isBefore(coldBefore)) {
+                break;
+            }
+            try {
+                long archived = demote(blob);
+                if (archived >= 0) {
+                    demoted++;
+                    demotedBytes += blob.size();
+                    archivedBytes += archived;
+                    if (stored.fileKey() == null || namesByFile.merge(stored.fileKey(), -1, Integer::sum) == 0) {
+                        hotBytes -= blob.size();
+                    }
+                }
+            } catch (IOException exception) {
+                failures++;
+                log.warn("Failed to demote blob {}", blob.key(), exception);
+            }
+            if (!pause()) {
+                break;
+            }
+        }
+
+        TieringReport report = new TieringReport(startedAt, clock.instant(), demoted, demotedBytes, archivedBytes, failures);
+        lastReport = report;
+        if (demoted > 0) {
+            log.info("Moved {} cold blobs ({} bytes, {} compressed) to the archive tier", demoted, demotedBytes, archivedBytes);
+        }
+        return report;
+    }
+
+    @Override
+    public void close() {
+        worker.shutdownNow();
+    }
+
+    /**
+     * Compresses a hot blob into the cold tier and returns the compressed size, or -1 if the blob was read or
+     * removed in the meantime.
+     */
+    private long demote(BlobInfo blob) throws IOException {
+        synchronized (lock(blob.key())) {
+            Optional<BlobInfo> current = hot.stat(blob.key());
+            if (current.isEmpty() || current.get().lastModified().isAfter(blob.lastModified())) {
+                return -1;
+            }
+            Path staged = staging(coldRoot);
+            try {
+                try (InputStream content = hot.get(blob.key());
+                     DataOutputStream output = new DataOutputStream(Files.newOutputStream(staged))) {
+                    output.writeLong(current.get().size());
+                    try (OutputStream compressed = new GZIPOutputStream(output)) {
+                        content.transferTo(compressed);
+                    }
+                }
+                long archived = Files.size(staged);
+                Path target = cold.resolve(blob.key() + COLD_SUFFIX);
+                Files.createDirectories(target.getParent());
+                moveIntoPlace(staged, target);
+                hot.delete(blob.key());
+                return archived;
+            } finally {
+                Files.deleteIfExists(staged);
+            }
+        }
+    }
+
+    private void promote(String key) {
+        synchronized (lock(key)) {
+            try {
+                if (hot.stat(key).isPresent()) {
+                    return;
+                }
+                Path staged = staging(hotRoot);
+                try {
+                    try (InputStream content = openCold(key)) {
+                        Files.copy(content, staged);
+                    }
+                    Files.setLastModifiedTime(staged, FileTime.from(clock.instant()));
+                    Path target = hot.resolve(key);
+                    Files.createDirectories(target.getParent());
+                    moveIntoPlace(staged, target);
+                    cold.delete(key + COLD_SUFFIX);
+                } finally {
+                    Files.deleteIfExists(staged);
+                }
+            } catch (NoSuchFileException ignored) {
+            } catch (IOException | RuntimeException exception) {
+                log.warn("Failed to promote blob {} to the hot tier", key, exception);
+            }
+        }
+    }
+
+    private InputStream openCold(String key) throws IOException {
+        DataInputStream input = new DataInputStream(Files.newInputStream(cold.resolve(key + COLD_SUFFIX)));
+        try {
+            input.readLong();
+            return new GZIPInputStream(input);
+        } catch (IOException exception) {
+            input.close();
+            throw exception;
+        }
+    }
+
+    private Optional<BlobInfo> coldInfo(String key) throws IOException {
+        Path path = cold.resolve(key + COLD_SUFFIX);
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(path))) {
+            return Optional.of(new BlobInfo(key, input.readLong(), Files.getLastModifiedTime(path).toInstant()));
+        } catch (NoSuchFileException exception) {
+            return Optional.empty();
+        }
+    }
+
+    private static Path staging(Path root) throws IOException {
+        Path directory = Files.createDirectories(root.resolve(STAGING_DIRECTORY));
+        return directory.resolve(UUID.randomUUID().toString());
+    }
+
+    private static void moveIntoPlace(Path staged, Path target) throws IOException {
+        try {
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ignored) {
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Object lock(String key) {
+        return locks[Math.floorMod(key.hashCode(), LOCK_STRIPES)];
+    }
+
+    private boolean pause() {
+        if (pause.isZero()) {
+            return !Thread.currentThread().isInterrupted();
+        }
+        try {
+            Thread.sleep(pause.toMillis());
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public record TieringReport(
+            Instant startedAt,
+            Instant finishedAt,
+            long blobsDemoted,
+            long bytesDemoted,
+            long bytesArchived,
+            long failures
+    ) {
+    }
+}
@@ -5,13 +5,18 @@ import javax.crypto.spec.PBEKeySpec;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HexFormat;
 
 public final class PasswordHasher {
 
     private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
-    private static final int DEFAULT_ITERATIONS = 210_000;
+    public static final int DEFAULT_ITERATIONS = 210_000;
+    public static final int MIN_ITERATIONS = 100_000;
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int CALIBRATION_PROBE_ITERATIONS = 50_000;
+    private static final int CALIBRATION_ROUNDS = 5;
     private static final int SALT_BYTES = 16;
     private static final int KEY_BYTES = 32;
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
@@ -20,10 +25,17 @@ public final class PasswordHasher {
     }
 
     public static String hash(String password) {
+        return hash(password, DEFAULT_ITERATIONS);
+    }
+
+    public static String hash(String password, int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be greater than zero");
+        }
         byte[] salt = new byte[SALT_BYTES];
         SECURE_RANDOM.nextBytes(salt);
-        byte[] derivedKey = derive(password.toCharArray(), salt, DEFAULT_ITERATIONS);
-        return DEFAULT_ITERATIONS
+        byte[] derivedKey = derive(password.toCharArray(), salt, iterations);
+        return iterations
                 + "$"
                 + HexFormat.of().formatHex(salt)
                 + "$"
@@ -46,6 +58,50 @@ public final class PasswordHasher {
         }
     }
 
+    /**
+     * Returns the iteration count recorded in a stored hash, or 0 if it cannot be read.
+     */
+    public static int iterationsOf(String storedHash) {
+        int separator = storedHash == null ? -1 : storedHash.indexOf('$');
+        if (separator < 1) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(storedHash, 0, separator, 10);
+        } catch (NumberFormatException exception) {
+            return 0;
+        }
+    }
+
+    /**
+     * Whether a stored hash was made with fewer iterations than {@code iterations}. A hash made with more is left
+     * alone, so a client configured with a lower count never weakens it.
+     */
+    public static boolean needsRehash(String storedHash, int iterations) {
+        return iterationsOf(storedHash) < iterations;
+    }
+
+    /**
+     * Picks the iteration count whose verification takes about {@code target} on this machine, measured by
+     * timing a short derivation and scaling it. The result is rounded down to a multiple of 10,000 and never
+     * drops below {@link #MIN_ITERATIONS}.
+     */
+    public static int calibrate(Duration target) {
+        if (target.isZero() || target.isNegative()) {
+            throw new IllegalArgumentException("target must be positive");
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        long fastestNanos = Long.MAX_VALUE;
+        for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+            long started = System.nanoTime();
+            derive("calibration".toCharArray(), salt, CALIBRATION_PROBE_ITERATIONS);
+            fastestNanos = Math.min(fastestNanos, System.nanoTime() - started);
+        }
+        double iterations = (double) target.toNanos() * CALIBRATION_PROBE_ITERATIONS / Math.max(fastestNanos, 1);
+        long rounded = (long) (Math.min(iterations, MAX_ITERATIONS) / 10_000) * 10_000;
+        return (int) Math.max(rounded, MIN_ITERATIONS);
+    }
+
     private static byte[] derive(char[] password, byte[] salt, int iterations) {
         PBEKeySpec keySpec = new PBEKeySpec(password, salt, iterations, KEY_BYTES * Byte.SIZE);
         try {
@@ -3,6 +3,7 @@ package com.patrakosh.service;
 import com.patrakosh.api.ValidationException;
 import com.patrakosh.model.User;
 import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.StateRepository;
 import com.patrakosh.security.PasswordHasher;
 
 import java.nio.file.Path;
@@ -13,10 +14,16 @@ import java.util.Map;
 
 public class DesktopAuthService {
 
-    private final AppStateStore stateStore;
+    private final StateRepository stateStore;
+    private final int hashIterations;
 
     public DesktopAuthService(Path dataRoot) {
+        this(dataRoot, PasswordHasher.DEFAULT_ITERATIONS);
+    }
+
+    public DesktopAuthService(Path dataRoot, int hashIterations) {
         this.stateStore = new AppStateStore(dataRoot);
+        this.hashIterations = hashIterations;
     }
 
     public User login(String usernameOrEmail, String password) {
@@ -25,12 +32,13 @@ public class DesktopAuthService {
             throw new IllegalArgumentException("Enter both your username/email and password.");
         }
 
-        return stateStore.read(state -> state.users.stream()
-                .filter(user -> normalize(user.username).equals(identifier) || normalize(user.email).equals(identifier))
-                .findFirst()
+        AppStateStore.UserRecord record = stateStore.findUserByUsernameOrEmail(identifier)
                 .filter(user -> PasswordHasher.matches(password, user.passwordHash))
-                .map(this::toUser)
-                .orElseThrow(() -> new IllegalArgumentException("Invalid username/email or password.")));
+                .orElseThrow(() -> new IllegalArgumentException("Invalid username/email or password."));
+        if (PasswordHasher.needsRehash(record.passwordHash, hashIterations)) {
+            stateStore.updatePasswordHash(record.id, record.passwordHash, PasswordHasher.hash(password, hashIterations));
+        }
+        return toUser(record);
     }
 
     public User register(String username, String email, String password, String confirmPassword) {
@@ -51,30 +59,37 @@ public class DesktopAuthService {
             fieldErrors.put("confirmPassword", "Passwords do not match.");
         }
 
-        User user = stateStore.write(state -> {
-            if (state.users.stream().anyMatch(existing -> normalize(existing.username).equals(normalizedUsername))) {
+        if (stateStore.findUserByUsernameOrEmail(normalizedUsername)
+                .filter(existing -> normalize(existing.username).equals(normalizedUsername))
+                .isPresent()) {
+            fieldErrors.put("username", "This username is already taken.");
+        }
+        if (stateStore.findUserByUsernameOrEmail(normalizedEmail)
+                .filter(existing -> normalize(existing.email).equals(normalizedEmail))
+                .isPresent()) {
+            fieldErrors.put("email", "An account with this email already exists.");
+        }
+        if (!fieldErrors.isEmpty()) {
+            throw new ValidationException("Fix the highlighted fields before continuing.", fieldErrors);
+        }
+
+        StateRepository.Registration registration = stateStore.registerUser(
+                username.trim(),
+                email.trim(),
+                PasswordHasher.hash(password, hashIterations),
+                Instant.now()
+        );
+        if (!registration.isCreated()) {
+            if (registration.usernameTaken()) {
                 fieldErrors.put("username", "This username is already taken.");
             }
-            if (state.users.stream().anyMatch(existing -> normalize(existing.email).equals(normalizedEmail))) {
+            if (registration.emailTaken()) {
                 fieldErrors.put("email", "An account with this email already exists.");
             }
+            throw new ValidationException("Fix the highlighted fields before continuing.", fieldErrors);
+        }
 
-            if (!fieldErrors.isEmpty()) {
-                throw new ValidationException("Fix the highlighted fields before continuing.", fieldErrors);
-            }
-
-            AppStateStore.UserRecord record = new AppStateStore.UserRecord(
-                    state.nextUserId++,
-                    username.trim(),
-                    email.trim(),
-                    PasswordHasher.hash(password),
-                    Instant.now()
-            );
-            state.users.add(record);
-            return toUser(record);
-        });
-
-        return user;
+        return toUser(registration.user());
     }
 
     private User toUser(AppStateStore.UserRecord record) {
@@ -0,0 +1,168 @@
+package com.patrakosh.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches a desktop storage folder and reports what changed in it, so the file list can be updated row by row
+ * instead of rescanned.
+ *
+ * <p>The watching thread sleeps until the folder changes. Events that follow each other within the quiet period
+ * are merged, up to a maximum delay, and each touched path is then looked up once, so a file that is created,
+ * written and renamed in quick succession is reported once in its final state. If the platform drops events
+ * ({@link StandardWatchEventKinds#OVERFLOW}), the whole folder is listed again and reported as a complete change.
+ * The partial files of running transfers are never reported; the finished file is. Listeners are called on the watching thread.
+ */
+public final class DesktopStorageWatcher implements Closeable {
+
+    public static final Duration DEFAULT_QUIET_PERIOD = Duration.ofMillis(100);
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(1);
+
+    private final Path directory;
+    private final Consumer<Change> listener;
+    private final Duration quietPeriod;
+    private final Duration maxDelay;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private DesktopStorageWatcher(Path directory, Consumer<Change> listener, Duration quietPeriod, Duration maxDelay) throws IOException {
+        this.directory = directory;
+        this.listener = listener;
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+        this.watchService = directory.getFileSystem().newWatchService();
+        directory.register(
+                watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE
+        );
+        this.thread = new Thread(this::run, "patrakosh-desktop-watch");
+        thread.setDaemon(true);
+    }
+
+    public static DesktopStorageWatcher start(Path directory, Consumer<Change> listener) throws IOException {
+        return start(directory, listener, DEFAULT_QUIET_PERIOD, DEFAULT_MAX_DELAY);
+    }
+
+    public static DesktopStorageWatcher start(
+            Path directory,
+            Consumer<Change> listener,
+            Duration quietPeriod,
+            Duration maxDelay
+    ) throws IOException {
+        DesktopStorageWatcher watcher = new DesktopStorageWatcher(directory, listener, quietPeriod, maxDelay);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<Path> touched = new LinkedHashSet<>();
+                boolean overflow = false;
+                boolean valid = true;
+                long deadline = System.nanoTime() + maxDelay.toNanos();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            Path path = directory.resolve((Path) event.context());
+                            if (!DesktopTransferManager.isPartial(path)) {
+                                touched.add(path);
+                            }
+                        }
+                    }
+                    valid = key.reset();
+                    if (!valid || System.nanoTime() >= deadline) {
+                        break;
+                    }
+                    key = watchService.poll(quietPeriod.toMillis(), TimeUnit.MILLISECONDS);
+                }
+                listener.accept(overflow || !valid ? scan() : lookUp(touched));
+                if (!valid) {
+                    // The folder itself is gone, so nothing more will be reported for it.
+                    return;
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException ignored) {
+        }
+    }
+
+    private static Change lookUp(Set<Path> paths) {
+        Map<Path, BasicFileAttributes> updated = new HashMap<>();
+        Set<Path> removed = new HashSet<>();
+        for (Path path : paths) {
+            BasicFileAttributes attributes = regularFileAttributes(path);
+            if (attributes != null) {
+                updated.put(path, attributes);
+            } else {
+                removed.add(path);
+            }
+        }
+        return new Change(updated, removed, false);
+    }
+
+    private Change scan() {
+        Map<Path, BasicFileAttributes> files = new HashMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path path : entries) {
+                if (DesktopTransferManager.isPartial(path)) {
+                    continue;
+                }
+                BasicFileAttributes attributes = regularFileAttributes(path);
+                if (attributes != null) {
+                    files.put(path, attributes);
+                }
+            }
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException exception) {
+            // Leave the list as it is rather than report every file as gone.
+            return new Change(Map.of(), Set.of(), false);
+        }
+        return new Change(files, Set.of(), true);
+    }
+
+    private static BasicFileAttributes regularFileAttributes(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Files that were added or changed, with their current attributes, and files that are gone. A complete change
+     * lists every file in the folder, and any file it does not list is gone.
+     */
+    public record Change(Map<Path, BasicFileAttributes> updated, Set<Path> removed, boolean complete) {
+    }
+}
@@ -0,0 +1,259 @@
+package com.patrakosh.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies files for the desktop client on a fixed pool of background threads, so the window never waits on disk.
+ *
+ * <p>Each copy goes through {@link FileChannel#transferTo} in chunks, which lets the operating system move the
+ * bytes without passing them through the heap, and reports progress and checks for cancellation between chunks.
+ * The bytes are written to a hidden partial file next to the target, recognised by {@link #isPartial}, which is
+ * moved into place only once it is complete, so a cancelled or failed transfer leaves nothing behind.
+ */
+public final class DesktopTransferManager {
+
+    public static final int DEFAULT_PARALLELISM = 2;
+    static final long DEFAULT_CHUNK_BYTES = 8L * 1024 * 1024;
+
+    private static final String PARTIAL_SUFFIX = ".patrakosh-part";
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int COMMITTING = 2;
+    private static final int CANCELLED = 3;
+
+    private final ThreadPoolExecutor executor;
+    private final long chunkBytes;
+    /** Targets picked by {@link #copyInto} for transfers that have not finished yet. */
+    private final Set<Path> reservedTargets = new HashSet<>();
+
+    public DesktopTransferManager(int parallelism) {
+        this(parallelism, DEFAULT_CHUNK_BYTES);
+    }
+
+    DesktopTransferManager(int parallelism, long chunkBytes) {
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                parallelism,
+                parallelism,
+                0,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "patrakosh-desktop-transfer-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Whether {@code path} is the partial file of a transfer that is still running.
+     */
+    public static boolean isPartial(Path path) {
+        return path.getFileName().toString().endsWith(PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Copies {@code source} to {@code target}, replacing whatever is there once the copy is complete.
+     */
+    public Transfer copy(Path source, Path target, ProgressListener listener) {
+        Transfer transfer = new Transfer(source, listener);
+        transfer.target = target;
+        executor.execute(transfer);
+        return transfer;
+    }
+
+    /**
+     * Copies {@code source} into {@code directory} as {@code filename}, or as {@code filename (1)} and so on if
+     * that name is taken on disk or by another transfer.
+     */
+    public Transfer copyInto(Path source, Path directory, String filename, ProgressListener listener) {
+        Transfer transfer = new Transfer(source, listener);
+        transfer.directory = directory;
+        transfer.filename = filename;
+        executor.execute(transfer);
+        return transfer;
+    }
+
+    /**
+     * Returns a path in {@code directory} for {@code filename} that neither exists nor is the target of a running
+     * transfer, adding a counter before the extension when needed.
+     */
+    public Path availablePath(Path directory, String filename) {
+        synchronized (reservedTargets) {
+            return freePath(directory, filename);
+        }
+    }
+
+    private Path reserve(Path directory, String filename) {
+        synchronized (reservedTargets) {
+            Path target = freePath(directory, filename);
+            reservedTargets.add(target);
+            return target;
+        }
+    }
+
+    private void release(Path target) {
+        synchronized (reservedTargets) {
+            reservedTargets.remove(target);
+        }
+    }
+
+    private Path freePath(Path directory, String filename) {
+        Path candidate = directory.resolve(filename);
+        if (!reservedTargets.contains(candidate) && !Files.exists(candidate)) {
+            return candidate;
+        }
+
+        int dotIndex = filename.lastIndexOf('.');
+        String basename = dotIndex > 0 ? filename.substring(0, dotIndex) : filename;
+        String extension = dotIndex > 0 ? filename.substring(dotIndex) : "";
+        for (int counter = 1; ; counter++) {
+            Path next = directory.resolve(basename + " (" + counter + ")" + extension);
+            if (!reservedTargets.contains(next) && !Files.exists(next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Cancels queued transfers and stops the worker threads; running transfers stop at their next chunk.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Told how far a transfer has got after each chunk, on the transfer's thread.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        void progress(long transferredBytes, long totalBytes);
+    }
+
+    public final class Transfer implements Runnable {
+
+        private final Path source;
+        private final ProgressListener listener;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final CompletableFuture<Path> result = new CompletableFuture<>();
+        private volatile Path target;
+        private Path directory;
+        private String filename;
+
+        private Transfer(Path source, ProgressListener listener) {
+            this.source = source;
+            this.listener = listener;
+        }
+
+        public Path source() {
+            return source;
+        }
+
+        /**
+         * Completes with the path the file was copied to, or exceptionally if the transfer failed or was cancelled.
+         */
+        public CompletableFuture<Path> result() {
+            return result;
+        }
+
+        /**
+         * Stops the transfer and removes whatever it wrote. Returns false if it had already finished. Never waits:
+         * a queued transfer completes as cancelled at once and a running one at its next chunk.
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(QUEUED, CANCELLED)) {
+                executor.remove(this);
+                result.completeExceptionally(new CancellationException("Transfer cancelled"));
+                return true;
+            }
+            return state.compareAndSet(RUNNING, CANCELLED);
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+            boolean reserved = target == null;
+            Path partial = null;
+            Exception failure = null;
+            try {
+                if (reserved) {
+                    Files.createDirectories(directory);
+                    target = reserve(directory, filename);
+                }
+                partial = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", PARTIAL_SUFFIX);
+                copyChunks(partial);
+                if (!state.compareAndSet(RUNNING, COMMITTING)) {
+                    throw new CancellationException("Transfer cancelled");
+                }
+                moveIntoPlace(partial, target);
+                partial = null;
+            } catch (IOException | RuntimeException exception) {
+                failure = exception;
+            } finally {
+                if (partial != null) {
+                    try {
+                        Files.deleteIfExists(partial);
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (reserved && target != null) {
+                    release(target);
+                }
+            }
+            // Completed only once the partial file is gone, so whoever is waiting sees the folder as it will stay.
+            if (failure == null) {
+                result.complete(target);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        }
+
+        private void copyChunks(Path partial) throws IOException {
+            try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel output = FileChannel.open(partial, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = input.size();
+                long position = 0;
+                listener.progress(0, size);
+                while (position < size) {
+                    if (state.get() == CANCELLED || Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException("Transfer cancelled");
+                    }
+                    long copied = input.transferTo(position, Math.min(chunkBytes, size - position), output);
+                    if (copied <= 0) {
+                        // The source shrank while it was being copied.
+                        break;
+                    }
+                    position += copied;
+                    listener.progress(position, size);
+                }
+            }
+        }
+
+        private static void moveIntoPlace(Path partial, Path target) throws IOException {
+            try {
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ignored) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+-- Embedded JDBC schema for PatraKosh, derived from database_schema.sql.
+-- Ids come from sequences so that services can allocate them before inserting, and usernames and emails are
+-- compared case-insensitively like the embedded store does.
+
+CREATE SEQUENCE IF NOT EXISTS users_id_seq START WITH 1;
+CREATE SEQUENCE IF NOT EXISTS files_id_seq START WITH 1;
+CREATE SEQUENCE IF NOT EXISTS file_shares_id_seq START WITH 1;
+CREATE SEQUENCE IF NOT EXISTS activity_logs_id_seq START WITH 1;
+
+CREATE TABLE IF NOT EXISTS users (
+    id BIGINT PRIMARY KEY,
+    username VARCHAR_IGNORECASE(255) NOT NULL,
+    email VARCHAR_IGNORECASE(255) NOT NULL,
+    password VARCHAR(255) NOT NULL,
+    storage_quota BIGINT DEFAULT 1073741824,
+    storage_used BIGINT DEFAULT 0,
+    created_at TIMESTAMP(9) WITH TIME ZONE NOT NULL,
+    CONSTRAINT uq_users_username UNIQUE (username),
+    CONSTRAINT uq_users_email UNIQUE (email)
+);
+
+CREATE TABLE IF NOT EXISTS user_sessions (
+    session_id VARCHAR(255) PRIMARY KEY,
+    user_id BIGINT NOT NULL,
+    created_at TIMESTAMP(9) WITH TIME ZONE,
+    expires_at TIMESTAMP(9) WITH TIME ZONE,
+    revoked_at TIMESTAMP(9) WITH TIME ZONE,
+    is_active BOOLEAN DEFAULT TRUE NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+CREATE INDEX IF NOT EXISTS idx_user_sessions_user_id ON user_sessions(user_id);
+CREATE INDEX IF NOT EXISTS idx_user_sessions_expires_at ON user_sessions(expires_at);
+
+-- Folder ids come from files_id_seq, and 0 stands for the root, so parent_folder_id has no foreign key.
+CREATE TABLE IF NOT EXISTS folders (
+    id BIGINT PRIMARY KEY,
+    user_id BIGINT NOT NULL,
+    parent_folder_id BIGINT DEFAULT 0 NOT NULL,
+    folder_name VARCHAR_IGNORECASE(255) NOT NULL,
+    created_at TIMESTAMP(9) WITH TIME ZONE,
+    CONSTRAINT uq_folders_user_parent_name UNIQUE (user_id, parent_folder_id, folder_name),
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+CREATE INDEX IF NOT EXISTS idx_folders_user_id ON folders(user_id);
+
+CREATE TABLE IF NOT EXISTS files (
+    id BIGINT PRIMARY KEY,
+    user_id BIGINT NOT NULL,
+    filename VARCHAR(1024) NOT NULL,
+    filepath VARCHAR(1024) NOT NULL,
+    file_size BIGINT NOT NULL,
+    mime_type VARCHAR(255),
+    upload_time TIMESTAMP(9) WITH TIME ZONE,
+    deleted_at TIMESTAMP(9) WITH TIME ZONE,
+    content_crc32c BIGINT,
+    folder_id BIGINT DEFAULT 0 NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+-- Databases created before files could be moved to the trash, had checksums or were kept in folders.
+ALTER TABLE files ADD COLUMN IF NOT EXISTS deleted_at TIMESTAMP(9) WITH TIME ZONE;
+ALTER TABLE files ADD COLUMN IF NOT EXISTS content_crc32c BIGINT;
+ALTER TABLE files ADD COLUMN IF NOT EXISTS folder_id BIGINT DEFAULT 0 NOT NULL;
+CREATE INDEX IF NOT EXISTS idx_files_user_id ON files(user_id);
+CREATE INDEX IF NOT EXISTS idx_files_upload_time ON files(upload_time);
+CREATE INDEX IF NOT EXISTS idx_files_user_filename ON files(user_id, filename);
+CREATE INDEX IF NOT EXISTS idx_files_mime_type ON files(mime_type);
+
+CREATE TABLE IF NOT EXISTS file_versions (
+    file_id BIGINT NOT NULL,
+    version_number BIGINT NOT NULL,
+    user_id BIGINT NOT NULL,
+    filepath VARCHAR(1024) NOT NULL,
+    file_size BIGINT NOT NULL,
+    content_crc32c BIGINT,
+    is_delta BOOLEAN NOT NULL,
+    upload_time TIMESTAMP(9) WITH TIME ZONE,
+    PRIMARY KEY (file_id, version_number),
+    FOREIGN KEY (file_id) REFERENCES files(id) ON DELETE CASCADE,
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+ALTER TABLE file_versions ADD COLUMN IF NOT EXISTS stored_size BIGINT;
+CREATE INDEX IF NOT EXISTS idx_file_versions_user_id ON file_versions(user_id);
+
+CREATE TABLE IF NOT EXISTS file_shares (
+    id BIGINT PRIMARY KEY,
+    file_id BIGINT NOT NULL,
+    shared_by_user_id BIGINT NOT NULL,
+    share_token VARCHAR(255) NOT NULL,
+    created_at TIMESTAMP(9) WITH TIME ZONE,
+    expires_at TIMESTAMP(9) WITH TIME ZONE,
+    revoked_at TIMESTAMP(9) WITH TIME ZONE,
+    access_count BIGINT DEFAULT 0 NOT NULL,
+    is_public BOOLEAN DEFAULT TRUE NOT NULL,
+    CONSTRAINT uq_file_shares_token UNIQUE (share_token),
+    FOREIGN KEY (file_id) REFERENCES files(id) ON DELETE CASCADE,
+    FOREIGN KEY (shared_by_user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+CREATE INDEX IF NOT EXISTS idx_file_shares_file_id ON file_shares(file_id);
+CREATE INDEX IF NOT EXISTS idx_file_shares_shared_by ON file_shares(shared_by_user_id);
+CREATE INDEX IF NOT EXISTS idx_file_shares_expires_at ON file_shares(expires_at);
+
+CREATE TABLE IF NOT EXISTS activity_logs (
+    id BIGINT PRIMARY KEY,
+    user_id BIGINT NOT NULL,
+    action VARCHAR(50) NOT NULL,
+    resource_type VARCHAR(50) NOT NULL,
+    details VARCHAR(1024),
+    created_at TIMESTAMP(9) WITH TIME ZONE NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+CREATE INDEX IF NOT EXISTS idx_activity_logs_user_created ON activity_logs(user_id, created_at);
+CREATE INDEX IF NOT EXISTS idx_activity_logs_user_action ON activity_logs(user_id, action);
+CREATE INDEX IF NOT EXISTS idx_activity_logs_created_at ON activity_logs(created_at);
@@ -3,6 +3,7 @@ package com.patrakosh.api;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.patrakosh.api.config.RequestRateLimiter;
+import com.patrakosh.api.files.StorageQuotaService;
 import com.patrakosh.persistence.AppStateStore;
 import jakarta.servlet.http.Cookie;
 import org.junit.jupiter.api.AfterEach;
@@ -17,14 +18,18 @@ import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
+import java.util.zip.CRC32C;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.hasSize;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
@@ -50,7 +55,8 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
         "patrakosh.auth.rate-limit.signup.window-seconds=60",
         "patrakosh.shares.rate-limit.download.max-attempts=3",
         "patrakosh.shares.rate-limit.download.window-seconds=60",
-        "patrakosh.cors.allowed-origins=http://localhost:5173"
+        "patrakosh.cors.allowed-origins=http://localhost:5173",
+        "patrakosh.diagnostics.token=test-diagnostics-token"
 })
 class ApiApplicationTests {
 
@@ -69,12 +75,16 @@ class ApiApplicationTests {
     @Autowired
     private RequestRateLimiter requestRateLimiter;
 
+    @Autowired
+    private StorageQuotaService storageQuotaService;
+
     @BeforeEach
     void resetState() throws IOException {
         cleanDirectory(TEST_STORAGE);
         cleanDirectory(TEST_DATA);
         appStateStore.reset();
         requestRateLimiter.reset();
+        storageQuotaService.reset();
     }
 
     @AfterEach
@@ -186,6 +196,22 @@ class ApiApplicationTests {
                 .andExpect(status().isUnauthorized());
     }
 
+    @Test
+    void bearerTokensTakePrecedenceOverTheSessionCookie() throws Exception {
+        SessionFixture demo = signup("demo", "demo@example.com");
+        SessionFixture other = signup("other", "other@example.com");
+
+        mockMvc.perform(get("/api/auth/me")
+                        .header(HttpHeaders.AUTHORIZATION, "Bearer " + other.cookie().getValue())
+                        .cookie(demo.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.username").value("other"));
+        mockMvc.perform(get("/api/files").header(HttpHeaders.AUTHORIZATION, "Basic abc").cookie(demo.cookie()))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(get("/api/files"))
+                .andExpect(status().isUnauthorized());
+    }
+
     @Test
     void usersCannotAccessEachOthersFiles() throws Exception {
         SessionFixture ownerSession = signup("owner", "owner@example.com");
@@ -235,6 +261,337 @@ class ApiApplicationTests {
                 .andExpect(status().isNotFound());
     }
 
+    @Test
+    void deletedFilesGoToTheTrashUntilRestored() throws Exception {
+        SessionFixture session = signup("demo", "demo@example.com");
+        long firstId = upload(session, "first.txt", "first");
+        long secondId = upload(session, "second.txt", "second");
+
+        mockMvc.perform(
+                        post("/api/files/delete")
+                                .cookie(session.cookie())
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"fileIds\":[%d,%d,999999]}".formatted(firstId, secondId))
+                )
+                .andExpect(status().isNotFound());
+        mockMvc.perform(
+                        post("/api/files/delete")
+                                .cookie(session.cookie())
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"fileIds\":[%d,%d]}".formatted(firstId, secondId))
+                )
+                .andExpect(status().isNoContent());
+
+        mockMvc.perform(get("/api/files").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0));
+        mockMvc.perform(get("/api/files/trash").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].filename", hasItems("first.txt", "second.txt")))
+                .andExpect(jsonPath("$[0].deletedAt").exists());
+        mockMvc.perform(get("/api/files/{fileId}/download", firstId).cookie(session.cookie()))
+                .andExpect(status().isNotFound());
+
+        mockMvc.perform(post("/api/files/{fileId}/restore", firstId).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.filename").value("first.txt"));
+        mockMvc.perform(post("/api/files/{fileId}/restore", firstId).cookie(session.cookie()))
+                .andExpect(status().isNotFound());
+
+        mockMvc.perform(get("/api/files/stats").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.fileCount").value(1))
+                .andExpect(jsonPath("$.storageUsed").value(5));
+        mockMvc.perform(get("/api/files/{fileId}/download", firstId).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("first".getBytes(StandardCharsets.UTF_8)));
+        mockMvc.perform(get("/api/activity").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].action", hasItems("DELETE", "RESTORE")));
+    }
+
+    @Test
+    void filesAreCopiedOnTheServer() throws Exception {
+        SessionFixture session = signup("demo", "demo@example.com");
+        long fileId = upload(session, "notes.txt", "shared contents");
+
+        String body = mockMvc.perform(post("/api/files/{fileId}/copy", fileId).cookie(session.cookie()))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.filename").value("notes (copy).txt"))
+                .andExpect(jsonPath("$.fileSize").value(15))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        long copyId = objectMapper.readTree(body).get("id").asLong();
+        mockMvc.perform(
+                        post("/api/files/{fileId}/copy", fileId)
+                                .cookie(session.cookie())
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"filename\":\"draft.txt\"}")
+                )
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.filename").value("draft.txt"));
+
+        mockMvc.perform(delete("/api/files/{fileId}", fileId).cookie(session.cookie()))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/files/{fileId}/download", copyId).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("shared contents".getBytes(StandardCharsets.UTF_8)));
+        mockMvc.perform(get("/api/files/stats").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.fileCount").value(2))
+                .andExpect(jsonPath("$.storageUsed").value(30));
+        mockMvc.perform(post("/api/files/{fileId}/copy", fileId).cookie(session.cookie()))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void aFailedCopyLeavesNoRecordBehind() throws Exception {
+        SessionFixture session = signup("demo", "demo@example.com");
+        long fileId = upload(session, "notes.txt", "shared contents");
+        cleanDirectory(TEST_STORAGE);
+
+        mockMvc.perform(post("/api/files/{fileId}/copy", fileId).cookie(session.cookie()))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/api/files").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1));
+    }
+
+    @Test
+    void foldersNestMoveAndDeleteWithTheirContents() throws Exception {
+        SessionFixture session = signup("demo", "demo@example.com");
+        long photos = createFolder(session, "Photos", 0);
+        long trips = createFolder(session, "Trips", photos);
+        long archive = createFolder(session, "Archive", 0);
+        mockMvc.perform(
+                        post("/api/folders")
+                                .cookie(session.cookie())
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"name\":\"photos\"}")
+                )
+                .andExpect(status().isConflict());
+
+        MockMultipartFile file = new MockMultipartFile("file", "beach.jpg", "image/jpeg", "sand".getBytes(StandardCharsets.UTF_8));
+        mockMvc.perform(multipart("/api/files").file(file).param("folderId", String.valueOf(trips)).cookie(session.cookie()))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.folderId").value(trips));
+        long notesId = upload(session, "notes.txt", "notes");
+        mockMvc.perform(
+                        post("/api/files/{fileId}/move", notesId)
+                                .cookie(session.cookie())
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"folderId\":%d}".formatted(photos))
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.folderId").value(photos));
+
+        mockMvc.perform(get("/api/folders/{folderId}", photos).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.folder.path").value("/Photos"))
+                .andExpect(jsonPath("$.folders[*].name", contains("Trips")))
+                .andExpect(jsonPath("$.files[*].filename", contains("notes.txt")));
+
+        mockMvc.perform(
+                        post("/api/folders/{folderId}/move", photos)
+                                .cookie(session.cookie())
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"folderId\":%d}".formatted(trips))
+                )
+                .andExpect(status().isConflict());
+        mockMvc.perform(
+                        post("/api/folders/{folderId}/move", trips)
+                                .cookie(session.cookie())
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"folderId\":%d}".formatted(archive))
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.path").value("/Archive/Trips"));
+        mockMvc.perform(get("/api/folders/resolve").param("path", "/archive/trips").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(trips));
+
+        mockMvc.perform(delete("/api/folders/{folderId}", archive).cookie(session.cookie()))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/folders/{folderId}", trips).cookie(session.cookie()))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/api/folders/0").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.folders[*].name", contains("Photos")))
+                .andExpect(jsonPath("$.files.length()").value(0));
+        mockMvc.perform(get("/api/files/trash").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].filename", contains("beach.jpg")));
+        mockMvc.perform(get("/api/files/stats").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.storageUsed").value(5));
+
+        String trashed = mockMvc.perform(get("/api/files/trash").cookie(session.cookie()))
+                .andReturn().getResponse().getContentAsString();
+        mockMvc.perform(post("/api/files/{fileId}/restore", objectMapper.readTree(trashed).get(0).get("id").asLong()).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.folderId").value(0));
+    }
+
+    @Test
+    void downloadsServeByteRanges() throws Exception {
+        SessionFixture session = signup("demo", "demo@example.com");
+        long fileId = upload(session, "digits.txt", "0123456789");
+
+        mockMvc.perform(get("/api/files/{fileId}/download", fileId).cookie(session.cookie()).header(HttpHeaders.RANGE, "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-5/10"))
+                .andExpect(content().bytes("2345".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void repeatedDownloadsOfSmallFilesAreServedFromMemory() throws Exception {
+        SessionFixture session = signup("demo", "demo@example.com");
+        long fileId = upload(session, "icon.txt", "0123456789");
+
+        mockMvc.perform(get("/api/files/{fileId}/download", fileId).cookie(session.cookie()))
+                .andExpect(status().isOk());
+        cleanDirectory(TEST_STORAGE);
+
+        mockMvc.perform(get("/api/files/{fileId}/download", fileId).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("0123456789".getBytes(StandardCharsets.UTF_8)));
+        mockMvc.perform(get("/api/files/{fileId}/download", fileId).cookie(session.cookie()).header(HttpHeaders.RANGE, "bytes=7-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes("789".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void newVersionsKeepOlderContentsAsDeltasThatCanBeRestored() throws Exception {
+        SessionFixture session = signup("demo", "demo@example.com");
+        StringBuilder lines = new StringBuilder();
+        for (int line = 0; line < 2000; line++) {
+            lines.append("line ").append(line).append(" of the quarterly report\n");
+        }
+        String first = lines.toString();
+        String second = first.replace("line 1000 ", "line one thousand ");
+        String third = "preface\n" + second;
+        long fileId = upload(session, "report.txt", first);
+
+        for (String contents : new String[]{second, third}) {
+            MockMultipartFile file = new MockMultipartFile("file", "report.txt", "text/plain", contents.getBytes(StandardCharsets.UTF_8));
+            mockMvc.perform(multipart("/api/files/{fileId}/versions", fileId).file(file).cookie(session.cookie()))
+                    .andExpect(status().isCreated())
+                    .andExpect(jsonPath("$.id").value(fileId))
+                    .andExpect(jsonPath("$.fileSize").value(contents.length()));
+        }
+
+        mockMvc.perform(get("/api/files/{fileId}/versions", fileId).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].version", contains(3, 2, 1)))
+                .andExpect(jsonPath("$[0].current").value(true));
+        try (var blobs = Files.walk(TEST_STORAGE)) {
+            long deltaBytes = blobs.filter(path -> path.toString().endsWith(".delta")).mapToLong(path -> path.toFile().length()).sum();
+            assertThat(deltaBytes).isPositive().isLessThan(first.length() / 10);
+        }
+        mockMvc.perform(get("/api/files/{fileId}/versions/{version}/download", fileId, 1).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(first.getBytes(StandardCharsets.UTF_8)));
+        mockMvc.perform(get("/api/files/{fileId}/versions/{version}/download", fileId, 2).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(second.getBytes(StandardCharsets.UTF_8)));
+        mockMvc.perform(get("/api/files/{fileId}/versions/{version}/download", fileId, 9).cookie(session.cookie()))
+                .andExpect(status().isNotFound());
+
+        mockMvc.perform(post("/api/files/{fileId}/versions/{version}/restore", fileId, 1).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.fileSize").value(first.length()));
+        mockMvc.perform(get("/api/files/{fileId}/download", fileId).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(first.getBytes(StandardCharsets.UTF_8)));
+        mockMvc.perform(get("/api/files/{fileId}/versions/{version}/download", fileId, 3).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(third.getBytes(StandardCharsets.UTF_8)));
+        // Stats report what the quota charges: the current contents and every older version at its stored size.
+        long storedBytes;
+        try (var blobs = Files.walk(TEST_STORAGE)) {
+            storedBytes = blobs.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+        assertThat(storedBytes).isGreaterThan(first.length());
+        mockMvc.perform(get("/api/files/stats").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.storageUsed").value(storedBytes));
+        mockMvc.perform(get("/api/activity").cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].action", hasItems("NEW_VERSION", "RESTORE_VERSION")));
+    }
+
+    @Test
+    void deltaUploadsRebuildTheNewContentsFromTheStoredFile() throws Exception {
+        SessionFixture session = signup("demo", "demo@example.com");
+        StringBuilder lines = new StringBuilder();
+        for (int line = 0; line < 5000; line++) {
+            lines.append("row ").append(line).append('\n');
+        }
+        String original = lines.toString();
+        long fileId = upload(session, "rows.txt", original);
+
+        JsonNode signature = objectMapper.readTree(mockMvc.perform(get("/api/files/{fileId}/signature", fileId).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString());
+        int blockSize = signature.get("blockSize").asInt();
+        assertThat(signature.get("version").asLong()).isEqualTo(1);
+        assertThat(signature.get("blocks")).hasSize(original.length() / blockSize);
+        assertThat(signature.get("blocks").get(0).get("strong").asText()).hasSize(32);
+
+        // Keep every whole block and replace the rest of the file.
+        long kept = (long) blockSize * signature.get("blocks").size();
+        byte[] tail = "row 4999 edited\nrow 5000\n".getBytes(StandardCharsets.UTF_8);
+        String edited = original.substring(0, (int) kept) + new String(tail, StandardCharsets.UTF_8);
+        byte[] delta = delta(edited.length(), kept, tail);
+
+        mockMvc.perform(multipart("/api/files/{fileId}/delta", fileId)
+                        .file(new MockMultipartFile("delta", "rows.delta", "application/octet-stream", delta))
+                        .param("baseVersion", "1")
+                        .param("checksum", "12345")
+                        .cookie(session.cookie()))
+                .andExpect(status().isBadRequest());
+        CRC32C checksum = new CRC32C();
+        checksum.update(edited.getBytes(StandardCharsets.UTF_8));
+        mockMvc.perform(multipart("/api/files/{fileId}/delta", fileId)
+                        .file(new MockMultipartFile("delta", "rows.delta", "application/octet-stream", delta))
+                        .param("baseVersion", "1")
+                        .param("checksum", Long.toString(checksum.getValue()))
+                        .cookie(session.cookie()))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.fileSize").value(edited.length()));
+
+        mockMvc.perform(get("/api/files/{fileId}/download", fileId).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(edited.getBytes(StandardCharsets.UTF_8)));
+        mockMvc.perform(get("/api/files/{fileId}/versions/{version}/download", fileId, 1).cookie(session.cookie()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(original.getBytes(StandardCharsets.UTF_8)));
+        mockMvc.perform(multipart("/api/files/{fileId}/delta", fileId)
+                        .file(new MockMultipartFile("delta", "rows.delta", "application/octet-stream", delta))
+                        .param("baseVersion", "1")
+                        .cookie(session.cookie()))
+                .andExpect(status().isConflict());
+        mockMvc.perform(multipart("/api/files/{fileId}/delta", fileId)
+                        .file(new MockMultipartFile("delta", "rows.delta", "application/octet-stream", delta(10, 1_000_000, new byte[0])))
+                        .param("baseVersion", "2")
+                        .cookie(session.cookie()))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void storageDiagnosticsRequireTheDiagnosticsToken() throws Exception {
+        mockMvc.perform(get("/api/diagnostics/storage"))
+                .andExpect(status().isForbidden());
+        mockMvc.perform(get("/api/diagnostics/storage").header("X-Diagnostics-Token", "wrong"))
+                .andExpect(status().isForbidden());
+        mockMvc.perform(get("/api/diagnostics/storage").header("X-Diagnostics-Token", "test-diagnostics-token"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.damagedFiles").isArray());
+    }
+
     @Test
     void shareLinksCanBeListedAndRevoked() throws Exception {
         SessionFixture session = signup("demo", "demo@example.com");
@@ -277,10 +634,15 @@ class ApiApplicationTests {
         long shareId = shareJson.get("id").asLong();
         URI shareUri = URI.create(shareJson.get("shareUrl").asText());
 
+        mockMvc.perform(get(shareUri.getPath()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("shared".getBytes(StandardCharsets.UTF_8)));
+
         mockMvc.perform(get("/api/files/{fileId}/shares", fileId).cookie(session.cookie()))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$", hasSize(1)))
-                .andExpect(jsonPath("$[0].id").value(shareId));
+                .andExpect(jsonPath("$[0].id").value(shareId))
+                .andExpect(jsonPath("$[0].accessCount").value(1));
 
         mockMvc.perform(delete("/api/files/{fileId}/shares/{shareId}", fileId, shareId)
                         .cookie(session.cookie()))
@@ -366,6 +728,53 @@ class ApiApplicationTests {
         }
     }
 
+    private long upload(SessionFixture session, String filename, String content) throws Exception {
+        MockMultipartFile file = new MockMultipartFile(
+                "file",
+                filename,
+                "text/plain",
+                content.getBytes(StandardCharsets.UTF_8)
+        );
+        String body = mockMvc.perform(multipart("/api/files").file(file).cookie(session.cookie()))
+                .andExpect(status().isCreated())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        return objectMapper.readTree(body).get("id").asLong();
+    }
+
+    private long createFolder(SessionFixture session, String name, long parentId) throws Exception {
+        String body = mockMvc.perform(
+                        post("/api/folders")
+                                .cookie(session.cookie())
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"name\":\"%s\",\"parentId\":%d}".formatted(name, parentId))
+                )
+                .andExpect(status().isCreated())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        return objectMapper.readTree(body).get("id").asLong();
+    }
+
+    /**
+     * A delta that copies the first {@code copied} bytes of the stored file and appends {@code literal}.
+     */
+    private static byte[] delta(long targetLength, long copied, byte[] literal) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x50444c54);
+        out.writeLong(targetLength);
+        out.writeByte(1);
+        out.writeLong(0);
+        out.writeLong(copied);
+        out.writeByte(2);
+        out.writeInt(literal.length);
+        out.write(literal);
+        out.writeByte(0);
+        return bytes.toByteArray();
+    }
+
     private SessionFixture signup(String username, String email) throws Exception {
         var result = mockMvc.perform(
                         post("/api/auth/signup")
@@ -0,0 +1,124 @@
+package com.patrakosh.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.patrakosh.api.config.RequestRateLimiter;
+import com.patrakosh.api.files.StorageQuotaService;
+import com.patrakosh.persistence.StateRepository;
+import jakarta.servlet.http.Cookie;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.hasItems;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Runs the main API flow under a non-default configuration, such as another {@link StateRepository}, chosen by
+ * the subclass's properties.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@TestPropertySource(properties = "patrakosh.cors.allowed-origins=http://localhost:5173")
+abstract class BackendApiFlowTests {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private StateRepository stateRepository;
+
+    @Autowired
+    private RequestRateLimiter requestRateLimiter;
+
+    @Autowired
+    private StorageQuotaService storageQuotaService;
+
+    protected abstract Class<? extends StateRepository> expectedBackend();
+
+    @BeforeEach
+    void resetState() {
+        stateRepository.reset();
+        requestRateLimiter.reset();
+        storageQuotaService.reset();
+    }
+
+    @Test
+    void fileAndShareFlowRunsAgainstTheBackend() throws Exception {
+        assertThat(stateRepository).isInstanceOf(expectedBackend());
+
+        String setCookie = mockMvc.perform(post("/api/auth/signup")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                {
+                                  "username": "demo",
+                                  "email": "demo@example.com",
+                                  "password": "password123",
+                                  "confirmPassword": "password123"
+                                }
+                                """))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getHeader(HttpHeaders.SET_COOKIE);
+        String[] cookieParts = setCookie.split(";", 2)[0].split("=", 2);
+        Cookie cookie = new Cookie(cookieParts[0], cookieParts[1]);
+
+        MockMultipartFile file = new MockMultipartFile("file", "notes.txt", "text/plain", "hello".getBytes(StandardCharsets.UTF_8));
+        long fileId = objectMapper.readTree(mockMvc.perform(multipart("/api/files").file(file).cookie(cookie))
+                        .andExpect(status().isCreated())
+                        .andReturn()
+                        .getResponse()
+                        .getContentAsString())
+                .get("id")
+                .asLong();
+
+        String shareUrl = objectMapper.readTree(mockMvc.perform(post("/api/files/{fileId}/shares", fileId)
+                                .cookie(cookie)
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{}"))
+                        .andExpect(status().isCreated())
+                        .andReturn()
+                        .getResponse()
+                        .getContentAsString())
+                .get("shareUrl")
+                .asText();
+
+        mockMvc.perform(get(URI.create(shareUrl).getPath()))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("hello".getBytes(StandardCharsets.UTF_8)));
+
+        mockMvc.perform(get("/api/activity").cookie(cookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].action", hasItems("SIGNUP", "UPLOAD", "SHARE", "SHARED_DOWNLOAD")));
+
+        mockMvc.perform(delete("/api/files/{fileId}", fileId).cookie(cookie))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get(URI.create(shareUrl).getPath()))
+                .andExpect(status().isNotFound());
+
+        mockMvc.perform(post("/api/auth/logout").cookie(cookie))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/auth/me").cookie(cookie))
+                .andExpect(status().isUnauthorized());
+    }
+}
@@ -0,0 +1,17 @@
+package com.patrakosh.api;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.StateRepository;
+import org.springframework.test.context.TestPropertySource;
+
+@TestPropertySource(properties = {
+        "patrakosh.storage.backend=memory",
+        "patrakosh.data.base-path=target/test-data-memory-blobs"
+})
+class InMemoryBlobStoreApiTests extends BackendApiFlowTests {
+
+    @Override
+    protected Class<? extends StateRepository> expectedBackend() {
+        return AppStateStore.class;
+    }
+}
@@ -0,0 +1,18 @@
+package com.patrakosh.api;
+
+import com.patrakosh.persistence.JdbcStateRepository;
+import com.patrakosh.persistence.StateRepository;
+import org.springframework.test.context.TestPropertySource;
+
+@TestPropertySource(properties = {
+        "patrakosh.storage.base-path=target/test-storage-jdbc",
+        "patrakosh.data.backend=jdbc",
+        "patrakosh.data.jdbc.url=jdbc:h2:mem:patrakosh-api;DB_CLOSE_DELAY=-1"
+})
+class JdbcBackendApiTests extends BackendApiFlowTests {
+
+    @Override
+    protected Class<? extends StateRepository> expectedBackend() {
+        return JdbcStateRepository.class;
+    }
+}
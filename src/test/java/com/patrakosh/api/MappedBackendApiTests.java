@@ -0,0 +1,18 @@
+package com.patrakosh.api;
+
+import com.patrakosh.persistence.MappedStateRepository;
+import com.patrakosh.persistence.StateRepository;
+import org.springframework.test.context.TestPropertySource;
+
+@TestPropertySource(properties = {
+        "patrakosh.storage.base-path=target/test-storage-mapped",
+        "patrakosh.data.base-path=target/test-data-mapped",
+        "patrakosh.data.backend=mapped"
+})
+class MappedBackendApiTests extends BackendApiFlowTests {
+
+    @Override
+    protected Class<? extends StateRepository> expectedBackend() {
+        return MappedStateRepository.class;
+    }
+}
@@ -0,0 +1,18 @@
+package com.patrakosh.api;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.StateRepository;
+import org.springframework.test.context.TestPropertySource;
+
+@TestPropertySource(properties = {
+        "patrakosh.storage.base-path=target/test-storage-signed",
+        "patrakosh.data.base-path=target/test-data-signed",
+        "patrakosh.auth.session-tokens=signed"
+})
+class SignedSessionApiTests extends BackendApiFlowTests {
+
+    @Override
+    protected Class<? extends StateRepository> expectedBackend() {
+        return AppStateStore.class;
+    }
+}
@@ -0,0 +1,52 @@
+package com.patrakosh.api.auth;
+
+import com.patrakosh.security.PasswordHasher;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PasswordHashingExecutorTests {
+
+    @Test
+    void hashesAndVerifiesPasswords() {
+        try (PasswordHashingExecutor executor = new PasswordHashingExecutor(1, 1, PasswordHasher.MIN_ITERATIONS, 0)) {
+            String hash = executor.hash("secret123");
+
+            assertThat(executor.matches("secret123", hash)).isTrue();
+            assertThat(executor.matches("wrong", hash)).isFalse();
+        }
+    }
+
+    @Test
+    void rejectsWorkOnceThePoolAndQueueAreFull() throws Exception {
+        try (PasswordHashingExecutor executor = new PasswordHashingExecutor(1, 1, PasswordHasher.MIN_ITERATIONS, 0)) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Boolean> running = CompletableFuture.supplyAsync(() -> executor.call(() -> {
+                started.countDown();
+                return release.await(10, TimeUnit.SECONDS);
+            }));
+            assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+            CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(() -> executor.call(() -> true));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (executor.queuedTasks() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+
+            assertThatThrownBy(() -> executor.hash("secret123"))
+                    .isInstanceOfSatisfying(ResponseStatusException.class, exception ->
+                            assertThat(exception.getStatusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS));
+
+            release.countDown();
+            assertThat(running.get(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(queued.get(10, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.patrakosh.api.auth;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SessionRevocationsTests {
+
+    @TempDir
+    Path dataRoot;
+
+    @Test
+    void revocationsOutliveARestartUntilTheTokenExpires() {
+        SessionRevocations revocations = new SessionRevocations(dataRoot.toString());
+        revocations.revoke("live", Instant.now().plusSeconds(3600));
+        revocations.revoke("expired", Instant.now().minusSeconds(1));
+
+        SessionRevocations reloaded = new SessionRevocations(dataRoot.toString());
+
+        assertThat(reloaded.isRevoked("live")).isTrue();
+        assertThat(reloaded.isRevoked("expired")).isFalse();
+        assertThat(reloaded.isRevoked("unknown")).isFalse();
+    }
+}
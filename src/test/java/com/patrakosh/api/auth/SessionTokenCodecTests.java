@@ -0,0 +1,43 @@
+package com.patrakosh.api.auth;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SessionTokenCodecTests {
+
+    private static final String OLD_KEY = "old:" + Base64.getEncoder().encodeToString(new byte[32]);
+    private static final String NEW_KEY = "new:" + Base64.getEncoder().encodeToString("n".repeat(32).getBytes());
+
+    @Test
+    void verifiesTheClaimsOfTokensItIssued() {
+        SessionTokenCodec codec = new SessionTokenCodec("signed", NEW_KEY);
+        Instant now = Instant.ofEpochSecond(1_700_000_000);
+
+        String token = codec.issue(42, now, Duration.ofHours(1));
+
+        assertThat(codec.verify(token)).hasValueSatisfying(session -> {
+            assertThat(session.userId()).isEqualTo(42);
+            assertThat(session.issuedAt()).isEqualTo(now);
+            assertThat(session.expiresAt()).isEqualTo(now.plusSeconds(3600));
+        });
+        assertThat(codec.verify(token.substring(0, token.length() - 2) + "AA")).isEmpty();
+        assertThat(codec.verify(token.replace("s1.new.", "s1.new.A"))).isEmpty();
+        assertThat(new SessionTokenCodec("opaque", NEW_KEY).verify(token)).isEmpty();
+    }
+
+    @Test
+    void acceptsTokensFromRotatedOutSigningKeysWhileTheyAreListed() {
+        String oldToken = new SessionTokenCodec("signed", OLD_KEY).issue(7, Instant.now(), Duration.ofHours(1));
+
+        SessionTokenCodec rotated = new SessionTokenCodec("signed", NEW_KEY + "," + OLD_KEY);
+
+        assertThat(rotated.verify(oldToken)).hasValueSatisfying(session -> assertThat(session.userId()).isEqualTo(7));
+        assertThat(rotated.issue(7, Instant.now(), Duration.ofHours(1))).startsWith("s1.new.");
+        assertThat(new SessionTokenCodec("signed", NEW_KEY).verify(oldToken)).isEmpty();
+    }
+}
@@ -0,0 +1,81 @@
+package com.patrakosh.api.files;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BinaryDeltaTests {
+
+    @Test
+    void shiftedAndEditedContentIsMostlyCopiedFromTheBase() throws IOException {
+        byte[] base = randomBytes(1_000_000, 1);
+        byte[] target = new byte[base.length + 100];
+        // Insert 100 bytes near the start and overwrite a few bytes in the middle.
+        System.arraycopy(base, 0, target, 0, 1000);
+        System.arraycopy(randomBytes(100, 2), 0, target, 1000, 100);
+        System.arraycopy(base, 1000, target, 1100, base.length - 1000);
+        target[600_000] ^= 0x5a;
+
+        byte[] delta = encode(base, target);
+
+        assertThat(delta.length).isLessThan(target.length / 50);
+        assertThat(decode(delta, base, checksum(target))).isEqualTo(target);
+    }
+
+    @Test
+    void unrelatedAndTinyContentRoundTrips() throws IOException {
+        byte[] base = randomBytes(50_000, 3);
+        for (byte[] target : new byte[][]{randomBytes(70_000, 4), new byte[0], "short".getBytes()}) {
+            assertThat(decode(encode(base, target), base, checksum(target))).isEqualTo(target);
+        }
+        byte[] target = randomBytes(3000, 5);
+        assertThat(decode(encode(new byte[0], target), new byte[0], checksum(target))).isEqualTo(target);
+    }
+
+    @Test
+    void outputThatDoesNotMatchItsChecksumFails() throws IOException {
+        byte[] base = randomBytes(20_000, 6);
+        byte[] target = Arrays.copyOf(base, base.length);
+        target[5] ^= 1;
+        byte[] delta = encode(base, target);
+        byte[] changedBase = Arrays.copyOf(base, base.length);
+        changedBase[10_000] ^= 1;
+
+        assertThatThrownBy(() -> decode(delta, changedBase, checksum(target))).isInstanceOf(IOException.class);
+    }
+
+    private static byte[] encode(byte[] base, byte[] target) throws IOException {
+        BinaryDelta.Signature signature = BinaryDelta.sign(new ByteArrayInputStream(base), BinaryDelta.blockSizeFor(base.length));
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        BinaryDelta.encode(signature, new ByteArrayInputStream(target), target.length, delta);
+        return delta.toByteArray();
+    }
+
+    private static byte[] decode(byte[] delta, byte[] base, long checksum) throws IOException {
+        BinaryDelta.Base source = (offset, length) -> new ByteArrayInputStream(base, (int) offset, (int) length);
+        try (InputStream decoded = BinaryDelta.decode(new ByteArrayInputStream(delta), source, checksum)) {
+            return decoded.readAllBytes();
+        }
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
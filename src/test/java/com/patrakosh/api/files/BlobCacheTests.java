@@ -0,0 +1,97 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.InMemoryBlobStore;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlobCacheTests {
+
+    private final InMemoryBlobStore blobStore = new InMemoryBlobStore();
+
+    @Test
+    void loadedBlobsAreServedFromDirectMemoryUntilInvalidated() throws IOException {
+        BlobCache cache = new BlobCache(1000, 100);
+        put("user-1/a.txt", "0123456789");
+
+        ByteBuffer loaded = cache.load(blobStore, "user-1/a.txt", 10);
+        blobStore.delete("user-1/a.txt");
+
+        assertThat(loaded.isDirect()).isTrue();
+        assertThat(text(cache.get("user-1/a.txt"))).isEqualTo("0123456789");
+        assertThat(cache.stats()).isEqualTo(new BlobCache.CacheStats(1, 0, 0, 1, 10, 1000));
+
+        cache.invalidate("user-1/a.txt");
+
+        assertThat(cache.get("user-1/a.txt")).isNull();
+        assertThat(cache.stats().weightBytes()).isZero();
+    }
+
+    @Test
+    void blobsThatAreTooLargeOrNotTheRecordedSizeAreNotCached() throws IOException {
+        BlobCache cache = new BlobCache(1000, 100);
+        put("user-1/large.bin", "x".repeat(101));
+        put("user-1/short.txt", "short");
+
+        assertThat(cache.accepts(101)).isFalse();
+        assertThat(cache.load(blobStore, "user-1/large.bin", 101)).isNull();
+        assertThat(cache.load(blobStore, "user-1/short.txt", 10)).isNull();
+        assertThat(cache.load(blobStore, "user-1/short.txt", 3)).isNull();
+        assertThat(cache.stats().entries()).isZero();
+        assertThat(new BlobCache(0, 100).accepts(1)).isFalse();
+    }
+
+    @Test
+    void blobsReadTwiceSurviveAScanOfOneOffDownloads() throws IOException {
+        // 20 bytes of probation, 80 protected.
+        BlobCache cache = new BlobCache(100, 10);
+        for (int index = 0; index < 10; index++) {
+            put("user-1/" + index, "0123456789");
+        }
+        cache.load(blobStore, "user-1/0", 10);
+        cache.get("user-1/0");
+
+        for (int index = 1; index < 10; index++) {
+            cache.load(blobStore, "user-1/" + index, 10);
+        }
+
+        assertThat(cache.contains("user-1/0")).isTrue();
+        assertThat(cache.contains("user-1/1")).isFalse();
+        assertThat(cache.contains("user-1/9")).isTrue();
+        assertThat(cache.stats().evictions()).isEqualTo(7);
+        assertThat(cache.stats().weightBytes()).isEqualTo(30);
+    }
+
+    @Test
+    void aBlobDeletedWhileItIsBeingReadIsNotCached() throws IOException {
+        BlobCache cache = new BlobCache(1000, 100);
+        put("user-1/a.txt", "0123456789");
+        InMemoryBlobStore racingStore = new InMemoryBlobStore() {
+            @Override
+            public InputStream get(String key) throws IOException {
+                InputStream content = blobStore.get(key);
+                cache.invalidate(key);
+                return content;
+            }
+        };
+
+        assertThat(text(cache.load(racingStore, "user-1/a.txt", 10))).isEqualTo("0123456789");
+        assertThat(cache.contains("user-1/a.txt")).isFalse();
+    }
+
+    private void put(String key, String content) throws IOException {
+        blobStore.put(key, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), content.length());
+    }
+
+    private static String text(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,83 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.LocalBlobStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.zip.CRC32C;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class BlobScrubberTests {
+
+    @TempDir
+    Path dataRoot;
+
+    @TempDir
+    Path storageRoot;
+
+    @Test
+    void reportsDamagedBlobsAndRecordsMissingChecksums() throws Exception {
+        Instant now = Instant.now();
+        try (AppStateStore store = new AppStateStore(dataRoot)) {
+            long userId = store.registerUser("demo", "demo@example.com", "hash", now).user().id;
+            Path userDirectory = Files.createDirectories(storageRoot.resolve("user-" + userId));
+            addFile(store, userDirectory, "healthy", "healthy", crc("healthy"));
+            long rotted = addFile(store, userDirectory, "rotted", "rotteN", crc("rotted"));
+            long truncated = addFile(store, userDirectory, "truncated", "trunc", crc("truncated"));
+            long legacy = addFile(store, userDirectory, "legacy", "legacy", AppStateStore.FileRecord.NO_CHECKSUM);
+            long missing = addFile(store, userDirectory, "missing", null, crc("missing"));
+            Path stateFile = dataRoot.resolve("scrub-state");
+
+            BlobScrubber scrubber = new BlobScrubber(store, new LocalBlobStore(storageRoot), stateFile, Duration.ZERO, 0, Clock.systemUTC());
+            BlobScrubber.ScrubReport report = scrubber.scrub();
+
+            assertThat(report.completed()).isTrue();
+            assertThat(report.filesVerified()).isEqualTo(5);
+            assertThat(report.checksumsRecorded()).isEqualTo(1);
+            assertThat(report.problemsFound()).isEqualTo(3);
+            assertThat(scrubber.findings())
+                    .extracting(BlobScrubber.Finding::fileId, BlobScrubber.Finding::problem)
+                    .containsExactlyInAnyOrder(
+                            tuple(rotted, BlobScrubber.Problem.CHECKSUM_MISMATCH),
+                            tuple(truncated, BlobScrubber.Problem.SIZE_MISMATCH),
+                            tuple(missing, BlobScrubber.Problem.MISSING)
+                    );
+            long recorded = store.readUser(userId, partition -> partition.files.checksum(partition.files.positionOf(legacy)));
+            assertThat(recorded).isEqualTo(crc("legacy"));
+
+            // Findings survive a restart and are cleared once the file is gone.
+            BlobScrubber restarted = new BlobScrubber(store, new LocalBlobStore(storageRoot), stateFile, Duration.ZERO, 0, Clock.systemUTC());
+            assertThat(restarted.findings()).hasSize(3);
+            store.writeUser(userId, partition -> partition.files.removeIf(file -> file.id == missing));
+            restarted.scrub();
+            assertThat(restarted.findings()).extracting(BlobScrubber.Finding::fileId).containsExactlyInAnyOrder(rotted, truncated);
+        }
+    }
+
+    private static long addFile(AppStateStore store, Path userDirectory, String name, String content, long checksum) throws Exception {
+        long userId = Long.parseLong(userDirectory.getFileName().toString().substring("user-".length()));
+        long fileId = store.nextFileId();
+        if (content != null) {
+            Files.writeString(userDirectory.resolve(name), content);
+        }
+        store.writeUser(userId, partition -> partition.files.add(new AppStateStore.FileRecord(
+                fileId, userId, name, null, name.length(), Instant.now(), userDirectory.getFileName() + "/" + name, null, checksum
+        )));
+        return fileId;
+    }
+
+    private static long crc(String content) {
+        CRC32C crc = new CRC32C();
+        crc.update(content.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
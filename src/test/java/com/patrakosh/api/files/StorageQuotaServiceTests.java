@@ -0,0 +1,97 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.AppStateStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StorageQuotaServiceTests {
+
+    @TempDir
+    Path dataRoot;
+
+    private AppStateStore store;
+    private long userId;
+
+    @BeforeEach
+    void setUp() {
+        store = new AppStateStore(dataRoot);
+        userId = store.registerUser("demo", "demo@example.com", "hash", Instant.now()).user().id;
+        store.writeUser(userId, partition -> partition.files.add(
+                new AppStateStore.FileRecord(store.nextFileId(), userId, "a.bin", null, 60, Instant.now(), "key")
+        ));
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void reservationsCountAgainstTheQuotaUntilReleased() {
+        StorageQuotaService quotas = new StorageQuotaService(store, 100);
+
+        try (StorageQuotaService.Reservation first = quotas.reserve(userId, 30)) {
+            assertThatThrownBy(() -> quotas.reserve(userId, 20))
+                    .isInstanceOfSatisfying(ResponseStatusException.class, exception ->
+                            assertThat(exception.getStatusCode()).isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE));
+            first.resize(10);
+            quotas.reserve(userId, 30).close();
+        }
+
+        quotas.reserve(userId, 40).close();
+    }
+
+    @Test
+    void committedBytesStayUsedUntilTheFileIsRemoved() {
+        StorageQuotaService quotas = new StorageQuotaService(store, 100);
+
+        try (StorageQuotaService.Reservation reservation = quotas.reserve(userId, -1)) {
+            reservation.resize(40);
+            reservation.commit();
+        }
+        assertThatThrownBy(() -> quotas.reserve(userId, 1)).isInstanceOf(ResponseStatusException.class);
+
+        quotas.recordRemoved(userId, 60);
+        quotas.reserve(userId, 60).close();
+    }
+
+    @Test
+    void keptVersionsCountAgainstTheQuotaAtTheirStoredSize() {
+        long fileId = store.readUser(userId, partition -> partition.files.get(0).id);
+        store.writeUser(userId, partition -> partition.versions.add(
+                new AppStateStore.FileVersionRecord(fileId, 1, 60, 0, "key.delta", true, 25, Instant.now())
+        ));
+        StorageQuotaService quotas = new StorageQuotaService(store, 100);
+
+        assertThatThrownBy(() -> quotas.reserve(userId, 16)).isInstanceOf(ResponseStatusException.class);
+        quotas.reserve(userId, 15).close();
+    }
+
+    @Test
+    void uploadsThatExactlyFitPassOnceTheirRealSizeIsKnown() {
+        StorageQuotaService quotas = new StorageQuotaService(store, 100 + StorageQuotaService.MULTIPART_OVERHEAD_BYTES);
+        long remaining = StorageQuotaService.MULTIPART_OVERHEAD_BYTES + 40;
+
+        // The body is larger than what is left because of its boundaries and part headers.
+        try (StorageQuotaService.Reservation reservation = quotas.reserveUpload(userId, remaining + 200)) {
+            reservation.resize(remaining);
+            reservation.commit();
+        }
+        assertThatThrownBy(() -> quotas.reserveUpload(userId, StorageQuotaService.MULTIPART_OVERHEAD_BYTES + 1))
+                .isInstanceOf(ResponseStatusException.class);
+
+        try (StorageQuotaService.Reservation unknownLength = quotas.reserveUpload(userId, -1)) {
+            assertThatThrownBy(() -> unknownLength.resize(1)).isInstanceOf(ResponseStatusException.class);
+        }
+    }
+}
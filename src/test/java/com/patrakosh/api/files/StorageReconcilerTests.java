@@ -0,0 +1,60 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.LocalBlobStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StorageReconcilerTests {
+
+    @TempDir
+    Path dataRoot;
+
+    @TempDir
+    Path storageRoot;
+
+    @Test
+    void quarantinesOldOrphansAndReportsMissingBlobs() throws Exception {
+        Instant now = Instant.now();
+        try (AppStateStore store = new AppStateStore(dataRoot)) {
+            long userId = store.registerUser("demo", "demo@example.com", "hash", now).user().id;
+            long keptId = store.nextFileId();
+            long missingId = store.nextFileId();
+            store.writeUser(userId, partition -> {
+                partition.files.add(new AppStateStore.FileRecord(keptId, userId, "kept.txt", null, 4, now, "user-" + userId + "/kept.txt"));
+                return partition.files.add(new AppStateStore.FileRecord(missingId, userId, "gone.txt", null, 4, now, "user-" + userId + "/gone.txt"));
+            });
+            Path userDirectory = Files.createDirectories(storageRoot.resolve("user-" + userId));
+            Files.writeString(userDirectory.resolve("kept.txt"), "kept");
+            Path staleOrphan = Files.writeString(userDirectory.resolve("stale.txt"), "stale");
+            Files.setLastModifiedTime(staleOrphan, FileTime.from(now.minus(Duration.ofDays(1))));
+            Files.writeString(userDirectory.resolve("uploading.txt"), "fresh");
+
+            StorageReconciler reconciler = new StorageReconciler(
+                    store, new LocalBlobStore(storageRoot), Duration.ZERO, Duration.ofHours(1), Duration.ZERO, Clock.systemUTC()
+            );
+            StorageReconciler.ReconciliationReport report = reconciler.reconcile();
+
+            assertThat(report.usersScanned()).isEqualTo(1);
+            assertThat(report.blobsScanned()).isEqualTo(3);
+            assertThat(report.orphansQuarantined()).isEqualTo(1);
+            assertThat(report.orphanBytes()).isEqualTo(5);
+            assertThat(report.missingBlobs()).isEqualTo(1);
+            assertThat(report.missingFileIds()).containsExactly(missingId);
+            assertThat(reconciler.lastReport()).isEqualTo(report);
+            assertThat(staleOrphan).doesNotExist();
+            assertThat(storageRoot.resolve(".quarantine/user-" + userId + "/stale.txt")).hasContent("stale");
+            assertThat(userDirectory.resolve("uploading.txt")).exists();
+            assertThat(userDirectory.resolve("kept.txt")).exists();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.patrakosh.api.files;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.LocalBlobStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TrashPurgerTests {
+
+    @TempDir
+    Path dataRoot;
+
+    @TempDir
+    Path storageRoot;
+
+    @Test
+    void purgesOnlyFilesTrashedLongerThanTheRetention() throws Exception {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        try (AppStateStore store = new AppStateStore(dataRoot)) {
+            long userId = store.registerUser("demo", "demo@example.com", "hash", now).user().id;
+            Path userDirectory = Files.createDirectories(storageRoot.resolve("user-" + userId));
+            long[] ids = new long[5];
+            for (int index = 0; index < ids.length; index++) {
+                ids[index] = store.nextFileId();
+                Files.writeString(userDirectory.resolve(index + ".txt"), "data");
+            }
+            store.writeUser(userId, partition -> {
+                for (int index = 0; index < ids.length; index++) {
+                    // Files 0-2 expired, 3 was trashed recently and 4 is live.
+                    Instant deletedAt = index < 3 ? now.minus(Duration.ofDays(2)) : index == 3 ? now : null;
+                    partition.files.add(new AppStateStore.FileRecord(
+                            ids[index], userId, index + ".txt", null, 4, now, "user-" + userId + "/" + index + ".txt", deletedAt
+                    ));
+                }
+                partition.versions.add(new AppStateStore.FileVersionRecord(
+                        ids[0], 1, 4, 0, "user-" + userId + "/0.v1", false, 3, now.minus(Duration.ofDays(3))
+                ));
+                partition.shares.add(new AppStateStore.ShareRecord(
+                        store.nextShareId(), ids[0], userId, "share-token", now, now.plusSeconds(60), null, 0
+                ));
+                return null;
+            });
+
+            // Only the live file and the trashed file's version count: 4 + 3 of 8 bytes.
+            StorageQuotaService quotas = new StorageQuotaService(store, 8);
+            assertThatThrownBy(() -> quotas.reserve(userId, 2)).isInstanceOf(ResponseStatusException.class);
+
+            try (TrashPurger purger = new TrashPurger(
+                    store, new LocalBlobStore(storageRoot), new BlobCache(0, 0), quotas,
+                    Duration.ofDays(1), Duration.ZERO, 2, Duration.ZERO, Clock.systemUTC()
+            )) {
+                TrashPurger.PurgeReport report = purger.purgeExpired();
+
+                assertThat(report.filesPurged()).isEqualTo(3);
+                assertThat(report.bytesPurged()).isEqualTo(12);
+                assertThat(report.unlinkFailures()).isZero();
+            }
+            quotas.reserve(userId, 4).close();
+
+            store.readUser(userId, partition -> {
+                assertThat(partition.files).extracting(file -> file.id).containsExactly(ids[3], ids[4]);
+                assertThat(partition.shares).isEmpty();
+                assertThat(partition.versions).isEmpty();
+                return null;
+            });
+            assertThat(store.findShareOwner("share-token")).isEmpty();
+            assertThat(userDirectory.resolve("0.txt")).doesNotExist();
+            assertThat(userDirectory.resolve("2.txt")).doesNotExist();
+            assertThat(userDirectory.resolve("3.txt")).exists();
+            assertThat(userDirectory.resolve("4.txt")).exists();
+        }
+    }
+}
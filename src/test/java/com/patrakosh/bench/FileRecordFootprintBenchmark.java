@@ -0,0 +1,102 @@
+package com.patrakosh.bench;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.FileTable;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retained heap for {@link #files} file records held as {@link FileTable}s versus plain lists of
+ * {@link AppStateStore.FileRecord} objects, reported as the {@code bytesPerFile} counter. Run with
+ * {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=FileRecordFootprintBenchmark}; the 10M case
+ * with plain objects needs a machine with more than 8 GB of memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-XX:+UseParallelGC"})
+public class FileRecordFootprintBenchmark {
+
+    private static final int FILES_PER_USER = 100;
+    private static final String[] MIME_TYPES = {"application/pdf", "image/png", "text/plain", "video/mp4"};
+    private static final String[] EXTENSIONS = {".pdf", ".png", ".txt", ".mp4"};
+
+    @Param({"1000000", "10000000"})
+    public int files;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long bytesPerFile;
+    }
+
+    @Benchmark
+    public Object columnar(Footprint footprint) {
+        long before = settledHeapBytes();
+        List<FileTable> partitions = new ArrayList<>(files / FILES_PER_USER);
+        for (int userIndex = 0; userIndex < files / FILES_PER_USER; userIndex++) {
+            FileTable table = new FileTable(FILES_PER_USER);
+            addFiles(userIndex, table);
+            partitions.add(table);
+        }
+        footprint.bytesPerFile = (settledHeapBytes() - before) / files;
+        return partitions;
+    }
+
+    @Benchmark
+    public Object objects(Footprint footprint) {
+        long before = settledHeapBytes();
+        List<List<AppStateStore.FileRecord>> partitions = new ArrayList<>(files / FILES_PER_USER);
+        for (int userIndex = 0; userIndex < files / FILES_PER_USER; userIndex++) {
+            List<AppStateStore.FileRecord> list = new ArrayList<>(FILES_PER_USER);
+            addFiles(userIndex, list);
+            partitions.add(list);
+        }
+        footprint.bytesPerFile = (settledHeapBytes() - before) / files;
+        return partitions;
+    }
+
+    private static void addFiles(int userIndex, List<AppStateStore.FileRecord> target) {
+        long userId = userIndex + 1L;
+        long now = System.currentTimeMillis();
+        for (int fileIndex = 0; fileIndex < FILES_PER_USER; fileIndex++) {
+            long fileId = userIndex * (long) FILES_PER_USER + fileIndex + 1;
+            int type = fileIndex % MIME_TYPES.length;
+            // Copies stand in for the separate String instances that request parsing would produce.
+            target.add(new AppStateStore.FileRecord(
+                    fileId,
+                    userId,
+                    "document-" + fileId + EXTENSIONS[type],
+                    new String(MIME_TYPES[type]),
+                    fileId * 37,
+                    Instant.ofEpochMilli(now - fileId),
+                    "user-" + userId + "/" + UUID.randomUUID() + EXTENSIONS[type]
+            ));
+        }
+    }
+
+    private static long settledHeapBytes() {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,125 @@
+package com.patrakosh.bench;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.DurabilityMode;
+import com.patrakosh.persistence.DurabilitySettings;
+import com.patrakosh.persistence.MappedStateRepository;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to open a {@link MappedStateRepository} holding {@link #files} file records and serve one user's file
+ * list, and the heap the open store retains, reported as {@code retainedHeapBytes}. Run with
+ * {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=MappedStateRepositoryBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx1g", "-XX:+UseParallelGC"})
+public class MappedStateRepositoryBenchmark {
+
+    private static final int FILES_PER_USER = 100;
+    private static final String[] MIME_TYPES = {"application/pdf", "image/png", "text/plain", "video/mp4"};
+
+    @Param({"1000000", "10000000"})
+    public int files;
+
+    private Path dataRoot;
+    private long users;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long retainedHeapBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataRoot = Files.createTempDirectory("patrakosh-bench");
+        users = files / FILES_PER_USER;
+        Instant now = Instant.now();
+        try (MappedStateRepository repository = new MappedStateRepository(dataRoot, DurabilitySettings.of(DurabilityMode.ASYNC))) {
+            for (long userIndex = 0; userIndex < users; userIndex++) {
+                long userId = repository.registerUser(
+                        "user" + userIndex,
+                        "user" + userIndex + "@example.com",
+                        "hash",
+                        now
+                ).user().id;
+                repository.writeUser(userId, partition -> {
+                    for (int fileIndex = 0; fileIndex < FILES_PER_USER; fileIndex++) {
+                        long fileId = repository.nextFileId();
+                        partition.files.add(new AppStateStore.FileRecord(
+                                fileId,
+                                userId,
+                                "document-" + fileId + ".bin",
+                                MIME_TYPES[fileIndex % MIME_TYPES.length],
+                                fileId * 37,
+                                now,
+                                "user-" + userId + "/" + UUID.randomUUID() + ".bin"
+                        ));
+                    }
+                    return null;
+                });
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dataRoot)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public int openAndList() {
+        try (MappedStateRepository repository = new MappedStateRepository(dataRoot)) {
+            return repository.readUser(users / 2, partition -> partition.files.size());
+        }
+    }
+
+    @Benchmark
+    @Measurement(iterations = 1)
+    public int retainedHeap(Footprint footprint) {
+        long before = settledHeapBytes();
+        try (MappedStateRepository repository = new MappedStateRepository(dataRoot)) {
+            int listed = repository.readUser(users / 2, partition -> partition.files.size());
+            footprint.retainedHeapBytes = settledHeapBytes() - before;
+            return listed;
+        }
+    }
+
+    private static long settledHeapBytes() {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,55 @@
+package com.patrakosh.bench;
+
+import com.patrakosh.security.PasswordHasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of hashing and verifying a password per iteration count. Run with
+ * {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=PasswordHasherBenchmark}; add {@code -t 1} or
+ * {@code -t 8} to the benchmark argument to compare a single login against a burst of concurrent ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(4)
+public class PasswordHasherBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({"100000", "210000", "600000"})
+    public int iterations;
+
+    private String storedHash;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        storedHash = PasswordHasher.hash(PASSWORD, iterations);
+    }
+
+    @Benchmark
+    public String hash() {
+        return PasswordHasher.hash(PASSWORD, iterations);
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return PasswordHasher.matches(PASSWORD, storedHash);
+    }
+}
@@ -0,0 +1,110 @@
+package com.patrakosh.bench;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.DurabilityMode;
+import com.patrakosh.persistence.DurabilitySettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Startup and checkpoint time for a store holding {@link #files} file records. Run with
+ * {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=StateStoreCheckpointBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class StateStoreCheckpointBenchmark {
+
+    private static final int FILES_PER_USER = 100;
+    private static final String[] MIME_TYPES = {"application/pdf", "image/png", "text/plain", "video/mp4"};
+
+    @Param({"1000000"})
+    public int files;
+
+    private Path dataRoot;
+    private AppStateStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataRoot = Files.createTempDirectory("patrakosh-bench");
+        store = new AppStateStore(dataRoot, AppStateStore.DEFAULT_SHARD_COUNT, DurabilitySettings.of(DurabilityMode.ASYNC));
+        Instant now = Instant.now();
+        for (int userIndex = 0; userIndex < files / FILES_PER_USER; userIndex++) {
+            int suffix = userIndex;
+            long userId = store.writeGlobal(state -> {
+                AppStateStore.UserRecord user = new AppStateStore.UserRecord(
+                        state.allocateUserId(),
+                        "user" + suffix,
+                        "user" + suffix + "@example.com",
+                        "hash",
+                        now
+                );
+                state.addUser(user);
+                return user.id;
+            });
+            store.writeUser(userId, partition -> {
+                for (int fileIndex = 0; fileIndex < FILES_PER_USER; fileIndex++) {
+                    long fileId = store.nextFileId();
+                    partition.files.add(new AppStateStore.FileRecord(
+                            fileId,
+                            userId,
+                            "document-" + fileId + ".bin",
+                            MIME_TYPES[fileIndex % MIME_TYPES.length],
+                            fileId * 37,
+                            now,
+                            "user-" + userId + "/" + fileId + ".bin"
+                    ));
+                    partition.activities.add(new AppStateStore.ActivityRecord(
+                            store.nextActivityId(), userId, "UPLOAD", "document-" + fileId + ".bin", now
+                    ));
+                }
+                return null;
+            });
+        }
+        store.checkpoint();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> paths = Files.walk(dataRoot)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void checkpoint() {
+        store.checkpoint();
+    }
+
+    @Benchmark
+    public int startup() {
+        try (AppStateStore reopened = new AppStateStore(dataRoot, AppStateStore.DEFAULT_SHARD_COUNT)) {
+            return reopened.getShardCount();
+        }
+    }
+}
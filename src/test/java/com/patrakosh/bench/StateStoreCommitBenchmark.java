@@ -0,0 +1,145 @@
+package com.patrakosh.bench;
+
+import com.patrakosh.persistence.AppStateStore;
+import com.patrakosh.persistence.DurabilityMode;
+import com.patrakosh.persistence.DurabilitySettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Commit throughput of the state store per durability mode. Run with
+ * {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=StateStoreCommitBenchmark}; add {@code -t 1} to
+ * the benchmark argument to see single-writer latency.
+ *
+ * <p>{@link #updateOneFileOfALargePartition} changes one row of a user with {@value #LARGE_PARTITION_FILES} files,
+ * so it should run about as fast as {@link #commit}: a commit costs what it changed, not what the user stores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(8)
+public class StateStoreCommitBenchmark {
+
+    private static final int USERS = 64;
+    private static final int LARGE_PARTITION_FILES = 1_000_000;
+    private static final int FILES_PER_SETUP_WRITE = 50_000;
+
+    @Param({"FSYNC", "GROUP", "ASYNC"})
+    public DurabilityMode mode;
+
+    private Path dataRoot;
+    private AppStateStore store;
+    private long largeUserId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataRoot = Files.createTempDirectory("patrakosh-bench");
+        store = new AppStateStore(dataRoot, AppStateStore.DEFAULT_SHARD_COUNT, DurabilitySettings.of(mode));
+        for (int index = 0; index < USERS; index++) {
+            int suffix = index;
+            store.writeGlobal(state -> {
+                AppStateStore.UserRecord user = new AppStateStore.UserRecord(
+                        state.allocateUserId(),
+                        "user" + suffix,
+                        "user" + suffix + "@example.com",
+                        "hash",
+                        Instant.now()
+                );
+                state.addUser(user);
+                return user.id;
+            });
+            store.writeUser(index + 1, partition -> partition.sessions.add(new AppStateStore.SessionRecord(
+                    "session-" + suffix,
+                    suffix + 1,
+                    Instant.now(),
+                    Instant.now().plusSeconds(3600),
+                    null
+            )));
+        }
+
+        largeUserId = store.writeGlobal(state -> {
+            AppStateStore.UserRecord user = new AppStateStore.UserRecord(
+                    state.allocateUserId(), "large", "large@example.com", "hash", Instant.now()
+            );
+            state.addUser(user);
+            return user.id;
+        });
+        for (int added = 0; added < LARGE_PARTITION_FILES; added += FILES_PER_SETUP_WRITE) {
+            store.writeUser(largeUserId, partition -> {
+                for (int index = 0; index < FILES_PER_SETUP_WRITE; index++) {
+                    long fileId = store.nextFileId();
+                    partition.files.add(new AppStateStore.FileRecord(
+                            fileId,
+                            largeUserId,
+                            "file-" + fileId + ".txt",
+                            "text/plain",
+                            1024,
+                            Instant.now(),
+                            "user-" + largeUserId + "/" + UUID.randomUUID() + ".txt"
+                    ));
+                }
+                return null;
+            });
+        }
+        store.checkpoint();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> paths = Files.walk(dataRoot)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Extends the session of a random small user. Writes never remove activities, so this changes a session
+     * rather than keeping a bounded activity log.
+     */
+    @Benchmark
+    public int commit() {
+        long userId = ThreadLocalRandom.current().nextLong(1, USERS + 1);
+        return store.writeUser(userId, partition -> {
+            partition.sessions.get(0).expiresAt = Instant.now().plusSeconds(3600);
+            return partition.sessions.size();
+        });
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String updateOneFileOfALargePartition() {
+        int position = ThreadLocalRandom.current().nextInt(LARGE_PARTITION_FILES);
+        return store.writeUser(largeUserId, partition -> {
+            String filename = "renamed-" + System.nanoTime() + ".txt";
+            partition.files.rename(position, filename);
+            return filename;
+        });
+    }
+}
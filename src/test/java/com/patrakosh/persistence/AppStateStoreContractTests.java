@@ -0,0 +1,9 @@
+package com.patrakosh.persistence;
+
+class AppStateStoreContractTests extends StateRepositoryContractTests {
+
+    @Override
+    protected StateRepository open() {
+        return new AppStateStore(dataRoot, 4);
+    }
+}
@@ -0,0 +1,305 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Simulates power loss by routing journal writes through {@link SimulatedDisk}, which only persists bytes
+ * once they have been forced. Reopening the data directory after {@link SimulatedDisk#crash()} shows exactly
+ * what a real crash would have kept.
+ */
+class AppStateStoreDurabilityTests {
+
+    @TempDir
+    Path dataRoot;
+
+    @Test
+    void fsyncModeKeepsEveryAcknowledgedCommit() {
+        SimulatedDisk disk = new SimulatedDisk();
+        AppStateStore store = openStore(DurabilitySettings.of(DurabilityMode.FSYNC), disk);
+        long userId = registerUser(store);
+
+        for (int index = 0; index < 20; index++) {
+            recordActivity(store, userId);
+        }
+        disk.crash();
+
+        assertThat(activityCount(reopen(store), userId)).isEqualTo(20);
+        assertThat(disk.forces()).isGreaterThanOrEqualTo(20);
+    }
+
+    @Test
+    void groupCommitCoalescesConcurrentWritersAndKeepsEveryAcknowledgedCommit() throws Exception {
+        SimulatedDisk disk = new SimulatedDisk();
+        DurabilitySettings settings = new DurabilitySettings(
+                DurabilityMode.GROUP,
+                Duration.ofMillis(2),
+                Duration.ofMillis(200),
+                DurabilitySettings.DEFAULT_CHECKPOINT_JOURNAL_BYTES
+        );
+        AppStateStore store = openStore(settings, disk, 1);
+        long userId = registerUser(store);
+
+        int writers = 8;
+        int commitsPerWriter = 25;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int writer = 0; writer < writers; writer++) {
+                futures.add(executor.submit(() -> {
+                    for (int commit = 0; commit < commitsPerWriter; commit++) {
+                        recordActivity(store, userId);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        disk.crash();
+
+        assertThat(activityCount(reopen(store), userId)).isEqualTo(writers * commitsPerWriter);
+        assertThat(disk.forces()).isLessThan(writers * commitsPerWriter);
+    }
+
+    @Test
+    void asyncModeOnlyLosesCommitsAfterTheLastFlush() {
+        SimulatedDisk disk = new SimulatedDisk();
+        DurabilitySettings settings = new DurabilitySettings(
+                DurabilityMode.ASYNC,
+                Duration.ZERO,
+                Duration.ofHours(1),
+                DurabilitySettings.DEFAULT_CHECKPOINT_JOURNAL_BYTES
+        );
+        AppStateStore store = openStore(settings, disk);
+        long userId = registerUser(store);
+
+        for (int index = 0; index < 5; index++) {
+            recordActivity(store, userId);
+        }
+        store.flush();
+        for (int index = 0; index < 3; index++) {
+            recordActivity(store, userId);
+        }
+        disk.crash();
+
+        assertThat(activityCount(reopen(store), userId)).isEqualTo(5);
+    }
+
+    @Test
+    void tornJournalTailIsDiscardedAndLaterCommitsStillReplay() throws Exception {
+        AppStateStore store = new AppStateStore(dataRoot, 1, DurabilitySettings.of(DurabilityMode.FSYNC));
+        long userId = registerUser(store);
+        recordActivity(store, userId);
+        recordActivity(store, userId);
+        store.close();
+
+        Path journal = dataRoot.resolve("shards/shard-0.journal");
+        long intactLength = Files.size(journal);
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 1, 0, 42, 42}));
+        }
+
+        AppStateStore recovered = new AppStateStore(dataRoot, 1, DurabilitySettings.of(DurabilityMode.FSYNC));
+        assertThat(Files.size(journal)).isEqualTo(intactLength);
+        assertThat(activityCount(recovered, userId)).isEqualTo(2);
+
+        recordActivity(recovered, userId);
+        assertThat(activityCount(reopen(recovered), userId)).isEqualTo(3);
+    }
+
+    @Test
+    void checkpointFoldsTheJournalIntoTheSnapshot() throws Exception {
+        DurabilitySettings settings = DurabilitySettings.of(DurabilityMode.FSYNC).withCheckpointJournalBytes(1);
+        AppStateStore store = new AppStateStore(dataRoot, 1, settings);
+        long userId = registerUser(store);
+        recordActivity(store, userId);
+        recordActivity(store, userId);
+
+        assertThat(Files.size(dataRoot.resolve("shards/shard-0.journal"))).isZero();
+        assertThat(activityCount(reopen(store), userId)).isEqualTo(2);
+    }
+
+    @Test
+    void oversizedJournalEntriesAreRefusedBeforeAnythingIsWritten() throws Exception {
+        Path path = dataRoot.resolve("oversized.journal");
+        try (ShardJournal journal = new ShardJournal(JournalFile.open(path), 16)) {
+            assertThatThrownBy(() -> journal.append(new byte[17]))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("exceeds the limit");
+            assertThat(journal.size()).isZero();
+            journal.append(new byte[16]);
+            journal.sync();
+        }
+
+        List<byte[]> replayed = new ArrayList<>();
+        assertThat(ShardJournal.replay(path, replayed::add)).isEqualTo(Files.size(path));
+        assertThat(replayed).hasSize(1);
+    }
+
+    @Test
+    void leftoverCheckpointTempFileIsIgnored() throws Exception {
+        AppStateStore store = new AppStateStore(dataRoot, 1, DurabilitySettings.of(DurabilityMode.FSYNC));
+        long userId = registerUser(store);
+        recordActivity(store, userId);
+        Files.writeString(dataRoot.resolve("shards/shard-0.ckpt.tmp"), "PKCP");
+
+        assertThat(activityCount(reopen(store), userId)).isEqualTo(1);
+    }
+
+    private AppStateStore openStore(DurabilitySettings settings, SimulatedDisk disk) {
+        return openStore(settings, disk, 4);
+    }
+
+    private AppStateStore openStore(DurabilitySettings settings, SimulatedDisk disk, int shardCount) {
+        return new AppStateStore(dataRoot, shardCount, settings, disk);
+    }
+
+    /**
+     * Opens the data directory again once {@code previous} has let go of it, as a crashed process would. Closing a
+     * store whose disk has crashed writes nothing.
+     */
+    private AppStateStore reopen(AppStateStore previous) {
+        previous.close();
+        return new AppStateStore(dataRoot, 4);
+    }
+
+    private static long registerUser(AppStateStore store) {
+        return store.writeGlobal(state -> {
+            AppStateStore.UserRecord user = new AppStateStore.UserRecord(
+                    state.allocateUserId(),
+                    "demo",
+                    "demo@example.com",
+                    "hash",
+                    Instant.now()
+            );
+            state.addUser(user);
+            return user.id;
+        });
+    }
+
+    private static void recordActivity(AppStateStore store, long userId) {
+        store.writeUser(userId, partition -> partition.activities.add(
+                new AppStateStore.ActivityRecord(store.nextActivityId(), userId, "UPLOAD", "notes.txt", Instant.now())
+        ));
+    }
+
+    private static int activityCount(AppStateStore store, long userId) {
+        return store.readUser(userId, partition -> partition.activities.size());
+    }
+
+    private static final class SimulatedDisk implements JournalFile.Opener {
+
+        private final List<VolatileJournalFile> files = new ArrayList<>();
+        private final AtomicInteger forces = new AtomicInteger();
+
+        @Override
+        public synchronized JournalFile open(Path path) throws IOException {
+            VolatileJournalFile file = new VolatileJournalFile(path, forces);
+            files.add(file);
+            return file;
+        }
+
+        synchronized void crash() {
+            files.forEach(VolatileJournalFile::crash);
+        }
+
+        int forces() {
+            return forces.get();
+        }
+    }
+
+    private static final class VolatileJournalFile implements JournalFile {
+
+        private final FileChannel channel;
+        private final AtomicInteger forces;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private boolean crashed;
+
+        private VolatileJournalFile(Path path, AtomicInteger forces) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.forces = forces;
+        }
+
+        @Override
+        public synchronized void write(ByteBuffer buffer) throws IOException {
+            ensureAlive();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            pending.write(bytes);
+        }
+
+        @Override
+        public synchronized void force() throws IOException {
+            ensureAlive();
+            ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            pending.reset();
+            forces.incrementAndGet();
+        }
+
+        @Override
+        public synchronized void truncate(long size) throws IOException {
+            ensureAlive();
+            long durableSize = channel.size();
+            if (size >= durableSize) {
+                byte[] kept = pending.toByteArray();
+                pending.reset();
+                pending.write(kept, 0, (int) Math.min(kept.length, size - durableSize));
+                return;
+            }
+            pending.reset();
+            channel.truncate(size);
+        }
+
+        @Override
+        public synchronized long size() throws IOException {
+            ensureAlive();
+            return channel.size() + pending.size();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            channel.close();
+        }
+
+        private synchronized void crash() {
+            crashed = true;
+            pending.reset();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void ensureAlive() throws IOException {
+            if (crashed) {
+                throw new IOException("Simulated disk has crashed");
+            }
+        }
+    }
+}
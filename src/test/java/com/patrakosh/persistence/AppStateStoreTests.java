@@ -0,0 +1,308 @@
+package com.patrakosh.persistence;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AppStateStoreTests {
+
+    @TempDir
+    Path dataRoot;
+
+    @Test
+    void userPartitionsSurviveRestartAndKeepCountersMonotonic() {
+        AppStateStore store = new AppStateStore(dataRoot, 4);
+        long userId = registerUser(store, "demo");
+        long fileId = store.writeUser(userId, partition -> {
+            AppStateStore.FileRecord file = fileRecord(store.nextFileId(), userId);
+            partition.files.add(file);
+            return file.id;
+        });
+        store.writeUser(userId, partition -> partition.files.removeIf(file -> file.id == fileId));
+        store.close();
+
+        AppStateStore reloaded = new AppStateStore(dataRoot, 4);
+
+        int remainingFiles = reloaded.readUser(userId, partition -> partition.files.size());
+        assertThat(reloaded.findUserByUsernameOrEmail("DEMO@example.com")).isPresent();
+        assertThat(remainingFiles).isZero();
+        assertThat(reloaded.nextFileId()).isGreaterThan(fileId);
+    }
+
+    @Test
+    void tokenIndexesFollowPartitionWrites() {
+        AppStateStore store = new AppStateStore(dataRoot, 4);
+        long userId = registerUser(store, "demo");
+
+        store.writeUser(userId, partition -> partition.sessions.add(
+                new AppStateStore.SessionRecord("session-token", userId, Instant.now(), Instant.now().plusSeconds(60), null)
+        ));
+        assertThat(store.findSessionOwner("session-token")).hasValue(userId);
+        store.close();
+
+        AppStateStore reopened = new AppStateStore(dataRoot, 4);
+        assertThat(reopened.findSessionOwner("session-token")).hasValue(userId);
+        reopened.writeUser(userId, partition -> partition.sessions.removeIf(session -> true));
+        assertThat(reopened.findSessionOwner("session-token")).isEmpty();
+    }
+
+    @Test
+    void journalEntriesHoldOnlyTheRowsAWriteChanged() throws Exception {
+        AppStateStore store = new AppStateStore(dataRoot, 1);
+        long userId = registerUser(store, "demo");
+        store.writeUser(userId, partition -> {
+            for (int index = 0; index < 500; index++) {
+                partition.files.add(fileRecord(store.nextFileId(), userId));
+            }
+            partition.sessions.add(new AppStateStore.SessionRecord("old-token", userId, Instant.now(), Instant.now().plusSeconds(60), null));
+            return partition.folders.add(new AppStateStore.FolderRecord(store.nextFileId(), userId, AppStateStore.FolderRecord.ROOT, "docs", Instant.now()));
+        });
+        Path journal = dataRoot.resolve("shards/shard-0.journal");
+        long bulkLength = Files.size(journal);
+
+        store.writeUser(userId, partition -> {
+            partition.files.rename(0, "renamed.txt");
+            partition.files.remove(1);
+            partition.sessions.clear();
+            return partition.sessions.add(new AppStateStore.SessionRecord("new-token", userId, Instant.now(), Instant.now().plusSeconds(60), null));
+        });
+        store.appendActivity(new AppStateStore.ActivityRecord(store.nextActivityId(), userId, "DOWNLOAD", "renamed.txt", Instant.now()));
+        store.writeUser(userId, partition -> partition.files.size());
+
+        assertThat(Files.size(journal) - bulkLength).isLessThan(bulkLength / 20);
+        assertThat(store.findSessionOwner("old-token")).isEmpty();
+        store.close();
+
+        AppStateStore reloaded = new AppStateStore(dataRoot, 1);
+        reloaded.readUser(userId, partition -> {
+            assertThat(partition.files).hasSize(499);
+            assertThat(partition.files.filename(0)).isEqualTo("renamed.txt");
+            assertThat(partition.sessions).extracting(session -> session.token).containsExactly("new-token");
+            assertThat(partition.folders).extracting(folder -> folder.name).containsExactly("docs");
+            assertThat(partition.activities).extracting(activity -> activity.action).containsExactly("DOWNLOAD");
+            return null;
+        });
+        assertThat(reloaded.findSessionOwner("old-token")).isEmpty();
+        assertThat(reloaded.findSessionOwner("new-token")).hasValue(userId);
+    }
+
+    @Test
+    void failedWriteLeavesPartitionUntouched() {
+        AppStateStore store = new AppStateStore(dataRoot, 4);
+        long userId = registerUser(store, "demo");
+
+        assertThatThrownBy(() -> store.writeUser(userId, partition -> {
+            partition.files.add(fileRecord(store.nextFileId(), userId));
+            throw new IllegalStateException("boom");
+        })).isInstanceOf(IllegalStateException.class);
+
+        int files = store.readUser(userId, partition -> partition.files.size());
+        assertThat(files).isZero();
+    }
+
+    @Test
+    void rejectedWritesAreUndoneWithoutRereadingTheShard() throws Exception {
+        AppStateStore store = new AppStateStore(dataRoot, 1);
+        long userId = registerUser(store, "demo");
+        store.writeUser(userId, partition -> {
+            partition.files.add(fileRecord(store.nextFileId(), userId));
+            partition.shares.add(new AppStateStore.ShareRecord(store.nextShareId(), 1, userId, "share-token", Instant.now(), null, null, 0));
+            return partition.activities.add(new AppStateStore.ActivityRecord(store.nextActivityId(), userId, "UPLOAD", "notes.txt", Instant.now()));
+        });
+        // Rereading the shard now would find nothing, so only an in-memory undo keeps the committed rows.
+        Files.delete(dataRoot.resolve("shards/shard-0.journal"));
+
+        assertThatThrownBy(() -> store.writeUser(userId, partition -> {
+            partition.shares.get(0).accessCount++;
+            partition.files.rename(0, "renamed.txt");
+            partition.activities.add(new AppStateStore.ActivityRecord(store.nextActivityId(), userId, "DOWNLOAD", "notes.txt", Instant.now()));
+            partition.shares.clear();
+            throw new IllegalArgumentException("rejected");
+        })).isInstanceOf(IllegalArgumentException.class);
+
+        String filename = store.readUser(userId, partition -> partition.files.filename(0));
+        long accessCount = store.readUser(userId, partition -> partition.shares.get(0).accessCount);
+        int activities = store.readUser(userId, partition -> partition.activities.size());
+        assertThat(filename).isEqualTo("notes.txt");
+        assertThat(accessCount).isZero();
+        assertThat(activities).isEqualTo(1);
+        assertThat(store.findShareOwner("share-token")).hasValue(userId);
+    }
+
+    @Test
+    void signupsAndRehashesAreJournaledWithoutRewritingTheUserList() throws Exception {
+        AppStateStore store = new AppStateStore(dataRoot, 1);
+        for (int index = 0; index < 200; index++) {
+            registerUser(store, "user" + index);
+        }
+        long userId = registerUser(store, "demo");
+        long checkpointLength = Files.size(dataRoot.resolve("global.ckpt"));
+        long journalLength = Files.size(dataRoot.resolve("global.journal"));
+
+        assertThat(store.updatePasswordHash(userId, "hash", "rehashed")).isTrue();
+
+        assertThat(Files.size(dataRoot.resolve("global.ckpt"))).isEqualTo(checkpointLength);
+        assertThat(Files.size(dataRoot.resolve("global.journal")) - journalLength).isLessThan(100);
+        store.close();
+
+        AppStateStore reopened = new AppStateStore(dataRoot, 1);
+        assertThat(reopened.findUserByUsernameOrEmail("demo"))
+                .hasValueSatisfying(user -> assertThat(user.passwordHash).isEqualTo("rehashed"));
+        assertThat(reopened.findUserByUsernameOrEmail("user199")).isPresent();
+        assertThat(registerUser(reopened, "latest")).isEqualTo(userId + 1);
+    }
+
+    @Test
+    void failedGlobalWriteIsUndoneInMemory() {
+        AppStateStore store = new AppStateStore(dataRoot, 1);
+        long userId = registerUser(store, "demo");
+
+        assertThatThrownBy(() -> store.writeGlobal(state -> {
+            state.replacePasswordHash(userId, "hash", "rehashed");
+            state.addUser(new AppStateStore.UserRecord(state.allocateUserId(), "other", "other@example.com", "hash", Instant.now()));
+            throw new IllegalStateException("boom");
+        })).isInstanceOf(IllegalStateException.class);
+
+        assertThat(store.findUser(userId)).hasValueSatisfying(user -> assertThat(user.passwordHash).isEqualTo("hash"));
+        assertThat(store.findUserByUsernameOrEmail("other")).isEmpty();
+        assertThat(registerUser(store, "next")).isEqualTo(userId + 1);
+    }
+
+    @Test
+    void aDataDirectoryLockedElsewhereIsRefused() throws Exception {
+        try (FileChannel channel = FileChannel.open(
+                dataRoot.resolve(DataDirectoryLock.FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            assertThatThrownBy(() -> new AppStateStore(dataRoot, 4))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("is in use by another PatraKosh");
+        }
+
+        AppStateStore first = new AppStateStore(dataRoot, 4);
+        assertThatThrownBy(() -> new AppStateStore(dataRoot, 4))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("is in use by another PatraKosh store in this process");
+        first.close();
+        new AppStateStore(dataRoot, 4).close();
+        try (FileChannel channel = FileChannel.open(dataRoot.resolve(DataDirectoryLock.FILE_NAME), StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            assertThat(lock).isNotNull();
+        }
+    }
+
+    @Test
+    void changingTheShardCountRedistributesPartitions() {
+        AppStateStore store = new AppStateStore(dataRoot, 2);
+        for (int index = 0; index < 6; index++) {
+            long userId = registerUser(store, "user" + index);
+            store.writeUser(userId, partition -> partition.files.add(fileRecord(store.nextFileId(), userId)));
+        }
+        store.close();
+
+        AppStateStore resharded = new AppStateStore(dataRoot, 3);
+
+        int totalFiles = resharded.read(state -> state.files.size());
+        assertThat(totalFiles).isEqualTo(6);
+        assertThat(dataRoot.resolve("shards/shard-2.ckpt")).exists();
+        for (long userId = 1; userId <= 6; userId++) {
+            int files = resharded.readUser(userId, partition -> partition.files.size());
+            assertThat(files).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void legacyStateFileIsMigratedIntoPartitions() throws Exception {
+        AppStateStore.StateSnapshot legacy = new AppStateStore.StateSnapshot();
+        legacy.users.add(new AppStateStore.UserRecord(7, "legacy", "legacy@example.com", "hash", Instant.now()));
+        legacy.files.add(fileRecord(3, 7));
+        legacy.nextUserId = 8;
+        legacy.nextFileId = 4;
+        new ObjectMapper().findAndRegisterModules().writeValue(dataRoot.resolve("state.json").toFile(), legacy);
+
+        AppStateStore store = new AppStateStore(dataRoot, 4);
+
+        int migratedFiles = store.readUser(7, partition -> partition.files.size());
+        assertThat(store.findUser(7)).isPresent();
+        assertThat(migratedFiles).isEqualTo(1);
+        assertThat(store.nextFileId()).isEqualTo(4);
+        assertThat(Files.exists(dataRoot.resolve("state.json"))).isFalse();
+        assertThat(Files.exists(dataRoot.resolve("state.json.migrated"))).isTrue();
+    }
+
+    @Test
+    void jsonSnapshotsAreRewrittenAsBinaryCheckpoints() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+        AppStateStore.GlobalState global = new AppStateStore.GlobalState();
+        global.addUser(new AppStateStore.UserRecord(1, "demo", "demo@example.com", "hash", Instant.now()));
+        AppStateStore.ShardFile shard = new AppStateStore.ShardFile();
+        AppStateStore.UserPartition partition = new AppStateStore.UserPartition(1);
+        partition.files.add(fileRecord(5, 1));
+        shard.partitions.add(partition);
+        Files.createDirectories(dataRoot.resolve("shards"));
+        objectMapper.writeValue(dataRoot.resolve("global.json").toFile(), global);
+        objectMapper.writeValue(dataRoot.resolve("shards/shard-1.json").toFile(), shard);
+
+        AppStateStore store = new AppStateStore(dataRoot, 4);
+
+        int files = store.readUser(1, state -> state.files.size());
+        assertThat(files).isEqualTo(1);
+        assertThat(store.findUserByUsernameOrEmail("demo")).isPresent();
+        assertThat(dataRoot.resolve("global.json")).doesNotExist();
+        assertThat(dataRoot.resolve("shards/shard-1.json")).doesNotExist();
+        assertThat(dataRoot.resolve("shards/shard-1.ckpt")).exists();
+    }
+
+    @Test
+    void converterWritesLegacyStateIntoAnEmptyDataDirectory() throws Exception {
+        AppStateStore.StateSnapshot legacy = new AppStateStore.StateSnapshot();
+        legacy.users.add(new AppStateStore.UserRecord(2, "legacy", "legacy@example.com", "hash", Instant.now()));
+        legacy.files.add(fileRecord(9, 2));
+        Path legacyFile = Files.createDirectories(dataRoot.resolve("legacy")).resolve("state.json");
+        new ObjectMapper().findAndRegisterModules().writeValue(legacyFile.toFile(), legacy);
+
+        StateCheckpointConverter.Result result = StateCheckpointConverter.convert(legacyFile, dataRoot.resolve("converted"), 4);
+
+        assertThat(result.users()).isEqualTo(1);
+        assertThat(result.files()).isEqualTo(1);
+        int files = new AppStateStore(dataRoot.resolve("converted"), 4).readUser(2, state -> state.files.size());
+        assertThat(files).isEqualTo(1);
+        assertThatThrownBy(() -> StateCheckpointConverter.convert(legacyFile, dataRoot.resolve("converted"), 4))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static long registerUser(AppStateStore store, String username) {
+        return store.writeGlobal(state -> {
+            AppStateStore.UserRecord user = new AppStateStore.UserRecord(
+                    state.allocateUserId(),
+                    username,
+                    username + "@example.com",
+                    "hash",
+                    Instant.now()
+            );
+            state.addUser(user);
+            return user.id;
+        });
+    }
+
+    private static AppStateStore.FileRecord fileRecord(long fileId, long userId) {
+        return new AppStateStore.FileRecord(
+                fileId,
+                userId,
+                "notes.txt",
+                "text/plain",
+                11,
+                Instant.now(),
+                "user-" + userId + "/" + fileId + ".txt"
+        );
+    }
+}
@@ -0,0 +1,121 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Behaviour every {@link BlobStore} backend has to share. Subclasses open a store over {@link #storageRoot} if
+ * they keep blobs on disk.
+ */
+abstract class BlobStoreContractTests {
+
+    @TempDir
+    Path storageRoot;
+
+    private BlobStore store;
+
+    protected abstract BlobStore open() throws IOException;
+
+    protected BlobStore store() throws IOException {
+        if (store == null) {
+            store = open();
+        }
+        return store;
+    }
+
+    @AfterEach
+    void closeStore() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void blobsAreReadBackWholeOrByRange() throws IOException {
+        BlobStore blobs = store();
+        byte[] content = "0123456789abcdefghijklmnopqrstuvwxyz-0123456789abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(blobs.put("user-1/blob.txt", new ByteArrayInputStream(content), content.length)).isEqualTo(content.length);
+
+        assertThat(read(blobs.get("user-1/blob.txt"))).isEqualTo(new String(content, StandardCharsets.UTF_8));
+        assertThat(read(blobs.get("user-1/blob.txt", 10, 5))).isEqualTo("abcde");
+        assertThat(read(blobs.get("user-1/blob.txt", content.length - 3, 10))).isEqualTo("xyz");
+        assertThat(read(blobs.get("user-1/blob.txt", content.length + 5, 10))).isEmpty();
+        assertThat(blobs.stat("user-1/blob.txt")).hasValueSatisfying(info -> {
+            assertThat(info.key()).isEqualTo("user-1/blob.txt");
+            assertThat(info.size()).isEqualTo(content.length);
+        });
+    }
+
+    @Test
+    void putReplacesAnExistingBlobAndAcceptsAnUnknownLength() throws IOException {
+        BlobStore blobs = store();
+        put(blobs, "user-1/blob.txt", "first");
+
+        blobs.put("user-1/blob.txt", new ByteArrayInputStream("second".getBytes(StandardCharsets.UTF_8)), -1);
+
+        assertThat(read(blobs.get("user-1/blob.txt"))).isEqualTo("second");
+    }
+
+    @Test
+    void copiesOutliveTheOriginal() throws IOException {
+        BlobStore blobs = store();
+        put(blobs, "user-1/original.txt", "contents");
+
+        blobs.copy("user-1/original.txt", "user-1/copy.txt");
+        blobs.delete("user-1/original.txt");
+
+        assertThat(read(blobs.get("user-1/copy.txt"))).isEqualTo("contents");
+        assertThat(blobs.stat("user-1/copy.txt")).hasValueSatisfying(info -> assertThat(info.size()).isEqualTo(8));
+        assertThatThrownBy(() -> blobs.copy("user-1/original.txt", "user-1/other.txt")).isInstanceOf(NoSuchFileException.class);
+    }
+
+    @Test
+    void missingBlobsAreAbsentRatherThanErrors() throws IOException {
+        BlobStore blobs = store();
+
+        assertThat(blobs.stat("user-1/missing.txt")).isEmpty();
+        assertThatThrownBy(() -> blobs.get("user-1/missing.txt")).isInstanceOf(NoSuchFileException.class);
+        blobs.delete("user-1/missing.txt");
+        assertThat(blobs.list("user-1")).isEmpty();
+    }
+
+    @Test
+    void blobsAreListedPerDirectoryAndCanBeMovedAndDeleted() throws IOException {
+        BlobStore blobs = store();
+        put(blobs, "user-1/a.txt", "a");
+        put(blobs, "user-1/b.txt", "bb");
+        put(blobs, "user-2/c.txt", "ccc");
+
+        blobs.move("user-1/b.txt", ".quarantine/user-1/b.txt");
+        blobs.delete("user-2/c.txt");
+
+        assertThat(blobs.list("user-1")).extracting(BlobStore.BlobInfo::key).containsExactly("user-1/a.txt");
+        assertThat(blobs.list("user-2")).isEmpty();
+        assertThat(blobs.directories()).contains(".quarantine", "user-1").doesNotContain("user-1/a.txt");
+        assertThat(read(blobs.get(".quarantine/user-1/b.txt"))).isEqualTo("bb");
+        assertThat(blobs.stat("user-1/b.txt")).isEmpty();
+    }
+
+    protected static void put(BlobStore blobs, String key, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        blobs.put(key, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    protected static String read(InputStream stream) throws IOException {
+        try (stream) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
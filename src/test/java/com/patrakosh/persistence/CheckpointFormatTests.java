@@ -0,0 +1,82 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CheckpointFormatTests {
+
+    private static final Instant NOW = Instant.ofEpochMilli(1_700_000_000_123L);
+
+    @Test
+    void shardRoundTripsThroughTheBinaryFormat() throws IOException {
+        AppStateStore.ShardFile shard = new AppStateStore.ShardFile();
+        shard.nextFileId = 300;
+        shard.nextShareId = 12;
+        shard.nextActivityId = 70_000;
+        AppStateStore.UserPartition partition = new AppStateStore.UserPartition(42);
+        partition.sessions.add(new AppStateStore.SessionRecord("token", 42, NOW, NOW.plusSeconds(60), null));
+        for (long fileId = 1; fileId <= 200; fileId++) {
+            partition.files.add(new AppStateStore.FileRecord(
+                    fileId, 42, "résumé-" + fileId + ".pdf", fileId % 2 == 0 ? "application/pdf" : null,
+                    fileId * 1024, NOW, "user-42/" + fileId + ".pdf", null, AppStateStore.FileRecord.NO_CHECKSUM,
+                    fileId % 3 == 0 ? 202 : AppStateStore.FolderRecord.ROOT
+            ));
+        }
+        partition.folders.add(new AppStateStore.FolderRecord(201, 42, AppStateStore.FolderRecord.ROOT, "Photos", NOW));
+        partition.folders.add(new AppStateStore.FolderRecord(202, 42, 201, "2024", NOW.plusSeconds(1)));
+        partition.versions.add(new AppStateStore.FileVersionRecord(7, 1, 512, 0xfeedL, "user-42/v1.delta", true, NOW.minusSeconds(9)));
+        partition.versions.add(new AppStateStore.FileVersionRecord(
+                7, 2, 640, AppStateStore.FileRecord.NO_CHECKSUM, "user-42/v2.pdf", false, NOW.minusSeconds(3)
+        ));
+        partition.shares.add(new AppStateStore.ShareRecord(11, 7, 42, "share", NOW, null, NOW.minusSeconds(5), 3));
+        partition.activities.add(new AppStateStore.ActivityRecord(69_999, 42, "UPLOAD", "a.txt", Instant.EPOCH.minusMillis(1)));
+        shard.partitions.add(partition);
+
+        AppStateStore.ShardFile decoded = CheckpointFormat.readShard(new ByteArrayInputStream(encode(shard)));
+
+        assertThat(decoded).usingRecursiveComparison().isEqualTo(shard);
+    }
+
+    @Test
+    void corruptedCheckpointIsRejected() throws IOException {
+        AppStateStore.ShardFile shard = new AppStateStore.ShardFile();
+        AppStateStore.UserPartition partition = new AppStateStore.UserPartition(1);
+        partition.activities.add(new AppStateStore.ActivityRecord(1, 1, "LOGIN", null, NOW));
+        shard.partitions.add(partition);
+        byte[] bytes = encode(shard);
+        bytes[bytes.length - 6] ^= 0x01;
+
+        assertThatThrownBy(() -> CheckpointFormat.readShard(new ByteArrayInputStream(bytes)))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void journalEntriesAreRecognisedByTheirMagicNumber() throws IOException {
+        AppStateStore.JournalEntry entry = new AppStateStore.JournalEntry();
+        entry.changes = PartitionChanges.empty(5);
+        entry.changes.activities().add(new AppStateStore.ActivityRecord(9, 5, "UPLOAD", "notes.txt", NOW));
+        entry.changes.removedFiles().add(3L);
+
+        byte[] payload = CheckpointFormat.encodeJournalEntry(entry);
+
+        assertThat(CheckpointFormat.isBinary(payload)).isTrue();
+        assertThat(CheckpointFormat.isBinary("{\"partition\":{}}".getBytes())).isFalse();
+        PartitionChanges decoded = CheckpointFormat.decodeJournalEntry(payload).changes;
+        assertThat(decoded.userId()).isEqualTo(5);
+        assertThat(decoded.activities()).extracting(activity -> activity.filename).containsExactly("notes.txt");
+        assertThat(decoded.removedFiles()).containsExactly(3L);
+    }
+
+    private static byte[] encode(AppStateStore.ShardFile shard) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CheckpointFormat.writeShard(shard, output);
+        return output.toByteArray();
+    }
+}
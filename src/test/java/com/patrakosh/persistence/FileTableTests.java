@@ -0,0 +1,130 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileTableTests {
+
+    private static final Instant NOW = Instant.ofEpochMilli(1_700_000_000_123L);
+
+    @Test
+    void recordsReadBackAsWrittenWhetherOrNotTheyFitTheCompactEncoding() {
+        FileTable table = new FileTable();
+        String uuidKey = "user-7/" + UUID.randomUUID() + ".pdf";
+        String upperCaseKey = "user-7/" + UUID.randomUUID().toString().toUpperCase();
+        String longMimeType = "x/" + "y".repeat(200);
+        table.add(new AppStateStore.FileRecord(1, 7, "a.pdf", "application/pdf", 10, NOW, uuidKey));
+        table.add(new AppStateStore.FileRecord(2, 7, "b.txt", null, 20, null, "user-7/2.txt"));
+        table.add(new AppStateStore.FileRecord(3, 7, "c.bin", longMimeType, 30, NOW, upperCaseKey));
+
+        assertThat(table).extracting(file -> file.storageKey).containsExactly(uuidKey, "user-7/2.txt", upperCaseKey);
+        assertThat(table).extracting(file -> file.mimeType).containsExactly("application/pdf", null, longMimeType);
+        assertThat(table.get(1).uploadTime).isNull();
+        assertThat(table.get(0).uploadTime).isEqualTo(NOW);
+        assertThat(table).allSatisfy(file -> assertThat(file.userId).isEqualTo(7));
+        assertThat(table.totalSize()).isEqualTo(60);
+    }
+
+    @Test
+    void removalsAndUpdatesKeepColumnsAligned() {
+        FileTable table = new FileTable();
+        for (long id = 1; id <= 20; id++) {
+            String key = id % 2 == 0 ? "legacy-" + id : "user-1/" + UUID.randomUUID() + ".txt";
+            table.add(new AppStateStore.FileRecord(id, 1, "file-" + id, "text/plain", id, NOW.plusMillis(id), key));
+        }
+
+        assertThat(table.removeIf(file -> file.id % 3 == 0)).isTrue();
+        table.remove(table.positionOf(1));
+        table.rename(table.positionOf(2), "renamed");
+        AppStateStore.FileRecord moved = table.get(table.positionOf(4));
+        moved.storageKey = "user-1/" + UUID.randomUUID() + ".txt";
+        table.set(table.positionOf(4), moved);
+
+        assertThat(table).hasSize(13).allSatisfy(file -> {
+            assertThat(file.fileSize).isEqualTo(file.id);
+            assertThat(file.uploadTime).isEqualTo(NOW.plusMillis(file.id));
+            if (file.id != 2) {
+                assertThat(file.filename).isEqualTo("file-" + file.id);
+            }
+            if (file.id != 4) {
+                assertThat(file.storageKey.startsWith("legacy-")).isEqualTo(file.id % 2 == 0);
+            }
+        });
+        assertThat(table.get(table.positionOf(2)).filename).isEqualTo("renamed");
+        assertThat(table.get(table.positionOf(4)).storageKey).isEqualTo(moved.storageKey);
+        assertThat(table.positionOf(3)).isNegative();
+    }
+
+    @Test
+    void folderIndexFollowsMovesAndRemovals() {
+        FileTable table = new FileTable();
+        for (long id = 1; id <= 10; id++) {
+            table.add(new AppStateStore.FileRecord(
+                    id, 1, "file-" + id, null, id, NOW, "key-" + id, null, AppStateStore.FileRecord.NO_CHECKSUM, id % 2
+            ));
+        }
+        assertThat(table.positionsIn(1)).hasSize(5);
+
+        table.setFolderId(table.positionOf(2), 1);
+        table.remove(table.positionOf(1));
+        table.removeIf(file -> file.id == 9);
+        table.add(0, new AppStateStore.FileRecord(11, 1, "new", null, 11, NOW, "key-11", null, AppStateStore.FileRecord.NO_CHECKSUM, 7));
+
+        assertThat(idsIn(table, 1)).containsExactlyInAnyOrder(2, 3, 5, 7);
+        assertThat(idsIn(table, 0)).containsExactlyInAnyOrder(4, 6, 8, 10);
+        assertThat(idsIn(table, 7)).containsExactly(11);
+        assertThat(table.positionsIn(3)).isEmpty();
+        for (int position = 0; position < table.size(); position++) {
+            assertThat(table.positionOf(table.id(position))).isEqualTo(position);
+        }
+        assertThat(table.get(table.positionOf(2)).folderId).isEqualTo(1);
+    }
+
+    @Test
+    void trackedWritesListOnlyTheRowsTheyChangedAndCanBeUndone() {
+        FileTable table = new FileTable();
+        for (long id = 1; id <= 6; id++) {
+            table.add(new AppStateStore.FileRecord(id, 1, "file-" + id, null, id, NOW, "key-" + id));
+        }
+        table.track();
+        table.rename(table.positionOf(2), "renamed");
+        table.rename(table.positionOf(3), "file-3");
+        table.setDeletedAt(table.positionOf(4), NOW);
+        table.removeIf(file -> file.id == 1 || file.id == 5);
+        table.add(1, new AppStateStore.FileRecord(7, 1, "new", null, 7, NOW, "key-7"));
+
+        List<AppStateStore.FileRecord> puts = new ArrayList<>();
+        List<Long> removals = new ArrayList<>();
+        table.collectChanges(puts, removals);
+        assertThat(puts).extracting(file -> file.id).containsExactlyInAnyOrder(2L, 4L, 7L);
+        assertThat(removals).containsExactlyInAnyOrder(1L, 5L);
+
+        table.rollback();
+        assertThat(table).extracting(file -> file.filename)
+                .containsExactly("file-1", "file-2", "file-3", "file-4", "file-5", "file-6");
+        assertThat(table.isDeleted(table.positionOf(4))).isFalse();
+        assertThat(table.positionOf(7)).isNegative();
+    }
+
+    @Test
+    void rejectsFilesOfAnotherUser() {
+        FileTable table = new FileTable();
+        table.add(new AppStateStore.FileRecord(1, 7, "a.txt", "text/plain", 1, NOW, "key"));
+
+        assertThatThrownBy(() -> table.add(new AppStateStore.FileRecord(2, 8, "b.txt", "text/plain", 1, NOW, "key")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(table).hasSize(1);
+    }
+
+    private static long[] idsIn(FileTable table, long folderId) {
+        return Arrays.stream(table.positionsIn(folderId)).mapToLong(table::id).toArray();
+    }
+}
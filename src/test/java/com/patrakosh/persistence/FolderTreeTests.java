@@ -0,0 +1,88 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FolderTreeTests {
+
+    private static final Instant NOW = Instant.ofEpochMilli(1_700_000_000_123L);
+    private static final long ROOT = AppStateStore.FolderRecord.ROOT;
+
+    @Test
+    void pathsResolveThroughEachLevelIgnoringCase() {
+        FolderTree tree = new FolderTree();
+        tree.add(folder(1, ROOT, "Photos"));
+        tree.add(folder(2, 1, "2024"));
+        tree.add(folder(3, 2, "Summer"));
+        tree.add(folder(4, ROOT, "Documents"));
+
+        assertThat(tree.resolve("/photos/2024/SUMMER")).isEqualTo(3);
+        assertThat(tree.resolve("Photos//2024/")).isEqualTo(2);
+        assertThat(tree.resolve("/")).isEqualTo(ROOT);
+        assertThat(tree.resolve("/Photos/2025")).isEqualTo(-1);
+        assertThat(tree.path(3)).isEqualTo("/Photos/2024/Summer");
+        assertThat(tree.children(ROOT)).extracting(folder -> folder.name).containsExactly("Photos", "Documents");
+        assertThat(tree.child(1, "2024").id).isEqualTo(2);
+    }
+
+    @Test
+    void movingAFolderCarriesItsSubtreeAndDropsStalePaths() {
+        FolderTree tree = new FolderTree();
+        tree.add(folder(1, ROOT, "Photos"));
+        tree.add(folder(2, 1, "2024"));
+        tree.add(folder(3, 2, "Summer"));
+        tree.add(folder(4, ROOT, "Archive"));
+        assertThat(tree.resolve("/Photos/2024/Summer")).isEqualTo(3);
+
+        tree.move(2, 4);
+        tree.rename(4, "Old");
+
+        assertThat(tree.resolve("/Photos/2024/Summer")).isEqualTo(-1);
+        assertThat(tree.resolve("/old/2024/summer")).isEqualTo(3);
+        assertThat(tree.children(1)).isEmpty();
+        assertThat(tree.subtree(4)).containsExactly(4L, 2L, 3L);
+        assertThat(tree.isWithin(3, 4)).isTrue();
+        assertThat(tree.isWithin(4, 3)).isFalse();
+        assertThat(tree.find(2).parentId).isEqualTo(4);
+    }
+
+    @Test
+    void siblingNamesMustDifferIgnoringCase() {
+        FolderTree tree = new FolderTree();
+        tree.add(folder(1, ROOT, "Photos"));
+        tree.add(folder(2, 1, "photos"));
+
+        assertThatThrownBy(() -> tree.add(folder(3, ROOT, "PHOTOS"))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> tree.move(2, ROOT)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(tree).hasSize(2);
+        assertThat(tree.find(2).parentId).isEqualTo(1);
+        assertThat(tree.resolve("/photos/photos")).isEqualTo(2);
+    }
+
+    @Test
+    void removedFoldersLeaveEveryIndex() {
+        FolderTree tree = new FolderTree();
+        for (long id = 1; id <= 5; id++) {
+            tree.add(folder(id, id == 1 ? ROOT : id - 1, "level-" + id));
+        }
+        assertThat(tree.resolve("/level-1/level-2/level-3")).isEqualTo(3);
+
+        tree.removeIf(folder -> folder.id >= 3);
+        tree.remove(0);
+
+        assertThat(tree).extracting(folder -> folder.id).containsExactly(2L);
+        assertThat(tree.contains(3)).isFalse();
+        assertThat(tree.contains(ROOT)).isTrue();
+        assertThat(tree.children(2)).isEmpty();
+        assertThat(tree.resolve("/level-1/level-2/level-3")).isEqualTo(-1);
+        assertThat(tree.find(2).name).isEqualTo("level-2");
+    }
+
+    private static AppStateStore.FolderRecord folder(long id, long parentId, String name) {
+        return new AppStateStore.FolderRecord(id, 7, parentId, name, NOW);
+    }
+}
@@ -0,0 +1,9 @@
+package com.patrakosh.persistence;
+
+class InMemoryBlobStoreContractTests extends BlobStoreContractTests {
+
+    @Override
+    protected BlobStore open() {
+        return new InMemoryBlobStore();
+    }
+}
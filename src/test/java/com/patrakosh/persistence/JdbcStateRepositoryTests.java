@@ -0,0 +1,29 @@
+package com.patrakosh.persistence;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class JdbcStateRepositoryTests extends StateRepositoryContractTests {
+
+    private final List<HikariDataSource> dataSources = new ArrayList<>();
+
+    @Override
+    protected StateRepository open() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:file:" + dataRoot.resolve("patrakosh"));
+        config.setUsername("sa");
+        config.setMaximumPoolSize(4);
+        HikariDataSource dataSource = new HikariDataSource(config);
+        dataSources.add(dataSource);
+        return new JdbcStateRepository(dataSource);
+    }
+
+    @AfterEach
+    void closeDataSources() {
+        dataSources.forEach(HikariDataSource::close);
+    }
+}
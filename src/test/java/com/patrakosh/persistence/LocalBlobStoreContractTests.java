@@ -0,0 +1,76 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LocalBlobStoreContractTests extends BlobStoreContractTests {
+
+    @Override
+    protected BlobStore open() {
+        return new LocalBlobStore(storageRoot);
+    }
+
+    @Test
+    void copiesAreHardLinksThatSurviveReplacingTheOriginal() throws IOException {
+        LocalBlobStore blobs = (LocalBlobStore) store();
+        put(blobs, "user-1/original.txt", "first");
+        FileTime lastRead = FileTime.from(Instant.now().minus(Duration.ofDays(3)).truncatedTo(ChronoUnit.SECONDS));
+        Files.setLastModifiedTime(blobs.resolve("user-1/original.txt"), lastRead);
+
+        blobs.copy("user-1/original.txt", "user-2/copy.txt");
+
+        assertThat(Files.getAttribute(blobs.resolve("user-2/copy.txt"), "unix:nlink")).isEqualTo(2);
+        // The copy is recorded after it is made, so it must not look as old as the original to the reconciler.
+        assertThat(blobs.stat("user-2/copy.txt")).hasValueSatisfying(
+                info -> assertThat(info.lastModified()).isAfter(lastRead.toInstant().plus(Duration.ofDays(1)))
+        );
+        put(blobs, "user-1/original.txt", "second");
+        assertThat(read(blobs.get("user-2/copy.txt"))).isEqualTo("first");
+    }
+
+    @Test
+    void aFailedPutLeavesThePreviousBlobAndNoStagingFile() throws IOException {
+        LocalBlobStore blobs = (LocalBlobStore) store();
+        put(blobs, "user-1/blob.txt", "first");
+        InputStream failing = new SequenceInputStream(
+                new ByteArrayInputStream("sec".getBytes(StandardCharsets.UTF_8)),
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("Connection reset");
+                    }
+                }
+        );
+
+        assertThatThrownBy(() -> blobs.put("user-1/blob.txt", failing, 6)).isInstanceOf(IOException.class);
+
+        assertThat(read(blobs.get("user-1/blob.txt"))).isEqualTo("first");
+        assertThat(blobs.list("user-1")).extracting(BlobStore.BlobInfo::key).containsExactly("user-1/blob.txt");
+        try (Stream<Path> files = Files.list(storageRoot.resolve("user-1"))) {
+            assertThat(files).hasSize(1);
+        }
+    }
+
+    @Test
+    void keysCannotEscapeTheStorageRoot() throws IOException {
+        BlobStore blobs = store();
+
+        assertThatThrownBy(() -> blobs.get("../outside.txt")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> put(blobs, "user-1/../../outside.txt", "x")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,9 @@
+package com.patrakosh.persistence;
+
+class MappedStateRepositoryContractTests extends StateRepositoryContractTests {
+
+    @Override
+    protected StateRepository open() {
+        return new MappedStateRepository(dataRoot);
+    }
+}
@@ -0,0 +1,159 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MappedStateRepositoryTests {
+
+    private static final Instant NOW = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+
+    @TempDir
+    Path dataRoot;
+
+    @Test
+    void usersStayFindableAcrossIndexGrowthAndReopen() {
+        try (MappedStateRepository repository = new MappedStateRepository(dataRoot, DurabilitySettings.of(DurabilityMode.ASYNC))) {
+            for (int index = 0; index < 2000; index++) {
+                repository.registerUser("user" + index, "user" + index + "@example.com", "hash", NOW);
+            }
+        }
+
+        try (MappedStateRepository reopened = new MappedStateRepository(dataRoot)) {
+            for (int index = 0; index < 2000; index += 97) {
+                assertThat(reopened.findUserByUsernameOrEmail("USER" + index)).hasValueSatisfying(user -> {
+                    assertThat(user.email).endsWith("@example.com");
+                    assertThat(user.createdAt).isEqualTo(NOW);
+                });
+                assertThat(reopened.findUserByUsernameOrEmail("user" + index + "@example.com")).isPresent();
+            }
+            assertThat(reopened.findUserByUsernameOrEmail("user2000")).isEmpty();
+            assertThat(reopened.registerUser("User7", "new@example.com", "hash", NOW).usernameTaken()).isTrue();
+        }
+    }
+
+    @Test
+    void removedSessionsReleaseTheirTokens() {
+        try (MappedStateRepository repository = new MappedStateRepository(dataRoot)) {
+            long userId = repository.registerUser("demo", "demo@example.com", "hash", NOW).user().id;
+            repository.writeUser(userId, partition -> partition.sessions.add(session("first", userId)));
+            repository.writeUser(userId, partition -> partition.sessions.add(session("second", userId)));
+            repository.writeUser(userId, partition -> partition.sessions.removeIf(session -> session.token.equals("first")));
+            repository.writeUser(userId, partition -> partition.sessions.add(session("third", userId)));
+
+            assertThat(repository.findSessionOwner("first")).isEmpty();
+            assertThat(repository.findSessionOwner("third")).hasValue(userId);
+            List<String> tokens = repository.readUser(
+                    userId,
+                    partition -> partition.sessions.stream().map(session -> session.token).toList()
+            );
+            assertThat(tokens).containsExactly("second", "third");
+        }
+    }
+
+    @Test
+    void sessionChurnReusesTheHeapSpaceOfRemovedTokens() throws Exception {
+        try (MappedStateRepository repository = new MappedStateRepository(dataRoot, DurabilitySettings.of(DurabilityMode.FSYNC))) {
+            long userId = repository.registerUser("demo", "demo@example.com", "hash", NOW).user().id;
+            long heapEnd = 0;
+            for (int round = 0; round < 20; round++) {
+                String token = "%064d".formatted(round);
+                repository.writeUser(userId, partition -> {
+                    partition.sessions.clear();
+                    return partition.sessions.add(session(token, userId));
+                });
+                if (round == 1) {
+                    heapEnd = heapEnd();
+                }
+            }
+
+            assertThat(heapEnd()).isEqualTo(heapEnd);
+            assertThat(repository.findSession("%064d".formatted(19))).hasValueSatisfying(
+                    session -> assertThat(session.userId).isEqualTo(userId)
+            );
+            assertThat(repository.findSession("%064d".formatted(18))).isEmpty();
+        }
+    }
+
+    @Test
+    void releasedStringsAreReusedOnlyOnceRecycled() throws Exception {
+        Path file = dataRoot.resolve("strings.heap");
+        long first;
+        try (StringHeap heap = new StringHeap(file)) {
+            first = heap.append("a".repeat(64));
+            heap.release(first);
+            assertThat(heap.append("b".repeat(64))).isNotEqualTo(first);
+            assertThat(heap.get(first)).isEqualTo("a".repeat(64));
+
+            heap.recycle(heap.takeReleased());
+            assertThat(heap.get(first)).isNull();
+            heap.force();
+        }
+
+        try (StringHeap reopened = new StringHeap(file)) {
+            long size = reopened.size();
+            assertThat(reopened.append("c".repeat(64))).isEqualTo(first);
+            assertThat(reopened.get(first)).isEqualTo("c".repeat(64));
+            assertThat(reopened.append("d".repeat(64))).isNotEqualTo(first);
+            assertThat(reopened.size()).isEqualTo(size + 72);
+        }
+    }
+
+    @Test
+    void rejectsRecordsWhoseIdsWereNotAllocatedHere() {
+        try (MappedStateRepository repository = new MappedStateRepository(dataRoot)) {
+            long userId = repository.registerUser("demo", "demo@example.com", "hash", NOW).user().id;
+
+            assertThatThrownBy(() -> repository.writeUser(userId, partition -> {
+                partition.sessions.add(session("token", userId));
+                return partition.files.add(new AppStateStore.FileRecord(42, userId, "a.txt", null, 1, NOW, "key"));
+            })).isInstanceOf(IllegalStateException.class);
+
+            assertThat(repository.findSessionOwner("token")).isEmpty();
+            int files = repository.readUser(userId, partition -> partition.files.size());
+            assertThat(files).isZero();
+        }
+    }
+
+    @Test
+    void narrowerSegmentsAreWidenedWithTheirRecordsIntact() throws Exception {
+        Path file = dataRoot.resolve("files.seg");
+        try (RecordSegment narrow = new RecordSegment(file, 32)) {
+            narrow.setHeader(RecordSegment.COUNTER, 3);
+            narrow.put(1, 0, 1);
+            narrow.put(2, 0, 2);
+            narrow.put(2, 24, 99);
+        }
+
+        RecordSegment.widen(file, 48, -1);
+
+        try (RecordSegment wide = new RecordSegment(file, 48)) {
+            assertThat(wide.header(RecordSegment.COUNTER)).isEqualTo(3);
+            assertThat(wide.get(2, 0)).isEqualTo(2);
+            assertThat(wide.get(2, 24)).isEqualTo(99);
+            assertThat(wide.get(1, 32)).isEqualTo(-1);
+            assertThat(wide.get(2, 40)).isEqualTo(-1);
+        }
+    }
+
+    private long heapEnd() throws Exception {
+        try (FileChannel channel = FileChannel.open(dataRoot.resolve(MappedStateRepository.DIRECTORY).resolve("strings.heap"))) {
+            ByteBuffer end = ByteBuffer.allocate(Long.BYTES);
+            channel.read(end, 8);
+            return end.flip().getLong();
+        }
+    }
+
+    private static AppStateStore.SessionRecord session(String token, long userId) {
+        return new AppStateStore.SessionRecord(token, userId, NOW, NOW.plusSeconds(60), null);
+    }
+}
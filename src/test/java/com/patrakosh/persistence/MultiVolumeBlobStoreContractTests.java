@@ -0,0 +1,106 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MultiVolumeBlobStoreContractTests extends BlobStoreContractTests {
+
+    private static final int BLOBS = 90;
+
+    @Override
+    protected BlobStore open() {
+        return new MultiVolumeBlobStore(volumes(2), Duration.ZERO, false);
+    }
+
+    @Test
+    void blobsAreSpreadOverEveryVolume() throws IOException {
+        BlobStore blobs = store();
+        for (int index = 0; index < BLOBS; index++) {
+            put(blobs, "user-1/" + index + ".txt", "blob " + index);
+        }
+
+        assertThat(countBlobs(volumes(2).get(0))).isBetween((long) BLOBS / 4, (long) BLOBS * 3 / 4);
+        assertThat(countBlobs(volumes(2).get(0)) + countBlobs(volumes(2).get(1))).isEqualTo((long) BLOBS);
+        assertThat(blobs.list("user-1")).hasSize(BLOBS);
+    }
+
+    @Test
+    void addingAVolumeMovesOnlyTheBlobsItTakesOver() throws IOException {
+        try (BlobStore twoVolumes = new MultiVolumeBlobStore(volumes(2), Duration.ZERO, false)) {
+            for (int index = 0; index < BLOBS; index++) {
+                put(twoVolumes, "user-1/" + index + ".txt", "blob " + index);
+            }
+        }
+
+        try (MultiVolumeBlobStore threeVolumes = new MultiVolumeBlobStore(volumes(3), Duration.ZERO, false)) {
+            // Everything is still readable before the blobs have been moved.
+            for (int index = 0; index < BLOBS; index++) {
+                assertThat(read(threeVolumes.get("user-1/" + index + ".txt"))).isEqualTo("blob " + index);
+            }
+
+            MultiVolumeBlobStore.RebalanceReport report = threeVolumes.rebalance();
+
+            assertThat(report.failures()).isZero();
+            assertThat(report.blobsMoved()).isBetween((long) BLOBS / 6, (long) BLOBS / 2);
+            assertThat(countBlobs(volumes(3).get(2))).isEqualTo(report.blobsMoved());
+            assertThat(threeVolumes.rebalance().blobsMoved()).isZero();
+            assertThat(threeVolumes.list("user-1")).hasSize(BLOBS);
+            for (int index = 0; index < BLOBS; index++) {
+                assertThat(read(threeVolumes.get("user-1/" + index + ".txt", 5, 10))).isEqualTo(Integer.toString(index));
+            }
+            assertThat(threeVolumes.directories()).containsExactly("user-1");
+        }
+    }
+
+    @Test
+    void rebalancingKeepsCopiesThatShareAVolumeLinked() throws IOException {
+        try (BlobStore twoVolumes = new MultiVolumeBlobStore(volumes(2), Duration.ZERO, false)) {
+            for (int index = 0; index < BLOBS; index++) {
+                put(twoVolumes, "user-1/" + index + ".txt", "blob " + index);
+                twoVolumes.copy("user-1/" + index + ".txt", "user-1/" + index + "-copy.txt");
+            }
+        }
+
+        try (MultiVolumeBlobStore threeVolumes = new MultiVolumeBlobStore(volumes(3), Duration.ZERO, false)) {
+            assertThat(threeVolumes.rebalance().failures()).isZero();
+
+            Path added = volumes(3).get(2).resolve("user-1");
+            long linkedPairs = 0;
+            try (Stream<Path> files = Files.list(added)) {
+                for (Path copy : files.filter(file -> file.getFileName().toString().endsWith("-copy.txt")).toList()) {
+                    Path original = added.resolve(copy.getFileName().toString().replace("-copy", ""));
+                    if (Files.exists(original)) {
+                        assertThat(Files.isSameFile(copy, original)).isTrue();
+                        linkedPairs++;
+                    }
+                }
+            }
+            assertThat(linkedPairs).isPositive();
+            for (int index = 0; index < BLOBS; index++) {
+                assertThat(read(threeVolumes.get("user-1/" + index + "-copy.txt"))).isEqualTo("blob " + index);
+            }
+        }
+    }
+
+    private List<Path> volumes(int count) {
+        return Stream.iterate(0, index -> index + 1).limit(count).map(index -> storageRoot.resolve("disk-" + index)).toList();
+    }
+
+    private static long countBlobs(Path volume) throws IOException {
+        Path directory = volume.resolve("user-1");
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class S3BlobStoreContractTests extends BlobStoreContractTests {
+
+    private static final int PART_SIZE = 16;
+
+    private S3StubServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = S3StubServer.start("patrakosh");
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Override
+    protected BlobStore open() {
+        return new S3BlobStore(server.endpoint(), "us-east-1", "patrakosh", "access", "secret", PART_SIZE, 4, Clock.systemUTC());
+    }
+
+    @Test
+    void largeBlobsAreUploadedAsParallelParts() throws IOException {
+        BlobStore blobs = store();
+        server.delayParts(100);
+        byte[] content = new byte[PART_SIZE * 8 + 5];
+        Arrays.fill(content, (byte) 'x');
+        content[content.length - 1] = 'y';
+
+        assertThat(blobs.put("user-1/large.bin", new ByteArrayInputStream(content), content.length)).isEqualTo(content.length);
+
+        assertThat(server.completedUploads()).isEqualTo(1);
+        assertThat(server.maxPartsInFlight()).isBetween(2, 4);
+        try (var stream = blobs.get("user-1/large.bin")) {
+            assertThat(stream.readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void failedPartsAbortTheUpload() throws IOException {
+        BlobStore blobs = store();
+        server.failPart(3);
+        byte[] content = new byte[PART_SIZE * 5];
+
+        assertThatThrownBy(() -> blobs.put("user-1/large.bin", new ByteArrayInputStream(content), content.length))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("part 3");
+
+        assertThat(server.openUploads()).isZero();
+        assertThat(blobs.stat("user-1/large.bin")).isEmpty();
+    }
+}
@@ -0,0 +1,289 @@
+package com.patrakosh.persistence;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Just enough of the S3 REST API, path-style and for a single bucket, to run {@link S3BlobStore} against. Requests
+ * must carry a Signature Version 4 authorization header, which is not verified.
+ */
+final class S3StubServer implements AutoCloseable {
+
+    private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber><ETag>([^<]*)</ETag>");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final String bucket;
+    private final ConcurrentSkipListMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final AtomicInteger partsInFlight = new AtomicInteger();
+    private final AtomicInteger maxPartsInFlight = new AtomicInteger();
+    private final AtomicInteger completedUploads = new AtomicInteger();
+    private volatile long partDelayMillis;
+    private volatile int failingPart = -1;
+
+    private S3StubServer(String bucket) throws IOException {
+        this.bucket = bucket;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                handle(exchange);
+            } catch (RuntimeException exception) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    static S3StubServer start(String bucket) throws IOException {
+        return new S3StubServer(bucket);
+    }
+
+    URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * Makes every part upload take at least {@code millis}, so that overlapping uploads can be observed.
+     */
+    void delayParts(long millis) {
+        partDelayMillis = millis;
+    }
+
+    void failPart(int partNumber) {
+        failingPart = partNumber;
+    }
+
+    int maxPartsInFlight() {
+        return maxPartsInFlight.get();
+    }
+
+    int completedUploads() {
+        return completedUploads.get();
+    }
+
+    int openUploads() {
+        return uploads.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=")) {
+            exchange.sendResponseHeaders(403, -1);
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        String method = exchange.getRequestMethod();
+        if (path.equals("/" + bucket) || path.equals("/" + bucket + "/")) {
+            list(exchange, query);
+            return;
+        }
+        if (!path.startsWith("/" + bucket + "/")) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        String key = path.substring(bucket.length() + 2);
+        byte[] body = exchange.getRequestBody().readAllBytes();
+
+        if (method.equals("POST") && query.containsKey("uploads")) {
+            String uploadId = "upload-" + uploadIds.incrementAndGet();
+            uploads.put(uploadId, new ConcurrentHashMap<>());
+            xml(exchange, 200, "<InitiateMultipartUploadResult><Key>" + key + "</Key><UploadId>" + uploadId
+                    + "</UploadId></InitiateMultipartUploadResult>");
+        } else if (method.equals("PUT") && query.containsKey("partNumber")) {
+            uploadPart(exchange, query, body);
+        } else if (method.equals("POST") && query.containsKey("uploadId")) {
+            completeUpload(exchange, key, query.get("uploadId"), new String(body, StandardCharsets.UTF_8));
+        } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+            uploads.remove(query.get("uploadId"));
+            exchange.sendResponseHeaders(204, -1);
+        } else if (method.equals("PUT") && exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+            String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"), StandardCharsets.UTF_8);
+            StoredObject object = objects.get(source.substring(bucket.length() + 2));
+            if (object == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            objects.put(key, new StoredObject(object.content(), Instant.now()));
+            xml(exchange, 200, "<CopyObjectResult><ETag>\"copy\"</ETag></CopyObjectResult>");
+        } else if (method.equals("PUT")) {
+            objects.put(key, new StoredObject(body, Instant.now()));
+            exchange.getResponseHeaders().set("ETag", "\"object\"");
+            exchange.sendResponseHeaders(200, -1);
+        } else if (method.equals("DELETE")) {
+            objects.remove(key);
+            exchange.sendResponseHeaders(204, -1);
+        } else if (method.equals("HEAD") || method.equals("GET")) {
+            read(exchange, key, method.equals("HEAD"));
+        } else {
+            exchange.sendResponseHeaders(405, -1);
+        }
+    }
+
+    private void uploadPart(HttpExchange exchange, Map<String, String> query, byte[] body) throws IOException {
+        int partNumber = Integer.parseInt(query.get("partNumber"));
+        Map<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+        if (parts == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        int inFlight = partsInFlight.incrementAndGet();
+        maxPartsInFlight.accumulateAndGet(inFlight, Math::max);
+        try {
+            if (partDelayMillis > 0) {
+                Thread.sleep(partDelayMillis);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            partsInFlight.decrementAndGet();
+        }
+        if (partNumber == failingPart) {
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+        parts.put(partNumber, body);
+        exchange.getResponseHeaders().set("ETag", "\"part-" + partNumber + "\"");
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void completeUpload(HttpExchange exchange, String key, String uploadId, String body) throws IOException {
+        Map<Integer, byte[]> parts = uploads.remove(uploadId);
+        if (parts == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        Matcher matcher = PART.matcher(body);
+        int expectedPart = 1;
+        while (matcher.find()) {
+            int partNumber = Integer.parseInt(matcher.group(1));
+            if (partNumber != expectedPart++ || !parts.containsKey(partNumber)
+                    || !matcher.group(2).equals("\"part-" + partNumber + "\"")) {
+                xml(exchange, 400, "<Error><Code>InvalidPart</Code></Error>");
+                return;
+            }
+            content.write(parts.get(partNumber));
+        }
+        objects.put(key, new StoredObject(content.toByteArray(), Instant.now()));
+        completedUploads.incrementAndGet();
+        xml(exchange, 200, "<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>");
+    }
+
+    private void read(HttpExchange exchange, String key, boolean headOnly) throws IOException {
+        StoredObject object = objects.get(key);
+        if (object == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set(
+                "Last-Modified",
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(object.modifiedAt().atOffset(ZoneOffset.UTC))
+        );
+        if (headOnly) {
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(object.content().length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        byte[] content = object.content();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int status = 200;
+        int start = 0;
+        int end = content.length;
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            if (start >= content.length) {
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            end = Math.min(Integer.parseInt(bounds[1]) + 1, content.length);
+            status = 206;
+        }
+        exchange.sendResponseHeaders(status, end - start == 0 ? -1 : end - start);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(content, start, end - start);
+        }
+    }
+
+    private void list(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = query.get("delimiter");
+        StringBuilder contents = new StringBuilder();
+        TreeSet<String> commonPrefixes = new TreeSet<>();
+        objects.tailMap(prefix).forEach((key, object) -> {
+            if (!key.startsWith(prefix)) {
+                return;
+            }
+            int delimiterAt = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (delimiterAt >= 0) {
+                commonPrefixes.add(key.substring(0, delimiterAt + delimiter.length()));
+            } else {
+                contents.append("<Contents><Key>").append(key).append("</Key><LastModified>")
+                        .append(object.modifiedAt()).append("</LastModified><Size>")
+                        .append(object.content().length).append("</Size></Contents>");
+            }
+        });
+        StringBuilder result = new StringBuilder("<ListBucketResult><Name>").append(bucket).append("</Name>")
+                .append("<IsTruncated>false</IsTruncated>").append(contents);
+        commonPrefixes.forEach(common -> result.append("<CommonPrefixes><Prefix>").append(common)
+                .append("</Prefix></CommonPrefixes>"));
+        xml(exchange, 200, result.append("</ListBucketResult>").toString());
+    }
+
+    private static void xml(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private record StoredObject(byte[] content, Instant modifiedAt) {
+    }
+}
@@ -0,0 +1,265 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Behaviour every {@link StateRepository} backend has to share. Subclasses open a repository over
+ * {@link #dataRoot}; closing it and opening it again must see everything the first one committed.
+ */
+abstract class StateRepositoryContractTests {
+
+    private static final Instant NOW = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+
+    @TempDir
+    Path dataRoot;
+
+    protected abstract StateRepository open();
+
+    @Test
+    void registrationRejectsTakenUsernamesAndEmailsIgnoringCase() {
+        StateRepository repository = open();
+
+        StateRepository.Registration created = repository.registerUser("Demo", "demo@example.com", "hash", NOW);
+        StateRepository.Registration duplicate = repository.registerUser("DEMO", "other@example.com", "hash", NOW);
+
+        assertThat(created.isCreated()).isTrue();
+        assertThat(duplicate.isCreated()).isFalse();
+        assertThat(duplicate.usernameTaken()).isTrue();
+        assertThat(duplicate.emailTaken()).isFalse();
+        assertThat(repository.findUserByUsernameOrEmail("DEMO@example.com"))
+                .hasValueSatisfying(user -> assertThat(user.id).isEqualTo(created.user().id));
+    }
+
+    @Test
+    void passwordHashIsReplacedOnlyWhileItStillMatches() {
+        StateRepository repository = open();
+        long userId = registerUser(repository);
+
+        assertThat(repository.updatePasswordHash(userId, "stale", "other")).isFalse();
+        assertThat(repository.updatePasswordHash(userId, "hash", "rehashed")).isTrue();
+
+        StateRepository reopened = reopen(repository);
+        assertThat(reopened.findUser(userId)).hasValueSatisfying(user -> assertThat(user.passwordHash).isEqualTo("rehashed"));
+        assertThat(reopened.findUserByUsernameOrEmail("demo"))
+                .hasValueSatisfying(user -> assertThat(user.passwordHash).isEqualTo("rehashed"));
+    }
+
+    @Test
+    void writesAddChangeAndRemoveRowsDurably() {
+        StateRepository repository = open();
+        long userId = registerUser(repository);
+        long fileId = repository.nextFileId();
+        long shareId = repository.nextShareId();
+
+        repository.writeUser(userId, partition -> {
+            partition.files.add(new AppStateStore.FileRecord(fileId, userId, "a.txt", "text/plain", 3, NOW, "key-a"));
+            partition.shares.add(new AppStateStore.ShareRecord(shareId, fileId, userId, "share-token", NOW, NOW.plusSeconds(60), null, 0));
+            partition.sessions.add(new AppStateStore.SessionRecord("session-token", userId, NOW, NOW.plusSeconds(60), null));
+            return null;
+        });
+        repository.writeUser(userId, partition -> {
+            partition.files.rename(0, "b.txt");
+            partition.shares.get(0).accessCount++;
+            partition.sessions.get(0).revokedAt = NOW;
+            return null;
+        });
+
+        StateRepository reopened = reopen(repository);
+        reopened.readUser(userId, partition -> {
+            assertThat(partition.files).singleElement().satisfies(file -> {
+                assertThat(file.filename).isEqualTo("b.txt");
+                assertThat(file.uploadTime).isEqualTo(NOW);
+            });
+            assertThat(partition.shares).singleElement().satisfies(share -> assertThat(share.accessCount).isEqualTo(1));
+            assertThat(partition.sessions).singleElement().satisfies(session -> assertThat(session.revokedAt).isEqualTo(NOW));
+            return null;
+        });
+        assertThat(reopened.findShareOwner("share-token")).hasValue(userId);
+        assertThat(reopened.findSessionOwner("session-token")).hasValue(userId);
+
+        reopened.writeUser(userId, partition -> {
+            partition.shares.clear();
+            return partition.files.removeIf(file -> file.id == fileId);
+        });
+        int files = reopened.readUser(userId, partition -> partition.files.size());
+        assertThat(files).isZero();
+        assertThat(reopened.findShareOwner("share-token")).isEmpty();
+    }
+
+    @Test
+    void singleRowLookupsSeeCommittedWrites() {
+        StateRepository repository = open();
+        long userId = registerUser(repository);
+        long fileId = repository.nextFileId();
+        long shareId = repository.nextShareId();
+        repository.writeUser(userId, partition -> {
+            partition.files.add(new AppStateStore.FileRecord(fileId, userId, "a.txt", "text/plain", 3, NOW, "key-a"));
+            partition.shares.add(new AppStateStore.ShareRecord(shareId, fileId, userId, "share-token", NOW, null, null, 0));
+            return partition.sessions.add(new AppStateStore.SessionRecord("session-token", userId, NOW, NOW.plusSeconds(60), null));
+        });
+
+        assertThat(repository.findSession("session-token")).hasValueSatisfying(session -> {
+            assertThat(session.userId).isEqualTo(userId);
+            assertThat(session.expiresAt).isEqualTo(NOW.plusSeconds(60));
+        });
+        assertThat(repository.findFile(userId, fileId)).hasValueSatisfying(file -> assertThat(file.filename).isEqualTo("a.txt"));
+        assertThat(repository.findFile(userId + 1, fileId)).isEmpty();
+        assertThat(repository.findShare("share-token")).hasValueSatisfying(share -> assertThat(share.fileId).isEqualTo(fileId));
+        assertThat(repository.countShareAccess(userId, shareId)).hasValue(1);
+        assertThat(repository.countShareAccess(userId, shareId + 1)).isEmpty();
+
+        StateRepository reopened = reopen(repository);
+        assertThat(reopened.findShare("share-token")).hasValueSatisfying(share -> assertThat(share.accessCount).isEqualTo(1));
+        assertThat(reopened.findSession("missing")).isEmpty();
+    }
+
+    @Test
+    void fileVersionsAreKeptUntilRemovedWithTheirFile() {
+        StateRepository repository = open();
+        long userId = registerUser(repository);
+        long fileId = repository.nextFileId();
+
+        repository.writeUser(userId, partition -> {
+            partition.files.add(new AppStateStore.FileRecord(fileId, userId, "a.txt", null, 30, NOW, "key-3"));
+            partition.versions.add(new AppStateStore.FileVersionRecord(fileId, 1, 10, 7, "key-1", false, NOW.minusSeconds(2)));
+            partition.versions.add(new AppStateStore.FileVersionRecord(
+                    fileId, 2, 20, AppStateStore.FileRecord.NO_CHECKSUM, "key-2", true, NOW.minusSeconds(1)
+            ));
+            return null;
+        });
+        repository.writeUser(userId, partition -> {
+            partition.versions.removeIf(version -> version.version == 1);
+            partition.versions.add(new AppStateStore.FileVersionRecord(fileId, 3, 30, 9, "key-3", true, NOW));
+            return null;
+        });
+
+        repository = reopen(repository);
+        List<AppStateStore.FileVersionRecord> versions = repository.readUser(userId, partition -> List.copyOf(partition.versions));
+        assertThat(versions)
+                .extracting(version -> version.version)
+                .containsExactlyInAnyOrder(2L, 3L);
+        assertThat(versions).filteredOn(version -> version.version == 2).singleElement().satisfies(version -> {
+            assertThat(version.fileSize).isEqualTo(20);
+            assertThat(version.checksum).isEqualTo(AppStateStore.FileRecord.NO_CHECKSUM);
+            assertThat(version.storageKey).isEqualTo("key-2");
+            assertThat(version.delta).isTrue();
+            assertThat(version.uploadTime).isEqualTo(NOW.minusSeconds(1));
+        });
+
+        repository.writeUser(userId, partition -> {
+            partition.versions.clear();
+            return partition.files.removeIf(file -> file.id == fileId);
+        });
+        int remaining = reopen(repository).readUser(userId, partition -> partition.versions.size());
+        assertThat(remaining).isZero();
+    }
+
+    @Test
+    void foldersAndFilePlacementArePersisted() {
+        StateRepository repository = open();
+        long userId = registerUser(repository);
+        long photos = repository.nextFileId();
+        long archive = repository.nextFileId();
+        long fileId = repository.nextFileId();
+
+        repository.writeUser(userId, partition -> {
+            partition.folders.add(new AppStateStore.FolderRecord(photos, userId, AppStateStore.FolderRecord.ROOT, "Photos", NOW));
+            partition.folders.add(new AppStateStore.FolderRecord(archive, userId, photos, "Archive", NOW));
+            return partition.files.add(new AppStateStore.FileRecord(
+                    fileId, userId, "a.jpg", null, 3, NOW, "key-a", null, AppStateStore.FileRecord.NO_CHECKSUM, archive
+            ));
+        });
+        repository.writeUser(userId, partition -> {
+            partition.folders.move(archive, AppStateStore.FolderRecord.ROOT);
+            partition.folders.rename(photos, "Pictures");
+            partition.files.setFolderId(0, photos);
+            return null;
+        });
+
+        StateRepository reopened = reopen(repository);
+        String path = reopened.readUser(userId, partition -> partition.folders.path(archive));
+        long folderId = reopened.readUser(userId, partition -> partition.files.get(0).folderId);
+        long resolved = reopened.readUser(userId, partition -> partition.folders.resolve("/pictures"));
+        assertThat(path).isEqualTo("/Archive");
+        assertThat(folderId).isEqualTo(photos);
+        assertThat(resolved).isEqualTo(photos);
+
+        reopened.writeUser(userId, partition -> partition.folders.removeIf(folder -> folder.id == archive));
+        List<AppStateStore.FolderRecord> folders = reopen(reopened).readUser(userId, partition -> List.copyOf(partition.folders));
+        assertThat(folders).singleElement().satisfies(folder -> {
+            assertThat(folder.id).isEqualTo(photos);
+            assertThat(folder.parentId).isEqualTo(AppStateStore.FolderRecord.ROOT);
+            assertThat(folder.createdAt).isEqualTo(NOW);
+        });
+    }
+
+    @Test
+    void failedWriteChangesNothing() {
+        StateRepository repository = open();
+        long userId = registerUser(repository);
+
+        assertThatThrownBy(() -> repository.writeUser(userId, partition -> {
+            partition.files.add(new AppStateStore.FileRecord(repository.nextFileId(), userId, "a.txt", null, 1, NOW, "key"));
+            throw new IllegalStateException("boom");
+        })).isInstanceOf(IllegalStateException.class);
+
+        int files = repository.readUser(userId, partition -> partition.files.size());
+        assertThat(files).isZero();
+    }
+
+    @Test
+    void trashedFilesKeepTheirDeletionTimeUntilRestored() {
+        StateRepository repository = open();
+        long userId = registerUser(repository);
+        long fileId = repository.nextFileId();
+
+        repository.writeUser(userId, partition -> partition.files.add(
+                new AppStateStore.FileRecord(fileId, userId, "a.txt", null, 3, NOW, "key-a")
+        ));
+        repository.writeUser(userId, partition -> {
+            partition.files.setDeletedAt(0, NOW.plusSeconds(5));
+            return null;
+        });
+
+        repository = reopen(repository);
+        Instant deletedAt = repository.readUser(userId, partition -> partition.files.get(0).deletedAt);
+        assertThat(deletedAt).isEqualTo(NOW.plusSeconds(5));
+
+        repository.writeUser(userId, partition -> {
+            partition.files.setDeletedAt(0, null);
+            return null;
+        });
+        boolean deleted = reopen(repository).readUser(userId, partition -> partition.files.isDeleted(0));
+        assertThat(deleted).isFalse();
+    }
+
+    @Test
+    void activityIsListedNewestFirst() {
+        StateRepository repository = open();
+        long userId = registerUser(repository);
+
+        repository.appendActivity(new AppStateStore.ActivityRecord(repository.nextActivityId(), userId, "SIGNUP", null, NOW));
+        repository.appendActivity(new AppStateStore.ActivityRecord(repository.nextActivityId(), userId, "UPLOAD", "a.txt", NOW.plusSeconds(1)));
+
+        List<String> actions = repository.listActivities(userId).stream().map(activity -> activity.action).toList();
+        assertThat(actions).containsExactly("UPLOAD", "SIGNUP");
+    }
+
+    private StateRepository reopen(StateRepository repository) {
+        repository.close();
+        return open();
+    }
+
+    private static long registerUser(StateRepository repository) {
+        return repository.registerUser("demo", "demo@example.com", "hash", NOW).user().id;
+    }
+}
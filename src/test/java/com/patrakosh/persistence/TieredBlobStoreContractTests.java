@@ -0,0 +1,132 @@
+package com.patrakosh.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TieredBlobStoreContractTests extends BlobStoreContractTests {
+
+    @Override
+    protected BlobStore open() {
+        return new TieredBlobStore(
+                hotRoot(), coldRoot(), Duration.ofDays(7), 0, Duration.ZERO, Duration.ZERO, Clock.systemUTC()
+        );
+    }
+
+    @Test
+    void coldBlobsAreCompressedAndStayReadableUntilPromotedByADownload() throws Exception {
+        TieredBlobStore blobs = (TieredBlobStore) store();
+        String content = "cold content ".repeat(100);
+        put(blobs, "user-1/cold.txt", content);
+        put(blobs, "user-1/hot.txt", "hot");
+        age(hotRoot().resolve("user-1/cold.txt"), Duration.ofDays(8));
+
+        TieredBlobStore.TieringReport report = blobs.demoteColdBlobs();
+
+        assertThat(report.blobsDemoted()).isEqualTo(1);
+        assertThat(report.bytesArchived()).isLessThan(content.length());
+        assertThat(hotRoot().resolve("user-1/cold.txt")).doesNotExist();
+        assertThat(hotRoot().resolve("user-1/hot.txt")).exists();
+        assertThat(read(blobs.get("user-1/cold.txt"))).isEqualTo(content);
+        assertThat(read(blobs.get("user-1/cold.txt", 5, 7))).isEqualTo("content");
+        assertThat(blobs.stat("user-1/cold.txt")).hasValueSatisfying(info -> assertThat(info.size()).isEqualTo(content.length()));
+        assertThat(blobs.list("user-1")).extracting(BlobStore.BlobInfo::key)
+                .containsExactlyInAnyOrder("user-1/cold.txt", "user-1/hot.txt");
+
+        blobs.recordAccess("user-1/cold.txt");
+        awaitFile(hotRoot().resolve("user-1/cold.txt"));
+
+        assertThat(read(blobs.get("user-1/cold.txt"))).isEqualTo(content);
+        assertThat(blobs.demoteColdBlobs().blobsDemoted()).isZero();
+    }
+
+    @Test
+    void leastRecentlyReadBlobsAreDemotedUntilTheHotTierFits() throws Exception {
+        try (TieredBlobStore blobs = new TieredBlobStore(
+                hotRoot(), coldRoot(), Duration.ofDays(7), 10, Duration.ZERO, Duration.ZERO, Clock.systemUTC()
+        )) {
+            for (int index = 0; index < 4; index++) {
+                put(blobs, "user-1/" + index + ".txt", "12345");
+                age(hotRoot().resolve("user-1/" + index + ".txt"), Duration.ofHours(4 - index));
+            }
+            // Reading the oldest blob makes it the most recently used one.
+            age(hotRoot().resolve("user-1/0.txt"), Duration.ofHours(1));
+            blobs.recordAccess("user-1/0.txt");
+
+            assertThat(blobs.demoteColdBlobs().blobsDemoted()).isEqualTo(2);
+
+            assertThat(hotRoot().resolve("user-1/0.txt")).exists();
+            assertThat(hotRoot().resolve("user-1/3.txt")).exists();
+            assertThat(hotRoot().resolve("user-1/1.txt")).doesNotExist();
+            assertThat(hotRoot().resolve("user-1/2.txt")).doesNotExist();
+        }
+    }
+
+    @Test
+    void linkedCopiesCountOnceAgainstTheHotCapacity() throws Exception {
+        try (TieredBlobStore blobs = new TieredBlobStore(
+                hotRoot(), coldRoot(), Duration.ofDays(7), 10, Duration.ZERO, Duration.ZERO, Clock.systemUTC()
+        )) {
+            put(blobs, "user-1/original.txt", "12345678");
+            blobs.copy("user-1/original.txt", "user-1/copy.txt");
+
+            assertThat(blobs.demoteColdBlobs().blobsDemoted()).isZero();
+            assertThat(hotRoot().resolve("user-1/original.txt")).exists();
+            assertThat(hotRoot().resolve("user-1/copy.txt")).exists();
+        }
+    }
+
+    @Test
+    void replacingAColdBlobDropsTheArchivedCopy() throws Exception {
+        BlobStore blobs = store();
+        put(blobs, "user-1/report.txt", "first");
+        age(hotRoot().resolve("user-1/report.txt"), Duration.ofDays(8));
+        ((TieredBlobStore) blobs).demoteColdBlobs();
+
+        put(blobs, "user-1/report.txt", "second");
+
+        assertThat(coldRoot().resolve("user-1/report.txt.cold")).doesNotExist();
+        assertThat(read(blobs.get("user-1/report.txt"))).isEqualTo("second");
+    }
+
+    @Test
+    void copyingAColdBlobCopiesTheArchive() throws Exception {
+        BlobStore blobs = store();
+        put(blobs, "user-1/report.txt", "archived");
+        age(hotRoot().resolve("user-1/report.txt"), Duration.ofDays(8));
+        ((TieredBlobStore) blobs).demoteColdBlobs();
+
+        blobs.copy("user-1/report.txt", "user-1/copy.txt");
+
+        assertThat(hotRoot().resolve("user-1/copy.txt")).doesNotExist();
+        assertThat(read(blobs.get("user-1/copy.txt"))).isEqualTo("archived");
+    }
+
+    private Path hotRoot() {
+        return storageRoot.resolve("hot");
+    }
+
+    private Path coldRoot() {
+        return storageRoot.resolve("cold");
+    }
+
+    private static void age(Path file, Duration age) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(age)));
+    }
+
+    private static void awaitFile(Path file) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!Files.exists(file) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(file).exists();
+    }
+}
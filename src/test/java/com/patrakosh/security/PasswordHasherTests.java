@@ -0,0 +1,36 @@
+package com.patrakosh.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PasswordHasherTests {
+
+    @Test
+    void storedHashesRecordTheirIterationCount() {
+        String stored = PasswordHasher.hash("secret123", 120_000);
+
+        assertThat(PasswordHasher.iterationsOf(stored)).isEqualTo(120_000);
+        assertThat(PasswordHasher.matches("secret123", stored)).isTrue();
+        assertThat(PasswordHasher.needsRehash(stored, 120_000)).isFalse();
+        assertThat(PasswordHasher.needsRehash(stored, PasswordHasher.DEFAULT_ITERATIONS)).isTrue();
+        assertThat(PasswordHasher.iterationsOf("not-a-hash")).isZero();
+        assertThat(PasswordHasher.needsRehash("not-a-hash", PasswordHasher.MIN_ITERATIONS)).isTrue();
+    }
+
+    @Test
+    void strongerHashesAreNeverRehashedDown() {
+        String stored = PasswordHasher.hash("secret123", 300_000);
+
+        assertThat(PasswordHasher.needsRehash(stored, PasswordHasher.DEFAULT_ITERATIONS)).isFalse();
+        assertThat(PasswordHasher.needsRehash(stored, 300_000)).isFalse();
+    }
+
+    @Test
+    void calibrationNeverDropsBelowTheFloor() {
+        assertThat(PasswordHasher.calibrate(Duration.ofMillis(1))).isEqualTo(PasswordHasher.MIN_ITERATIONS);
+        assertThat(PasswordHasher.calibrate(Duration.ofMillis(500)) % 10_000).isZero();
+    }
+}
@@ -0,0 +1,68 @@
+package com.patrakosh.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DesktopStorageWatcherTests {
+
+    @TempDir
+    Path directory;
+
+    private DesktopStorageWatcher watcher;
+
+    @AfterEach
+    void stopWatching() throws Exception {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    @Test
+    void burstsOfEventsAreReportedOnceInTheirFinalState() throws Exception {
+        BlockingQueue<DesktopStorageWatcher.Change> changes = new LinkedBlockingQueue<>();
+        Path kept = directory.resolve("kept.txt");
+        Path temporary = directory.resolve("temporary.txt");
+
+        watcher = DesktopStorageWatcher.start(directory, changes::add, Duration.ofMillis(300), Duration.ofSeconds(5));
+        Files.writeString(kept, "a");
+        Files.writeString(temporary, "b");
+        Files.writeString(kept, "abc");
+        Files.delete(temporary);
+
+        DesktopStorageWatcher.Change change = changes.poll(10, TimeUnit.SECONDS);
+        assertThat(change).isNotNull();
+        assertThat(change.complete()).isFalse();
+        assertThat(change.updated()).containsOnlyKeys(kept);
+        assertThat(change.updated().get(kept).size()).isEqualTo(3);
+        assertThat(change.removed()).containsExactly(temporary);
+        assertThat(changes.poll(1, TimeUnit.SECONDS)).isNull();
+
+        Files.delete(kept);
+        DesktopStorageWatcher.Change removal = changes.poll(10, TimeUnit.SECONDS);
+        assertThat(removal).isNotNull();
+        assertThat(removal.updated()).isEmpty();
+        assertThat(removal.removed()).containsExactly(kept);
+    }
+
+    @Test
+    void subdirectoriesAreNotReportedAsFiles() throws Exception {
+        BlockingQueue<DesktopStorageWatcher.Change> changes = new LinkedBlockingQueue<>();
+
+        watcher = DesktopStorageWatcher.start(directory, changes::add, Duration.ofMillis(100), Duration.ofSeconds(5));
+        Files.createDirectory(directory.resolve("nested"));
+
+        DesktopStorageWatcher.Change change = changes.poll(10, TimeUnit.SECONDS);
+        assertThat(change).isNotNull();
+        assertThat(change.updated()).isEmpty();
+    }
+}
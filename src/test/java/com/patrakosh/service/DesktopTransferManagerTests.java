@@ -0,0 +1,111 @@
+package com.patrakosh.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DesktopTransferManagerTests {
+
+    @TempDir
+    Path directory;
+
+    private DesktopTransferManager manager;
+
+    @AfterEach
+    void shutDown() {
+        if (manager != null) {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    void copiesInChunksAndReportsProgress() throws Exception {
+        manager = new DesktopTransferManager(2, 1000);
+        Path source = directory.resolve("source.bin");
+        Files.write(source, new byte[2500]);
+        Path target = directory.resolve("target.bin");
+        Files.writeString(target, "old");
+        List<Long> progress = new CopyOnWriteArrayList<>();
+
+        Path copied = manager.copy(source, target, (transferred, total) -> {
+            assertThat(total).isEqualTo(2500);
+            progress.add(transferred);
+        }).result().get(10, TimeUnit.SECONDS);
+
+        assertThat(copied).isEqualTo(target);
+        assertThat(Files.size(target)).isEqualTo(2500);
+        assertThat(progress).containsExactly(0L, 1000L, 2000L, 2500L);
+        assertThat(leftovers()).containsExactlyInAnyOrder(source, target);
+    }
+
+    @Test
+    void copiesIntoAFolderNeverShareATarget() throws Exception {
+        manager = new DesktopTransferManager(4);
+        Path source = directory.resolve("report.pdf");
+        Files.writeString(source, "report");
+        Path folder = directory.resolve("storage");
+        Files.createDirectories(folder);
+        Files.writeString(folder.resolve("report.pdf"), "existing");
+
+        List<DesktopTransferManager.Transfer> transfers = Stream.generate(
+                () -> manager.copyInto(source, folder, "report.pdf", (transferred, total) -> { })
+        ).limit(3).toList();
+        List<Path> targets = transfers.stream().map(transfer -> transfer.result().join()).toList();
+
+        assertThat(targets).containsExactlyInAnyOrder(
+                folder.resolve("report (1).pdf"),
+                folder.resolve("report (2).pdf"),
+                folder.resolve("report (3).pdf")
+        );
+        assertThat(Files.readString(folder.resolve("report.pdf"))).isEqualTo("existing");
+        assertThat(manager.availablePath(folder, "report.pdf")).isEqualTo(folder.resolve("report (4).pdf"));
+    }
+
+    @Test
+    void cancelledTransfersLeaveNothingBehind() throws Exception {
+        manager = new DesktopTransferManager(1, 1000);
+        Path source = directory.resolve("source.bin");
+        Files.write(source, new byte[5000]);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        DesktopTransferManager.Transfer running = manager.copy(source, directory.resolve("running.bin"), (transferred, total) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        DesktopTransferManager.Transfer queued = manager.copy(source, directory.resolve("queued.bin"), (transferred, total) -> { });
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(queued.cancel()).isTrue();
+        assertThat(queued.result()).isCompletedExceptionally();
+        assertThat(running.cancel()).isTrue();
+        release.countDown();
+
+        assertThatThrownBy(() -> running.result().get(10, TimeUnit.SECONDS))
+                .isInstanceOf(CancellationException.class);
+        assertThat(running.cancel()).isFalse();
+        assertThat(leftovers()).containsExactly(source);
+    }
+
+    private List<Path> leftovers() throws Exception {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.toList();
+        }
+    }
+}